@@ -0,0 +1,525 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+* Writes a directory tree of an image as a tar or cpio archive, straight to a stream.
+*
+* Nothing is extracted first - the tree is walked in the order of the names and the data of every file is read from
+* the volume a chunk at a time and written out, so the memory used does not depend on the size of the files.
+* Mode, owner, group and modification time come from the inodes, symbolic links keep their targets and the further
+* names of a file with several hard links are written as links to the first one (only these files are remembered).
+* Names and link targets are written as the bytes kept in the image, whatever their encoding.
+*
+*	TAR		POSIX ustar, with a pax extended header for whatever does not fit (long names, sizes over 8 GB, large ids)
+*	CPIO	the "newc" format of cpio -H newc, files must be smaller than 4 GB
+*
+*	new ArchiveExporter(volume, ArchiveExporter.Format.TAR).export("/home/user", System.out);
+*
+* Sockets cannot be archived and are skipped.
+*
+* @author Michal Radecki
+*/
+
+public class ArchiveExporter{
+	
+	private static final int BUFFER_SIZE = 256 * 1024;	//Bytes of a file read at once
+	private static final int BLOCK = 512;				//Tar record
+	private static final long USTAR_MAX_SIZE = 077777777777L;
+	private static final long USTAR_MAX_ID = 07777777;
+	private static final long CPIO_MAX = 0xffffffffL;
+	
+	private static final int IFMT = 0xF000;
+	private static final int IFSOCK = 0xC000;
+	private static final int IFLNK = 0xA000;
+	private static final int IFREG = 0x8000;
+	private static final int IFBLK = 0x6000;
+	private static final int IFDIR = 0x4000;
+	private static final int IFCHR = 0x2000;
+	private static final int IFIFO = 0x1000;
+	
+	//Order of the names in a directory, by their unsigned bytes
+	private static final Comparator<byte[]> NAME_ORDER = new Comparator<byte[]>(){
+		
+		public int compare(byte[] a, byte[] b){
+			
+			for(int i = 0; i < a.length && i < b.length; i++){
+				
+				int order = (a[i] & 0xFF) - (b[i] & 0xFF);
+				
+				if(order != 0) return order;
+			}
+			
+			return a.length - b.length;
+		}
+	};
+	
+	private Volume volume;
+	private PathResolver resolver;
+	private Format format;
+	private OutputStream out;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private Map<Long, byte[]> links = new HashMap<Long, byte[]>();
+	private long written;
+	private long entries;
+	
+	/**
+	* Formats of the archives.
+	*/
+	
+	public enum Format{ TAR, CPIO }
+	
+	/**
+	* Create an exporter.
+	*
+	* @param volume	the volume the files are taken from
+	* @param format	format of the archives
+	*/
+	
+	public ArchiveExporter(Volume volume, Format format){
+		
+		this.volume = volume;
+		this.format = format;
+		resolver = volume.getResolver();
+	}
+	
+	/**
+	* Write a file or a directory with everything below it, and the end of the archive. The names in the archive start
+	* with the last name of the path ("." for the root directory). The stream is flushed but not closed.
+	*
+	* @param path		path of the file or directory in the image
+	* @param out		where the archive is written
+	* @return entries	number of entries written
+	*/
+	
+	public long export(String path, OutputStream out) throws IOException{
+		
+		long inodeNum = resolver.resolve(path, false);
+		String name = path.replaceAll("/+$", "");
+		
+		name = name.isEmpty() ? "." : name.substring(name.lastIndexOf('/') + 1);
+		
+		this.out = out;
+		written = 0;
+		entries = 0;
+		links.clear();
+		
+		add(name.getBytes(StandardCharsets.UTF_8), inodeNum);
+		finish();
+		out.flush();
+		
+		return entries;
+	}
+	
+	/**
+	* @return written	number of bytes of the last archive
+	*/
+	
+	public long getWritten(){
+		
+		return written;
+	}
+	
+	/*
+	* Write an entry, and the entries below it if it is a directory.
+	*/
+	
+	private void add(byte[] name, long inodeNum) throws IOException{
+		
+		Inode inode = readInode(inodeNum);
+		int type = inode.getFileMode() & IFMT;
+		
+		if(type == IFSOCK) return;
+		
+		// Further names of a file are links to the first one
+		if(type != IFDIR && inode.getLinks() > 1){
+			
+			byte[] first = links.get(inodeNum);
+			
+			if(first != null){
+				
+				header(name, inode, 0, first, true);
+				return;
+			}
+			
+			links.put(inodeNum, name);
+		}
+		
+		if(type == IFLNK){
+			
+			header(name, inode, 0, resolver.readLinkBytes(inodeNum), false);
+			return;
+		}
+		
+		if(type != IFREG){
+			
+			header(name, inode, 0, null, false);
+			
+			if(type == IFDIR){
+				
+				for(Map.Entry<byte[], Integer> child: children(inodeNum).entrySet()){
+					
+					byte[] path = Arrays.copyOf(name, name.length + 1 + child.getKey().length);
+					
+					path[name.length] = '/';
+					System.arraycopy(child.getKey(), 0, path, name.length + 1, child.getKey().length);
+					add(path, child.getValue() & 0xFFFFFFFFL);
+				}
+			}
+			
+			return;
+		}
+		
+		Ext2File file = new Ext2File(volume, inodeNum);
+		long size = file.size();
+		
+		header(name, inode, size, null, false);
+		
+		for(long position = 0; position < size; ){
+			
+			int count = (int) Math.min(buffer.length, size - position);
+			
+			file.readInto(position, buffer, 0, count);
+			write(buffer, 0, count);
+			position += count;
+		}
+		
+		pad(format == Format.TAR ? BLOCK : 4);
+	}
+	
+	/*
+	* The entries of a directory but "." and "..", with their names as they are kept in the directory blocks.
+	*/
+	
+	private TreeMap<byte[], Integer> children(long inodeNum){
+		
+		TreeMap<byte[], Integer> children = new TreeMap<byte[], Integer>(NAME_ORDER);
+		long blockSize = volume.getBlockSize();
+		
+		for(Extent extent: volume.getExtents(inodeNum)){
+			
+			byte[] bytes = volume.getBytes(extent.getPhysicalBlock() * blockSize, extent.getLength() * blockSize);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(int block = 0; block < bytes.length; block += blockSize){
+				
+				for(int position = block; position + 8 <= block + blockSize; ){
+					
+					int inode = buffer.getInt(position);
+					int length = buffer.getShort(position + 4) & 0xFFFF;
+					int nameLength = bytes[position + 6] & 0xFF;
+					
+					// A corrupted entry would never let us leave the block
+					if(length < 8 || position + length > block + blockSize || nameLength > length - 8) break;
+					
+					boolean dot = nameLength == 1 && bytes[position + 8] == '.' || nameLength == 2 && bytes[position + 8] == '.' && bytes[position + 9] == '.';
+					
+					// Entries with inode 0 are unused space
+					if(inode != 0 && nameLength > 0 && !dot) children.put(Arrays.copyOfRange(bytes, position + 8, position + 8 + nameLength), inode);
+					
+					position += length;
+				}
+			}
+		}
+		
+		return children;
+	}
+	
+	/*
+	* Write the header of an entry. A hard link has the name of the first file as its target.
+	*/
+	
+	private void header(byte[] name, Inode inode, long size, byte[] target, boolean hardLink) throws IOException{
+		
+		entries++;
+		
+		if(format == Format.CPIO){
+			
+			cpioHeader(name, inode, size, hardLink ? null : target);
+			
+			if(target != null && !hardLink){
+				
+				write(target);
+				pad(4);
+			}
+		}
+		
+		else tarHeader(name, inode, size, target, hardLink);
+	}
+	
+	/*
+	* A ustar header, preceded by a pax extended header if some of the fields do not fit.
+	*/
+	
+	private void tarHeader(byte[] name, Inode inode, long size, byte[] target, boolean hardLink) throws IOException{
+		
+		int type = inode.getFileMode() & IFMT;
+		byte[] nameBytes = name;
+		
+		if(type == IFDIR){
+			
+			nameBytes = Arrays.copyOf(name, name.length + 1);
+			nameBytes[name.length] = '/';
+		}
+		
+		byte[] targetBytes = target == null ? new byte[0] : target;
+		int split = splitName(nameBytes);
+		ByteArrayOutputStream pax = new ByteArrayOutputStream();
+		
+		if(split < 0) paxRecord(pax, "path", nameBytes);
+		if(targetBytes.length > 100) paxRecord(pax, "linkpath", targetBytes);
+		if(size > USTAR_MAX_SIZE) paxRecord(pax, "size", Long.toString(size));
+		if(inode.getUserId() > USTAR_MAX_ID) paxRecord(pax, "uid", Integer.toString(inode.getUserId()));
+		if(inode.getGroupId() > USTAR_MAX_ID) paxRecord(pax, "gid", Integer.toString(inode.getGroupId()));
+		
+		if(pax.size() > 0){
+			
+			byte[] records = pax.toByteArray();
+			byte[] paxHeader = new byte[BLOCK];
+			
+			put(paxHeader, 0, 100, "PaxHeaders/" + inode.getInodeNum());
+			octal(paxHeader, 100, 8, 0644);
+			octal(paxHeader, 108, 8, 0);
+			octal(paxHeader, 116, 8, 0);
+			octal(paxHeader, 124, 12, records.length);
+			octal(paxHeader, 136, 12, inode.getModifiedTime());
+			paxHeader[156] = 'x';
+			writeTarHeader(paxHeader);
+			write(records);
+			pad(BLOCK);
+		}
+		
+		byte[] header = new byte[BLOCK];
+		char flag = hardLink ? '1' : type == IFLNK ? '2' : type == IFDIR ? '5' : type == IFCHR ? '3' : type == IFBLK ? '4' : type == IFIFO ? '6' : '0';
+		
+		// Names which need a pax record still get a truncated one here, for readers which ignore pax headers
+		if(split > 0){
+			
+			System.arraycopy(nameBytes, 0, header, 345, split);
+			System.arraycopy(nameBytes, split + 1, header, 0, nameBytes.length - split - 1);
+		}
+		
+		else System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+		
+		System.arraycopy(targetBytes, 0, header, 157, Math.min(100, targetBytes.length));
+		
+		octal(header, 100, 8, inode.getFileMode() & 07777);
+		octal(header, 108, 8, Math.min(inode.getUserId() & 0xffffffffL, USTAR_MAX_ID));
+		octal(header, 116, 8, Math.min(inode.getGroupId() & 0xffffffffL, USTAR_MAX_ID));
+		octal(header, 124, 12, size > USTAR_MAX_SIZE ? 0 : size);
+		octal(header, 136, 12, inode.getModifiedTime());
+		header[156] = (byte) flag;
+		
+		if(type == IFCHR || type == IFBLK){
+			
+			long device = device(inode);
+			
+			octal(header, 329, 8, device >>> 32);
+			octal(header, 337, 8, device & 0xffffffffL);
+		}
+		
+		writeTarHeader(header);
+	}
+	
+	/*
+	* Add the magic and the checksum of a tar header and write it.
+	*/
+	
+	private void writeTarHeader(byte[] header) throws IOException{
+		
+		put(header, 257, 6, "ustar");
+		header[263] = '0';
+		header[264] = '0';
+		
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		
+		long sum = 0;
+		
+		for(byte b: header) sum += b & 0xff;
+		
+		octal(header, 148, 7, sum);
+		header[155] = ' ';
+		
+		write(header);
+	}
+	
+	/*
+	* A "newc" cpio header and the name. The target of a symbolic link is its data.
+	*/
+	
+	private void cpioHeader(byte[] name, Inode inode, long size, byte[] target) throws IOException{
+		
+		byte[] nameBytes = Arrays.copyOf(name, name.length + 1);
+		
+		if(target != null) size = target.length;
+		
+		if(size > CPIO_MAX) throw new IOException("File too large for cpio: " + new String(name, StandardCharsets.UTF_8));
+		
+		long device = device(inode);
+		StringBuilder header = new StringBuilder("070701");
+		
+		hex(header, inode.getInodeNum());
+		hex(header, inode.getFileMode());
+		hex(header, inode.getUserId() & 0xffffffffL);
+		hex(header, inode.getGroupId() & 0xffffffffL);
+		hex(header, inode.getLinks());
+		hex(header, inode.getModifiedTime());
+		hex(header, size);
+		hex(header, 0);
+		hex(header, 0);
+		hex(header, device >>> 32);
+		hex(header, device & 0xffffffffL);
+		hex(header, nameBytes.length);
+		hex(header, 0);
+		
+		write(header.toString().getBytes(StandardCharsets.US_ASCII));
+		write(nameBytes);
+		pad(4);
+	}
+	
+	/*
+	* The end of the archive: two empty records for tar, the trailer entry for cpio. Tar archives are padded to 10 KB.
+	*/
+	
+	private void finish() throws IOException{
+		
+		if(format == Format.CPIO){
+			
+			StringBuilder header = new StringBuilder("070701");
+			
+			for(int i = 0; i < 13; i++) hex(header, i == 4 ? 1 : i == 11 ? 11 : 0);
+			
+			write(header.toString().getBytes(StandardCharsets.US_ASCII));
+			write("TRAILER!!!\0".getBytes(StandardCharsets.US_ASCII));
+			pad(BLOCK);
+		}
+		
+		else{
+			
+			write(new byte[2 * BLOCK]);
+			pad(20 * BLOCK);
+		}
+	}
+	
+	/*
+	* The offset of the "/" at which a name is split into the prefix and name fields of ustar, 0 if it fits in the name field
+	* and -1 if it does not fit at all.
+	*/
+	
+	private static int splitName(byte[] name){
+		
+		if(name.length <= 100) return 0;
+		
+		for(int i = Math.min(155, name.length - 1); i > 0; i--){
+			
+			if(name[i] == '/' && name.length - i - 1 <= 100) return i;
+		}
+		
+		return -1;
+	}
+	
+	/*
+	* A pax record "length key=value\n", where the length counts itself.
+	*/
+	
+	private static void paxRecord(ByteArrayOutputStream pax, String key, String value){
+		
+		paxRecord(pax, key, value.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static void paxRecord(ByteArrayOutputStream pax, String key, byte[] value){
+		
+		int length = key.length() + value.length + 3;
+		int digits = Integer.toString(length).length();
+		
+		if(Integer.toString(length + digits).length() > digits) digits++;
+		
+		byte[] prefix = ((length + digits) + " " + key + "=").getBytes(StandardCharsets.US_ASCII);
+		
+		pax.write(prefix, 0, prefix.length);
+		pax.write(value, 0, value.length);
+		pax.write('\n');
+	}
+	
+	/*
+	* The device number of a special file as (major << 32 | minor), kept in the first pointer in the old encoding
+	* or in the second one in the new one.
+	*/
+	
+	private static long device(Inode inode){
+		
+		int type = inode.getFileMode() & IFMT;
+		
+		if(type != IFCHR && type != IFBLK) return 0;
+		
+		long[] pointers = inode.getBlockPointers();
+		
+		if(pointers[0] != 0) return (pointers[0] >>> 8 & 0xff) << 32 | (pointers[0] & 0xff);
+		
+		return (pointers[1] >>> 8 & 0xfff) << 32 | (pointers[1] & 0xff) | (pointers[1] >>> 12 & 0xfff00);
+	}
+	
+	private Inode readInode(long inodeNum){
+		
+		return new Inode(inodeNum, ByteBuffer.wrap(volume.getInodeBytes(inodeNum)).order(ByteOrder.LITTLE_ENDIAN));
+	}
+	
+	private void write(byte[] bytes) throws IOException{
+		
+		write(bytes, 0, bytes.length);
+	}
+	
+	private void write(byte[] bytes, int offset, int length) throws IOException{
+		
+		out.write(bytes, offset, length);
+		written += length;
+	}
+	
+	/*
+	* Write zeros up to the next multiple of the alignment.
+	*/
+	
+	private void pad(int alignment) throws IOException{
+		
+		int count = (int) ((alignment - written % alignment) % alignment);
+		
+		if(count > 0) write(new byte[count]);
+	}
+	
+	private static void put(byte[] header, int offset, int length, String text){
+		
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		
+		System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+	}
+	
+	/*
+	* A zero padded octal number ended by NUL, taking the whole field.
+	*/
+	
+	private static void octal(byte[] header, int offset, int length, long value){
+		
+		String digits = Long.toOctalString(value);
+		
+		while(digits.length() < length - 1) digits = "0" + digits;
+		
+		put(header, offset, length - 1, digits);
+	}
+	
+	private static void hex(StringBuilder header, long value){
+		
+		String digits = Long.toHexString(value);
+		
+		for(int i = digits.length(); i < 8; i++) header.append('0');
+		
+		header.append(digits);
+	}
+}
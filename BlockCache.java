@@ -0,0 +1,393 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+* A cache of blocks read from one or more volumes, bounded by the number of bytes it holds.
+*
+* The blocks are spread over a number of shards by their numbers and every shard is a small LRU list with its own lock,
+* so threads scanning different block groups rarely wait for each other. Cached arrays are shared - they must not be changed.
+*
+* Every volume using the cache registers as an owner and its blocks are kept under (owner, block). When a shard is full,
+* the least recently used block of an owner holding more than its fair share of the cache is dropped before the blocks of
+* the others, so a single image being scanned cannot push everything else out. The memory is counted by the sizes of the
+* blocks, so volumes with different block sizes may share a cache.
+*
+* Every block counts the times it has been found, so the hot set of a volume can be saved and read back after a restart
+* (see CacheSnapshot).
+*
+* @author Michal Radecki
+*/
+
+public class BlockCache{
+	
+	private static final int SHARDS = 64;
+	private static final int OWNERS = 1 << 15;			//Owners registered at once, the owner is kept in the top bits of a key
+	private static final int EVICTION_SCAN = 16;		//Least recently used blocks looked at for an owner over its share
+	
+	private Shard[] shards = new Shard[SHARDS];
+	private long capacity;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLongArray usage = new AtomicLongArray(OWNERS);			//Bytes held by every owner
+	private AtomicInteger activeOwners = new AtomicInteger();
+	private ArrayDeque<Integer> freeOwners = new ArrayDeque<Integer>();
+	private int nextOwner;
+	
+	/**
+	* Create a cache.
+	*
+	* @param capacity	maximum number of bytes held by the cache
+	*/
+	
+	public BlockCache(long capacity){
+		
+		long bytesInShard = Math.max(1, capacity / SHARDS);
+		
+		this.capacity = bytesInShard * SHARDS;
+		
+		for(int i = 0; i < SHARDS; i++) shards[i] = new Shard(bytesInShard);
+	}
+	
+	/**
+	* Register a user of the cache (a volume).
+	*
+	* @return owner	number the blocks of the user are kept under
+	*/
+	
+	public synchronized int register(){
+		
+		if(!freeOwners.isEmpty()) return freeOwners.poll();
+		
+		if(nextOwner == OWNERS) throw new IllegalStateException("Too many volumes share the block cache!");
+		
+		return nextOwner++;
+	}
+	
+	/**
+	* Drop all the blocks of an owner and let its number be given to another one.
+	*
+	* @param owner	number returned by register()
+	*/
+	
+	public void release(int owner){
+		
+		clear(owner);
+		
+		synchronized(this){
+			
+			freeOwners.add(owner);
+		}
+	}
+	
+	/**
+	* Drop all the blocks of an owner.
+	*
+	* @param owner	number returned by register()
+	*/
+	
+	public void clear(int owner){
+		
+		for(Shard shard: shards){
+			
+			synchronized(shard){
+				
+				Iterator<Map.Entry<Long, Entry>> entries = shard.entrySet().iterator();
+				
+				while(entries.hasNext()){
+					
+					Map.Entry<Long, Entry> entry = entries.next();
+					
+					if(owner(entry.getKey()) == owner){
+						
+						entries.remove();
+						shard.bytes -= entry.getValue().bytes.length;
+						released(owner, entry.getValue().bytes.length);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	* Returns a cached block.
+	*
+	* @param owner	number returned by register()
+	* @param block	number of the block
+	* @return bytes	contents of the block or null if it is not cached
+	*/
+	
+	public byte[] get(int owner, long block){
+		
+		long key = key(owner, block);
+		Shard shard = shard(key);
+		byte[] bytes = null;
+		
+		synchronized(shard){
+			
+			Entry entry = shard.get(key);
+			
+			if(entry != null){
+				
+				if(entry.hits < Integer.MAX_VALUE) entry.hits++;
+				
+				bytes = entry.bytes;
+			}
+		}
+		
+		(bytes == null ? misses : hits).incrementAndGet();
+		
+		return bytes;
+	}
+	
+	/**
+	* Returns a cached block without counting it as found, e.g. for a read which only fills the cache.
+	*
+	* @param owner	number returned by register()
+	* @param block	number of the block
+	* @return bytes	contents of the block or null if it is not cached
+	*/
+	
+	public byte[] peek(int owner, long block){
+		
+		long key = key(owner, block);
+		Shard shard = shard(key);
+		
+		synchronized(shard){
+			
+			Entry entry = shard.get(key);
+			
+			return entry == null ? null : entry.bytes;
+		}
+	}
+	
+	/**
+	* Tells if a block is cached, without counting it as found or making it recently used.
+	*
+	* @param owner		number returned by register()
+	* @param block		number of the block
+	* @return cached	true if the block is held by the cache
+	*/
+	
+	public boolean contains(int owner, long block){
+		
+		long key = key(owner, block);
+		Shard shard = shard(key);
+		
+		synchronized(shard){
+			
+			return shard.containsKey(key);
+		}
+	}
+	
+	/**
+	* Add a block to the cache, a block is dropped first if its shard is full.
+	*
+	* @param owner	number returned by register()
+	* @param block	number of the block
+	* @param bytes	contents of the block
+	*/
+	
+	public void put(int owner, long block, byte[] bytes){
+		
+		long key = key(owner, block);
+		Shard shard = shard(key);
+		
+		synchronized(shard){
+			
+			Entry entry = new Entry(bytes);
+			Entry old = shard.put(key, entry);
+			
+			if(old != null){
+				
+				entry.hits = old.hits;
+				shard.bytes -= old.bytes.length;
+				released(owner, old.bytes.length);
+			}
+			
+			shard.bytes += bytes.length;
+			used(owner, bytes.length);
+			
+			//The block just added is the most recently used one, it is dropped only if it is bigger than the shard
+			while(shard.bytes > shard.capacity && shard.size() > 1) evict(shard);
+		}
+	}
+	
+	/**
+	* Drop a block, e.g. after it has been written.
+	*
+	* @param owner	number returned by register()
+	* @param block	number of the block
+	*/
+	
+	public void remove(int owner, long block){
+		
+		long key = key(owner, block);
+		Shard shard = shard(key);
+		
+		synchronized(shard){
+			
+			Entry entry = shard.remove(key);
+			
+			if(entry != null){
+				
+				shard.bytes -= entry.bytes.length;
+				released(owner, entry.bytes.length);
+			}
+		}
+	}
+	
+	/**
+	* Returns the blocks of an owner held by the cache.
+	*
+	* @param owner		number returned by register()
+	* @return blocks	numbers of the blocks mapped to the number of times each has been found
+	*/
+	
+	public TreeMap<Long, Integer> getBlocks(int owner){
+		
+		TreeMap<Long, Integer> blocks = new TreeMap<Long, Integer>();
+		
+		for(Shard shard: shards){
+			
+			synchronized(shard){
+				
+				for(Map.Entry<Long, Entry> entry: shard.entrySet()){
+					
+					if(owner(entry.getKey()) == owner) blocks.put(entry.getKey() & (1L << 48) - 1, entry.getValue().hits);
+				}
+			}
+		}
+		
+		return blocks;
+	}
+	
+	/**
+	* @return capacity	number of bytes the cache holds
+	*/
+	
+	public long getCapacity(){
+		
+		return capacity;
+	}
+	
+	/**
+	* @return hits	number of blocks found in the cache
+	*/
+	
+	public long getHits(){
+		
+		return hits.get();
+	}
+	
+	/**
+	* @return misses	number of blocks which had to be read
+	*/
+	
+	public long getMisses(){
+		
+		return misses.get();
+	}
+	
+	/**
+	* @param owner	number returned by register()
+	* @return bytes	number of bytes of the blocks of the owner held by the cache
+	*/
+	
+	public long getUsage(int owner){
+		
+		return usage.get(owner);
+	}
+	
+	/*
+	* Drop the least recently used block of an owner over its share - or the least recently used one if there is no such owner.
+	* Called with the lock of the shard held.
+	*/
+	
+	private void evict(Shard shard){
+		
+		long share = capacity / Math.max(1, activeOwners.get());
+		Iterator<Long> keys = shard.keySet().iterator();
+		long eldest = keys.next();
+		long victim = eldest;
+		
+		for(int i = 0; usage.get(owner(victim)) <= share; i++){
+			
+			if(i == EVICTION_SCAN || !keys.hasNext()){
+				
+				victim = eldest;
+				break;
+			}
+			
+			victim = keys.next();
+		}
+		
+		Entry entry = shard.remove(victim);
+		
+		shard.bytes -= entry.bytes.length;
+		released(owner(victim), entry.bytes.length);
+	}
+	
+	private void used(int owner, long bytes){
+		
+		if(usage.getAndAdd(owner, bytes) == 0) activeOwners.incrementAndGet();
+	}
+	
+	private void released(int owner, long bytes){
+		
+		if(usage.addAndGet(owner, -bytes) == 0) activeOwners.decrementAndGet();
+	}
+	
+	private Shard shard(long key){
+		
+		return shards[(int) ((key ^ (key >>> 16) ^ (key >>> 48)) & (SHARDS - 1))];
+	}
+	
+	private static long key(int owner, long block){
+		
+		return (long) owner << 48 | block;
+	}
+	
+	private static int owner(long key){
+		
+		return (int) (key >>> 48);
+	}
+	
+	/*
+	* A part of the cache with its own LRU order, the blocks are dropped by evict().
+	*/
+	
+	private static class Shard extends LinkedHashMap<Long, Entry>{
+		
+		private static final long serialVersionUID = 1L;
+		
+		private long capacity;		//Bytes
+		private long bytes;
+		
+		private Shard(long capacity){
+			
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+	}
+	
+	/*
+	* A cached block and the number of times it has been found.
+	*/
+	
+	private static class Entry{
+		
+		private byte[] bytes;
+		private int hits;
+		
+		private Entry(byte[] bytes){
+			
+			this.bytes = bytes;
+		}
+	}
+}
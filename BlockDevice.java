@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+* The storage a Volume reads its blocks from - a plain image file, a pooled file handle or a compressed container.
+* All the reads and writes are positional, so a device may be used by several threads at once.
+*
+* @author Michal Radecki
+*/
+
+public interface BlockDevice{
+	
+	/**
+	* Read bytes at an offset, like FileChannel.read(ByteBuffer, long).
+	*
+	* @param position	an offset in the device
+	* @param buffer		buffer the bytes are put into, up to its limit
+	* @return count		number of bytes read, -1 at the end of the device
+	*/
+	
+	int read(long position, ByteBuffer buffer) throws IOException;
+	
+	/**
+	* Write bytes at an offset, like FileChannel.write(ByteBuffer, long).
+	*
+	* @param position	an offset in the device
+	* @param buffer		buffer holding the bytes, up to its limit
+	* @return count		number of bytes written
+	*/
+	
+	int write(long position, ByteBuffer buffer) throws IOException;
+	
+	/**
+	* @return size	number of bytes held by the device
+	*/
+	
+	long size() throws IOException;
+	
+	/**
+	* Make sure everything written so far has reached the disk.
+	*/
+	
+	void force() throws IOException;
+	
+	/**
+	* Release the resources of the device (e.g. its file handle).
+	*/
+	
+	void close() throws IOException;
+}
@@ -0,0 +1,282 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Keeps the hot set of the block cache of a volume across restarts.
+*
+* save() writes the numbers of the blocks the cache holds for the volume with the number of times each has been found
+* (a few bytes per block). After a restart prefetch() reads the file back, takes the most used blocks which fit in the
+* cache, sorts them by their numbers and reads them in the background - blocks close to each other are read at once,
+* so the inode tables and directories come back with a small number of large sequential reads.
+*
+*	CacheSnapshot snapshot = new CacheSnapshot(volume, CacheSnapshot.sidecarOf(fileName));
+*	snapshot.prefetch();
+*	snapshot.start(60000);		//saved every minute and when the program exits
+*
+* A snapshot belongs to the volume it has been taken of (its UUID and block size), one of another volume is refused.
+*
+* @author Michal Radecki
+*/
+
+public class CacheSnapshot{
+	
+	private static final int MAGIC = 0x45324854;		//"E2HT"
+	private static final int VERSION = 1;
+	private static final int MAX_GAP = 8;				//Blocks outside the snapshot read to join two runs
+	private static final int MAX_RUN = 1 << 20;			//Bytes read at once
+	
+	private Volume volume;
+	private File file;
+	private ScheduledExecutorService saver;
+	private Thread hook;
+	
+	/**
+	* Create a snapshot of a volume kept in a file.
+	*
+	* @param volume	the volume, it needs a block cache
+	* @param file	where the snapshot is kept
+	*/
+	
+	public CacheSnapshot(Volume volume, File file){
+		
+		this.volume = volume;
+		this.file = file;
+	}
+	
+	/**
+	* Returns the file the snapshot of an image is kept in by default (image.hot).
+	*
+	* @param fileName	path of the image
+	* @return file		the sidecar file
+	*/
+	
+	public static File sidecarOf(String fileName){
+		
+		return new File(fileName + ".hot");
+	}
+	
+	/**
+	* Write the blocks held by the cache. The file is written under a temporary name and renamed at the end,
+	* so a crash never leaves half a snapshot.
+	*
+	* @return count	number of blocks written
+	*/
+	
+	public synchronized int save() throws IOException{
+		
+		TreeMap<Long, Integer> blocks = volume.getCachedBlocks();
+		File temporary = new File(file.getPath() + ".tmp");
+		
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))){
+			
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(volume.getUUID());
+			out.writeLong(volume.getBlockSize());
+			out.writeInt(blocks.size());
+			
+			for(Map.Entry<Long, Integer> block: blocks.entrySet()){
+				
+				out.writeLong(block.getKey());
+				out.writeInt(block.getValue());
+			}
+		}
+		
+		if(!temporary.renameTo(file)){
+			
+			file.delete();
+			
+			if(!temporary.renameTo(file)) throw new IOException("Cannot rename " + temporary + " to " + file);
+		}
+		
+		return blocks.size();
+	}
+	
+	/**
+	* Read the snapshot and choose the blocks to be prefetched - the most used ones which fit in the cache.
+	*
+	* @return blocks	numbers of the blocks in ascending order
+	*/
+	
+	public long[] load() throws IOException{
+		
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))){
+			
+			byte[] uuid = new byte[16];
+			
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a cache snapshot: " + file);
+			
+			in.readFully(uuid);
+			
+			if(!Arrays.equals(uuid, volume.getUUID()) || in.readLong() != volume.getBlockSize()) throw new IOException("The snapshot is of another volume: " + file);
+			
+			int count = in.readInt();
+			long[] blocks = new long[count];
+			int[] hits = new int[count];
+			int kept = 0;
+			
+			for(int i = 0; i < count; i++){
+				
+				long block = in.readLong();
+				int hit = in.readInt();
+				
+				// The volume may have shrunk since
+				if(block >= volume.getBlocksInSys()) continue;
+				
+				blocks[kept] = block;
+				hits[kept++] = hit;
+			}
+			
+			long capacity = volume.getCache() == null ? 0 : volume.getCache().getCapacity() / volume.getBlockSize();
+			
+			if(kept <= capacity) return Arrays.copyOf(blocks, kept);
+			
+			// Keep the blocks found at least as often as the capacity-th most used one
+			int[] sorted = Arrays.copyOf(hits, kept);
+			
+			Arrays.sort(sorted);
+			
+			int threshold = sorted[kept - (int) capacity];
+			long[] chosen = new long[(int) capacity];
+			int taken = 0;
+			
+			for(int i = 0; i < kept && taken < capacity; i++){
+				
+				if(hits[i] > threshold) chosen[taken++] = blocks[i];
+			}
+			
+			for(int i = 0; i < kept && taken < capacity; i++){
+				
+				if(hits[i] == threshold) chosen[taken++] = blocks[i];
+			}
+			
+			Arrays.sort(chosen, 0, taken);
+			
+			return Arrays.copyOf(chosen, taken);
+		}
+	}
+	
+	/**
+	* Read the blocks of the snapshot into the cache in the background. Nothing is done if there is no snapshot yet.
+	*
+	* @return thread	the thread reading the blocks, null if there is nothing to read
+	*/
+	
+	public Thread prefetch() throws IOException{
+		
+		if(!file.exists() || volume.getCache() == null) return null;
+		
+		final long[] blocks = load();
+		
+		Thread thread = new Thread(new Runnable(){
+			
+			public void run(){
+				
+				int maxBlocks = (int) Math.max(1, MAX_RUN / volume.getBlockSize());
+				
+				for(int from = 0; from < blocks.length; ){
+					
+					int to = from + 1;
+					
+					while(to < blocks.length && blocks[to] - blocks[to - 1] <= MAX_GAP + 1 && blocks[to] - blocks[from] < maxBlocks) to++;
+					
+					volume.prefetch(blocks, from, to);
+					from = to;
+				}
+			}
+		}, "CacheSnapshot");
+		
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		
+		return thread;
+	}
+	
+	/**
+	* Save the snapshot periodically and when the program exits.
+	*
+	* @param periodMillis	milliseconds between two snapshots
+	*/
+	
+	public synchronized void start(long periodMillis){
+		
+		if(saver != null) return;
+		
+		saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			
+			public Thread newThread(Runnable task){
+				
+				Thread thread = new Thread(task, "CacheSnapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		saver.scheduleWithFixedDelay(new Runnable(){
+			
+			public void run(){
+				
+				saveQuietly();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		
+		hook = new Thread(new Runnable(){
+			
+			public void run(){
+				
+				saveQuietly();
+			}
+		});
+		
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+	
+	/**
+	* Stop saving the snapshot and save it for the last time.
+	*/
+	
+	public synchronized void stop(){
+		
+		if(saver == null) return;
+		
+		saver.shutdownNow();
+		saver = null;
+		
+		try{
+			
+			Runtime.getRuntime().removeShutdownHook(hook);
+		
+		}catch(IllegalStateException e){
+			
+			// The program is exiting and the hook is running
+		}
+		
+		saveQuietly();
+	}
+	
+	private void saveQuietly(){
+		
+		try{
+			
+			save();
+		
+		}catch(IOException e){
+			
+			System.out.println("Cache snapshot cannot be saved: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,519 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+* A read-only consistency checker of a volume - a small subset of e2fsck, used to validate images before they are served.
+*
+* The check runs in passes, each of them split into block groups processed in parallel:
+*
+*	1. the super block and the group descriptors are checked for sane values,
+*	2. every inode in use claims its blocks (data and indirect) in a bitset shared by all the threads -
+*	   a block claimed twice or lying outside the volume is reported,
+*	3. every directory is parsed - rec_len, name_len, "." and ".." are checked and every entry is counted
+*	   as a reference of the inode it points to,
+*	4. the block and inode bitmaps and the free counts are compared with what has been found,
+*	   and the link count of every inode with the number of its references.
+*
+* The state takes a bit per block for the claims and the duplicates, two bits and an int per inode,
+* so a 1 TB volume with 4 KB blocks and 64 M inodes is checked in about 330 MB.
+*
+* @author Michal Radecki
+*/
+
+public class Checker{
+	
+	private static final int MAX_MESSAGES = 1000;		//Problems kept for the report, all of them are counted
+	
+	private Volume volume;
+	private int threads;
+	private long blockSize;
+	private long blocksInSys;
+	private long blocksInGroup;
+	private long inodesInSys;
+	private long inodesInGroup;
+	private long firstDataBlock;
+	private int groupCount;
+	private ByteBuffer superBlock;
+	private ByteBuffer descriptors;
+	
+	private AtomicLongArray claimed;		//Blocks in use, by metadata or by an inode
+	private AtomicLongArray duplicates;		//Blocks claimed more than once
+	private AtomicLongArray inUse;			//Inodes in use
+	private AtomicLongArray directories;	//Inodes of directories
+	private AtomicIntegerArray balance;		//Link count of every inode minus the references found
+	
+	private ConcurrentLinkedQueue<String> messages = new ConcurrentLinkedQueue<String>();
+	private AtomicLong problems = new AtomicLong();
+	
+	/**
+	* Create a checker which uses one thread per available processor.
+	*
+	* @param	volume	filesystem to be checked
+	*/
+	
+	public Checker(Volume volume){
+		
+		this(volume, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	* Create a checker with the given number of threads.
+	*
+	* @param	volume	filesystem to be checked
+	* @param	threads	number of block groups checked at the same time
+	*/
+	
+	public Checker(Volume volume, int threads){
+		
+		this.volume = volume;
+		this.threads = Math.max(1, threads);
+		blockSize = volume.getBlockSize();
+		blocksInSys = volume.getBlocksInSys();
+		blocksInGroup = volume.getBlocksInGroup();
+		inodesInSys = volume.getInodesInSys();
+		inodesInGroup = volume.getInodesInGrup();
+		firstDataBlock = volume.getFirstDataBlock();
+		groupCount = volume.getGroupCount();
+	}
+	
+	/**
+	* Check the whole volume.
+	*
+	* @return	true if no problem has been found
+	*/
+	
+	public boolean check(){
+		
+		superBlock = ByteBuffer.wrap(volume.getBytes(1024, 1024)).order(ByteOrder.LITTLE_ENDIAN);
+		descriptors = ByteBuffer.wrap(volume.getDescriptorTable()).order(ByteOrder.LITTLE_ENDIAN);
+		
+		if(!checkSuperBlock()) return false;
+		
+		claimed = new AtomicLongArray((int) (blocksInSys / 64 + 1));
+		duplicates = new AtomicLongArray((int) (blocksInSys / 64 + 1));
+		inUse = new AtomicLongArray((int) (inodesInSys / 64 + 2));
+		directories = new AtomicLongArray((int) (inodesInSys / 64 + 2));
+		balance = new AtomicIntegerArray((int) inodesInSys + 1);
+		
+		for(int group = 0; group < groupCount; group++) checkDescriptor(group);
+		
+		new InodeScanner(volume, threads).scan(new InodeScanner.Visitor(){
+			
+			public void visit(Inode inode){
+				
+				checkInode(inode);
+			}
+		});
+		
+		forEachGroup(new Task(){
+			
+			public void run(int group){
+				
+				long first = group * inodesInGroup + 1;
+				
+				for(long inodeNum = first; inodeNum < first + inodesInGroup; inodeNum++){
+					
+					if(get(directories, inodeNum)) checkDirectory(inodeNum);
+				}
+			}
+		});
+		
+		final AtomicLong freeBlocks = new AtomicLong();
+		final AtomicLong freeInodes = new AtomicLong();
+		
+		forEachGroup(new Task(){
+			
+			public void run(int group){
+				
+				checkGroup(group, freeBlocks, freeInodes);
+			}
+		});
+		
+		if((superBlock.getInt(12) & 0xFFFFFFFFL) != freeBlocks.get()){
+			
+			problem("Super block counts " + (superBlock.getInt(12) & 0xFFFFFFFFL) + " free blocks, there are " + freeBlocks.get());
+		}
+		
+		if((superBlock.getInt(16) & 0xFFFFFFFFL) != freeInodes.get()){
+			
+			problem("Super block counts " + (superBlock.getInt(16) & 0xFFFFFFFFL) + " free inodes, there are " + freeInodes.get());
+		}
+		
+		return problems.get() == 0;
+	}
+	
+	/**
+	* @return	problems	number of problems found by the last check
+	*/
+	
+	public long getProblemCount(){
+		
+		return problems.get();
+	}
+	
+	/**
+	* @return	messages	descriptions of the problems found by the last check (at most the first 1000)
+	*/
+	
+	public List<String> getProblems(){
+		
+		return new ArrayList<String>(messages);
+	}
+	
+	/**
+	* Print the problems found by the last check.
+	*
+	* @param	out	stream the report is printed to
+	*/
+	
+	public void report(PrintStream out){
+		
+		for(String message: messages) out.println(message);
+		
+		if(problems.get() > messages.size()) out.println("... " + (problems.get() - messages.size()) + " more");
+		
+		out.println(problems.get() == 0 ? "The volume is clean" : problems.get() + " problems found");
+	}
+	
+	/*
+	* Values of the super block which the rest of the check relies on. Returns false if the check cannot go on.
+	*/
+	
+	private boolean checkSuperBlock(){
+		
+		if((superBlock.getShort(56) & 0xFFFF) != 0xEF53){
+			
+			problem("Bad magic number in the super block");
+			return false;
+		}
+		
+		if(blocksInGroup == 0 || inodesInGroup == 0 || blocksInGroup > 8 * blockSize || inodesInGroup > 8 * blockSize){
+			
+			problem("Bad number of blocks (" + blocksInGroup + ") or inodes (" + inodesInGroup + ") in a group");
+			return false;
+		}
+		
+		if(firstDataBlock != (blockSize == 1024 ? 1 : 0)) problem("First data block is " + firstDataBlock);
+		
+		if(inodesInSys != inodesInGroup * groupCount) problem("Super block counts " + inodesInSys + " inodes, groups hold " + inodesInGroup * groupCount);
+		
+		if(volume.getLength() < blocksInSys * blockSize) problem("The image is shorter than " + blocksInSys + " blocks");
+		
+		return true;
+	}
+	
+	/*
+	* Bitmaps and the inode table of a group have to lie inside the volume, they are claimed as metadata.
+	* So are the super block and descriptor copies, unless the reserved descriptor blocks which belong to the resize inode.
+	*/
+	
+	private void checkDescriptor(int group){
+		
+		long start = firstDataBlock + group * blocksInGroup;
+		long end = Math.min(blocksInSys, start + blocksInGroup);
+		long blockBitmap = volume.findBlockBitmap(group);
+		long inodeBitmap = volume.findInodeBitmap(group);
+		long inodeTable = volume.findInodePointer(group);
+		long tableBlocks = (inodesInGroup * volume.getInodeSize() + blockSize - 1) / blockSize;
+		
+		//With flex_bg the bitmaps and tables of several groups are packed together, they only have to lie inside the volume
+		if((volume.getFeatureIncompat() & 0x200) != 0){
+			
+			start = firstDataBlock;
+			end = blocksInSys;
+		}
+		
+		long first = firstDataBlock + group * blocksInGroup;
+		long header = (volume.hasSuperBlockCopy(group) ? 1 : 0) + volume.getDescriptorBlocks(group);
+		
+		for(long block = first; block < first + header; block++) claim(block, 0);
+		
+		if(blockBitmap < start || blockBitmap >= end) problem("Block bitmap of group " + group + " lies outside the group: " + blockBitmap);
+		else claim(blockBitmap, 0);
+		
+		if(inodeBitmap < start || inodeBitmap >= end) problem("Inode bitmap of group " + group + " lies outside the group: " + inodeBitmap);
+		else claim(inodeBitmap, 0);
+		
+		if(inodeTable < start || inodeTable + tableBlocks > end) problem("Inode table of group " + group + " lies outside the group: " + inodeTable);
+		else for(long block = inodeTable; block < inodeTable + tableBlocks; block++) claim(block, 0);
+	}
+	
+	/*
+	* Claim the blocks of an inode.
+	*/
+	
+	private void checkInode(Inode inode){
+		
+		long inodeNum = inode.getInodeNum();
+		int type = inode.getFileMode() & 0xF000;
+		
+		set(inUse, inodeNum);
+		balance.addAndGet((int) inodeNum, inode.getLinks());
+		
+		if(type != 0x8000 && type != 0x4000 && type != 0xA000 && type != 0x2000 && type != 0x6000 && type != 0x1000 && type != 0xC000){
+			
+			//Reserved inodes (e.g. the bad blocks inode) may have no type
+			if(inodeNum >= volume.getFirstInode()) problem("Inode " + inodeNum + " has a bad mode " + Integer.toOctalString(inode.getFileMode()));
+		}
+		
+		if(inode.isDirectory()) set(directories, inodeNum);
+		
+		ArrayList<Long> indirect = new ArrayList<Long>();
+		
+		for(Extent extent: volume.getExtents(inodeNum, indirect)){
+			
+			for(long i = 0; i < extent.getLength(); i++) claim(extent.getPhysicalBlock() + i, inodeNum);
+		}
+		
+		for(long block: indirect) claim(block, inodeNum);
+	}
+	
+	/*
+	* Parse the blocks of a directory and count the references of the inodes its entries point to.
+	*/
+	
+	private void checkDirectory(long inodeNum){
+		
+		boolean first = true;
+		
+		for(Extent extent: volume.getExtents(inodeNum)){
+			
+			if(extent.getPhysicalBlock() + extent.getLength() > blocksInSys) continue;
+			
+			ByteBuffer data = ByteBuffer.wrap(volume.getBytes(extent.getPhysicalBlock() * blockSize, extent.getLength() * blockSize));
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(long block = 0; block < extent.getLength(); block++){
+				
+				int base = (int) (block * blockSize);
+				int position = 0;
+				int index = 0;
+				
+				while(position < blockSize){
+					
+					long entry = data.getInt(base + position) & 0xFFFFFFFFL;
+					int length = position + 8 <= blockSize ? data.getShort(base + position + 4) & 0xFFFF : 0;
+					int nameLength = position + 8 <= blockSize ? data.get(base + position + 6) & 0xFF : 0;
+					
+					if(length < 12 && !(length == 8 && nameLength == 0) || length % 4 != 0 || position + length > blockSize){
+						
+						problem("Directory " + inodeNum + " has a bad rec_len " + length + " at " + ((extent.getLogicalBlock() + block) * blockSize + position));
+						break;
+					}
+					
+					if(nameLength + 8 > length){
+						
+						problem("Directory " + inodeNum + " has a bad name_len " + nameLength + " at " + ((extent.getLogicalBlock() + block) * blockSize + position));
+						break;
+					}
+					
+					String name = new String(data.array(), base + position + 8, nameLength, StandardCharsets.UTF_8);
+					
+					if(first && extent.getLogicalBlock() == 0 && block == 0 && index < 2){
+						
+						if(!name.equals(index == 0 ? "." : "..")) problem("Directory " + inodeNum + " does not start with \"" + (index == 0 ? "." : "..") + "\"");
+						else if(index == 0 && entry != inodeNum) problem("Entry \".\" of directory " + inodeNum + " points to " + entry);
+					}
+					
+					if(entry > inodesInSys){
+						
+						problem("Entry " + name + " of directory " + inodeNum + " points to inode " + entry + " beyond the volume");
+					}
+					
+					else if(entry != 0){
+						
+						if(!get(inUse, entry)) problem("Entry " + name + " of directory " + inodeNum + " points to unused inode " + entry);
+						else balance.decrementAndGet((int) entry);
+					}
+					
+					position += length;
+					index++;
+				}
+			}
+			
+			first = false;
+		}
+	}
+	
+	/*
+	* Compare the bitmaps and the free counts of a group with the blocks and inodes found in use, and check the link counts.
+	*/
+	
+	private void checkGroup(int group, AtomicLong freeBlocks, AtomicLong freeInodes){
+		
+		long start = firstDataBlock + group * blocksInGroup;
+		long count = Math.min(blocksInGroup, blocksInSys - start);
+		byte[] blockBitmap = volume.getBytes(volume.findBlockBitmap(group) * blockSize, blockSize);
+		byte[] inodeBitmap = volume.getBytes(volume.findInodeBitmap(group) * blockSize, blockSize);
+		int flags = (volume.getFeatureRoCompat() & 0x410) != 0 ? descriptors.getShort(group * volume.getDescriptorSize() + 18) : 0;
+		boolean blocksUninit = (flags & 0x2) != 0;
+		boolean inodesUninit = (flags & 0x1) != 0;
+		long free = 0;
+		long unmarked = 0;
+		long leaked = 0;
+		
+		for(long i = 0; i < count; i++){
+			
+			boolean used = get(claimed, start + i);
+			
+			//The bitmap of an uninitialised group (uninit_bg) has never been written, it stands for the metadata of the group
+			boolean marked = blocksUninit ? used : (blockBitmap[(int) (i / 8)] & (1 << (i % 8))) != 0;
+			
+			if(!marked) free++;
+			
+			if(used && !marked) unmarked++;
+			if(!used && marked) leaked++;
+			
+			if(get(duplicates, start + i)) problem("Block " + (start + i) + " is claimed more than once");
+		}
+		
+		if(unmarked > 0) problem("Group " + group + ": " + unmarked + " blocks in use are marked free in the bitmap");
+		if(leaked > 0) problem("Group " + group + ": " + leaked + " blocks marked in use in the bitmap are not used");
+		
+		if((descriptors.getShort(group * volume.getDescriptorSize() + 12) & 0xFFFF) != free){
+			
+			problem("Group " + group + " counts " + (descriptors.getShort(group * volume.getDescriptorSize() + 12) & 0xFFFF) + " free blocks, the bitmap has " + free);
+		}
+		
+		freeBlocks.addAndGet(free);
+		free = 0;
+		
+		long first = group * inodesInGroup + 1;
+		
+		for(long i = 0; i < inodesInGroup; i++){
+			
+			long inodeNum = first + i;
+			boolean marked = !inodesUninit && (inodeBitmap[(int) (i / 8)] & (1 << (i % 8))) != 0;
+			boolean used = get(inUse, inodeNum);
+			
+			if(!marked) free++;
+			
+			if(used && !marked) problem("Inode " + inodeNum + " is in use but marked free in the bitmap");
+			
+			//Reserved inodes are not named by any directory
+			if(used && (inodeNum == 2 || inodeNum >= volume.getFirstInode()) && balance.get((int) inodeNum) != 0){
+				
+				int links = balance.get((int) inodeNum);
+				
+				problem("Inode " + inodeNum + " has " + (links > 0 ? links + " links more" : -links + " links less") + " than references");
+			}
+		}
+		
+		if((descriptors.getShort(group * volume.getDescriptorSize() + 14) & 0xFFFF) != free){
+			
+			problem("Group " + group + " counts " + (descriptors.getShort(group * volume.getDescriptorSize() + 14) & 0xFFFF) + " free inodes, the bitmap has " + free);
+		}
+		
+		freeInodes.addAndGet(free);
+	}
+	
+	/*
+	* Mark a block as used by an inode (0 for metadata), reporting blocks outside the volume and blocks claimed twice.
+	*/
+	
+	private void claim(long block, long inodeNum){
+		
+		if(block < firstDataBlock || block >= blocksInSys){
+			
+			problem((inodeNum == 0 ? "Metadata" : "Inode " + inodeNum) + " points to block " + block + " outside the volume");
+			return;
+		}
+		
+		if(!set(claimed, block)){
+			
+			set(duplicates, block);
+			
+			if(inodeNum != 0) problem("Inode " + inodeNum + " claims block " + block + " which is already in use");
+		}
+	}
+	
+	private void problem(String message){
+		
+		if(problems.incrementAndGet() <= MAX_MESSAGES) messages.add(message);
+	}
+	
+	/*
+	* Set a bit, returns false if it was set already.
+	*/
+	
+	private static boolean set(AtomicLongArray bits, long index){
+		
+		int word = (int) (index >>> 6);
+		long mask = 1L << (index & 63);
+		
+		while(true){
+			
+			long value = bits.get(word);
+			
+			if((value & mask) != 0) return false;
+			
+			if(bits.compareAndSet(word, value, value | mask)) return true;
+		}
+	}
+	
+	private static boolean get(AtomicLongArray bits, long index){
+		
+		return (bits.get((int) (index >>> 6)) & 1L << (index & 63)) != 0;
+	}
+	
+	/*
+	* Work done for a single block group.
+	*/
+	
+	private interface Task{
+		
+		void run(int group);
+	}
+	
+	/*
+	* Run a task for every group, several groups at once.
+	*/
+	
+	private void forEachGroup(final Task task){
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		
+		for(int i = 0; i < groupCount; i++){
+			
+			final int group = i;
+			
+			futures.add(pool.submit(new Runnable(){
+				
+				public void run(){
+					
+					task.run(group);
+				}
+			}));
+		}
+		
+		try{
+			
+			for(Future<?> future: futures) future.get();
+		
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+		
+		}catch(ExecutionException e){
+			
+			throw new RuntimeException(e.getCause());
+		
+		}finally{
+			
+			pool.shutdown();
+		}
+	}
+}
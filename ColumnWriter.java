@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+* Writes little endian columns of an index file through a large buffer and computes the checksum of everything written.
+*
+* @author Michal Radecki
+*/
+
+class ColumnWriter{
+	
+	private FileChannel channel;
+	private long position;
+	private ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+	private CRC32 crc = new CRC32();
+	
+	/**
+	* Create a writer which starts at the given position of the file.
+	*
+	* @param channel	file to be written
+	* @param position	offset of the first byte to be written
+	*/
+	
+	ColumnWriter(FileChannel channel, long position){
+		
+		this.channel = channel;
+		this.position = position;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	void putLong(long value) throws IOException{
+		
+		if(buffer.remaining() < 8) flush();
+		buffer.putLong(value);
+	}
+	
+	void putInt(int value) throws IOException{
+		
+		if(buffer.remaining() < 4) flush();
+		buffer.putInt(value);
+	}
+	
+	void putBytes(byte[] bytes) throws IOException{
+		
+		putBytes(bytes, 0, bytes.length);
+	}
+	
+	void putBytes(byte[] bytes, int offset, int length) throws IOException{
+		
+		for(int i = offset; i < offset + length; ){
+			
+			if(!buffer.hasRemaining()) flush();
+			
+			int count = Math.min(buffer.remaining(), offset + length - i);
+			
+			buffer.put(bytes, i, count);
+			i += count;
+		}
+	}
+	
+	/**
+	* Write everything which is buffered.
+	*/
+	
+	void flush() throws IOException{
+		
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.flip();
+		
+		while(buffer.hasRemaining()) position += channel.write(buffer, position);
+		
+		buffer.clear();
+	}
+	
+	/**
+	* @return position	offset of the next byte to be written (including the buffered bytes)
+	*/
+	
+	long getPosition(){
+		
+		return position + buffer.position();
+	}
+	
+	/**
+	* @return CRC32 of all the bytes which have been flushed
+	*/
+	
+	long getCrc(){
+		
+		return crc.getValue();
+	}
+}
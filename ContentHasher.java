@@ -0,0 +1,231 @@
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+* A class which computes a digest of every regular file in a volume and writes a manifest of them.
+*
+* All the regular files are found with a parallel inode scan and ordered by their first physical block,
+* so the image is read mostly sequentially. The files are then hashed by a pool of workers; every file is
+* read through Ext2File in chunks (so a trace recorder of the volume sees the reads), holes are hashed as zeros,
+* and no file is ever held in memory as a whole.
+* A file with several hard links is hashed only once.
+*
+* Any algorithm known to java.security.MessageDigest may be used (e.g. "SHA-256", "SHA-1") as well as "XXH64".
+*
+* @author Michal Radecki
+*/
+
+public class ContentHasher{
+	
+	private static final int CHUNK_SIZE = 1 << 20;		//Maximum number of bytes read at once
+	
+	private Volume volume;
+	private String algorithm;
+	private int threads;
+	private Set<Long> directories;
+	
+	/**
+	* Create a hasher which uses one thread per available processor.
+	*
+	* @param volume		filesystem whose files are hashed
+	* @param algorithm	name of the digest, e.g. "SHA-256" or "XXH64"
+	*/
+	
+	public ContentHasher(Volume volume, String algorithm){
+		
+		this(volume, algorithm, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	* Create a hasher with the given number of workers.
+	*
+	* @param volume		filesystem whose files are hashed
+	* @param algorithm	name of the digest, e.g. "SHA-256" or "XXH64"
+	* @param threads	number of files hashed at the same time
+	*/
+	
+	public ContentHasher(Volume volume, String algorithm, int threads){
+		
+		this.volume = volume;
+		this.algorithm = algorithm;
+		this.threads = Math.max(1, threads);
+		
+		// Fail early if the algorithm is not known
+		newDigest();
+	}
+	
+	/**
+	* Hash all the regular files and return their digests.
+	*
+	* @return digests	hex digest of each file keyed by the number of its inode
+	*/
+	
+	public Map<Long, String> hashAll(){
+		
+		final List<Inode> files = Collections.synchronizedList(new ArrayList<Inode>());
+		final Map<Long, Ext2File> opened = new ConcurrentHashMap<Long, Ext2File>();
+		
+		directories = ConcurrentHashMap.newKeySet();
+		
+		new InodeScanner(volume).scan(new InodeScanner.Visitor(){
+			
+			public void visit(Inode inode){
+				
+				if(inode.isDirectory()) directories.add(inode.getInodeNum());
+				if(!inode.isRegularFile()) return;
+				
+				files.add(inode);
+				opened.put(inode.getInodeNum(), new Ext2File(volume, inode.getInodeNum()));
+			}
+		});
+		
+		// Hash the files in the order they are stored on the disk
+		List<Inode> ordered = new ArrayList<Inode>(files);
+		
+		Collections.sort(ordered, new Comparator<Inode>(){
+			
+			public int compare(Inode a, Inode b){
+				
+				return Long.compare(firstBlock(opened.get(a.getInodeNum()).getExtents()), firstBlock(opened.get(b.getInodeNum()).getExtents()));
+			}
+		});
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Map<Long, Future<String>> tasks = new HashMap<Long, Future<String>>();
+		
+		for(final Inode inode: ordered){
+			
+			final Ext2File file = opened.get(inode.getInodeNum());
+			
+			tasks.put(inode.getInodeNum(), pool.submit(new Callable<String>(){
+				
+				public String call(){
+					
+					return hash(file);
+				}
+			}));
+		}
+		
+		Map<Long, String> digests = new HashMap<Long, String>();
+		
+		try{
+			
+			for(Map.Entry<Long, Future<String>> task: tasks.entrySet()) digests.put(task.getKey(), task.getValue().get());
+			
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+			
+		}catch(ExecutionException e){
+			
+			throw new RuntimeException(e.getCause());
+			
+		}finally{
+			
+			pool.shutdown();
+		}
+		
+		return digests;
+	}
+	
+	/**
+	* Hash all the regular files and print a manifest, one line per path in the format "digest  size  path", ordered by path.
+	*
+	* @param out	stream the manifest is written to
+	*/
+	
+	public void writeManifest(PrintStream out){
+		
+		final Map<Long, String> digests = hashAll();
+		final List<String> lines = new ArrayList<String>();
+		
+		new Directory(volume).walk(volume.getRootInode(), "", new Directory.Walker(){
+			
+			public boolean visit(String path, int inodeNum){
+				
+				String digest = digests.get((long) inodeNum);
+				
+				if(digest != null) lines.add(digest + "  " + volume.getFileSize(inodeNum) + "  " + path);
+				
+				return directories.contains((long) inodeNum);
+			}
+		});
+		
+		Collections.sort(lines, new Comparator<String>(){
+			
+			public int compare(String a, String b){
+				
+				return a.substring(a.indexOf("  /")).compareTo(b.substring(b.indexOf("  /")));
+			}
+		});
+		
+		for(String line: lines) out.println(line);
+	}
+	
+	/**
+	* Compute a digest of a file. The data is read in chunks of at most CHUNK_SIZE bytes, holes are read as zeros.
+	*
+	* @param file		the file
+	* @return digest	digest of the file as a hex string
+	*/
+	
+	public String hash(Ext2File file){
+		
+		MessageDigest digest = newDigest();
+		long size = file.size();
+		byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, size))];
+		
+		for(long position = 0; position < size; ){
+			
+			int count = (int) Math.min(chunk.length, size - position);
+			
+			file.readInto(position, chunk, 0, count);
+			digest.update(chunk, 0, count);
+			position += count;
+		}
+		
+		return toHex(digest.digest());
+	}
+	
+	private MessageDigest newDigest(){
+		
+		if(algorithm.equalsIgnoreCase("XXH64")) return new XXHash64();
+		
+		try{
+			
+			return MessageDigest.getInstance(algorithm);
+			
+		}catch(NoSuchAlgorithmException e){
+			
+			throw new IllegalArgumentException("Unknown digest " + algorithm);
+		}
+	}
+	
+	private static long firstBlock(List<Extent> extents){
+		
+		return extents.isEmpty() ? 0 : extents.get(0).getPhysicalBlock();
+	}
+	
+	private static String toHex(byte[] bytes){
+		
+		StringBuilder hex = new StringBuilder();
+		
+		for(byte b: bytes) hex.append(String.format("%02x", b));
+		
+		return hex.toString();
+	}
+}
@@ -0,0 +1,583 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+* A class which measures how many data blocks are duplicated within one image and across several images.
+*
+* Every block marked as used in the block bitmaps (except the blocks of the filesystem itself - the super block copies,
+* the group descriptors and the blocks reserved for them, the bitmaps and the inode tables of all the groups) gets a 128 bit
+* fingerprint (MD5), computed in parallel, one task per block group. The fingerprints are kept in an open addressing
+* hash table stored off the heap, whose size is fixed by the memory budget. When the table gets full its contents
+* are spilled to partition files (split by the first bits of the fingerprint) and all the following fingerprints
+* are appended to them; in the end every partition is counted on its own, split again if its distinct fingerprints
+* do not fit in the table.
+* Images have to be added one after another, as the counting relies on the fingerprints of one image being next to each other.
+*
+* @author Michal Radecki
+*/
+
+public class DedupIndex{
+	
+	private static final int RECORD_SIZE = 24;			//hi(8) lo(8) count(4) last image(2) number of images(2)
+	private static final int SEGMENT_BITS = 22;			//Entries in a single off-heap buffer (2^22 * 24 bytes = 96 MB)
+	private static final int PARTITION_BITS = 4;		//Every spill or split creates 16 partitions
+	private static final int MAX_DEPTH = 15;			//Number of times a partition may be split
+	private static final double LOAD_FACTOR = 0.7;
+	private static final int READ_BLOCKS = 256;			//Number of contiguous blocks read at once
+	private static final int BATCH = 4096;				//Fingerprints added to the table at once
+	
+	private long capacity;
+	private long mask;
+	private long used;
+	private ByteBuffer[] segments;
+	
+	private File spillDir;
+	private File[] partitionFiles;
+	private DataOutputStream[] partitions;
+	
+	private List<String> names = new ArrayList<String>();
+	private List<long[]> stats = new ArrayList<long[]>();	//total, unique, shared with earlier images for each image
+	private long totalBlocks;
+	private long uniqueBlocks;
+	private long sharedBlocks;
+	private boolean finished;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	* Create an index limited to the given amount of off-heap memory.
+	*
+	* @param memoryBudget	number of bytes the hash table may use
+	* @param spillDir		directory the partition files are written to when the table is full
+	*/
+	
+	public DedupIndex(long memoryBudget, File spillDir){
+		
+		this.spillDir = spillDir;
+		
+		capacity = Long.highestOneBit(Math.max(1024, memoryBudget / RECORD_SIZE));
+		mask = capacity - 1;
+		
+		int segmentEntries = (int) Math.min(capacity, 1L << SEGMENT_BITS);
+		
+		segments = new ByteBuffer[(int) (capacity / segmentEntries)];
+		
+		for(int i = 0; i < segments.length; i++) segments[i] = ByteBuffer.allocateDirect(segmentEntries * RECORD_SIZE);
+	}
+	
+	/**
+	* Fingerprint all the used data blocks of an image and add them to the index.
+	*
+	* @param name	name of the image used in the report
+	* @param volume	the image
+	*/
+	
+	public void addImage(String name, final Volume volume){
+		
+		if(finished) throw new IllegalStateException("The index has already been counted");
+		if(names.size() == 0xFFFF) throw new IllegalStateException("Too many images");
+		
+		final int image = names.size();
+		
+		names.add(name);
+		stats.add(new long[3]);
+		
+		final TreeMap<Long, Long> metadata = metadataBlocks(volume);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		
+		for(int i = 0; i < volume.getGroupCount(); i++){
+			
+			final int blockGroupNum = i;
+			
+			tasks.add(pool.submit(new Runnable(){
+				
+				public void run(){
+					
+					fingerprintGroup(volume, blockGroupNum, image, metadata);
+				}
+			}));
+		}
+		
+		try{
+			
+			for(Future<?> task: tasks) task.get();
+			
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+			
+		}catch(ExecutionException e){
+			
+			throw new RuntimeException(e.getCause());
+			
+		}finally{
+			
+			pool.shutdown();
+		}
+	}
+	
+	/*
+	* Fingerprint the used blocks of a single block group, skipping the blocks of the filesystem.
+	*/
+	
+	private void fingerprintGroup(Volume volume, int blockGroupNum, int image, TreeMap<Long, Long> metadata){
+		
+		MessageDigest digest;
+		
+		try{
+			
+			digest = MessageDigest.getInstance("MD5");
+			
+		}catch(NoSuchAlgorithmException e){
+			
+			throw new IllegalStateException(e);
+		}
+		
+		long blockSize = volume.getBlockSize();
+		long first = volume.getFirstDataBlock() + blockGroupNum * volume.getBlocksInGroup();
+		long count = Math.min(volume.getBlocksInGroup(), volume.getBlocksInSys() - first);
+		byte[] bitmap = volume.getBytes(volume.findBlockBitmap(blockGroupNum) * blockSize, (count + 7) / 8);
+		
+		long[] batch = new long[2 * BATCH];
+		int batchSize = 0;
+		
+		for(long i = 0; i < count; ){
+			
+			long block = first + i;
+			
+			if((bitmap[(int) (i >> 3)] & (1 << (i & 7))) == 0 || isMetadata(metadata, block)){
+				
+				i++;
+				continue;
+			}
+			
+			// Read a run of used blocks at once
+			long run = 1;
+			
+			while(run < READ_BLOCKS && i + run < count && (bitmap[(int) ((i + run) >> 3)] & (1 << ((i + run) & 7))) != 0
+				&& !isMetadata(metadata, block + run)) run++;
+			
+			byte[] bytes = volume.getBytes(block * blockSize, run * blockSize);
+			
+			for(int j = 0; j < run; j++){
+				
+				digest.update(bytes, (int) (j * blockSize), (int) blockSize);
+				ByteBuffer fingerprint = ByteBuffer.wrap(digest.digest());
+				
+				batch[2 * batchSize] = fingerprint.getLong();
+				batch[2 * batchSize + 1] = fingerprint.getLong();
+				
+				if(++batchSize == BATCH){
+					
+					addBatch(batch, batchSize, image);
+					batchSize = 0;
+				}
+			}
+			
+			i += run;
+		}
+		
+		addBatch(batch, batchSize, image);
+	}
+	
+	/*
+	* The blocks of the filesystem as ranges, the first block mapped to the one after the last: every super block copy with
+	* the group descriptors and the blocks reserved after them, and the bitmaps and inode table of every group - with
+	* flex_bg they are kept together in the first group of a flex group, not in the group they describe.
+	*/
+	
+	private static TreeMap<Long, Long> metadataBlocks(Volume volume){
+		
+		TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+		long blockSize = volume.getBlockSize();
+		long tableBlocks = (volume.getInodesInGrup() * volume.getInodeSize() + blockSize - 1) / blockSize;
+		
+		for(int group = 0; group < volume.getGroupCount(); group++){
+			
+			long start = volume.getFirstDataBlock() + group * volume.getBlocksInGroup();
+			
+			if(volume.hasSuperBlockCopy(group)) addRange(ranges, start, 1 + volume.getDescriptorBlocks(group) + volume.getReservedGdtBlocks());
+			else if(volume.getDescriptorBlocks(group) > 0) addRange(ranges, start, volume.getDescriptorBlocks(group));
+			
+			addRange(ranges, volume.findBlockBitmap(group), 1);
+			addRange(ranges, volume.findInodeBitmap(group), 1);
+			addRange(ranges, volume.findInodePointer(group), tableBlocks);
+		}
+		
+		return ranges;
+	}
+	
+	/*
+	* Add a range of blocks, joining it with the ranges it overlaps or touches.
+	*/
+	
+	private static void addRange(TreeMap<Long, Long> ranges, long start, long length){
+		
+		long end = start + length;
+		Map.Entry<Long, Long> before = ranges.floorEntry(start);
+		
+		if(before != null && before.getValue() >= start){
+			
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		
+		for(Map.Entry<Long, Long> after = ranges.ceilingEntry(start); after != null && after.getKey() <= end; after = ranges.ceilingEntry(start)){
+			
+			end = Math.max(end, after.getValue());
+			ranges.remove(after.getKey());
+		}
+		
+		ranges.put(start, end);
+	}
+	
+	private static boolean isMetadata(TreeMap<Long, Long> metadata, long block){
+		
+		Map.Entry<Long, Long> range = metadata.floorEntry(block);
+		
+		return range != null && block < range.getValue();
+	}
+	
+	/*
+	* Add fingerprints of one image, either to the table or to the partition files if the table has been spilled.
+	*/
+	
+	private synchronized void addBatch(long[] batch, int batchSize, int image){
+		
+		try{
+			
+			for(int i = 0; i < batchSize; i++){
+				
+				stats.get(image)[0]++;
+				totalBlocks++;
+				
+				if(partitions != null) writeRecord(partitions[partition(batch[2 * i], 0)], batch[2 * i], batch[2 * i + 1], 1, image, 0);
+				else{
+					
+					count(batch[2 * i], batch[2 * i + 1], image);
+					
+					if(used > capacity * LOAD_FACTOR) spill();
+				}
+			}
+			
+		}catch(IOException e){
+			
+			throw new RuntimeException("Cannot write to " + spillDir, e);
+		}
+	}
+	
+	/*
+	* Count a single occurrence of a fingerprint in an image.
+	*/
+	
+	private void count(long hi, long lo, int image){
+		
+		long slot = find(hi, lo);
+		ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+		int offset = (int) (slot & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+		long[] imageStats = stats.get(image);
+		
+		if(segment.getInt(offset + 16) == 0){
+			
+			put(slot, hi, lo, 1, image, 1);
+			imageStats[1]++;
+			uniqueBlocks++;
+			return;
+		}
+		
+		segment.putInt(offset + 16, segment.getInt(offset + 16) + 1);
+		
+		int last = segment.getShort(offset + 20) & 0xFFFF;
+		
+		if(last != image){
+			
+			int images = segment.getShort(offset + 22) & 0xFFFF;
+			
+			imageStats[1]++;
+			imageStats[2]++;
+			segment.putShort(offset + 20, (short) image);
+			segment.putShort(offset + 22, (short) Math.min(0xFFFF, images + 1));
+		}
+	}
+	
+	/*
+	* Find a slot which holds the fingerprint or an empty slot it should be stored in (linear probing).
+	*/
+	
+	private long find(long hi, long lo){
+		
+		long slot = (lo ^ (hi >>> 17)) & mask;
+		
+		for(long probes = 0; ; probes++){
+			
+			if(probes == capacity) throw new IllegalStateException("The fingerprint table is full");
+			
+			ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+			int offset = (int) (slot & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+			
+			if(segment.getInt(offset + 16) == 0) return slot;
+			if(segment.getLong(offset) == hi && segment.getLong(offset + 8) == lo) return slot;
+			
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	private void put(long slot, long hi, long lo, int count, int image, int images){
+		
+		ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+		int offset = (int) (slot & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+		
+		segment.putLong(offset, hi);
+		segment.putLong(offset + 8, lo);
+		segment.putInt(offset + 16, count);
+		segment.putShort(offset + 20, (short) image);
+		segment.putShort(offset + 22, (short) images);
+		used++;
+	}
+	
+	/*
+	* Move the contents of the table to the partition files. From now on all the fingerprints go straight to the files.
+	*/
+	
+	private void spill() throws IOException{
+		
+		int count = 1 << PARTITION_BITS;
+		
+		partitionFiles = new File[count];
+		partitions = new DataOutputStream[count];
+		
+		for(int i = 0; i < count; i++){
+			
+			partitionFiles[i] = File.createTempFile("dedup", ".part", spillDir);
+			partitions[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partitionFiles[i]), 1 << 16));
+		}
+		
+		drainTable(partitions, 0);
+	}
+	
+	/*
+	* Write every entry of the table (as an already counted record) to partitions chosen at the given depth and clear the table.
+	*/
+	
+	private void drainTable(DataOutputStream[] out, int depth) throws IOException{
+		
+		for(long slot = 0; slot < capacity; slot++){
+			
+			ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+			int offset = (int) (slot & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+			int count = segment.getInt(offset + 16);
+			
+			if(count == 0) continue;
+			
+			long hi = segment.getLong(offset);
+			
+			writeRecord(out[partition(hi, depth)], hi, segment.getLong(offset + 8), count, segment.getShort(offset + 20) & 0xFFFF, segment.getShort(offset + 22) & 0xFFFF);
+		}
+		
+		clear();
+	}
+	
+	private void clear(){
+		
+		for(ByteBuffer segment: segments){
+			
+			for(int i = 0; i < segment.capacity(); i += 8) segment.putLong(i, 0);
+		}
+		
+		used = 0;
+	}
+	
+	private static int partition(long hi, int depth){
+		
+		return (int) (hi >>> (64 - PARTITION_BITS * (depth + 1))) & ((1 << PARTITION_BITS) - 1);
+	}
+	
+	/*
+	* A record with 0 images is a single uncounted occurrence, any other record is an entry moved out of the table.
+	*/
+	
+	private static void writeRecord(DataOutputStream out, long hi, long lo, int count, int image, int images) throws IOException{
+		
+		out.writeLong(hi);
+		out.writeLong(lo);
+		out.writeInt(count);
+		out.writeShort(image);
+		out.writeShort(images);
+	}
+	
+	/**
+	* Count the fingerprints which have been spilled and release the partition files. No image may be added afterwards.
+	*/
+	
+	public synchronized void finish(){
+		
+		if(finished) return;
+		
+		finished = true;
+		
+		try{
+			
+			if(partitions == null){
+				
+				sharedBlocks += countShared();
+				return;
+			}
+			
+			for(DataOutputStream out: partitions) out.close();
+			for(File file: partitionFiles) processPartition(file, 0);
+			
+		}catch(IOException e){
+			
+			throw new RuntimeException("Cannot read from " + spillDir, e);
+		}
+	}
+	
+	/*
+	* Count a single partition file. Repeated fingerprints take a single entry, so the partition is split by the next bits
+	* of the fingerprint only when its distinct fingerprints do not fit in the table: the counted entries are moved to
+	* the new partitions together with the rest of the file and every new partition is counted on its own.
+	*/
+	
+	private void processPartition(File file, int depth) throws IOException{
+		
+		File[] files = null;
+		DataOutputStream[] out = null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		
+		try{
+			
+			while(true){
+				
+				long hi = in.readLong();
+				long lo = in.readLong();
+				int count = in.readInt();
+				int image = in.readShort() & 0xFFFF;
+				int images = in.readShort() & 0xFFFF;
+				
+				if(out != null) writeRecord(out[partition(hi, depth + 1)], hi, lo, count, image, images);
+				else if(images == 0) count(hi, lo, image);
+				else put(find(hi, lo), hi, lo, count, image, images);
+				
+				if(out == null && used > capacity * LOAD_FACTOR && depth < MAX_DEPTH){
+					
+					files = new File[1 << PARTITION_BITS];
+					out = new DataOutputStream[files.length];
+					
+					for(int i = 0; i < files.length; i++){
+						
+						files[i] = File.createTempFile("dedup", ".part", spillDir);
+						out[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), 1 << 16));
+					}
+					
+					drainTable(out, depth + 1);
+				}
+			}
+			
+		}catch(EOFException e){
+			
+			// The whole partition has been read
+			
+		}finally{
+			
+			in.close();
+			
+			if(out != null){
+				
+				for(DataOutputStream stream: out) stream.close();
+			}
+		}
+		
+		file.delete();
+		
+		if(files != null){
+			
+			for(File part: files) processPartition(part, depth + 1);
+			return;
+		}
+		
+		sharedBlocks += countShared();
+		clear();
+	}
+	
+	/*
+	* Number of distinct fingerprints in the table which occur in more than one image.
+	*/
+	
+	private long countShared(){
+		
+		long shared = 0;
+		
+		for(long slot = 0; slot < capacity; slot++){
+			
+			ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+			int offset = (int) (slot & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+			
+			if(segment.getInt(offset + 16) != 0 && (segment.getShort(offset + 22) & 0xFFFF) > 1) shared++;
+		}
+		
+		return shared;
+	}
+	
+	/**
+	* @return totalBlocks	number of blocks fingerprinted in all the images
+	*/
+	
+	public long getTotalBlocks(){
+		
+		return totalBlocks;
+	}
+	
+	/**
+	* @return uniqueBlocks	number of distinct blocks in all the images
+	*/
+	
+	public long getUniqueBlocks(){
+		
+		finish();
+		return uniqueBlocks;
+	}
+	
+	/**
+	* Print the number of blocks, distinct blocks and the duplicate ratio (the part of blocks which could be dropped)
+	* of every image and of all the images together.
+	*/
+	
+	public void report(){
+		
+		finish();
+		
+		for(int i = 0; i < names.size(); i++){
+			
+			long[] image = stats.get(i);
+			
+			System.out.println(names.get(i) + ": blocks " + image[0] + " unique " + image[1] + " duplicate ratio " + ratio(image[0], image[1])
+				+ " shared with earlier images " + image[2]);
+		}
+		
+		System.out.println("All images: blocks " + totalBlocks + " unique " + uniqueBlocks + " duplicate ratio " + ratio(totalBlocks, uniqueBlocks)
+			+ " blocks in more than one image " + sharedBlocks);
+	}
+	
+	private static String ratio(long total, long unique){
+		
+		return String.format("%.4f", total > 0 ? 1.0 - (double) unique / total : 0.0);
+	}
+}
@@ -33,6 +33,42 @@ public class Directory{
 		help = new Helper();
 	}
 
+	/**
+	* A callback which receives the entries found while walking a directory tree.
+	*/
+	
+	public interface Walker{
+		
+		/**
+		* @param path		path of the entry starting with "/"
+		* @param inodeNum	number of the inode the entry points to
+		* @return true if the entry is a directory which should be walked as well
+		*/
+		
+		boolean visit(String path, int inodeNum);
+	}
+	
+	/**
+	* Walks the whole tree below a directory (depth first) and passes every entry except "." and ".." to the walker.
+	* The walker decides which entries are directories, so no inode has to be read just to learn its type.
+	*
+	* @param inodeNum	number of the inode of the directory the walk starts at
+	* @param path		path of the directory, "" for the root
+	* @param walker		callback which receives the entries
+	*/
+	
+	public void walk(long inodeNum, String path, Walker walker){
+		
+		for(Map.Entry<String, Integer> entry: volume.listDirectory(inodeNum).entrySet()){
+			
+			String name = entry.getKey();
+			
+			if(name.equals(".") || name.equals("..")) continue;
+			
+			if(walker.visit(path + "/" + name, entry.getValue())) walk(entry.getValue(), path + "/" + name, walker);
+		}
+	}
+	
 	/**
 	* Prints contents of a directory in a form suited to being output in Unix like format, such as:
 	*
@@ -0,0 +1,242 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Reads the inodes and the first blocks of the entries of a directory into the block cache as soon as it is listed.
+*
+* A listing is almost always followed by a stat or an open of its entries, and every one of them costs a random read of
+* an inode table block and then one of the first block of the file or directory. When Volume.listDirectory() hands a
+* directory over, the blocks of the inode tables holding its entries are found from their inode numbers, sorted and
+* read in the background with as few reads as possible - blocks close to each other are read at once, skipping the
+* ones already cached. Then the inodes are decoded and the first data blocks of the regular files and directories
+* are read the same way. The stats and opens which follow find everything in the cache.
+*
+*	volume.setCache(new BlockCache(256 << 20));
+*	volume.setPrefetcher(new DirectoryPrefetcher(volume, 1));
+*
+* Only the first entries (in the order of their names) of a very large directory are prefetched, so a single listing
+* never takes more than an eighth of the cache. A directory listed while it is waiting is not queued again, and when
+* too many directories are waiting new ones are not prefetched at all.
+*
+* @author Michal Radecki
+*/
+
+public class DirectoryPrefetcher{
+	
+	private static final int QUEUE = 256;				//Directories waiting to be prefetched
+	private static final int SHARE = 8;				//Part of the cache one directory may take
+	private static final int MAX_GAP = 8;				//Blocks outside the set read to join two runs
+	private static final int MAX_RUN = 1 << 20;			//Bytes read at once
+	
+	private static final int IFMT = 0xF000;
+	private static final int IFDIR = 0x4000;
+	private static final int IFREG = 0x8000;
+	private static final int EXTENTS_FLAG = 0x80000;
+	private static final int EXTENT_MAGIC = 0xF30A;
+	
+	private Volume volume;
+	private ThreadPoolExecutor pool;
+	private Set<Long> waiting = ConcurrentHashMap.newKeySet();
+	private AtomicLong directories = new AtomicLong();
+	private AtomicLong blocks = new AtomicLong();
+	private AtomicLong reads = new AtomicLong();
+	
+	/**
+	* Create a prefetcher for a volume. It is switched on by Volume.setPrefetcher().
+	*
+	* @param volume		the volume, it needs a block cache
+	* @param threads	number of directories prefetched at once
+	*/
+	
+	public DirectoryPrefetcher(Volume volume, int threads){
+		
+		this.volume = volume;
+		
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadFactory(){
+			
+			public Thread newThread(Runnable task){
+				
+				Thread thread = new Thread(task, "DirectoryPrefetcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	* Prefetch the entries of a directory which has just been listed, in the background.
+	*
+	* @param inodeNum	number of the inode of the directory
+	* @param entries	names of the entries mapped to their inode numbers, as listed by Volume.listDirectory()
+	*/
+	
+	public void listed(final long inodeNum, final Map<String, Integer> entries){
+		
+		if(volume.getCache() == null || entries.size() <= 2 || !waiting.add(inodeNum)) return;
+		
+		try{
+			
+			pool.execute(new Runnable(){
+				
+				public void run(){
+					
+					try{
+						
+						prefetch(entries);
+					
+					}finally{
+						
+						waiting.remove(inodeNum);
+					}
+				}
+			});
+		
+		}catch(RejectedExecutionException e){
+			
+			// Too many directories are waiting, or the prefetcher has been shut down
+			waiting.remove(inodeNum);
+		}
+	}
+	
+	/**
+	* Prefetch the entries of a directory in the calling thread.
+	*
+	* @param entries	names of the entries mapped to their inode numbers, as listed by Volume.listDirectory()
+	* @return count		number of blocks read into the cache
+	*/
+	
+	public long prefetch(Map<String, Integer> entries){
+		
+		if(volume.getCache() == null) return 0;
+		
+		long blockSize = volume.getBlockSize();
+		int limit = (int) Math.min(entries.size(), Math.max(1, volume.getCache().getCapacity() / volume.getBlockSize() / SHARE / 2));
+		long[] inodes = new long[limit];
+		int count = 0;
+		
+		for(Map.Entry<String, Integer> entry: entries.entrySet()){
+			
+			if(count == limit) break;
+			
+			if(entry.getKey().equals(".") || entry.getKey().equals("..")) continue;
+			
+			inodes[count++] = entry.getValue() & 0xFFFFFFFFL;
+		}
+		
+		long[] wanted = new long[count];
+		
+		for(int i = 0; i < count; i++) wanted[i] = volume.getInodeOffset(inodes[i]) / blockSize;
+		
+		long read = fetch(wanted);
+		
+		// The inodes are in the cache now, they are not counted as found so the prefetch does not make them hot
+		for(int i = 0; i < count; i++) wanted[i] = firstBlock(volume.peekInodeBytes(inodes[i]));
+		
+		read += fetch(wanted);
+		directories.incrementAndGet();
+		
+		return read;
+	}
+	
+	/**
+	* Stop the threads, the directories waiting are not prefetched.
+	*/
+	
+	public void shutdown(){
+		
+		pool.shutdownNow();
+	}
+	
+	/**
+	* @return directories	number of directories prefetched
+	*/
+	
+	public long getDirectories(){
+		
+		return directories.get();
+	}
+	
+	/**
+	* @return blocks	number of blocks read into the cache
+	*/
+	
+	public long getBlocks(){
+		
+		return blocks.get();
+	}
+	
+	/**
+	* @return reads		number of reads the blocks have taken
+	*/
+	
+	public long getReads(){
+		
+		return reads.get();
+	}
+	
+	/*
+	* Read blocks which are not cached yet, joining the ones close to each other. Zeros and blocks past the end are skipped.
+	*/
+	
+	private long fetch(long[] wanted){
+		
+		long[] sorted = wanted.clone();
+		int count = 0;
+		
+		Arrays.sort(sorted);
+		
+		for(int i = 0; i < sorted.length; i++){
+			
+			if(sorted[i] == 0 || sorted[i] >= volume.getBlocksInSys() || count > 0 && sorted[count - 1] == sorted[i] || volume.isCached(sorted[i])) continue;
+			
+			sorted[count++] = sorted[i];
+		}
+		
+		int maxBlocks = (int) Math.max(1, MAX_RUN / volume.getBlockSize());
+		
+		for(int from = 0; from < count; ){
+			
+			int to = from + 1;
+			
+			while(to < count && sorted[to] - sorted[to - 1] <= MAX_GAP + 1 && sorted[to] - sorted[from] < maxBlocks) to++;
+			
+			volume.prefetch(sorted, from, to);
+			reads.incrementAndGet();
+			from = to;
+		}
+		
+		blocks.addAndGet(count);
+		
+		return count;
+	}
+	
+	/*
+	* The first block of a regular file or directory - the first direct pointer, or the start of the first extent if
+	* the extent tree has no index blocks. 0 for other inodes and empty files.
+	*/
+	
+	private static long firstBlock(byte[] bytes){
+		
+		ByteBuffer inode = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int type = inode.getShort(0) & IFMT;
+		
+		if(type != IFREG && type != IFDIR) return 0;
+		
+		if((inode.getInt(32) & EXTENTS_FLAG) == 0) return inode.getInt(40) & 0xFFFFFFFFL;
+		
+		// The header of the tree: magic, entries, maximum, depth
+		if((inode.getShort(40) & 0xFFFF) != EXTENT_MAGIC || inode.getShort(42) == 0 || inode.getShort(46) != 0) return 0;
+		
+		return (inode.getShort(58) & 0xFFFFL) << 32 | inode.getInt(60) & 0xFFFFFFFFL;
+	}
+}
@@ -1,3 +1,18 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 public class Driver{
 	
 	/**
@@ -6,6 +21,12 @@ public class Driver{
 	
 	public static void main(String[] args){		
 		
+		if(args.length >= 2){
+			
+			run(args);
+			return;
+		}
+		
 		Volume volume = new Volume("ext2fs"); 
 		
 		Directory d = new Directory(volume);		
@@ -22,4 +43,459 @@ public class Driver{
 		//volume.readSuperBlock();
 		//volume.readBlockGroup(0);		
 	}
-}
+	
+	/**
+	* Runs one of the tools over an image given in the command line:
+	*
+	*   java Driver image -extents			prints extents of every file
+	*   java Driver image -frag [count]		prints fragmentation of the volume and the worst files
+	*   java Driver image -diff newImage		prints paths added, removed and modified in the new image
+	*   java Driver image -hash [algorithm]		prints a digest of every regular file (SHA-256 by default, XXH64 is supported)
+	*   java Driver image -dedup [images...]	prints the duplicate ratio of the data blocks in the images (256 MB index)
+	*   java Driver image -index				writes the metadata index next to the image (image.e2idx)
+	*   java Driver image -lookup path			prints the inode, size and extents of a path using the metadata index
+	*   java Driver image -search indexDir		adds the names and contents of the files of the image to a search index
+	*   java Driver indexDir -find text			prints the files which may contain the text, the image is not opened
+	*   java Driver indexDir -name name			prints the files with the given name (a prefix if it ends with "*")
+	*   java Driver image -put hostPath path		copies a host file or directory tree into the image
+	*   java Driver image -rm path				removes a file from the image
+	*   java Driver image -build hostDir [blocks [blockSize]]	creates a new image with the contents of a host directory
+	*   java Driver image -generate seed [files]	creates a synthetic image for scale tests, the same seed gives the same image
+	*   java Driver image -check				checks the consistency of the image
+	*   java Driver image -recover outDir [min]	saves deleted files with a confidence of at least min (0.5 by default)
+	*   java Driver image -serve port [threads]	serves the files of the image over HTTP on localhost, the hot blocks are kept in image.hot
+	*   java Driver image -get path hostPath [threads]	copies a file out of the image reading it with several threads (16 by default)
+	*   java Driver image -report				prints the number and size of the files by type and by owner
+	*   java Driver image -namespace prefix		reads every path of the image into memory and prints the ones in a directory starting with prefix
+	*   java Driver image -tar|-cpio path hostPath	writes a subtree as a tar or cpio archive ("-" for the standard output)
+	*   java Driver image -record trace option ...	runs any of the options recording the files opened and read to the trace
+	*   java Driver image -replay trace [threads] [speedup]	runs a trace and prints the throughput and latencies (no waiting by default)
+	*   java Driver disk -partitions			prints the MBR or GPT partitions of a disk image and the ext2 volumes in them
+	*
+	* An image whose name ends with .gz is read from the gzip file without unpacking it, the index of the file is written next to it.
+	* An image whose name ends with .zst is read the same way from a file in the seekable format of zstd.
+	*/
+	
+	private static void run(String[] args){
+		
+		TraceRecorder recorder = null;
+		
+		if(args[1].equals("-record") && args.length > 3){
+			
+			try{
+				
+				recorder = record(new File(args[2]));
+				
+			}catch(IOException e){
+				
+				System.out.println("Trace cannot be written: " + e.getMessage());
+				return;
+			}
+			
+			String[] rest = new String[args.length - 2];
+			
+			rest[0] = args[0];
+			System.arraycopy(args, 3, rest, 1, args.length - 3);
+			args = rest;
+		}
+		
+		if(args[1].equals("-find") || args[1].equals("-name")){
+			
+			find(args);
+			return;
+		}
+		
+		if(args[1].equals("-partitions")){
+			
+			partitions(args[0]);
+			return;
+		}
+		
+		if(args[1].equals("-build") && args.length > 2){
+			
+			try{
+				
+				ImageBuilder builder = args.length > 4 ? new ImageBuilder(Integer.parseInt(args[4]), 128) : new ImageBuilder();
+				builder.addTree(builder.getRoot(), new File(args[2]));
+				builder.write(new File(args[0]), args.length > 3 ? Long.parseLong(args[3]) : 0, 0);
+				
+			}catch(IOException e){
+				
+				System.out.println("Image cannot be built: " + e.getMessage());
+			}
+			
+			return;
+		}
+		
+		if(args[1].equals("-generate") && args.length > 2){
+			
+			try{
+				
+				ImageGenerator generator = new ImageGenerator(Long.parseLong(args[2]));
+				
+				if(args.length > 3) generator.setFiles(Long.parseLong(args[3]));
+				
+				generator.write(new File(args[0]));
+				
+			}catch(IOException e){
+				
+				System.out.println("Image cannot be generated: " + e.getMessage());
+			}
+			
+			return;
+		}
+		
+		if(args[1].equals("-put") || args[1].equals("-rm")){
+			
+			write(args);
+			return;
+		}
+		
+		Volume volume = new Volume(args[0]);
+		
+		volume.setRecorder(recorder);
+		
+		if(args[1].equals("-extents")){
+			
+			Fragmentation fragmentation = new Fragmentation(volume);
+			fragmentation.analyze();
+			fragmentation.printExtents();
+		}
+		
+		else if(args[1].equals("-frag")){
+			
+			Fragmentation fragmentation = new Fragmentation(volume);
+			fragmentation.analyze();
+			fragmentation.report(args.length > 2 ? Integer.parseInt(args[2]) : 10);
+		}
+		
+		else if(args[1].equals("-diff") && args.length > 2){
+			
+			new ImageDiff(volume, new Volume(args[2])).report();
+		}
+		
+		else if(args[1].equals("-hash")){
+			
+			new ContentHasher(volume, args.length > 2 ? args[2] : "SHA-256").writeManifest(System.out);
+		}
+		
+		else if(args[1].equals("-dedup")){
+			
+			DedupIndex index = new DedupIndex(256L << 20, new File(System.getProperty("java.io.tmpdir")));
+			index.addImage(args[0], volume);
+			
+			for(int i = 2; i < args.length; i++) index.addImage(args[i], new Volume(args[i]));
+			
+			index.report();
+		}
+		
+		else if(args[1].equals("-index")){
+			
+			try{
+				
+				MetadataIndex.build(volume, MetadataIndex.sidecarOf(args[0]));
+				
+			}catch(IOException e){
+				
+				System.out.println("Index cannot be written: " + e.getMessage());
+			}
+		}
+		
+		else if(args[1].equals("-lookup") && args.length > 2){
+			
+			MetadataIndex index = MetadataIndex.open(volume, MetadataIndex.sidecarOf(args[0]));
+			
+			if(index == null){
+				
+				System.out.println("Build the index with -index first");
+				return;
+			}
+			
+			try{
+				
+				Ext2File file = new Ext2File(volume, index, args[2]);
+				System.out.println("Inode " + file.getInodeNum() + " size " + file.size() + " extents " + file.getExtents());
+				
+			}catch(IllegalArgumentException e){
+				
+				System.out.println(e.getMessage());
+			}
+		}
+		
+		else if(args[1].equals("-search") && args.length > 2){
+			
+			try{
+				
+				int count = SearchIndex.build(volume, new File(args[0]).getName(), new File(args[2]), 16L << 20);
+				System.out.println("Indexed " + count + " files");
+				
+			}catch(IOException e){
+				
+				System.out.println("Index cannot be written: " + e.getMessage());
+			}
+		}
+		
+		else if(args[1].equals("-check")){
+			
+			Checker checker = new Checker(volume);
+			checker.check();
+			checker.report(System.out);
+		}
+		
+		else if(args[1].equals("-recover") && args.length > 2){
+			
+			RecoveryScanner scanner = new RecoveryScanner(volume);
+			
+			try{
+				
+				scanner.recover(new File(args[2]), args.length > 3 ? Double.parseDouble(args[3]) : 0.5);
+				scanner.report(System.out);
+				
+			}catch(IOException e){
+				
+				System.out.println("Files cannot be recovered: " + e.getMessage());
+			}
+		}
+		
+		else if(args[1].equals("-serve") && args.length > 2){
+			
+			try{
+				
+				FileServer server = new FileServer(volume, Integer.parseInt(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 64);
+				CacheSnapshot snapshot = new CacheSnapshot(volume, CacheSnapshot.sidecarOf(args[0]));
+				
+				try{
+					
+					snapshot.prefetch();
+					
+				}catch(IOException e){
+					
+					System.out.println("Cache snapshot cannot be read: " + e.getMessage());
+				}
+				
+				snapshot.start(60000);
+				server.start();
+				System.out.println("Serving " + args[0] + " on http://localhost:" + server.getPort() + "/");
+				
+			}catch(IOException e){
+				
+				System.out.println("Server cannot be started: " + e.getMessage());
+			}
+		}
+		
+		else if(args[1].equals("-get") && args.length > 3){
+			
+			try(FileChannel target = FileChannel.open(Paths.get(args[3]), StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+				
+				Ext2File file = new Ext2File(volume, args[2]);
+				long start = System.nanoTime();
+				long count = new ParallelReader(volume, args.length > 4 ? Integer.parseInt(args[4]) : 16, 4 << 20).copy(file, target);
+				
+				System.out.format("%d bytes of data copied in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+				
+			}catch(IOException | IllegalArgumentException e){
+				
+				System.out.println("The file cannot be copied: " + e.getMessage());
+			}
+		}
+		
+		else if(args[1].equals("-namespace") && args.length > 2){
+			
+			long start = System.nanoTime();
+			NamespaceTree tree = NamespaceTree.build(volume);
+			int slash = args[2].lastIndexOf('/');
+			
+			for(int node: tree.list(args[2].substring(0, slash + 1), args[2].substring(slash + 1))){
+				
+				System.out.println(tree.getInodeNum(node) + "\t" + tree.getPath(node));
+			}
+			
+			System.out.format("%d entries read in %.2f s, %d bytes in memory%n", tree.size(), (System.nanoTime() - start) / 1e9, tree.getMemory());
+		}
+		
+		else if(args[1].equals("-report")){
+			
+			InodeColumns columns = InodeColumns.load(volume, Runtime.getRuntime().availableProcessors());
+			
+			System.out.format("Inodes in use: %d of %d%n", columns.query().count(), columns.getInodeCount());
+			System.out.format("Regular files: %d, %d bytes, %d bytes allocated%n", columns.query().regularFiles().count(), columns.query().regularFiles().sumSize(), columns.query().regularFiles().sumAllocated());
+			System.out.format("Directories:   %d%n", columns.query().directories().count());
+			System.out.format("Symbolic links: %d%n", columns.query().symbolicLinks().count());
+			
+			for(Map.Entry<Integer, long[]> entry: columns.query().regularFiles().groupByUid().entrySet()){
+				
+				System.out.format("  uid %6d: %10d files %16d bytes%n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+			}
+		}
+		
+		else if((args[1].equals("-tar") || args[1].equals("-cpio")) && args.length > 3){
+			
+			ArchiveExporter exporter = new ArchiveExporter(volume, args[1].equals("-tar") ? ArchiveExporter.Format.TAR : ArchiveExporter.Format.CPIO);
+			
+			try(OutputStream out = args[3].equals("-") ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(args[3])){
+				
+				exporter.export(args[2], new BufferedOutputStream(out, 1 << 16));
+				
+			}catch(IOException e){
+				
+				System.err.println("The archive cannot be written: " + e.getMessage());
+			}
+		}
+		
+		else if(args[1].equals("-replay") && args.length > 2){
+			
+			try{
+				
+				TraceReplayer replayer = new TraceReplayer(volume, new File(args[2]));
+				
+				System.out.print(replayer.replay(args.length > 3 ? Integer.parseInt(args[3]) : 1, args.length > 4 ? Double.parseDouble(args[4]) : 0));
+				
+			}catch(IOException e){
+				
+				System.out.println("The trace cannot be replayed: " + e.getMessage());
+			}
+		}
+		
+		else System.out.println("Unknown option " + args[1]);
+	}
+	
+	/**
+	* Changes an image opened for writing.
+	*/
+	
+	private static void write(String[] args){
+		
+		Ext2Writer writer = new Ext2Writer(new Volume(args[0], true));
+		
+		if(args[1].equals("-put") && args.length > 3) put(writer, new File(args[2]), args[3]);
+		
+		else if(args[1].equals("-rm") && args.length > 2) writer.unlink(args[2]);
+		
+		else System.out.println("Missing arguments of " + args[1]);
+		
+		writer.flush();
+	}
+	
+	/**
+	* Copies a host file, or a directory with everything below it, to a path in the image.
+	*/
+	
+	private static void put(Ext2Writer writer, File source, String path){
+		
+		if(source.isDirectory()){
+			
+			if(writer.lookup(path) == 0 && writer.mkdir(path) < 0) return;
+			
+			String[] children = source.list();
+			
+			if(children == null) return;
+			
+			Arrays.sort(children);
+			
+			for(String child: children) put(writer, new File(source, child), path.replaceAll("/$", "") + "/" + child);
+			
+			return;
+		}
+		
+		long inodeNum = writer.create(path);
+		
+		if(inodeNum < 0) return;
+		
+		try(InputStream in = new FileInputStream(source)){
+			
+			byte[] bytes = new byte[1 << 20];
+			long offset = 0;
+			
+			for(int count; (count = in.read(bytes)) > 0; offset += count){
+				
+				if(writer.write(inodeNum, offset, bytes, 0, count) < count) return;
+			}
+			
+		}catch(IOException e){
+			
+			System.out.println("File " + source + " cannot be read!");
+		}
+	}
+	
+	/**
+	* Queries a search index without opening any image.
+	*/
+	
+	private static void find(String[] args){
+		
+		SearchIndex index = SearchIndex.open(new File(args[0]));
+		
+		if(index == null || args.length < 3){
+			
+			System.out.println("No index in " + args[0]);
+			return;
+		}
+		
+		List<String> paths;
+		
+		if(args[1].equals("-find")) paths = index.findContaining(args[2]);
+		else if(args[2].endsWith("*")) paths = index.findByNamePrefix(args[2].substring(0, args[2].length() - 1));
+		else paths = index.findByName(args[2]);
+		
+		for(String path: paths) System.out.println(path);
+		
+		index.close();
+	}
+	
+	/**
+	* Creates a recorder which is closed when the program exits, so the trace of a server is complete as well.
+	*/
+	
+	private static TraceRecorder record(File trace) throws IOException{
+		
+		final TraceRecorder recorder = new TraceRecorder(trace);
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			
+			public void run(){
+				
+				try{
+					
+					recorder.close();
+					
+				}catch(IOException e){
+					
+					System.out.println("Trace cannot be written: " + e.getMessage());
+				}
+			}
+		});
+		
+		return recorder;
+	}
+	
+	/**
+	* Prints the partitions of a disk image.
+	*/
+	
+	private static void partitions(String fileName){
+		
+		try{
+			
+			PartitionTable table = new PartitionTable(fileName);
+			
+			System.out.println("Partition table: " + table.getScheme());
+			
+			for(PartitionTable.Partition partition: table.getPartitions()){
+				
+				System.out.format("%3d  start %12d  length %12d  type %s %s%n", partition.getNumber(), partition.getStart(), partition.getLength(), partition.getType(), partition.getName());
+				
+				if(!partition.isExt2()) continue;
+				
+				Volume volume = table.open(partition);
+				
+				System.out.format("     ext2: %d blocks of %d bytes, %d inodes, %d groups%n", volume.getBlocksInSys(), volume.getBlockSize(), volume.getInodesInSys(), volume.getGroupCount());
+			}
+			
+			table.close();
+			
+		}catch(IOException e){
+			
+			System.out.println("Partitions of " + fileName + " cannot be read: " + e.getMessage());
+		}
+	}
+}
\ No newline at end of file
@@ -1,9 +1,6 @@
-import java.util.TreeMap;
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.Iterator;
-import java.util.Set;
-import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /** 
 * A class which represents a regular file in ext2 file system.
@@ -11,31 +8,95 @@ import java.nio.ByteBuffer;
 * Then the file can be read given either an offset of bytes (a point when we want to start reading)
 * and length or start from the current position which may be set by the user.
 *
+* The file is not buffered in memory - only its extents are kept and every read goes to the volume.
+* Holes (blocks which have never been written) are returned as zeros without touching the disk,
+* so sparse files may be read at their correct offsets whatever their apparent size is.
+*
 * It also contains an information about the file size.
 * @author Michal Radecki
 */
 
 public class Ext2File{	
 	
+	private static final int IFMT = 0xF000;
+	private static final int IFLNK = 0xA000;
 	
 	private Volume volume;
 	private long size;
-	private long actualSize;
-	private ByteBuffer fileBuffer;	
+	private long inodeNum;
+	private long position;
+	private ArrayList<Extent> extents;
 	
 	/**
 	* Create an instance of the class given a path and a file system, where the file exists.
-	* Automatically get bytes of the file and saves them, so they can be proceed.
+	* Automatically finds the extents of the file, so they can be proceed. Symbolic links in the path are followed.
 	*
 	* @param	volume	a file system where the file exists.
 	* @param	path	a path in the filesystem to the file.
+	* @throws	IllegalArgumentException	if there is no such file
 	*/
 	
 	public Ext2File(Volume volume, String path){		
 		
+		this(volume, resolve(volume, path), path);
+	}
+
+	/**
+	* Create an instance of the class given an inode number, e.g. one found by a scan of the inode tables.
+	*
+	* @param	volume		a file system where the file exists.
+	* @param	inodeNum	number of the inode which holds the file.
+	*/
+	
+	public Ext2File(Volume volume, long inodeNum){
+		
+		this(volume, inodeNum, null);
+	}
+	
+	/*
+	* Open a file, the opening is recorded with the path if the volume has a recorder.
+	*/
+	
+	private Ext2File(Volume volume, long inodeNum, String path){
+		
+		this.volume = volume;
+		this.inodeNum = inodeNum;
+		size = volume.getFileSize(inodeNum);
+		extents = volume.getExtents(inodeNum);
+		
+		if(volume.getRecorder() != null) volume.getRecorder().open(path, inodeNum);
+	}
+	
+	/**
+	* Create an instance of the class given a path, a file system and its metadata index.
+	* The inode, size and extents of the file are taken from the index, so no directory is read. The index holds
+	* the paths as they are, so a path it does not have or which names a symbolic link is walked as by the path
+	* constructor, following the links. The opening is recorded as by the path constructor.
+	*
+	* @param	volume	a file system where the file exists.
+	* @param	index	an index opened for the volume.
+	* @param	path	a path in the filesystem to the file.
+	* @throws	IllegalArgumentException	if there is no such file
+	*/
+	
+	public Ext2File(Volume volume, MetadataIndex index, String path){
+		
 		this.volume = volume;
-		PathHelper finder = new PathHelper();
-		finder.getBytes(path);			
+		inodeNum = index.lookup(path);
+		
+		if(inodeNum < 0 || (index.getFileMode(inodeNum) & IFMT) == IFLNK){
+			
+			inodeNum = resolve(volume, path);
+			size = volume.getFileSize(inodeNum);
+			extents = volume.getExtents(inodeNum);
+			
+		}else{
+			
+			size = index.getFileSize(inodeNum);
+			extents = index.getExtents(inodeNum);
+		}
+		
+		if(volume.getRecorder() != null) volume.getRecorder().open(path, inodeNum);
 	}
 
 	/**
@@ -55,12 +116,9 @@ public class Ext2File{
 			return null;
 		}
 		
-		byte[] bytes = new byte[(int) length];		
-			
-		for(int i = 0; i < (length - startByte) && i < (actualSize - startByte); i++){
-			
-			bytes[i] = fileBuffer.get((int) startByte + i);
-		}
+		byte[] bytes = new byte[(int) Math.min(length, size - startByte)];		
+		
+		readInto(startByte, bytes, 0, bytes.length);
 		
         return bytes;  
     }
@@ -75,20 +133,63 @@ public class Ext2File{
 	
     public byte[] read(int length){
 
-		if(fileBuffer.position() > actualSize){
+		if(position > size){
 			
 			System.out.println("Position is greater than file size!");
 			return null;
 		}
 		
-		byte[] bytes = new byte[length];		
+		byte[] bytes = new byte[(int) Math.min(length, size - position)];		
+		
+		readInto(position, bytes, 0, bytes.length);
+		position += bytes.length;
+		
+        return bytes; 
+	}
+	
+	/**
+	* Copies bytes of the file into the given array. Consecutive blocks which are contiguous on the disk are read at once,
+	* the parts of the array which fall into holes are filled with zeros.
+	*
+	* @param	startByte	an offset from start of file, it has to be less than the file size
+	* @param	bytes		an array the data is copied to
+	* @param	offset		first index in the array to be written
+	* @param	length		number of bytes to be copied, it must not reach beyond the end of the file
+	*/
+	
+	public void readInto(long startByte, byte[] bytes, int offset, int length){
+		
+		if(volume.getRecorder() != null) volume.getRecorder().read(inodeNum, startByte, length);
+		
+		long blockSize = volume.getBlockSize();
+		long end = startByte + length;
+		int i = findExtent(startByte / blockSize);
+		
+		while(startByte < end){
+			
+			Extent extent = i < extents.size() ? extents.get(i) : null;
+			long extentStart = extent == null ? end : extent.getLogicalBlock() * blockSize;
 			
-		for(int i = 0; i < length && i < actualSize; i++){
+			if(startByte < extentStart){
+				
+				// A hole - fill it with zeros up to the next extent
+				long holeEnd = Math.min(end, extentStart);
+				
+				Arrays.fill(bytes, offset, offset + (int) (holeEnd - startByte), (byte) 0);
+				offset += (int) (holeEnd - startByte);
+				startByte = holeEnd;
+				continue;
+			}
+			
+			long extentEnd = Math.min(end, (extent.getLogicalBlock() + extent.getLength()) * blockSize);
+			long physical = extent.getPhysicalBlock() * blockSize + (startByte - extentStart);
+			int count = (int) (extentEnd - startByte);
 			
-			bytes[i] = fileBuffer.get();
+			volume.read(physical, bytes, offset, count);
+			offset += count;
+			startByte = extentEnd;
+			i++;
 		}
-		
-        return bytes; 
 	}
 
 	/**
@@ -100,19 +201,84 @@ public class Ext2File{
 	
 	public void seek(long position){
 		
-		fileBuffer.position((int) position);		
+		this.position = position;		
+		
+		if(volume.getRecorder() != null) volume.getRecorder().seek(inodeNum, position);
 	}
 	
 	/**
 	* Returns current position in file, i.e. the byte offset from the start of the file.
 	* The file position will be zero when the file is first opened and will advance by the number of bytes read with every call to one of the read( ) routines.
 	*
-	* @return fileBuffer.position	current position in the file
+	* @return position	current position in the file
 	*/
 	
 	public long position(){
 		
-		return fileBuffer.position();
+		return position;
+	}
+	
+	/**
+	* Returns the first offset not less than the given one which holds data (like lseek with SEEK_DATA).
+	*
+	* @param offset	an offset from start of file
+	* @return		an offset of the next data, -1 if there is no data after the offset
+	*/
+	
+	public long seekData(long offset){
+		
+		if(offset < 0 || offset >= size) return -1;
+		
+		int i = findExtent(offset / volume.getBlockSize());
+		
+		if(i == extents.size()) return -1;
+		
+		long dataStart = Math.max(offset, extents.get(i).getLogicalBlock() * volume.getBlockSize());
+		
+		return dataStart < size ? dataStart : -1;
+	}
+	
+	/**
+	* Returns the first offset not less than the given one which lies in a hole (like lseek with SEEK_HOLE).
+	* The end of the file is treated as a hole, so the size of the file is returned if there are no more holes.
+	*
+	* @param offset	an offset from start of file
+	* @return		an offset of the next hole, -1 if the offset is beyond the end of the file
+	*/
+	
+	public long seekHole(long offset){
+		
+		if(offset < 0 || offset >= size) return -1;
+		
+		long block = offset / volume.getBlockSize();
+		
+		for(int i = findExtent(block); i < extents.size() && extents.get(i).getLogicalBlock() <= block; i++){
+			
+			block = extents.get(i).getLogicalBlock() + extents.get(i).getLength();
+		}
+		
+		return Math.min(size, Math.max(offset, block * volume.getBlockSize()));
+	}
+	
+	/*
+	* Binary search for the first extent which ends after the given logical block.
+	*/
+	
+	private int findExtent(long block){
+		
+		int low = 0;
+		int high = extents.size();
+		
+		while(low < high){
+			
+			int middle = (low + high) >>> 1;
+			Extent extent = extents.get(middle);
+			
+			if(extent.getLogicalBlock() + extent.getLength() <= block) low = middle + 1;
+			else high = middle;
+		}
+		
+		return low;
 	}
 	
 	/**
@@ -124,124 +290,46 @@ public class Ext2File{
 		
 		return size;
 	}
+	
+	/**
+	* @return inodeNum	number of the inode which holds the file
+	*/
+	
+	public long getInodeNum(){
+		
+		return inodeNum;
+	}
+	
+	/**
+	* @return extents	data extents of the file ordered by logical block, holes are left out
+	*/
+	
+	public ArrayList<Extent> getExtents(){
+		
+		return extents;
+	}
 
 	/*
-	*	A private nested class which helps to read a path of the file.
-	*	Its functionality is to get an array of bytes representing the file.
-	*
+	* Find the inode of a path. The directories read on the way are not recorded, opening the file by its path is.
 	*/
 	
-	private class PathHelper{
+	private static long resolve(Volume volume, String path){
 		
-		/*
-		*	Read the path given in the constructor - it goes through the file and stop if it reaches the last part of the path.
-		*	When stops automatically read bytes of the file (only not-null pointers are returned from Volume).
-		*	Bytes are saved in global variable so they can be read.
-		*
-		*/
+		TraceRecorder recorder = volume.getRecorder();
 		
-		public void getBytes(String path){
-			
-			// Split the path, get rid of "/" and save it as an array.		
-			String[] splittedPath = path.split("/");
-			
-			// Sets an inode to the root by default.
-			Integer nextInode =  (int)(long)volume.getRootInode();	
-			
-			// Sets an inode pointer to the first one by default.
-			long pointer = volume.findInodePointer(0);
-			
-			// find a directory in the root
-			long directory = volume.findDirectory(pointer, nextInode);		
-			
-			// Iterate over the path to go deeper and deeper in the filesystem.
-			// Each time the iteration is done inode and directory is replaced.
-			for(String name: splittedPath){			
-				
-				//Create a map which holds a name and inode number of each element
-				TreeMap map = volume.readDirectory(directory);
-				Set set = map.entrySet();
-				Iterator iterator = set.iterator();
-				
-				// Iterate over the map and check is the name is the same as a part of the path.
-				// If name is the same as a part of splitted path the inode is replaced.
-				while(iterator.hasNext()){
-					
-					Map.Entry entry = (Map.Entry)iterator.next();
-					if(entry.getKey().equals(name)) nextInode = (Integer) entry.getValue();
-				}			
-				
-				if(nextInode > volume.getInodesInGrup() && nextInode < volume.getInodesInGrup() * 2){
-							
-					pointer = volume.findInodePointer(1);
-					nextInode -= (int)(long) volume.getInodesInGrup();
-					directory = volume.findDirectory(pointer, nextInode);				
-				}
-				
-				else if(nextInode > 2 *  volume.getInodesInGrup()){		
-						
-					pointer = volume.findInodePointer(2);
-					nextInode -= (int)(long) volume.getInodesInGrup() * 2;
-					directory = volume.findDirectory(pointer, nextInode);
-				}			
-			}
+		if(recorder != null) recorder.pause();
 		
-			size = volume.getFileSize(pointer, nextInode);
-			fileBuffer = ByteBuffer.allocate((int) ((size / volume.getBlockSize()) * volume.getBlockSize() + volume.getBlockSize()));			
+		try{
 			
+			return volume.getResolver().resolve(path);
 			
-			//Create an ArrayList of direct pointers then iterate over it to get bytes of the file.
-			ArrayList<Long> listOfDirects = volume.findDirect(pointer, nextInode);
+		}catch(FileNotFoundException e){
 			
-			if(!(listOfDirects.isEmpty())){				
+			throw new IllegalArgumentException(e.getMessage());
 			
-				for(Long block: listOfDirects){					
-										
-					byte[] fileBytes = volume.getBytes(block * volume.getBlockSize(), volume.getBlockSize());
-					
-					fileBuffer.put(fileBytes);
-					actualSize += volume.getBlockSize();
-				}
-			}
-			
-			//Create an ArrayList of single indirect pointers then to get bytes of the last block of the file.
-			ArrayList<Long> listOfIndirects = volume.findIndirect(pointer, nextInode);
-			
-			if(!(listOfIndirects.isEmpty())){
-			
-				long lastBlock = (long) listOfIndirects.get(listOfIndirects.size() - 1);						
-				
-				byte[] fileBytes = volume.getBytes(lastBlock * volume.getBlockSize(), volume.getBlockSize());
-				fileBuffer.put(fileBytes);
-				
-				actualSize = volume.getBlockSize();
-			}
-			
-			//Create an ArrayList of double indirect pointers then to get bytes of the last block of the file.
-			ArrayList<Long> listOfDoubles = volume.findDoubleIndirect(pointer, nextInode);
+		}finally{
 			
-			if(!(listOfDoubles.isEmpty())){
-					
-				long lastBlock = (long) listOfDoubles.get(listOfDoubles.size() - 1);			
-				
-				byte[] fileBytes = volume.getBytes(lastBlock * volume.getBlockSize(), volume.getBlockSize());				
-				fileBuffer.put(fileBytes);
-				
-				actualSize = volume.getBlockSize();
-			}				
-			
-			//Create an ArrayList of triple indirect pointers then to get bytes of the last block of the file.
-			ArrayList<Long> listOfTriples = volume.findTripleIndirect(pointer, nextInode);		
-			
-			if(!(listOfTriples.isEmpty())){				
-			
-				long lastBlock = (long) listOfTriples.get(listOfTriples.size() - 1);
-				
-				byte[] fileBytes = volume.getBytes(lastBlock * volume.getBlockSize(), volume.getBlockSize());				
-				fileBuffer.put(fileBytes);
-				
-				actualSize = volume.getBlockSize();				
-			}						
+			if(recorder != null) recorder.resume();
 		}
 	}
 }
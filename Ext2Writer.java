@@ -0,0 +1,947 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* A class which changes an ext2 file system: creates files and directories, writes and truncates files and unlinks them.
+*
+* All the blocks which are changed (bitmaps, group descriptors, inode tables, indirect and directory blocks, file data)
+* are kept in a WriteBuffer and written only by flush(), which happens on request or when too many bytes are waiting.
+* The flush writes the blocks in an order which keeps the image consistent if it is interrupted:
+*
+*	1. file data,
+*	2. bitmaps with the newly allocated blocks and inodes,
+*	3. inodes and indirect blocks pointing to them,
+*	4. directory entries naming the inodes,
+*	5. blocks and inodes freed since the last flush are released, then the bitmaps, inodes, group descriptors and super block.
+*
+* Each step is forced to disk before the next one starts. An interrupted flush may leak allocated blocks or inodes,
+* which e2fsck gives back, but it never leaves a directory entry pointing to an uninitialized inode
+* or a block owned by two files - freed blocks are not reused before their owners are gone from the disk.
+*
+* Blocks are allocated from the bitmaps starting at the block after the previous block of the file,
+* or at the start of the group holding its inode, so files written sequentially get contiguous extents.
+*
+* @author Michal Radecki
+*/
+
+public class Ext2Writer{
+	
+	private static final long AUTO_FLUSH = 64L << 20;	//Dirty bytes which cause a flush
+	
+	//Offsets of the fields in an inode
+	private static final int MODE = 0;
+	private static final int SIZE = 4;
+	private static final int ATIME = 8;
+	private static final int CTIME = 12;
+	private static final int MTIME = 16;
+	private static final int DTIME = 20;
+	private static final int LINKS = 26;
+	private static final int SECTORS = 28;
+	private static final int FLAGS = 32;
+	private static final int POINTERS = 40;
+	private static final int SIZE_HIGH = 108;
+	private static final int EXTRA_SIZE = 128;
+	
+	//Offsets of the fields in a group descriptor
+	private static final int FREE_BLOCKS = 12;
+	private static final int FREE_INODES = 14;
+	private static final int USED_DIRS = 16;
+	
+	private static final int FILE_MODE = 0x81A4;	//Regular file, rw-r--r--
+	private static final int DIR_MODE = 0x41ED;		//Directory, rwxr-xr-x
+	private static final int INDEX_FL = 0x1000;		//Directory with a hash index
+	
+	private Volume volume;
+	private WriteBuffer buffer;
+	private int blockSize;
+	private int inodeSize;
+	private int pointers;
+	private long inodesInGroup;
+	private long blocksInGroup;
+	private long firstDataBlock;
+	private long firstInode;
+	private long blocksInSys;
+	private int groupCount;
+	private boolean fileTypes;
+	
+	private List<Long> freedBlocks = new ArrayList<Long>();
+	private List<Long> freedInodes = new ArrayList<Long>();
+	private long freeBlocksDelta;
+	private long freeInodesDelta;
+	private Map<Long, Map<String, Long>> names = new HashMap<Long, Map<String, Long>>();
+	
+	/**
+	* Create a writer for a volume opened as writable.
+	*
+	* @param	volume	a file system to be changed
+	*/
+	
+	public Ext2Writer(Volume volume){
+		
+		this.volume = volume;
+		buffer = new WriteBuffer(volume);
+		blockSize = (int) volume.getBlockSize();
+		inodeSize = (int) volume.getInodeSize();
+		pointers = blockSize / 4;
+		inodesInGroup = volume.getInodesInGrup();
+		blocksInGroup = volume.getBlocksInGroup();
+		firstDataBlock = volume.getFirstDataBlock();
+		firstInode = volume.getFirstInode();
+		blocksInSys = volume.getBlocksInSys();
+		groupCount = volume.getGroupCount();
+		fileTypes = (volume.getFeatureIncompat() & 0x2) != 0;
+		
+		if(!volume.isWritable()) System.out.println("The volume is opened only for reading!");
+	}
+	
+	/**
+	* Create an empty regular file.
+	*
+	* @param	path	an absolute path of the new file, its parent directory has to exist
+	* @return	inodeNum	number of the inode of the file or -1 if it cannot be created
+	*/
+	
+	public long create(String path){
+		
+		return make(path, false);
+	}
+	
+	/**
+	* Create an empty directory.
+	*
+	* @param	path	an absolute path of the new directory, its parent directory has to exist
+	* @return	inodeNum	number of the inode of the directory or -1 if it cannot be created
+	*/
+	
+	public long mkdir(String path){
+		
+		return make(path, true);
+	}
+	
+	/**
+	* Find a file or directory, taking the changes which have not been flushed yet into account.
+	*
+	* @param	path	an absolute path
+	* @return	inodeNum	number of the inode or 0 if there is no such file
+	*/
+	
+	public long lookup(String path){
+		
+		long inodeNum = volume.getRootInode();
+		
+		for(String name: path.split("/")){
+			
+			if(name.isEmpty()) continue;
+			
+			if(!isDirectory(inodeNum)) return 0;
+			
+			Long child = entries(inodeNum).get(name);
+			
+			if(child == null) return 0;
+			
+			inodeNum = child;
+		}
+		
+		return inodeNum;
+	}
+	
+	/**
+	* Write bytes to a regular file at an offset, allocating the blocks which are needed. The file grows if necessary.
+	*
+	* @param	inodeNum	number of the inode of the file
+	* @param	offset		an offset in the file where the bytes are written
+	* @param	bytes		bytes to be written
+	* @param	start		first index in the array to be written
+	* @param	length		number of bytes to be written
+	* @return	written		number of bytes written, less than length if the volume is full
+	*/
+	
+	public int write(long inodeNum, long offset, byte[] bytes, int start, int length){
+		
+		int written = 0;
+		long previous = 0;
+		
+		try{
+			
+			while(written < length){
+				
+				long position = offset + written;
+				long logical = position / blockSize;
+				int inBlock = (int) (position % blockSize);
+				int count = Math.min(blockSize - inBlock, length - written);
+				long physical = bmap(inodeNum, logical, 0);
+				byte[] data;
+				
+				if(physical == 0){
+					
+					if(previous == 0 && logical > 0) previous = bmap(inodeNum, logical - 1, 0);
+					
+					physical = bmap(inodeNum, logical, previous != 0 ? previous + 1 : homeBlock(inodeNum));
+					data = buffer.fresh(physical, WriteBuffer.DATA);
+				
+				}else{
+					
+					data = count == blockSize ? buffer.fresh(physical, WriteBuffer.DATA) : buffer.get(physical, WriteBuffer.DATA);
+				}
+				
+				System.arraycopy(bytes, start + written, data, inBlock, count);
+				buffer.dirty(physical);
+				
+				previous = physical;
+				written += count;
+				
+				if(offset + written > getSize(inodeNum)) setSize(inodeNum, offset + written);
+			}
+		
+		}catch(IllegalStateException e){
+			
+			System.out.println(e.getMessage());
+		}
+		
+		if(written > 0) touch(inodeNum, MTIME, CTIME);
+		
+		autoFlush();
+		
+		return written;
+	}
+	
+	/**
+	* Change the size of a regular file. Blocks beyond the new size are freed, a file which grows gets a hole.
+	*
+	* @param	inodeNum	number of the inode of the file
+	* @param	size		the new size in bytes
+	*/
+	
+	public void truncate(long inodeNum, long size){
+		
+		long keep = (size + blockSize - 1) / blockSize;
+		
+		for(int i = 0; i < 12; i++){
+			
+			long pointer = getInt(inodeNum, POINTERS + 4 * i);
+			
+			if(pointer != 0 && i >= keep){
+				
+				freeBlock(inodeNum, pointer);
+				putInt(inodeNum, POINTERS + 4 * i, 0);
+			}
+		}
+		
+		long base = 12;
+		long span = pointers;
+		
+		for(int level = 1; level <= 3; level++){
+			
+			int field = POINTERS + 4 * (11 + level);
+			long pointer = getInt(inodeNum, field);
+			
+			if(pointer != 0 && freeTree(inodeNum, pointer, level, base, keep)){
+				
+				freeBlock(inodeNum, pointer);
+				putInt(inodeNum, field, 0);
+			}
+			
+			base += span;
+			span *= pointers;
+		}
+		
+		//Zero the tail of the last block, so the bytes come back as zeros when the file grows again
+		if(size % blockSize != 0 && size < getSize(inodeNum)){
+			
+			long physical = bmap(inodeNum, size / blockSize, 0);
+			
+			if(physical != 0){
+				
+				byte[] data = buffer.get(physical, WriteBuffer.DATA);
+				
+				Arrays.fill(data, (int) (size % blockSize), blockSize, (byte) 0);
+				buffer.dirty(physical);
+			}
+		}
+		
+		setSize(inodeNum, size);
+		touch(inodeNum, MTIME, CTIME);
+		autoFlush();
+	}
+	
+	/**
+	* Remove a name of a regular file or a symbolic link. The file is freed when its last name is removed.
+	*
+	* @param	path	an absolute path of the file
+	* @return	true if the name has been removed
+	*/
+	
+	public boolean unlink(String path){
+		
+		int slash = path.lastIndexOf('/');
+		long parent = lookup(path.substring(0, slash));
+		String name = path.substring(slash + 1);
+		Long inodeNum = parent == 0 || !isDirectory(parent) ? null : entries(parent).get(name);
+		
+		if(inodeNum == null){
+			
+			System.out.println("File " + path + " doesn't exist!");
+			return false;
+		}
+		
+		if(isDirectory(inodeNum)){
+			
+			System.out.println(path + " is a directory!");
+			return false;
+		}
+		
+		removeEntry(parent, name);
+		touch(parent, MTIME, CTIME);
+		
+		int links = getShort(inodeNum, LINKS) - 1;
+		
+		putShort(inodeNum, LINKS, links);
+		touch(inodeNum, CTIME);
+		
+		if(links == 0){
+			
+			//Fast symbolic links keep the target in the pointers, they own no blocks
+			if(getInt(inodeNum, SECTORS) != 0) truncate(inodeNum, 0);
+			
+			freedInodes.add(inodeNum);
+		}
+		
+		autoFlush();
+		
+		return true;
+	}
+	
+	/**
+	* Write all the buffered changes to the volume in the crash-safe order.
+	*/
+	
+	public void flush(){
+		
+		buffer.flush(WriteBuffer.DATA);
+		volume.force();
+		buffer.flush(WriteBuffer.BITMAP);
+		volume.force();
+		buffer.flush(WriteBuffer.METADATA);
+		volume.force();
+		buffer.flush(WriteBuffer.DIRECTORY);
+		volume.force();
+		
+		//The owners of the freed blocks and inodes are gone from the disk now, so they may be released
+		for(long block: freedBlocks){
+			
+			int group = (int) ((block - firstDataBlock) / blocksInGroup);
+			
+			clearBit(volume.findBlockBitmap(group), (block - firstDataBlock) % blocksInGroup);
+			addDescriptor(group, FREE_BLOCKS, 1);
+			freeBlocksDelta++;
+		}
+		
+		for(long inodeNum: freedInodes){
+			
+			int group = (int) ((inodeNum - 1) / inodesInGroup);
+			
+			putInt(inodeNum, DTIME, now());
+			clearBit(volume.findInodeBitmap(group), (inodeNum - 1) % inodesInGroup);
+			addDescriptor(group, FREE_INODES, 1);
+			freeInodesDelta++;
+		}
+		
+		freedBlocks.clear();
+		freedInodes.clear();
+		
+		buffer.flush(WriteBuffer.BITMAP);
+		buffer.flush(WriteBuffer.METADATA);
+		buffer.flush(WriteBuffer.SUMMARY);
+		
+		ByteBuffer superBlock = ByteBuffer.wrap(volume.getBytes(1024, 1024)).order(ByteOrder.LITTLE_ENDIAN);
+		
+		superBlock.putInt(12, (int) (superBlock.getInt(12) + freeBlocksDelta));
+		superBlock.putInt(16, (int) (superBlock.getInt(16) + freeInodesDelta));
+		superBlock.putInt(48, (int) now());
+		volume.putBytes(1024, superBlock.array(), 0, 1024);
+		volume.force();
+		
+		freeBlocksDelta = 0;
+		freeInodesDelta = 0;
+		buffer.trim();
+	}
+	
+	/*
+	* Create a file or a directory.
+	*/
+	
+	private long make(String path, boolean directory){
+		
+		int slash = path.lastIndexOf('/');
+		long parent = lookup(path.substring(0, slash));
+		String name = path.substring(slash + 1);
+		
+		if(parent == 0 || !isDirectory(parent)){
+			
+			System.out.println("Directory " + path.substring(0, slash) + " doesn't exist!");
+			return -1;
+		}
+		
+		if(name.isEmpty() || name.getBytes(StandardCharsets.UTF_8).length > 255 || entries(parent).containsKey(name)){
+			
+			System.out.println("File " + path + " cannot be created!");
+			return -1;
+		}
+		
+		try{
+			
+			long inodeNum = allocInode(directory ? emptiestGroup() : (int) ((parent - 1) / inodesInGroup), directory);
+			
+			//A new inode starts from zeros, whatever an old deleted file left in it
+			byte[] table = inodeBlock(inodeNum);
+			int offset = inodeOffset(inodeNum);
+			
+			Arrays.fill(table, offset, offset + inodeSize, (byte) 0);
+			putShort(inodeNum, MODE, directory ? DIR_MODE : FILE_MODE);
+			putShort(inodeNum, LINKS, directory ? 2 : 1);
+			
+			if(inodeSize > EXTRA_SIZE) putShort(inodeNum, EXTRA_SIZE, Math.min(32, inodeSize - EXTRA_SIZE));
+			
+			touch(inodeNum, ATIME, CTIME, MTIME);
+			
+			if(directory){
+				
+				long block = bmap(inodeNum, 0, homeBlock(inodeNum));
+				byte[] data = buffer.fresh(block, WriteBuffer.DIRECTORY);
+				
+				putEntry(data, 0, inodeNum, 12, ".", 2);
+				putEntry(data, 12, parent, blockSize - 12, "..", 2);
+				setSize(inodeNum, blockSize);
+				putShort(parent, LINKS, getShort(parent, LINKS) + 1);
+				names.put(inodeNum, new HashMap<String, Long>());
+			}
+			
+			addEntry(parent, name, inodeNum, directory ? 2 : 1);
+			touch(parent, MTIME, CTIME);
+			autoFlush();
+			
+			return inodeNum;
+		
+		}catch(IllegalStateException e){
+			
+			System.out.println(e.getMessage());
+			return -1;
+		}
+	}
+	
+	/*
+	* Find the physical block holding a logical block of a file. If goal is not 0 and the block is missing,
+	* it is allocated as near the goal as possible, together with the indirect blocks leading to it.
+	*/
+	
+	private long bmap(long inodeNum, long logical, long goal){
+		
+		if(logical < 12){
+			
+			long pointer = getInt(inodeNum, POINTERS + 4 * (int) logical);
+			
+			if(pointer == 0 && goal != 0){
+				
+				pointer = allocBlock(inodeNum, goal);
+				putInt(inodeNum, POINTERS + 4 * (int) logical, pointer);
+			}
+			
+			return pointer;
+		}
+		
+		int level = 1;
+		long span = pointers;
+		
+		logical -= 12;
+		
+		while(logical >= span){
+			
+			logical -= span;
+			span *= pointers;
+			level++;
+		}
+		
+		int field = POINTERS + 4 * (11 + level);
+		long pointer = getInt(inodeNum, field);
+		
+		if(pointer == 0){
+			
+			if(goal == 0) return 0;
+			
+			pointer = allocBlock(inodeNum, goal++);
+			buffer.fresh(pointer, WriteBuffer.METADATA);
+			putInt(inodeNum, field, pointer);
+		}
+		
+		for(; level > 0; level--){
+			
+			span /= pointers;
+			
+			int index = (int) (logical / span % pointers);
+			byte[] block = buffer.get(pointer, WriteBuffer.METADATA);
+			ByteBuffer table = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+			long child = table.getInt(4 * index) & 0xFFFFFFFFL;
+			
+			if(child == 0){
+				
+				if(goal == 0) return 0;
+				
+				child = allocBlock(inodeNum, goal++);
+				
+				if(level > 1) buffer.fresh(child, WriteBuffer.METADATA);
+				
+				table.putInt(4 * index, (int) child);
+				buffer.dirty(pointer);
+			}
+			
+			pointer = child;
+		}
+		
+		return pointer;
+	}
+	
+	/*
+	* Free the blocks of an indirect tree which hold logical blocks from keep on.
+	* Returns true if nothing is left in the tree, so the block itself can be freed.
+	*/
+	
+	private boolean freeTree(long inodeNum, long pointer, int level, long base, long keep){
+		
+		long span = 1;
+		
+		for(int i = 1; i < level; i++) span *= pointers;
+		
+		byte[] block = buffer.get(pointer, WriteBuffer.METADATA);
+		ByteBuffer table = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+		boolean empty = true;
+		
+		for(int i = 0; i < pointers; i++){
+			
+			long child = table.getInt(4 * i) & 0xFFFFFFFFL;
+			long childBase = base + i * span;
+			
+			if(child == 0) continue;
+			
+			if(childBase + span <= keep || (level > 1 && !freeTree(inodeNum, child, level - 1, childBase, keep))){
+				
+				empty = false;
+				continue;
+			}
+			
+			freeBlock(inodeNum, child);
+			table.putInt(4 * i, 0);
+			buffer.dirty(pointer);
+		}
+		
+		return empty;
+	}
+	
+	/*
+	* Allocate a free block as near the goal as possible.
+	*/
+	
+	private long allocBlock(long inodeNum, long goal){
+		
+		if(goal < firstDataBlock || goal >= blocksInSys) goal = firstDataBlock;
+		
+		int first = (int) ((goal - firstDataBlock) / blocksInGroup);
+		
+		for(int i = 0; i <= groupCount; i++){
+			
+			int group = (first + i) % groupCount;
+			
+			if(getDescriptor(group, FREE_BLOCKS) == 0) continue;
+			
+			long start = i == 0 ? (goal - firstDataBlock) % blocksInGroup : 0;
+			long count = Math.min(blocksInGroup, blocksInSys - firstDataBlock - group * blocksInGroup);
+			long bit = setFreeBit(volume.findBlockBitmap(group), start, count);
+			
+			if(bit < 0) continue;
+			
+			addDescriptor(group, FREE_BLOCKS, -1);
+			freeBlocksDelta--;
+			putInt(inodeNum, SECTORS, getInt(inodeNum, SECTORS) + blockSize / 512);
+			
+			return firstDataBlock + group * blocksInGroup + bit;
+		}
+		
+		throw new IllegalStateException("No free blocks left!");
+	}
+	
+	/*
+	* Allocate a free inode, starting the search at a group.
+	*/
+	
+	private long allocInode(int first, boolean directory){
+		
+		for(int i = 0; i < groupCount; i++){
+			
+			int group = (first + i) % groupCount;
+			
+			if(getDescriptor(group, FREE_INODES) == 0) continue;
+			
+			//Reserved inodes are never given away, even if they are marked as free
+			long start = Math.max(0, firstInode - 1 - group * inodesInGroup);
+			long bit = start >= inodesInGroup ? -1 : setFreeBit(volume.findInodeBitmap(group), start, inodesInGroup);
+			
+			if(bit < 0) continue;
+			
+			addDescriptor(group, FREE_INODES, -1);
+			
+			if(directory) addDescriptor(group, USED_DIRS, 1);
+			
+			freeInodesDelta--;
+			
+			return group * inodesInGroup + bit + 1;
+		}
+		
+		throw new IllegalStateException("No free inodes left!");
+	}
+	
+	/*
+	* Find the group with the most free inodes, where a new directory is placed.
+	*/
+	
+	private int emptiestGroup(){
+		
+		int best = 0;
+		
+		for(int group = 1; group < groupCount; group++){
+			
+			if(getDescriptor(group, FREE_INODES) > getDescriptor(best, FREE_INODES)) best = group;
+		}
+		
+		return best;
+	}
+	
+	/*
+	* First block after the inode table of the group holding an inode - a goal for the first block of a file.
+	*/
+	
+	private long homeBlock(long inodeNum){
+		
+		int group = (int) ((inodeNum - 1) / inodesInGroup);
+		
+		return volume.findInodePointer(group) + (inodesInGroup * inodeSize + blockSize - 1) / blockSize;
+	}
+	
+	/*
+	* Give a block of a file back - it is only released in the bitmap by the next flush.
+	*/
+	
+	private void freeBlock(long inodeNum, long block){
+		
+		buffer.discard(block);
+		freedBlocks.add(block);
+		putInt(inodeNum, SECTORS, getInt(inodeNum, SECTORS) - blockSize / 512);
+	}
+	
+	/*
+	* Find a clear bit in a bitmap block from start (inclusive) to end (exclusive), set it and return its index or -1.
+	*/
+	
+	private long setFreeBit(long bitmap, long start, long end){
+		
+		byte[] bits = buffer.get(bitmap, WriteBuffer.BITMAP);
+		
+		for(long i = start; i < end; i++){
+			
+			//Skip whole bytes which are full
+			if(i % 8 == 0 && i + 8 <= end && bits[(int) (i / 8)] == (byte) 0xFF){
+				
+				i += 7;
+				continue;
+			}
+			
+			if((bits[(int) (i / 8)] & (1 << (i % 8))) == 0){
+				
+				bits[(int) (i / 8)] |= 1 << (i % 8);
+				buffer.dirty(bitmap);
+				
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/*
+	* Clear a bit in a bitmap block.
+	*/
+	
+	private void clearBit(long bitmap, long index){
+		
+		byte[] bits = buffer.get(bitmap, WriteBuffer.BITMAP);
+		
+		bits[(int) (index / 8)] &= ~(1 << (index % 8));
+		buffer.dirty(bitmap);
+	}
+	
+	/*
+	* Names in a directory, read from its blocks when it is first used and kept up to date afterwards.
+	*/
+	
+	private Map<String, Long> entries(long dirNum){
+		
+		Map<String, Long> entries = names.get(dirNum);
+		
+		if(entries != null) return entries;
+		
+		entries = new HashMap<String, Long>();
+		
+		long blocks = getSize(dirNum) / blockSize;
+		
+		for(long logical = 0; logical < blocks; logical++){
+			
+			long physical = bmap(dirNum, logical, 0);
+			
+			if(physical == 0) continue;
+			
+			ByteBuffer data = ByteBuffer.wrap(buffer.get(physical, WriteBuffer.DIRECTORY)).order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(int position = 0; position + 8 <= blockSize; ){
+				
+				long inodeNum = data.getInt(position) & 0xFFFFFFFFL;
+				int length = data.getShort(position + 4) & 0xFFFF;
+				int nameLength = data.get(position + 6) & 0xFF;
+				
+				if(length < 8) break;
+				
+				String name = new String(data.array(), position + 8, nameLength, StandardCharsets.UTF_8);
+				
+				if(inodeNum != 0 && !name.equals(".") && !name.equals("..")) entries.put(name, inodeNum);
+				
+				position += length;
+			}
+		}
+		
+		names.put(dirNum, entries);
+		
+		return entries;
+	}
+	
+	/*
+	* Add an entry to a directory, splitting an entry with enough spare room or adding a new block.
+	*/
+	
+	private void addEntry(long dirNum, String name, long inodeNum, int type){
+		
+		int needed = (8 + name.getBytes(StandardCharsets.UTF_8).length + 3) & ~3;
+		long blocks = getSize(dirNum) / blockSize;
+		
+		dropIndex(dirNum);
+		entries(dirNum).put(name, inodeNum);
+		
+		//New entries usually go to the end, so the blocks are searched from the last one
+		for(long logical = blocks - 1; logical >= 0; logical--){
+			
+			long physical = bmap(dirNum, logical, 0);
+			
+			if(physical == 0) continue;
+			
+			byte[] data = buffer.get(physical, WriteBuffer.DIRECTORY);
+			ByteBuffer entry = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(int position = 0; position + 8 <= blockSize; ){
+				
+				int length = entry.getShort(position + 4) & 0xFFFF;
+				int used = entry.getInt(position) == 0 ? 0 : (8 + (entry.get(position + 6) & 0xFF) + 3) & ~3;
+				
+				if(length < 8) break;
+				
+				if(length - used >= needed){
+					
+					if(used > 0) entry.putShort(position + 4, (short) used);
+					
+					putEntry(data, position + used, inodeNum, length - used, name, type);
+					buffer.dirty(physical);
+					
+					return;
+				}
+				
+				position += length;
+			}
+		}
+		
+		long physical = bmap(dirNum, blocks, blocks > 0 ? bmap(dirNum, blocks - 1, 0) + 1 : homeBlock(dirNum));
+		
+		putEntry(buffer.fresh(physical, WriteBuffer.DIRECTORY), 0, inodeNum, blockSize, name, type);
+		setSize(dirNum, getSize(dirNum) + blockSize);
+	}
+	
+	/*
+	* Remove an entry from a directory - it is joined with the previous entry, or cleared if it is the first one in a block.
+	*/
+	
+	private void removeEntry(long dirNum, String name){
+		
+		byte[] wanted = name.getBytes(StandardCharsets.UTF_8);
+		long blocks = getSize(dirNum) / blockSize;
+		
+		dropIndex(dirNum);
+		entries(dirNum).remove(name);
+		
+		for(long logical = 0; logical < blocks; logical++){
+			
+			long physical = bmap(dirNum, logical, 0);
+			
+			if(physical == 0) continue;
+			
+			byte[] data = buffer.get(physical, WriteBuffer.DIRECTORY);
+			ByteBuffer entry = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			int previous = -1;
+			
+			for(int position = 0; position + 8 <= blockSize; ){
+				
+				int length = entry.getShort(position + 4) & 0xFFFF;
+				
+				if(length < 8) break;
+				
+				if(entry.getInt(position) != 0 && (entry.get(position + 6) & 0xFF) == wanted.length
+					&& Arrays.equals(data, position + 8, position + 8 + wanted.length, wanted, 0, wanted.length)){
+					
+					if(previous < 0) entry.putInt(position, 0);
+					else entry.putShort(previous + 4, (short) ((entry.getShort(previous + 4) & 0xFFFF) + length));
+					
+					buffer.dirty(physical);
+					
+					return;
+				}
+				
+				previous = position;
+				position += length;
+			}
+		}
+	}
+	
+	/*
+	* The entries of a changed directory are no longer where its hash index says, so the index is dropped, as Linux does
+	* for ext2. The index blocks look like empty entries and the directory is read as a plain one.
+	*/
+	
+	private void dropIndex(long dirNum){
+		
+		long flags = getInt(dirNum, FLAGS);
+		
+		if((flags & INDEX_FL) != 0) putInt(dirNum, FLAGS, flags & ~INDEX_FL);
+	}
+	
+	/*
+	* Write a directory entry into a block.
+	*/
+	
+	private void putEntry(byte[] data, int position, long inodeNum, int length, String name, int type){
+		
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer entry = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		
+		entry.putInt(position, (int) inodeNum);
+		entry.putShort(position + 4, (short) length);
+		entry.put(position + 6, (byte) bytes.length);
+		entry.put(position + 7, (byte) (fileTypes ? type : 0));
+		System.arraycopy(bytes, 0, data, position + 8, bytes.length);
+	}
+	
+	/*
+	* The block of the inode table holding an inode, read through the buffer.
+	*/
+	
+	private byte[] inodeBlock(long inodeNum){
+		
+		return buffer.get(inodeTableBlock(inodeNum), WriteBuffer.METADATA);
+	}
+	
+	private long inodeTableBlock(long inodeNum){
+		
+		int group = (int) ((inodeNum - 1) / inodesInGroup);
+		
+		return volume.findInodePointer(group) + (inodeNum - 1) % inodesInGroup * inodeSize / blockSize;
+	}
+	
+	private int inodeOffset(long inodeNum){
+		
+		return (int) ((inodeNum - 1) % inodesInGroup * inodeSize % blockSize);
+	}
+	
+	private long getInt(long inodeNum, int field){
+		
+		return ByteBuffer.wrap(inodeBlock(inodeNum)).order(ByteOrder.LITTLE_ENDIAN).getInt(inodeOffset(inodeNum) + field) & 0xFFFFFFFFL;
+	}
+	
+	private void putInt(long inodeNum, int field, long value){
+		
+		ByteBuffer.wrap(inodeBlock(inodeNum)).order(ByteOrder.LITTLE_ENDIAN).putInt(inodeOffset(inodeNum) + field, (int) value);
+		buffer.dirty(inodeTableBlock(inodeNum));
+	}
+	
+	private int getShort(long inodeNum, int field){
+		
+		return ByteBuffer.wrap(inodeBlock(inodeNum)).order(ByteOrder.LITTLE_ENDIAN).getShort(inodeOffset(inodeNum) + field) & 0xFFFF;
+	}
+	
+	private void putShort(long inodeNum, int field, int value){
+		
+		ByteBuffer.wrap(inodeBlock(inodeNum)).order(ByteOrder.LITTLE_ENDIAN).putShort(inodeOffset(inodeNum) + field, (short) value);
+		buffer.dirty(inodeTableBlock(inodeNum));
+	}
+	
+	private boolean isDirectory(long inodeNum){
+		
+		return (getShort(inodeNum, MODE) & 0xF000) == 0x4000;
+	}
+	
+	private long getSize(long inodeNum){
+		
+		return getInt(inodeNum, SIZE) | (isDirectory(inodeNum) ? 0 : getInt(inodeNum, SIZE_HIGH) << 32);
+	}
+	
+	private void setSize(long inodeNum, long size){
+		
+		putInt(inodeNum, SIZE, size);
+		
+		if(!isDirectory(inodeNum)) putInt(inodeNum, SIZE_HIGH, size >>> 32);
+	}
+	
+	private void touch(long inodeNum, int... fields){
+		
+		for(int field: fields) putInt(inodeNum, field, now());
+	}
+	
+	private static long now(){
+		
+		return System.currentTimeMillis() / 1000;
+	}
+	
+	/*
+	* Read and change a field of a group descriptor, kept in the buffer as a summary block.
+	*/
+	
+	private int getDescriptor(int group, int field){
+		
+		long position = group * 32L + field;
+		byte[] table = buffer.get(firstDataBlock + 1 + position / blockSize, WriteBuffer.SUMMARY);
+		
+		return ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN).getShort((int) (position % blockSize)) & 0xFFFF;
+	}
+	
+	private void addDescriptor(int group, int field, int delta){
+		
+		long position = group * 32L + field;
+		long block = firstDataBlock + 1 + position / blockSize;
+		
+		ByteBuffer.wrap(buffer.get(block, WriteBuffer.SUMMARY)).order(ByteOrder.LITTLE_ENDIAN)
+			.putShort((int) (position % blockSize), (short) (getDescriptor(group, field) + delta));
+		buffer.dirty(block);
+	}
+	
+	private void autoFlush(){
+		
+		if(buffer.getDirtyBytes() > AUTO_FLUSH) flush();
+	}
+}
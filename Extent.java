@@ -0,0 +1,74 @@
+/**
+* A class which represents a run of blocks of a file which are contiguous both in the file and on the disk.
+* It holds the number of the first logical block (counted from the start of the file),
+* the number of the first physical block in the volume and the number of blocks in the run.
+*
+* @author Michal Radecki
+*/
+
+public class Extent{
+	
+	private final long logicalBlock;
+	private final long physicalBlock;
+	private long length;
+	
+	/**
+	* Create an extent.
+	*
+	* @param logicalBlock	first block of the extent counted from the start of the file
+	* @param physicalBlock	first block of the extent in the volume
+	* @param length			number of blocks in the extent
+	*/
+	
+	public Extent(long logicalBlock, long physicalBlock, long length){
+		
+		this.logicalBlock = logicalBlock;
+		this.physicalBlock = physicalBlock;
+		this.length = length;
+	}
+	
+	/**
+	* @return logicalBlock	first block of the extent counted from the start of the file
+	*/
+	
+	public long getLogicalBlock(){
+		
+		return logicalBlock;
+	}
+	
+	/**
+	* @return physicalBlock	first block of the extent in the volume
+	*/
+	
+	public long getPhysicalBlock(){
+		
+		return physicalBlock;
+	}
+	
+	/**
+	* @return length	number of blocks in the extent
+	*/
+	
+	public long getLength(){
+		
+		return length;
+	}
+	
+	/*
+	* Extend the extent by one block, used while the block map is being resolved.
+	*/
+	
+	void grow(){
+		
+		length++;
+	}
+	
+	/**
+	* @return a string in the format "logical..end -> physical..end (length)"
+	*/
+	
+	public String toString(){
+		
+		return logicalBlock + ".." + (logicalBlock + length - 1) + " -> " + physicalBlock + ".." + (physicalBlock + length - 1) + " (" + length + ")";
+	}
+}
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+* A device which is a plain image file on the host.
+*
+* @author Michal Radecki
+*/
+
+public class FileDevice implements BlockDevice{
+	
+	private RandomAccessFile file;
+	private FileChannel channel;
+	
+	/**
+	* Open an image file.
+	*
+	* @param fileName	path to the file
+	* @param writable	true to open the file for writing as well
+	*/
+	
+	public FileDevice(String fileName, boolean writable) throws IOException{
+		
+		file = new RandomAccessFile(fileName, writable ? "rw" : "r");
+		channel = file.getChannel();
+	}
+	
+	public int read(long position, ByteBuffer buffer) throws IOException{
+		
+		return channel.read(buffer, position);
+	}
+	
+	public int write(long position, ByteBuffer buffer) throws IOException{
+		
+		return channel.write(buffer, position);
+	}
+	
+	public long size() throws IOException{
+		
+		return channel.size();
+	}
+	
+	public void force() throws IOException{
+		
+		channel.force(false);
+	}
+	
+	public void close() throws IOException{
+		
+		file.close();
+	}
+}
@@ -0,0 +1,423 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+* A read-only HTTP server which lets other processes on the same machine use an image without mounting it.
+*
+*	GET/HEAD /files/path	contents of a regular file, a single "Range: bytes=..." is answered with 206 Partial Content
+*							(416 if it starts past the end, the whole file if it is not a valid range)
+*	GET /list/path			entries of a directory as JSON (name, inode, type, size)
+*	GET /stat/path			the inode of a file or directory as JSON
+*
+* Requests are handled by a fixed pool of threads. Every read is positional and short reads go through the block cache
+* of the volume, so any number of requests may read the same image at once. Resolved paths and the extents of the files
+* which have been opened recently are kept, so a range request usually costs just the read of its blocks. Symbolic links
+* are followed, except the last one of a /stat path. The inodes and first blocks of the entries of every directory
+* listed are prefetched in the background (see DirectoryPrefetcher), so the requests which usually follow a listing
+* find them in the cache.
+*
+* The server listens only on the loopback interface.
+*
+* @author Michal Radecki
+*/
+
+public class FileServer{
+	
+	private static final int CHUNK_SIZE = 256 * 1024;		//Bytes sent at once
+	private static final int OPEN_FILES = 4096;				//Files whose extents are kept
+	private static final long CACHE_SIZE = 256L << 20;		//Block cache set when the volume has none
+	
+	private Volume volume;
+	private HttpServer server;
+	private ExecutorService pool;
+	private PathResolver resolver;
+	private Map<Long, Ext2File> files;
+	
+	/**
+	* Create a server for a volume, it is started by start().
+	*
+	* @param volume		filesystem to be served
+	* @param port		port on the loopback interface, 0 to choose a free one
+	* @param threads	number of requests handled at once
+	*/
+	
+	public FileServer(Volume volume, int port, int threads) throws IOException{
+		
+		this.volume = volume;
+		resolver = volume.getResolver();
+		
+		if(volume.getCache() == null) volume.setCache(new BlockCache(CACHE_SIZE));
+		
+		if(volume.getPrefetcher() == null) volume.setPrefetcher(new DirectoryPrefetcher(volume, 1));
+		
+		files = new LinkedHashMap<Long, Ext2File>(16, 0.75f, true){
+			
+			protected boolean removeEldestEntry(Map.Entry<Long, Ext2File> eldest){
+				
+				return size() > OPEN_FILES;
+			}
+		};
+		
+		pool = Executors.newFixedThreadPool(threads);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		server.setExecutor(pool);
+		
+		server.createContext("/files/", new HttpHandler(){
+			
+			public void handle(HttpExchange exchange) throws IOException{
+				
+				try{
+					
+					sendFile(exchange);
+				
+				}finally{
+					
+					exchange.close();
+				}
+			}
+		});
+		
+		server.createContext("/list/", new HttpHandler(){
+			
+			public void handle(HttpExchange exchange) throws IOException{
+				
+				try{
+					
+					sendList(exchange);
+				
+				}finally{
+					
+					exchange.close();
+				}
+			}
+		});
+		
+		server.createContext("/stat/", new HttpHandler(){
+			
+			public void handle(HttpExchange exchange) throws IOException{
+				
+				try{
+					
+					sendStat(exchange);
+				
+				}finally{
+					
+					exchange.close();
+				}
+			}
+		});
+	}
+	
+	/**
+	* Start answering requests.
+	*/
+	
+	public void start(){
+		
+		server.start();
+	}
+	
+	/**
+	* Stop the server, waiting at most a second for the requests being handled.
+	*/
+	
+	public void stop(){
+		
+		server.stop(1);
+		pool.shutdown();
+		
+		if(volume.getPrefetcher() != null) volume.getPrefetcher().shutdown();
+	}
+	
+	/**
+	* @return port	the port the server listens on
+	*/
+	
+	public int getPort(){
+		
+		return server.getAddress().getPort();
+	}
+	
+	/*
+	* Send a file or a range of it.
+	*/
+	
+	private void sendFile(HttpExchange exchange) throws IOException{
+		
+		boolean head = exchange.getRequestMethod().equals("HEAD");
+		
+		if(!head && !exchange.getRequestMethod().equals("GET")){
+			
+			sendError(exchange, 405, "Method not allowed");
+			return;
+		}
+		
+		long inodeNum = resolve(exchange.getRequestURI().getPath().substring("/files".length()), true);
+		Inode inode = inodeNum == 0 ? null : readInode(inodeNum);
+		
+		if(inode == null || !inode.isRegularFile()){
+			
+			sendError(exchange, 404, "No such file");
+			return;
+		}
+		
+		Ext2File file = open(inodeNum);
+		long size = file.size();
+		long start = 0;
+		long end = size;
+		int status = 200;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		exchange.getResponseHeaders().set("Last-Modified", httpDate(inode.getModifiedTime()));
+		
+		//Only a single range is supported, other forms are answered with the whole file as the RFC allows
+		if(range != null && range.startsWith("bytes=") && !range.contains(",")){
+			
+			String[] bounds = range.substring(6).trim().split("-", -1);
+			
+			//A range which is not valid (not two numbers, or the last byte before the first one) is ignored too,
+			//only a valid range starting past the end of the file is not satisfiable
+			if(bounds.length == 2 && bounds[0].matches("[0-9]*") && bounds[1].matches("[0-9]*") && !(bounds[0] + bounds[1]).isEmpty()){
+				
+				try{
+					
+					if(bounds[0].isEmpty()){
+						
+						start = Math.max(0, size - Long.parseLong(bounds[1]));
+						status = 206;
+					}
+					
+					else if(bounds[1].isEmpty() || Long.parseLong(bounds[1]) >= Long.parseLong(bounds[0])){
+						
+						start = Long.parseLong(bounds[0]);
+						end = bounds[1].isEmpty() ? size : Math.min(size, Long.parseLong(bounds[1]) + 1);
+						status = 206;
+					}
+				
+				}catch(NumberFormatException e){
+					
+					//Too large to be a position
+					start = 0;
+					end = size;
+					status = 200;
+				}
+			}
+			
+			if(status == 206 && start >= size){
+				
+				exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+				sendError(exchange, 416, "Range not satisfiable");
+				return;
+			}
+			
+			if(status == 206) exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+		}
+		
+		exchange.getResponseHeaders().set("Content-Length", Long.toString(end - start));
+		
+		if(head || end == start){
+			
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		
+		exchange.sendResponseHeaders(status, end - start);
+		
+		byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, end - start)];
+		
+		try(OutputStream out = exchange.getResponseBody()){
+			
+			for(long position = start; position < end; ){
+				
+				int count = (int) Math.min(chunk.length, end - position);
+				
+				file.readInto(position, chunk, 0, count);
+				out.write(chunk, 0, count);
+				position += count;
+			}
+		}
+	}
+	
+	/*
+	* Send the entries of a directory.
+	*/
+	
+	private void sendList(HttpExchange exchange) throws IOException{
+		
+		long inodeNum = resolve(exchange.getRequestURI().getPath().substring("/list".length()), true);
+		Inode inode = inodeNum == 0 ? null : readInode(inodeNum);
+		
+		if(inode == null || !inode.isDirectory()){
+			
+			sendError(exchange, 404, "No such directory");
+			return;
+		}
+		
+		StringBuilder json = new StringBuilder("[");
+		TreeMap<String, Integer> entries = volume.listDirectory(inodeNum);
+		
+		for(Map.Entry<String, Integer> entry: entries.entrySet()){
+			
+			if(entry.getKey().equals(".") || entry.getKey().equals("..")) continue;
+			
+			Inode child = readInode(entry.getValue());
+			
+			if(json.length() > 1) json.append(",");
+			
+			json.append("\n{\"name\":").append(quote(entry.getKey()));
+			json.append(",\"inode\":").append(entry.getValue());
+			json.append(",\"type\":\"").append(type(child)).append("\"");
+			json.append(",\"size\":").append(child.getFileSize()).append("}");
+		}
+		
+		sendJson(exchange, json.append("\n]\n").toString());
+	}
+	
+	/*
+	* Send the inode of a path.
+	*/
+	
+	private void sendStat(HttpExchange exchange) throws IOException{
+		
+		long inodeNum = resolve(exchange.getRequestURI().getPath().substring("/stat".length()), false);
+		Inode inode = inodeNum == 0 ? null : readInode(inodeNum);
+		
+		if(inode == null){
+			
+			sendError(exchange, 404, "No such file");
+			return;
+		}
+		
+		StringBuilder json = new StringBuilder("{");
+		
+		json.append("\"inode\":").append(inodeNum);
+		json.append(",\"type\":\"").append(type(inode)).append("\"");
+		json.append(",\"mode\":\"").append(Integer.toOctalString(inode.getFileMode())).append("\"");
+		json.append(",\"size\":").append(inode.getFileSize());
+		json.append(",\"links\":").append(inode.getLinks());
+		json.append(",\"uid\":").append(inode.getUserId());
+		json.append(",\"gid\":").append(inode.getGroupId());
+		json.append(",\"blocks\":").append(inode.getBlockCount());
+		json.append(",\"atime\":").append(inode.getAccessTime());
+		json.append(",\"ctime\":").append(inode.getCreationTime());
+		json.append(",\"mtime\":").append(inode.getModifiedTime());
+		json.append("}\n");
+		
+		sendJson(exchange, json.toString());
+	}
+	
+	/*
+	* Find the inode of a path, 0 if there is no such file.
+	*/
+	
+	private long resolve(String path, boolean followLast){
+		
+		try{
+			
+			return resolver.resolve(path, followLast);
+			
+		}catch(java.io.FileNotFoundException e){
+			
+			return 0;
+		}
+	}
+	
+	/*
+	* A file with its extents, kept for the next requests.
+	*/
+	
+	private Ext2File open(long inodeNum){
+		
+		synchronized(files){
+			
+			Ext2File file = files.get(inodeNum);
+			
+			if(file != null) return file;
+		}
+		
+		Ext2File file = new Ext2File(volume, inodeNum);
+		
+		synchronized(files){
+			
+			files.put(inodeNum, file);
+		}
+		
+		return file;
+	}
+	
+	private Inode readInode(long inodeNum){
+		
+		if(inodeNum < 1 || inodeNum > volume.getInodesInSys()) return null;
+		
+		return new Inode(inodeNum, ByteBuffer.wrap(volume.getInodeBytes(inodeNum)).order(ByteOrder.LITTLE_ENDIAN));
+	}
+	
+	private static String type(Inode inode){
+		
+		return inode.isDirectory() ? "directory" : inode.isRegularFile() ? "file" : inode.isSymbolicLink() ? "symlink" : "other";
+	}
+	
+	private static String quote(String text){
+		
+		StringBuilder quoted = new StringBuilder("\"");
+		
+		for(char c: text.toCharArray()){
+			
+			if(c == '"' || c == '\\') quoted.append('\\').append(c);
+			else if(c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+			else quoted.append(c);
+		}
+		
+		return quoted.append("\"").toString();
+	}
+	
+	private static String httpDate(long seconds){
+		
+		return java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME.format(java.time.ZonedDateTime.ofInstant(java.time.Instant.ofEpochSecond(seconds), java.time.ZoneOffset.UTC));
+	}
+	
+	private static void sendJson(HttpExchange exchange, String json) throws IOException{
+		
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		
+		try(OutputStream out = exchange.getResponseBody()){
+			
+			out.write(bytes);
+		}
+	}
+	
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException{
+		
+		byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, exchange.getRequestMethod().equals("HEAD") ? -1 : bytes.length);
+		
+		if(!exchange.getRequestMethod().equals("HEAD")){
+			
+			try(OutputStream out = exchange.getResponseBody()){
+				
+				out.write(bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+* A class which analyses how the files are laid out in a volume.
+* Every inode in use is resolved to its extents (runs of physically contiguous blocks) with a parallel inode scan.
+* A break is counted whenever the next run of a file does not start right after the previous one on the disk.
+* A gap filled only with the file's own indirect blocks is not a break, neither is a hole in a file stored contiguously.
+* Inodes reserved for the filesystem itself (except the root directory) are skipped.
+*
+* The score of a file is the number of breaks divided by the number of places a break could happen (blocks - 1),
+* 0 means the file is contiguous and 1 means that no two blocks of the file are adjacent.
+*
+* @author Michal Radecki
+*/
+
+public class Fragmentation{
+	
+	private Volume volume;
+	private List<FileLayout> files;
+	private long totalBlocks;
+	private long totalBreaks;
+	
+	/**
+	* Create an analyser of a given volume.
+	*
+	* @param volume	filesystem to be analysed
+	*/
+	
+	public Fragmentation(Volume volume){
+		
+		this.volume = volume;
+	}
+	
+	/**
+	* Scan the whole volume and compute a layout of each file. It has to be called before any report is made.
+	*/
+	
+	public void analyze(){
+		
+		final List<FileLayout> found = Collections.synchronizedList(new ArrayList<FileLayout>());
+		
+		new InodeScanner(volume).scan(new InodeScanner.Visitor(){
+			
+			public void visit(Inode inode){
+				
+				if(!inode.isRegularFile() && !inode.isDirectory()) return;
+				if(inode.getInodeNum() < volume.getFirstInode() && inode.getInodeNum() != volume.getRootInode()) return;
+				
+				ArrayList<Long> indirectBlocks = new ArrayList<Long>();
+				ArrayList<Extent> extents = volume.getExtents(inode.getInodeNum(), indirectBlocks);
+				
+				if(!extents.isEmpty()) found.add(new FileLayout(inode.getInodeNum(), inode.getFileSize(), extents, indirectBlocks));
+			}
+		});
+		
+		files = new ArrayList<FileLayout>(found);
+		totalBlocks = 0;
+		totalBreaks = 0;
+		
+		for(FileLayout file: files){
+			
+			totalBlocks += file.getBlocks();
+			totalBreaks += file.getBreaks();
+		}
+	}
+	
+	/**
+	* @return files	layouts of all the files found, in no particular order
+	*/
+	
+	public List<FileLayout> getFiles(){
+		
+		return files;
+	}
+	
+	/**
+	* Returns the most fragmented files, ordered by the number of breaks and then by the score.
+	*
+	* @param count	maximum number of files returned
+	* @return worst	the most fragmented files
+	*/
+	
+	public List<FileLayout> getWorst(int count){
+		
+		List<FileLayout> sorted = new ArrayList<FileLayout>(files);
+		
+		Collections.sort(sorted, new Comparator<FileLayout>(){
+			
+			public int compare(FileLayout a, FileLayout b){
+				
+				if(a.getBreaks() != b.getBreaks()) return Long.compare(b.getBreaks(), a.getBreaks());
+				return Double.compare(b.getScore(), a.getScore());
+			}
+		});
+		
+		return sorted.subList(0, Math.min(count, sorted.size()));
+	}
+	
+	/**
+	* Returns the score of the whole volume - all the breaks divided by all the places a break could happen.
+	*
+	* @return score	a value between 0 (no fragmentation) and 1
+	*/
+	
+	public double getScore(){
+		
+		long possible = totalBlocks - files.size();
+		
+		return possible > 0 ? (double) totalBreaks / possible : 0;
+	}
+	
+	/**
+	* @return number of files which have at least one break
+	*/
+	
+	public long getFragmentedFiles(){
+		
+		long fragmented = 0;
+		
+		for(FileLayout file: files) if(file.getBreaks() > 0) fragmented++;
+		
+		return fragmented;
+	}
+	
+	/**
+	* Prints the extents of every file, one file per line.
+	*/
+	
+	public void printExtents(){
+		
+		for(FileLayout file: files){
+			
+			System.out.println("Inode " + file.getInodeNum() + " size " + file.getSize() + ": " + file.getExtents());
+		}
+	}
+	
+	/**
+	* Prints a summary of the volume and the most fragmented files with their extents.
+	*
+	* @param count	number of the worst files to be displayed
+	*/
+	
+	public void report(int count){
+		
+		System.out.println("Files: " + files.size());
+		System.out.println("Blocks: " + totalBlocks);
+		System.out.println("Fragmented files: " + getFragmentedFiles() + " (" + String.format("%.2f", files.isEmpty() ? 0.0 : 100.0 * getFragmentedFiles() / files.size()) + "%)");
+		System.out.println("Breaks: " + totalBreaks);
+		System.out.println("Volume score: " + String.format("%.4f", getScore()));
+		
+		for(FileLayout file: getWorst(count)){
+			
+			System.out.println("Inode " + file.getInodeNum() + " breaks " + file.getBreaks() + " score " + String.format("%.4f", file.getScore()) + " extents " + file.getExtents());
+		}
+	}
+	
+	/**
+	* Layout of a single file - its extents and fragmentation measures.
+	*/
+	
+	public static class FileLayout{
+		
+		private long inodeNum;
+		private long size;
+		private long blocks;
+		private long breaks;
+		private List<Extent> extents;
+		
+		/**
+		* Create a layout of the file given its extents.
+		*
+		* @param inodeNum	number of the inode of the file
+		* @param size		size of the file in bytes
+		* @param extents	extents of the file ordered by logical block
+		* @param indirectBlocks	indirect blocks of the file, gaps made of them are not counted as breaks
+		*/
+		
+		public FileLayout(long inodeNum, long size, List<Extent> extents, List<Long> indirectBlocks){
+			
+			this.inodeNum = inodeNum;
+			this.size = size;
+			this.extents = extents;
+			
+			Set<Long> metadata = new HashSet<Long>(indirectBlocks);
+			Extent previous = null;
+			
+			for(Extent extent: extents){
+				
+				blocks += extent.getLength();
+				
+				if(previous != null && !adjacent(previous.getPhysicalBlock() + previous.getLength(), extent.getPhysicalBlock(), metadata)) breaks++;
+				previous = extent;
+			}
+		}
+		
+		/*
+		* Checks if the next run starts right after the previous one, skipping the file's own indirect blocks.
+		*/
+		
+		private static boolean adjacent(long end, long start, Set<Long> metadata){
+			
+			while(end < start && metadata.contains(end)) end++;
+			
+			return end == start;
+		}
+		
+		public long getInodeNum(){
+			
+			return inodeNum;
+		}
+		
+		public long getSize(){
+			
+			return size;
+		}
+		
+		public long getBlocks(){
+			
+			return blocks;
+		}
+		
+		public long getBreaks(){
+			
+			return breaks;
+		}
+		
+		public List<Extent> getExtents(){
+			
+			return extents;
+		}
+		
+		/**
+		* @return score	breaks divided by the number of places a break could happen
+		*/
+		
+		public double getScore(){
+			
+			return blocks > 1 ? (double) breaks / (blocks - 1) : 0;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+* A read-only device whose bytes are kept in independently decompressed frames, e.g. a compressed image.
+*
+* A subclass gives the uncompressed offsets of its frames and decompresses a frame when asked. A read decompresses
+* just the frames it touches, and the recently used frames are kept in a cache bounded by the number of bytes they hold,
+* so reading the blocks of a frame one after another costs a single decompression.
+*
+* @author Michal Radecki
+*/
+
+public abstract class FrameDevice implements BlockDevice{
+	
+	private long[] starts;
+	private long cacheBytes;
+	private long cachedBytes;
+	private long decompressed;
+	private LinkedHashMap<Integer, byte[]> frames = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+	
+	/**
+	* @param cacheBytes	memory for the decompressed frames
+	*/
+	
+	protected FrameDevice(long cacheBytes){
+		
+		this.cacheBytes = cacheBytes;
+	}
+	
+	/**
+	* Set the frames of the device.
+	*
+	* @param starts	uncompressed offset of every frame followed by the size of the device
+	*/
+	
+	protected void setFrames(long[] starts){
+		
+		this.starts = starts;
+	}
+	
+	/**
+	* Decompress a frame.
+	*
+	* @param frame	number of the frame
+	* @param length	uncompressed length of the frame
+	* @return bytes	contents of the frame
+	*/
+	
+	protected abstract byte[] decompress(int frame, int length) throws IOException;
+	
+	public int read(long position, ByteBuffer buffer) throws IOException{
+		
+		if(position >= size()) return -1;
+		
+		int count = 0;
+		
+		while(buffer.hasRemaining() && position < size()){
+			
+			int frame = Arrays.binarySearch(starts, position);
+			
+			if(frame < 0) frame = -frame - 2;
+			
+			byte[] bytes = frame(frame);
+			int offset = (int) (position - starts[frame]);
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			
+			buffer.put(bytes, offset, length);
+			position += length;
+			count += length;
+		}
+		
+		return count;
+	}
+	
+	public int write(long position, ByteBuffer buffer) throws IOException{
+		
+		throw new IOException("Compressed images are read-only!");
+	}
+	
+	public long size(){
+		
+		return starts[starts.length - 1];
+	}
+	
+	public void force(){
+	}
+	
+	/**
+	* @return count	number of frames of the device
+	*/
+	
+	public int getFrameCount(){
+		
+		return starts.length - 1;
+	}
+	
+	/**
+	* @return count	number of frames decompressed so far
+	*/
+	
+	public synchronized long getDecompressed(){
+		
+		return decompressed;
+	}
+	
+	/*
+	* A frame from the cache or decompressed. Two threads may decompress the same frame at once, both get the same bytes.
+	*/
+	
+	private byte[] frame(int frame) throws IOException{
+		
+		synchronized(this){
+			
+			byte[] bytes = frames.get(frame);
+			
+			if(bytes != null) return bytes;
+		}
+		
+		byte[] bytes = decompress(frame, (int) (starts[frame + 1] - starts[frame]));
+		
+		synchronized(this){
+			
+			decompressed++;
+			
+			if(frames.put(frame, bytes) == null) cachedBytes += bytes.length;
+			
+			Iterator<byte[]> eldest = frames.values().iterator();
+			
+			while(cachedBytes > cacheBytes && frames.size() > 1){
+				
+				cachedBytes -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+		
+		return bytes;
+	}
+}
@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+* An image compressed with gzip, read without decompressing the whole file.
+*
+* The file is inflated once to find a block of the DEFLATE stream about every megabyte, and the bit offset of each such
+* block together with the 32 KB of data before it are saved in an index next to the image (image.gz.idx), or in
+* a temporary file when that cannot be written. Any frame between two of these points can then be inflated on its own,
+* so a random read inflates at most a frame or two. Plain gzip files work, as do files of several members (e.g. bgzip).
+*
+* @author Michal Radecki
+*/
+
+public class GzipDevice extends FrameDevice{
+	
+	private static final int FRAME_SIZE = 1 << 20;			//Uncompressed bytes between the points of the index
+	private static final long CACHE_SIZE = 64L << 20;		//Memory for the frames by default
+	private static final long MAGIC = 0x5844495a47324531L;	//"1E2GZIDX"
+	private static final int FOOTER = 40;
+	
+	private File image;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private FileChannel index;
+	private long[] bitOffsets;
+	private long[] windows;
+	
+	/**
+	* Open a compressed image, building its index if there is none.
+	*
+	* @param fileName	path to the gzip file
+	*/
+	
+	public GzipDevice(String fileName) throws IOException{
+		
+		this(fileName, CACHE_SIZE);
+	}
+	
+	/**
+	* Open a compressed image, building its index if there is none.
+	*
+	* @param fileName	path to the gzip file
+	* @param cacheBytes	memory for the decompressed frames
+	*/
+	
+	public GzipDevice(String fileName, long cacheBytes) throws IOException{
+		
+		super(cacheBytes);
+		
+		image = new File(fileName);
+		file = new RandomAccessFile(image, "r");
+		channel = file.getChannel();
+		
+		File indexFile = new File(fileName + ".idx");
+		
+		if(indexFile.exists() && load(indexFile)) return;
+		
+		RandomAccessFile out;
+		
+		try{
+			
+			out = new RandomAccessFile(indexFile, "rw");
+		
+		}catch(IOException e){
+			
+			//The directory of the image is read-only, the index is kept for this run only
+			indexFile = File.createTempFile("image", ".idx");
+			indexFile.deleteOnExit();
+			out = new RandomAccessFile(indexFile, "rw");
+		}
+		
+		build(out);
+	}
+	
+	protected byte[] decompress(int frame, int length) throws IOException{
+		
+		byte[] window = new byte[(int) (windows[frame + 1] - windows[frame])];
+		ByteBuffer buffer = ByteBuffer.wrap(window);
+		
+		while(buffer.hasRemaining()){
+			
+			if(index.read(buffer, windows[frame] + buffer.position()) < 0) throw new IOException("The index of the compressed image is truncated!");
+		}
+		
+		Inflate inflate = new Inflate(channel, bitOffsets[frame], window);
+		
+		while(inflate.getLength() - window.length < length && inflate.next());
+		
+		if(inflate.getLength() - window.length < length) throw new IOException("The compressed image is truncated!");
+		
+		byte[] bytes = new byte[length];
+		
+		System.arraycopy(inflate.getOutput(), window.length, bytes, 0, length);
+		
+		return bytes;
+	}
+	
+	public void close() throws IOException{
+		
+		index.close();
+		file.close();
+	}
+	
+	/*
+	* Inflate the whole file and write the index - the windows one after another, the points and a footer:
+	*
+	*	windows
+	*	frames + 1 times: bit offset, uncompressed offset, offset of the window in the index (8 bytes each)
+	*	footer: offset of the points, number of frames, length and time of the image, magic number
+	*/
+	
+	private void build(RandomAccessFile out) throws IOException{
+		
+		index = out.getChannel();
+		
+		ArrayList<long[]> points = new ArrayList<long[]>();
+		Inflate inflate = new Inflate(channel, 0, new byte[0]);
+		long written = 0;
+		long total = 0;
+		long last = 0;
+		
+		if(!inflate.header()) throw new IOException("Not a gzip file!");
+		
+		points.add(new long[] {inflate.getBitOffset(), 0, 0});
+		
+		while(true){
+			
+			int before = inflate.getLength();
+			
+			if(!inflate.next()) break;
+			
+			total += inflate.getLength() - before;
+			
+			if(total - last >= FRAME_SIZE){
+				
+				byte[] window = inflate.getWindow();
+				
+				written += index.write(ByteBuffer.wrap(window), written);
+				points.add(new long[] {inflate.getBitOffset(), total, written - window.length});
+				last = total;
+			}
+			
+			inflate.compact();
+		}
+		
+		//The last point only marks the end of the data
+		if(last == total && points.size() > 1) written = points.remove(points.size() - 1)[2];
+		
+		points.add(new long[] {0, total, written});
+		
+		ByteBuffer table = ByteBuffer.allocate(24 * points.size() + FOOTER).order(ByteOrder.LITTLE_ENDIAN);
+		
+		for(long[] point: points) table.putLong(point[0]).putLong(point[1]).putLong(point[2]);
+		
+		table.putLong(written).putLong(points.size() - 1).putLong(file.length()).putLong(image.lastModified()).putLong(MAGIC);
+		table.flip();
+		
+		while(table.hasRemaining()) index.write(table, written + table.position());
+		
+		index.truncate(written + table.limit());
+		
+		setPoints(points);
+	}
+	
+	/*
+	* Read an index written by build(), false if it does not belong to the image as it is now.
+	*/
+	
+	private boolean load(File indexFile) throws IOException{
+		
+		index = new RandomAccessFile(indexFile, "r").getChannel();
+		
+		long length = index.size();
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER).order(ByteOrder.LITTLE_ENDIAN);
+		
+		if(length < FOOTER || index.read(footer, length - FOOTER) != FOOTER){
+			
+			index.close();
+			return false;
+		}
+		
+		footer.flip();
+		
+		long tableOffset = footer.getLong();
+		long frames = footer.getLong();
+		long imageLength = footer.getLong();
+		long imageTime = footer.getLong();
+		if(footer.getLong() != MAGIC || imageLength != file.length() || imageTime != image.lastModified() || tableOffset + 24 * (frames + 1) + FOOTER != length){
+			
+			index.close();
+			return false;
+		}
+		
+		ByteBuffer table = ByteBuffer.allocate((int) (24 * (frames + 1))).order(ByteOrder.LITTLE_ENDIAN);
+		
+		while(table.hasRemaining()) index.read(table, tableOffset + table.position());
+		
+		table.flip();
+		
+		ArrayList<long[]> points = new ArrayList<long[]>();
+		
+		for(long i = 0; i <= frames; i++) points.add(new long[] {table.getLong(), table.getLong(), table.getLong()});
+		
+		setPoints(points);
+		
+		return true;
+	}
+	
+	private void setPoints(ArrayList<long[]> points){
+		
+		long[] starts = new long[points.size()];
+		
+		bitOffsets = new long[points.size()];
+		windows = new long[points.size()];
+		
+		for(int i = 0; i < points.size(); i++){
+			
+			bitOffsets[i] = points.get(i)[0];
+			starts[i] = points.get(i)[1];
+			windows[i] = points.get(i)[2];
+		}
+		
+		setFrames(starts);
+	}
+}
@@ -1,7 +1,9 @@
 import java.nio.ByteOrder;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
+import java.util.Map;
 import java.util.TreeMap;
 
 /** 
@@ -84,7 +86,10 @@ public class Helper{
 		ByteBuffer bb = ByteBuffer.wrap(bytes);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
 		
-		long bytesLong = 0xFFFFFFFF & (long)bb.getShort();			
+		// Four bytes hold an unsigned int (block pointers, sizes), two an unsigned short (modes, ids)
+		if(bytes.length >= 4) return 0xFFFFFFFFL & bb.getInt();
+		
+		long bytesLong = 0xFFFFL & bb.getShort();			
 		return bytesLong;	
 	}	
 	
@@ -132,12 +137,12 @@ public class Helper{
 	}
 	
 	/**
-	* Iterate over the directory (represented by an array of bytes) and saves each file name and inode in a map
+	* Iterate over the directory (represented by an array of bytes) and saves each file name (UTF-8) and inode in a map
 	* @param bytes		an array of bytes
 	* @return map       map which holds a name and inode of each file in the directory
 	*/
 
-	public static TreeMap toDirectory(byte[] bytes){		
+	public static Map<String, Integer> toDirectory(byte[] bytes){		
 	
 		ByteBuffer bb = ByteBuffer.wrap(bytes);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
@@ -147,20 +152,21 @@ public class Helper{
 		while(bb.remaining() > 0){		
 			
 			int inode = bb.getInt();			
-			short length = bb.getShort();
-			byte nameLength = bb.get();				
+			int length = bb.getShort() & 0xFFFF;
+			int nameLength = bb.get() & 0xFF;				
 			byte fileType = bb.get();			
 		
+			//A corrupted entry would never let us leave the block
+			if(length < 8 || bb.position() - 8 + length > bb.limit()) break;
+		
 			//Set a new position to skip to the next line
 			int newPosition = bb.position() - 8 + length;				
 			
-			char[] charsName = new char[nameLength];			
-			for(int j = 0; j < nameLength; j++){
-
-				charsName[j] = (char)bb.get();		
-			}	
+			//Names are bytes, decoded as a whole so a character may take several of them
+			String name = new String(bytes, bb.position(), Math.min(nameLength, length - 8), StandardCharsets.UTF_8);
 			
-			map.put(String.valueOf(charsName), inode);
+			//Entries with inode 0 are unused space (e.g. left by a deleted file)
+			if(inode != 0) map.put(name, inode);
 			//Skip to the next line
 			bb.position(newPosition);
 		}
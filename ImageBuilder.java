@@ -0,0 +1,1455 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+* A class which builds a new ext2 image from a tree of files without mke2fs, mounting or root privileges.
+*
+* The tree is described with Nodes - directories, regular files (read from a host file or from a Content),
+* symbolic links and hard links - or taken from a host directory by addTree(). The whole image is planned in memory:
+* inodes are numbered in the order of the tree and every directory is followed by its blocks and the data of its files,
+* so each file is contiguous and lies next to its directory, with its indirect blocks in front of the data they map.
+* Then the image is written in a single pass from the first block to the last one: group metadata and generated
+* blocks go through a large buffer, data of host files is copied by the kernel (FileChannel.transferTo) and unused
+* blocks are never written, so the image file is sparse.
+*
+* A file may have holes (addSparseFile()), which get no blocks and no indirect blocks when a whole range they would map
+* is a hole. Files with a fragment size (Node.setFragment()) are laid out in pieces which take turns with the pieces of
+* the other such files of the same directory, for tests of reading files which are not contiguous. With setUUID() and
+* setTime() the same tree always gives the same image, byte for byte.
+*
+* The image uses the layout read by Volume - 1024 bytes blocks and 128 bytes inodes unless other sizes are given,
+* as many blocks in a group as a block bitmap has bits (at most 65528), revision 1 super block with the file type in directory entries
+* and a copy of the super block and group descriptors in every group. Blocks of host files which hold only zeros
+* are left out as holes. It passes e2fsck and can be mounted by Linux.
+*
+* @author Michal Radecki
+*/
+
+public class ImageBuilder{
+	
+	private static final int SUPER_BLOCK_OFFSET = 1024;	//Boot sectors in front of the first super block
+	private static final int MIN_BLOCK_SIZE = 1024;
+	private static final int MAX_BLOCK_SIZE = 65536;
+	private static final int MIN_INODE_SIZE = 128;
+	private static final int MAX_IN_GROUP = 65536;			//The free counts of a group descriptor have 16 bits
+	private static final int ROOT_INODE = 2;
+	private static final int FIRST_INODE = 11;			//lost+found, the first inode which is not reserved
+	private static final int BUFFER_SIZE = 4 << 20;		//Bytes written at once
+	
+	/**
+	* Source of the contents of a regular file which is not read from a host file, e.g. generated data.
+	*/
+	
+	public interface Content{
+		
+		/**
+		* Fill an array with the bytes of the file.
+		*
+		* @param	offset	an offset in the file
+		* @param	bytes	an array to be filled
+		* @param	length	number of bytes to be filled, never beyond the end of the file
+		*/
+		
+		void read(long offset, byte[] bytes, int length) throws IOException;
+	}
+	
+	private final int blockSize;
+	private final int inodeSize;
+	private final int blocksInGroup;		//Bits of a block bitmap, up to the limit of e2fsprogs
+	private final int maxPointers;			//Pointers in an indirect block
+	private final long firstDataBlock;		//Block of the first super block, the blocks in front of it belong to no group
+	
+	private Node root;
+	private List<Node> nodes = new ArrayList<Node>();		//Nodes ordered by their inode numbers, without hard links
+	
+	//The plan of the image
+	private long blocksCount;
+	private int groupCount;
+	private long inodesInGroup;
+	private int descBlocks;
+	private int tableBlocks;
+	private long cursor;
+	private long nextInode;
+	private List<Run> runs;
+	private UUID uuid;
+	private long time;
+	
+	/**
+	* Create a builder with an empty root directory, for an image of 1024 bytes blocks and 128 bytes inodes.
+	*/
+	
+	public ImageBuilder(){
+		
+		this(MIN_BLOCK_SIZE, MIN_INODE_SIZE);
+	}
+	
+	/**
+	* Create a builder with an empty root directory.
+	*
+	* @param	blockSize	size of a block, a power of two from 1024 to 65536 bytes
+	* @param	inodeSize	size of an inode, a power of two from 128 bytes to the size of a block
+	*/
+	
+	public ImageBuilder(int blockSize, int inodeSize){
+		
+		if(Integer.bitCount(blockSize) != 1 || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE){
+			
+			throw new IllegalArgumentException("Bad block size " + blockSize + "!");
+		}
+		
+		if(Integer.bitCount(inodeSize) != 1 || inodeSize < MIN_INODE_SIZE || inodeSize > blockSize){
+			
+			throw new IllegalArgumentException("Bad inode size " + inodeSize + "!");
+		}
+		
+		this.blockSize = blockSize;
+		this.inodeSize = inodeSize;
+		blocksInGroup = Math.min(blockSize * 8, MAX_IN_GROUP - 8);
+		maxPointers = blockSize / 4;
+		firstDataBlock = blockSize == MIN_BLOCK_SIZE ? 1 : 0;
+		
+		root = new Node("", 0x41ED);
+		root.children = new ArrayList<Node>();
+	}
+	
+	/**
+	* @return	root	the root directory of the image
+	*/
+	
+	public Node getRoot(){
+		
+		return root;
+	}
+	
+	/**
+	* Add an empty directory.
+	*
+	* @param	parent	a directory in which the new one is placed
+	* @param	name	name of the new directory
+	* @return	node	the new directory
+	*/
+	
+	public Node addDirectory(Node parent, String name){
+		
+		Node node = add(parent, new Node(name, 0x41ED));
+		
+		node.children = new ArrayList<Node>();
+		
+		return node;
+	}
+	
+	/**
+	* Add a regular file with the contents of a host file.
+	*
+	* @param	parent	a directory in which the file is placed
+	* @param	name	name of the file
+	* @param	source	a host file, read when the image is written
+	* @return	node	the new file
+	*/
+	
+	public Node addFile(Node parent, String name, File source){
+		
+		Node node = add(parent, new Node(name, 0x81A4));
+		
+		node.source = source;
+		node.size = source.length();
+		
+		return node;
+	}
+	
+	/**
+	* Add a regular file with generated contents.
+	*
+	* @param	parent	a directory in which the file is placed
+	* @param	name	name of the file
+	* @param	size	size of the file in bytes
+	* @param	content	source of the bytes of the file, null for a file of zeros
+	* @return	node	the new file
+	*/
+	
+	public Node addFile(Node parent, String name, long size, Content content){
+		
+		Node node = add(parent, new Node(name, 0x81A4));
+		
+		node.content = content;
+		node.size = size;
+		
+		return node;
+	}
+	
+	/**
+	* Add a regular file with holes. Only the blocks holding the given ranges of bytes get blocks, the rest of the file
+	* reads as zeros.
+	*
+	* @param	parent	a directory in which the file is placed
+	* @param	name	name of the file
+	* @param	size	size of the file in bytes
+	* @param	ranges	pairs of the offset and the length of the parts with data, in ascending order
+	* @param	content	source of the bytes of the blocks with data, null for zeros
+	* @return	node	the new file
+	*/
+	
+	public Node addSparseFile(Node parent, String name, long size, long[] ranges, Content content){
+		
+		long blocks = (size + blockSize - 1) / blockSize;
+		
+		if(blocks > 12 + maxPointers + maxPointers * maxPointers + (long) maxPointers * maxPointers * maxPointers || ranges.length % 2 != 0){
+			
+			throw new IllegalArgumentException("Bad size or ranges of " + name + "!");
+		}
+		
+		//The ranges of blocks, those sharing a block are joined
+		long[] data = new long[ranges.length];
+		int count = 0;
+		
+		for(int i = 0; i < ranges.length; i += 2){
+			
+			if(ranges[i + 1] <= 0) continue;
+			
+			long first = ranges[i] / blockSize;
+			long end = (ranges[i] + ranges[i + 1] + blockSize - 1) / blockSize;
+			
+			if(ranges[i] < 0 || end > blocks || count > 0 && first < data[count - 2] + data[count - 1] - 1){
+				
+				throw new IllegalArgumentException("Bad ranges of " + name + "!");
+			}
+			
+			if(count > 0 && first <= data[count - 2] + data[count - 1]){
+				
+				data[count - 1] = Math.max(data[count - 1], end - data[count - 2]);
+				continue;
+			}
+			
+			data[count++] = first;
+			data[count++] = end - first;
+		}
+		
+		Node node = addFile(parent, name, size, content);
+		
+		node.data = Arrays.copyOf(data, count);
+		
+		return node;
+	}
+	
+	/**
+	* Add a symbolic link.
+	*
+	* @param	parent	a directory in which the link is placed
+	* @param	name	name of the link
+	* @param	target	path the link points to, shorter than a block
+	* @return	node	the new link
+	*/
+	
+	public Node addSymlink(Node parent, String name, String target){
+		
+		final byte[] bytes = target.getBytes(StandardCharsets.UTF_8);
+		
+		if(bytes.length >= blockSize) throw new IllegalArgumentException("Target of " + name + " is too long!");
+		
+		Node node = add(parent, new Node(name, 0xA1FF));
+		
+		node.size = bytes.length;
+		node.target = bytes;
+		
+		//Long targets are kept in a data block like the contents of a file
+		if(bytes.length >= 60){
+			
+			node.content = new Content(){
+				
+				public void read(long offset, byte[] buffer, int length){
+					
+					System.arraycopy(bytes, (int) offset, buffer, 0, length);
+				}
+			};
+		}
+		
+		return node;
+	}
+	
+	/**
+	* Add another name of an existing regular file or symbolic link.
+	*
+	* @param	parent	a directory in which the name is placed
+	* @param	name	the new name
+	* @param	target	a file added before
+	* @return	node	the new name
+	*/
+	
+	public Node addLink(Node parent, String name, Node target){
+		
+		if(target.children != null || target.link != null) throw new IllegalArgumentException("Cannot link to " + target.name + "!");
+		
+		Node node = add(parent, new Node(name, target.mode));
+		
+		node.link = target;
+		
+		return node;
+	}
+	
+	/**
+	* Add everything below a host directory, keeping modes, owners, modification times, symbolic and hard links.
+	* Other kinds of files (devices, sockets, pipes) are skipped. Blocks of regular files which hold only zeros,
+	* like the holes of sparse host files, become holes.
+	*
+	* @param	parent	a directory in which the contents are placed
+	* @param	directory	a host directory
+	*/
+	
+	public void addTree(Node parent, File directory) throws IOException{
+		
+		addTree(parent, directory, new HashMap<Object, Node>());
+	}
+	
+	/**
+	* Give the image a fixed UUID instead of a random one.
+	*
+	* @param	uuid	the UUID of the volume
+	*/
+	
+	public void setUUID(UUID uuid){
+		
+		this.uuid = uuid;
+	}
+	
+	/**
+	* Give the image a fixed time of its last write and check instead of the time it is written at, lost+found gets it too
+	* if it is made by the builder.
+	*
+	* @param	time	seconds since the epoch
+	*/
+	
+	public void setTime(long time){
+		
+		this.time = time;
+	}
+	
+	/**
+	* Plan the image and write it.
+	*
+	* @param	image	the image file to be created or replaced
+	* @param	blocks	number of blocks of the image, 0 to fit the files with some room to spare
+	* @param	inodes	number of inodes of the image, 0 to fit the files with some room to spare
+	*/
+	
+	public void write(File image, long blocks, long inodes) throws IOException{
+		
+		plan(blocks, inodes);
+		
+		try(RandomAccessFile file = new RandomAccessFile(image, "rw"); FileChannel channel = file.getChannel()){
+			
+			file.setLength(0);
+			file.setLength(blocksCount * blockSize);
+			new Output(channel).writeImage();
+			channel.force(false);
+		}
+	}
+	
+	/**
+	* A file, directory or link in the tree of the image.
+	*/
+	
+	public static class Node{
+		
+		private String name;
+		private int mode;
+		private long userId;
+		private long groupId;
+		private long time = System.currentTimeMillis() / 1000;
+		
+		private List<Node> children;
+		private File source;
+		private Content content;
+		private long size;
+		private byte[] target;
+		private Node link;
+		private Node parent;
+		private long[] data;				//Pairs of the first logical block and the length of the ranges with data, null if there are no holes
+		private int fragment;
+		
+		//The plan of the node, made only for the nodes with blocks
+		private long inodeNum;
+		private int links = 1;
+		private long dataBlocks;
+		private long sectors;
+		private long[] pointers;
+		private List<Extent> extents;
+		private Map<Long, Long> indirect;
+		
+		private Node(String name, int mode){
+			
+			this.name = name;
+			this.mode = mode;
+		}
+		
+		/**
+		* Change the permissions of the node.
+		*
+		* @param	permissions	the lower 12 bits of the mode, e.g. 0644
+		*/
+		
+		public void setPermissions(int permissions){
+			
+			mode = mode & 0xF000 | permissions & 0xFFF;
+		}
+		
+		/**
+		* Change the owner of the node.
+		*
+		* @param	userId	id of the owner
+		* @param	groupId	id of the group
+		*/
+		
+		public void setOwner(long userId, long groupId){
+			
+			this.userId = userId;
+			this.groupId = groupId;
+		}
+		
+		/**
+		* Change the access, change and modification time of the node.
+		*
+		* @param	time	seconds since the epoch
+		*/
+		
+		public void setTime(long time){
+			
+			this.time = time;
+		}
+		
+		/**
+		* Lay the data of a regular file out in pieces which take turns with the pieces of the other files of its
+		* directory which have a fragment size, instead of in one run.
+		*
+		* @param	blocks	number of blocks in a piece, 0 for a contiguous file
+		*/
+		
+		public void setFragment(int blocks){
+			
+			if(blocks < 0) throw new IllegalArgumentException("Bad fragment size " + blocks + "!");
+			
+			fragment = blocks;
+		}
+		
+		/**
+		* @return	name	name of the node in its directory
+		*/
+		
+		public String getName(){
+			
+			return name;
+		}
+		
+		/**
+		* @return	inodeNum	number of the inode of the node, known after the image has been written
+		*/
+		
+		public long getInodeNum(){
+			
+			return link != null ? link.inodeNum : inodeNum;
+		}
+	}
+	
+	/*
+	* Add a node to a directory.
+	*/
+	
+	private Node add(Node parent, Node node){
+		
+		if(parent.children == null) throw new IllegalArgumentException(parent.name + " is not a directory!");
+		
+		if(node.name.isEmpty() || node.name.contains("/") || node.name.getBytes(StandardCharsets.UTF_8).length > 255){
+			
+			throw new IllegalArgumentException("Invalid name " + node.name + "!");
+		}
+		
+		parent.children.add(node);
+		node.parent = parent;
+		
+		return node;
+	}
+	
+	/*
+	* Add the contents of a host directory, joining files with the same device and inode number into hard links.
+	*/
+	
+	private void addTree(Node parent, File directory, Map<Object, Node> seen) throws IOException{
+		
+		String[] names = directory.list();
+		
+		if(names == null) throw new IOException("Directory " + directory + " cannot be read!");
+		
+		Arrays.sort(names);
+		
+		for(String name: names){
+			
+			File file = new File(directory, name);
+			Path path = file.toPath();
+			Map<String, Object> attributes = null;
+			Node node;
+			
+			try{
+				
+				attributes = Files.readAttributes(path, "unix:mode,uid,gid,ino,dev,nlink", LinkOption.NOFOLLOW_LINKS);
+			
+			}catch(UnsupportedOperationException e){
+				
+				//Not a unix host, the defaults are used
+			}
+			
+			Object key = attributes == null ? null : Arrays.asList(attributes.get("dev"), attributes.get("ino"));
+			
+			if(Files.isSymbolicLink(path)){
+				
+				node = addSymlink(parent, name, Files.readSymbolicLink(path).toString());
+			}
+			
+			else if(file.isDirectory()){
+				
+				node = addDirectory(parent, name);
+				addTree(node, file, seen);
+			}
+			
+			else if(Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)){
+				
+				if(key != null && seen.containsKey(key)){
+					
+					addLink(parent, name, seen.get(key));
+					continue;
+				}
+				
+				node = addFile(parent, name, file);
+				node.data = dataBlocks(file);
+				
+				if(key != null && (Integer) attributes.get("nlink") > 1) seen.put(key, node);
+			}
+			
+			else{
+				
+				System.out.println("Skipping special file " + file);
+				continue;
+			}
+			
+			if(attributes != null){
+				
+				node.setPermissions((Integer) attributes.get("mode"));
+				node.setOwner((Integer) attributes.get("uid") & 0xFFFFFFFFL, (Integer) attributes.get("gid") & 0xFFFFFFFFL);
+			}
+			
+			node.setTime(Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis() / 1000);
+		}
+	}
+	
+	/*
+	* Ranges of blocks of a host file which hold something else than zeros, as pairs of the first block and the number
+	* of blocks, or null if there is no block of zeros. Java cannot ask for the holes of a file (SEEK_DATA, SEEK_HOLE),
+	* so the file is read, which finds blocks written with zeros as well.
+	*/
+	
+	private long[] dataBlocks(File file) throws IOException{
+		
+		long[] data = new long[16];
+		int count = 0;
+		boolean holes = false;
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		
+		try(FileChannel channel = FileChannel.open(file.toPath())){
+			
+			long size = channel.size();
+			
+			for(long block = 0; block * blockSize < size; ){
+				
+				long position = block * blockSize;
+				
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), size - position));
+				
+				while(buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0);
+				
+				int end = buffer.position();
+				
+				for(int offset = 0; offset < end; offset += blockSize, block++){
+					
+					boolean zeros = true;
+					
+					for(int i = offset; i < Math.min(end, offset + blockSize) && zeros; i++) zeros = buffer.get(i) == 0;
+					
+					if(zeros){
+						
+						holes = true;
+					}
+					
+					else if(count > 0 && data[count - 2] + data[count - 1] == block){
+						
+						data[count - 1]++;
+					}
+					
+					else{
+						
+						if(count == data.length) data = Arrays.copyOf(data, count * 2);
+						
+						data[count++] = block;
+						data[count++] = 1;
+					}
+				}
+				
+				//The file became shorter
+				if(buffer.hasRemaining()) break;
+			}
+		}
+		
+		return holes ? Arrays.copyOf(data, count) : null;
+	}
+	
+	/*
+	* Decide the size of the image and the place of every inode and block.
+	*/
+	
+	private void plan(long blocks, long inodes) throws IOException{
+		
+		Node lostFound = null;
+		
+		for(Node child: root.children) if(child.name.equals("lost+found")) lostFound = child;
+		
+		if(lostFound == null){
+			
+			lostFound = addDirectory(root, "lost+found");
+			
+			if(time != 0) lostFound.setTime(time);
+		}
+		
+		lostFound.setPermissions(0700);
+		
+		//Count the inodes and blocks
+		nodes.clear();
+		nextInode = FIRST_INODE;
+		root.inodeNum = ROOT_INODE;
+		number(lostFound);
+		number(root);
+		
+		for(Node node: nodes) node.links = node.children == null ? 1 : 2;
+		
+		countLinks(root);
+		
+		long needed = 0;
+		
+		for(Node node: nodes) needed += node.dataBlocks + (node.data == null ? indirectBlocks(node.dataBlocks) : indirectBlocks(node.data));
+		
+		if(inodes == 0) inodes = FIRST_INODE - 1 + nodes.size() + nodes.size() / 10 + 64;
+		
+		//Find the smallest number of groups which holds everything
+		for(groupCount = 1; ; groupCount++){
+			
+			//A multiple of 8 inodes which fills whole blocks of the inode table
+			int step = Math.max(8, blockSize / inodeSize);
+			
+			inodesInGroup = Math.min(Math.min(blocksInGroup, MAX_IN_GROUP - step), ((inodes + groupCount - 1) / groupCount + step - 1) / step * step);
+			descBlocks = (groupCount * 32 + blockSize - 1) / blockSize;
+			tableBlocks = (int) (inodesInGroup * inodeSize / blockSize);
+			
+			long overhead = 1 + descBlocks + 2 + tableBlocks;
+			long spare = blocks == 0 ? needed / 10 + 256 : 0;
+			long room = blocks == 0 ? groupCount * (blocksInGroup - overhead) : Math.min(blocks - firstDataBlock, groupCount * (long) blocksInGroup) - groupCount * overhead;
+			boolean enough = room >= needed + spare && inodesInGroup * groupCount >= FIRST_INODE - 1 + nodes.size();
+			
+			if(enough && blocks == 0){
+				
+				//The last group is only as large as needed, with groups added for the inodes it may hold nothing but its metadata
+				blocksCount = firstDataBlock + (groupCount - 1) * (long) blocksInGroup + Math.min(blocksInGroup, Math.max(overhead + 1, blocksInGroup - (room - needed - spare)));
+				break;
+			}
+			
+			if(blocks != 0 && (long) groupCount * blocksInGroup >= blocks - firstDataBlock){
+				
+				if(!enough) throw new IOException("The image is too small - " + needed + " data blocks are needed!");
+				
+				//A last group too small for its own metadata is left out
+				blocksCount = blocks - firstDataBlock - (groupCount - 1) * (long) blocksInGroup <= overhead ? firstDataBlock + (groupCount - 1) * (long) blocksInGroup : blocks;
+				
+				if(blocksCount < blocks) groupCount--;
+				
+				break;
+			}
+		}
+		
+		//Give out the blocks in the order of the tree
+		runs = new ArrayList<Run>();
+		cursor = dataStart(0);
+		
+		place(lostFound);
+		place(root);
+		
+		if(cursor > blocksCount) throw new IOException("The image is too small - " + needed + " data blocks are needed!");
+	}
+	
+	/*
+	* Number the inodes of a tree in its order and count the blocks of its nodes.
+	*/
+	
+	private void number(Node node){
+		
+		if(node.link != null) return;
+		
+		node.inodeNum = node == root ? ROOT_INODE : nextInode++;
+		node.sectors = 0;
+		node.pointers = null;
+		node.extents = null;
+		node.indirect = null;
+		nodes.add(node);
+		
+		if(node.children == null){
+			
+			node.dataBlocks = node.target != null && node.target.length < 60 ? 0 : (node.size + blockSize - 1) / blockSize;
+			
+			if(node.data != null){
+				
+				node.dataBlocks = 0;
+				
+				for(int i = 1; i < node.data.length; i += 2) node.dataBlocks += node.data[i];
+			}
+			
+			return;
+		}
+		
+		node.dataBlocks = directoryBlocks(node, null);
+		node.size = node.dataBlocks * blockSize;
+		
+		for(Node child: node.children){
+			
+			if(!(node == root && child.name.equals("lost+found"))) number(child);
+		}
+	}
+	
+	/*
+	* Count the links of the nodes of a directory - names of files and ".." entries of subdirectories.
+	*/
+	
+	private void countLinks(Node directory){
+		
+		for(Node child: directory.children){
+			
+			if(child.link != null) child.link.links++;
+			
+			else if(child.children != null){
+				
+				directory.links++;
+				countLinks(child);
+			}
+		}
+	}
+	
+	/*
+	* Number of indirect blocks needed to map the data blocks of a file.
+	*/
+	
+	private long indirectBlocks(long blocks){
+		
+		long count = 0;
+		
+		blocks -= 12;
+		
+		if(blocks > 0) count++;
+		
+		blocks -= maxPointers;
+		
+		if(blocks > 0) count += 1 + (Math.min(blocks, maxPointers * maxPointers) + maxPointers - 1) / maxPointers;
+		
+		blocks -= maxPointers * maxPointers;
+		
+		if(blocks > 0) count += 1 + (blocks + maxPointers * maxPointers - 1) / (maxPointers * maxPointers) + (blocks + maxPointers - 1) / maxPointers;
+		
+		return count;
+	}
+	
+	/*
+	* Number of indirect blocks needed to map ranges of blocks of a file with holes.
+	*/
+	
+	private long indirectBlocks(long[] data){
+		
+		long count = 0;
+		long[] last = { -1, -1, -1, -1 };
+		long[] bases = new long[4];
+		
+		for(int i = 0; i < data.length; i += 2){
+			
+			for(long logical = Math.max(12, data[i]); logical < data[i] + data[i + 1]; logical++){
+				
+				indirectBases(logical, bases);
+				
+				for(int level = 1; level <= 3; level++){
+					
+					if(bases[level] >= 0 && bases[level] != last[level]){
+						
+						last[level] = bases[level];
+						count++;
+					}
+				}
+			}
+		}
+		
+		return count;
+	}
+	
+	/*
+	* First blocks mapped by the indirect blocks of each level on the way to a logical block, -1 for the levels not used.
+	*/
+	
+	private void indirectBases(long logical, long[] bases){
+		
+		long index = logical - 12;
+		long start = 12 + maxPointers + maxPointers * maxPointers;
+		
+		Arrays.fill(bases, -1);
+		
+		if(index < 0) return;
+		
+		if(index < maxPointers){
+			
+			bases[1] = 12;
+		}
+		
+		else if((index -= maxPointers) < maxPointers * maxPointers){
+			
+			bases[2] = 12 + maxPointers;
+			bases[1] = 12 + maxPointers + index / maxPointers * maxPointers;
+		}
+		
+		else{
+			
+			index -= maxPointers * maxPointers;
+			bases[3] = start;
+			bases[2] = start + index / (maxPointers * maxPointers) * (maxPointers * maxPointers);
+			bases[1] = start + index / maxPointers * maxPointers;
+		}
+	}
+	
+	/*
+	* Give blocks to a node, then to the data of the files in it, then to its subdirectories.
+	*/
+	
+	private void place(Node node){
+		
+		placeData(new Placement(node), Long.MAX_VALUE);
+		
+		if(node.children == null) return;
+		
+		List<Placement> fragmented = new ArrayList<Placement>();
+		
+		for(Node child: node.children){
+			
+			if(child.children != null || child.link != null) continue;
+			
+			if(child.fragment > 0) fragmented.add(new Placement(child));
+			else placeData(new Placement(child), Long.MAX_VALUE);
+		}
+		
+		//The fragmented files take turns, a piece each
+		while(!fragmented.isEmpty()){
+			
+			for(Iterator<Placement> i = fragmented.iterator(); i.hasNext(); ){
+				
+				Placement placement = i.next();
+				
+				if(placeData(placement, placement.node.fragment)) i.remove();
+			}
+		}
+		
+		for(Node child: node.children){
+			
+			if(child.children != null && !(child.name.equals("lost+found") && node == root)) place(child);
+		}
+	}
+	
+	/*
+	* Give blocks to the next count data blocks of a node, with every indirect block placed before the first block it maps.
+	* Returns true when all of them have blocks.
+	*/
+	
+	private boolean placeData(Placement placement, long count){
+		
+		Node node = placement.node;
+		long[] ranges = placement.ranges;
+		long[] bases = new long[4];
+		
+		for(; count > 0 && placement.range < ranges.length; count--){
+			
+			long logical = placement.logical;
+			
+			indirectBases(logical, bases);
+			
+			for(int level = 3; level >= 1; level--){
+				
+				if(bases[level] >= 0 && bases[level] != placement.bases[level]){
+					
+					placement.bases[level] = bases[level];
+					placeIndirect(node, level, bases[level]);
+				}
+			}
+			
+			long physical = allocate(node);
+			
+			if(node.pointers == null) node.pointers = new long[15];
+			
+			if(node.extents == null) node.extents = new ArrayList<Extent>();
+			
+			if(logical < 12) node.pointers[(int) logical] = physical;
+			
+			int last = node.extents.size() - 1;
+			Extent extent = last >= 0 ? node.extents.get(last) : null;
+			
+			if(extent != null && extent.getPhysicalBlock() + extent.getLength() == physical && extent.getLogicalBlock() + extent.getLength() == logical){
+				
+				extent.grow();
+			}
+			
+			else node.extents.add(new Extent(logical, physical, 1));
+			
+			addRun(Run.DATA, node, logical, physical, 0);
+			
+			if(++placement.logical == ranges[placement.range] + ranges[placement.range + 1] && (placement.range += 2) < ranges.length){
+				
+				placement.logical = ranges[placement.range];
+			}
+		}
+		
+		return placement.range >= ranges.length;
+	}
+	
+	/*
+	* Give a block to an indirect block of a level which maps the blocks from base on.
+	*/
+	
+	private void placeIndirect(Node node, int level, long base){
+		
+		long physical = allocate(node);
+		
+		if(node.pointers == null) node.pointers = new long[15];
+		
+		if(node.indirect == null) node.indirect = new HashMap<Long, Long>();
+		
+		//The first indirect block of each level hangs from the inode
+		if(base == 12 + (level > 1 ? maxPointers : 0) + (level > 2 ? maxPointers * maxPointers : 0)) node.pointers[11 + level] = physical;
+		
+		node.indirect.put(base << 2 | level, physical);
+		addRun(Run.INDIRECT, node, base, physical, level);
+	}
+	
+	/*
+	* Take the next free block, skipping the metadata at the start of every group.
+	*/
+	
+	private long allocate(Node node){
+		
+		int group = (int) ((cursor - firstDataBlock) / blocksInGroup);
+		
+		if(cursor < dataStart(group)) cursor = dataStart(group);
+		
+		node.sectors += blockSize / 512;
+		
+		return cursor++;
+	}
+	
+	/*
+	* First block of a group after its super block, group descriptors, bitmaps and inode table.
+	*/
+	
+	private long dataStart(int group){
+		
+		return firstDataBlock + group * (long) blocksInGroup + 1 + descBlocks + 2 + tableBlocks;
+	}
+	
+	/*
+	* Record a block in the list of the blocks to be written, joining it with the previous run if possible.
+	*/
+	
+	private void addRun(int kind, Node node, long index, long physical, int level){
+		
+		Run last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+		
+		if(kind == Run.DATA && last != null && last.kind == kind && last.node == node && last.physical + last.length == physical && last.index + last.length == index){
+			
+			last.length++;
+			return;
+		}
+		
+		runs.add(new Run(kind, node, index, physical, level));
+	}
+	
+	/*
+	* Pack the entries of a directory into blocks. Returns the number of blocks, and fills the blocks if an array is given.
+	*/
+	
+	private long directoryBlocks(Node node, byte[] blocks){
+		
+		long count = 1;
+		int position = 0;
+		int previous = -1;
+		List<Node> entries = new ArrayList<Node>();
+		
+		entries.add(null);		//"."
+		entries.add(null);		//".."
+		entries.addAll(node.children);
+		
+		ByteBuffer buffer = blocks == null ? null : ByteBuffer.wrap(blocks).order(ByteOrder.LITTLE_ENDIAN);
+		
+		for(int i = 0; i < entries.size(); i++){
+			
+			Node entry = entries.get(i);
+			byte[] name = i == 0 ? new byte[]{'.'} : i == 1 ? new byte[]{'.', '.'} : entry.name.getBytes(StandardCharsets.UTF_8);
+			int length = (8 + name.length + 3) & ~3;
+			
+			if(position + length > blockSize){
+				
+				if(buffer != null) buffer.putShort((int) ((count - 1) * blockSize) + previous + 4, (short) (blockSize - previous));
+				
+				count++;
+				position = 0;
+			}
+			
+			if(buffer != null){
+				
+				int offset = (int) ((count - 1) * blockSize) + position;
+				long inodeNum = i == 0 ? node.inodeNum : i == 1 ? parentOf(node) : entry.getInodeNum();
+				int type = i < 2 ? 2 : entry.children != null ? 2 : (entry.mode & 0xF000) == 0xA000 ? 7 : 1;
+				
+				buffer.putInt(offset, (int) inodeNum);
+				buffer.putShort(offset + 4, (short) length);
+				buffer.put(offset + 6, (byte) name.length);
+				buffer.put(offset + 7, (byte) type);
+				System.arraycopy(name, 0, blocks, offset + 8, name.length);
+			}
+			
+			previous = position;
+			position += length;
+		}
+		
+		if(buffer != null) buffer.putShort((int) ((count - 1) * blockSize) + previous + 4, (short) (blockSize - previous));
+		
+		return count;
+	}
+	
+	/*
+	* Inode of the parent of a directory.
+	*/
+	
+	private long parentOf(Node directory){
+		
+		return directory.parent == null ? ROOT_INODE : directory.parent.inodeNum;
+	}
+	
+	/*
+	* Physical block holding a logical block of a file.
+	*/
+	
+	private static long physicalOf(Node node, long logical){
+		
+		if(node.extents == null) return 0;
+		
+		int low = 0;
+		int high = node.extents.size() - 1;
+		
+		while(low <= high){
+			
+			int middle = (low + high) >>> 1;
+			Extent extent = node.extents.get(middle);
+			
+			if(logical < extent.getLogicalBlock()) high = middle - 1;
+			else if(logical >= extent.getLogicalBlock() + extent.getLength()) low = middle + 1;
+			else return extent.getPhysicalBlock() + logical - extent.getLogicalBlock();
+		}
+		
+		return 0;
+	}
+	
+	/*
+	* The progress of giving blocks to the data of a node - the ranges of its logical blocks with data, the next block
+	* and the indirect blocks placed last.
+	*/
+	
+	private static class Placement{
+		
+		private Node node;
+		private long[] ranges;
+		private int range;
+		private long logical;
+		private long[] bases = { -1, -1, -1, -1 };
+		
+		private Placement(Node node){
+			
+			this.node = node;
+			ranges = node.data != null ? node.data : node.dataBlocks > 0 ? new long[]{ 0, node.dataBlocks } : new long[0];
+			logical = ranges.length > 0 ? ranges[0] : 0;
+		}
+	}
+	
+	/*
+	* A run of blocks of the image, in the order they are written.
+	*/
+	
+	private static class Run{
+		
+		private static final int DATA = 0;			//Blocks of a file or directory
+		private static final int INDIRECT = 1;		//An indirect block
+		
+		private int kind;
+		private Node node;
+		private long index;			//First logical block, or the first block mapped by an indirect block
+		private long physical;
+		private long length = 1;
+		private int level;
+		
+		private Run(int kind, Node node, long index, long physical, int level){
+			
+			this.kind = kind;
+			this.node = node;
+			this.index = index;
+			this.physical = physical;
+			this.level = level;
+		}
+	}
+	
+	/*
+	* Writer of the planned image, going once from its first block to its last one.
+	*/
+	
+	private class Output{
+		
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private long bufferStart;
+		private Node[] inodes = new Node[(int) nextInode];
+		private long[] usedBlocks = new long[groupCount];
+		private long[] usedInodes = new long[groupCount];
+		private long[] usedDirs = new long[groupCount];
+		private long freeBlocks;
+		private long freeInodes;
+		private byte[] uuid = new byte[16];
+		private long now = time != 0 ? time : System.currentTimeMillis() / 1000;
+		private Node directory;				//The directory whose blocks are in directoryBytes
+		private byte[] directoryBytes;
+		
+		private Output(FileChannel channel){
+			
+			this.channel = channel;
+			
+			UUID id = ImageBuilder.this.uuid != null ? ImageBuilder.this.uuid : UUID.randomUUID();
+			
+			ByteBuffer.wrap(uuid).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits());
+			
+			for(Node node: nodes){
+				
+				inodes[(int) node.inodeNum] = node;
+				
+				if(node.children != null) usedDirs[(int) ((node.inodeNum - 1) / inodesInGroup)]++;
+			}
+			
+			for(int group = 0; group < groupCount; group++){
+				
+				long start = firstDataBlock + group * (long) blocksInGroup;
+				
+				usedBlocks[group] = dataStart(group) - start + Math.max(0, Math.min(cursor, groupEnd(group)) - dataStart(group));
+				usedInodes[group] = Math.max(0, Math.min(inodesInGroup, nextInode - 1 - group * inodesInGroup));
+				freeBlocks += groupEnd(group) - start - usedBlocks[group];
+				freeInodes += inodesInGroup - usedInodes[group];
+			}
+		}
+		
+		/*
+		* Write the metadata of every group followed by the blocks planned in it.
+		*/
+		
+		private void writeImage() throws IOException{
+			
+			byte[] descriptors = descriptors();
+			int next = 0;
+			
+			for(int group = 0; group < groupCount; group++){
+				
+				long start = firstDataBlock + group * (long) blocksInGroup;
+				
+				put(start, superBlock(group));
+				put(start + 1, descriptors);
+				put(start + 1 + descBlocks, blockBitmap(group));
+				put(start + 2 + descBlocks, inodeBitmap(group));
+				put(start + 3 + descBlocks, inodeTable(group));
+				
+				for(; next < runs.size() && runs.get(next).physical < groupEnd(group); next++) writeRun(runs.get(next));
+			}
+			
+			flush();
+		}
+		
+		private void writeRun(Run run) throws IOException{
+			
+			Node node = run.node;
+			
+			if(run.kind == Run.INDIRECT){
+				
+				put(run.physical, indirectBlock(node, run.level, run.index));
+			}
+			
+			else if(node.children != null){
+				
+				if(directory != node){
+					
+					directory = node;
+					directoryBytes = new byte[(int) (node.dataBlocks * blockSize)];
+					directoryBlocks(node, directoryBytes);
+				}
+				
+				put(run.physical, Arrays.copyOfRange(directoryBytes, (int) (run.index * blockSize), (int) ((run.index + run.length) * blockSize)));
+			}
+			
+			else if(node.source != null){
+				
+				//The kernel copies the file straight into the image
+				flush();
+				
+				long length = Math.min(run.length * blockSize, node.size - run.index * blockSize);
+				
+				try(FileChannel source = FileChannel.open(node.source.toPath())){
+					
+					channel.position(run.physical * blockSize);
+					
+					for(long done = 0, count; done < length; done += count){
+						
+						count = source.transferTo(run.index * blockSize + done, length - done, channel);
+						
+						if(count <= 0) break;
+					}
+				}
+			}
+			
+			else if(node.content != null){
+				
+				for(long block = 0; block < run.length; ){
+					
+					long count = Math.min(run.length - block, BUFFER_SIZE / blockSize);
+					long offset = (run.index + block) * blockSize;
+					byte[] bytes = new byte[(int) (count * blockSize)];
+					
+					node.content.read(offset, bytes, (int) Math.min(bytes.length, node.size - offset));
+					put(run.physical + block, bytes);
+					block += count;
+				}
+			}
+		}
+		
+		/*
+		* Add bytes to be written at a block, writing the buffer first if they do not follow it.
+		*/
+		
+		private void put(long block, byte[] bytes) throws IOException{
+			
+			long position = block * blockSize;
+			
+			if(position != bufferStart + buffer.position() || bytes.length > buffer.remaining()){
+				
+				flush();
+				bufferStart = position;
+			}
+			
+			if(bytes.length > buffer.capacity()){
+				
+				ByteBuffer direct = ByteBuffer.wrap(bytes);
+				
+				while(direct.hasRemaining()) channel.write(direct, position + direct.position());
+				
+				return;
+			}
+			
+			buffer.put(bytes);
+		}
+		
+		private void flush() throws IOException{
+			
+			buffer.flip();
+			
+			while(buffer.hasRemaining()) channel.write(buffer, bufferStart + buffer.position());
+			
+			bufferStart += buffer.limit();
+			buffer.clear();
+		}
+		
+		private long groupEnd(int group){
+			
+			return Math.min(blocksCount, firstDataBlock + (group + 1) * (long) blocksInGroup);
+		}
+		
+		/*
+		* The first block of a group with its copy of the super block. The first super block is always at byte 1024,
+		* so with larger blocks it is in the middle of block 0, after the boot sectors which are left zero.
+		*/
+		
+		private byte[] superBlock(int group){
+			
+			int offset = group == 0 && firstDataBlock == 0 ? SUPER_BLOCK_OFFSET : 0;
+			ByteBuffer block = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+			int log = Integer.numberOfTrailingZeros(blockSize / MIN_BLOCK_SIZE);
+			
+			//The slice writes into the array of the whole block
+			block.position(offset);
+			block = block.slice().order(ByteOrder.LITTLE_ENDIAN);
+			
+			block.putInt(0, (int) (inodesInGroup * groupCount));
+			block.putInt(4, (int) blocksCount);
+			block.putInt(12, (int) freeBlocks);
+			block.putInt(16, (int) freeInodes);
+			block.putInt(20, (int) firstDataBlock);
+			block.putInt(24, log);						//Block size
+			block.putInt(28, log);						//Fragment size
+			block.putInt(32, blocksInGroup);
+			block.putInt(36, blocksInGroup);			//Fragments in a group
+			block.putInt(40, (int) inodesInGroup);
+			block.putInt(48, (int) now);				//Write time
+			block.putShort(54, (short) -1);				//No checks forced by the mount count
+			block.putShort(56, (short) 0xEF53);
+			block.putShort(58, (short) 1);				//Clean
+			block.putShort(60, (short) 1);				//Continue on errors
+			block.putInt(64, (int) now);				//Last check
+			block.putInt(76, 1);						//Revision
+			block.putInt(84, FIRST_INODE);
+			block.putShort(88, (short) inodeSize);
+			block.putShort(90, (short) group);
+			block.putInt(96, 0x2);						//Directory entries hold file types
+			block.putInt(100, 0x2);						//Large files
+			block.position(104);
+			block.put(uuid);
+			
+			return block.array();
+		}
+		
+		private byte[] descriptors(){
+			
+			ByteBuffer table = ByteBuffer.allocate(descBlocks * blockSize).order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(int group = 0; group < groupCount; group++){
+				
+				long start = firstDataBlock + group * (long) blocksInGroup;
+				int offset = group * 32;
+				
+				table.putInt(offset, (int) (start + 1 + descBlocks));
+				table.putInt(offset + 4, (int) (start + 2 + descBlocks));
+				table.putInt(offset + 8, (int) (start + 3 + descBlocks));
+				table.putShort(offset + 12, (short) (groupEnd(group) - start - usedBlocks[group]));
+				table.putShort(offset + 14, (short) (inodesInGroup - usedInodes[group]));
+				table.putShort(offset + 16, (short) usedDirs[group]);
+			}
+			
+			return table.array();
+		}
+		
+		/*
+		* Blocks in use are always the metadata and a prefix of the data area, blocks beyond the end of the volume are set too.
+		*/
+		
+		private byte[] blockBitmap(int group){
+			
+			long start = firstDataBlock + group * (long) blocksInGroup;
+			
+			return bitmap(usedBlocks[group], groupEnd(group) - start);
+		}
+		
+		private byte[] inodeBitmap(int group){
+			
+			return bitmap(usedInodes[group], inodesInGroup);
+		}
+		
+		/*
+		* A bitmap with the first used bits set, and the bits from count to the end of the block set as well.
+		*/
+		
+		private byte[] bitmap(long used, long count){
+			
+			byte[] bits = new byte[blockSize];
+			
+			for(long i = 0; i < blockSize * 8; i++){
+				
+				if(i < used || i >= count) bits[(int) (i / 8)] |= 1 << (i % 8);
+			}
+			
+			return bits;
+		}
+		
+		private byte[] inodeTable(int group){
+			
+			ByteBuffer table = ByteBuffer.allocate(tableBlocks * blockSize).order(ByteOrder.LITTLE_ENDIAN);
+			long first = group * inodesInGroup + 1;
+			
+			for(long inodeNum = first; inodeNum < first + usedInodes[group]; inodeNum++){
+				
+				Node node = inodes[(int) inodeNum];
+				
+				if(node == null) continue;
+				
+				int offset = (int) ((inodeNum - first) * inodeSize);
+				
+				table.putShort(offset, (short) node.mode);
+				table.putShort(offset + 2, (short) node.userId);
+				table.putInt(offset + 4, (int) node.size);
+				table.putInt(offset + 8, (int) node.time);
+				table.putInt(offset + 12, (int) node.time);
+				table.putInt(offset + 16, (int) node.time);
+				table.putShort(offset + 24, (short) node.groupId);
+				table.putShort(offset + 26, (short) node.links);
+				table.putInt(offset + 28, (int) node.sectors);
+				
+				if(node.dataBlocks == 0 && node.target != null){
+					
+					//A fast symbolic link keeps its target instead of the pointers
+					table.position(offset + 40);
+					table.put(node.target);
+				}
+				
+				else if(node.pointers != null) for(int i = 0; i < 15; i++) table.putInt(offset + 40 + 4 * i, (int) node.pointers[i]);
+				
+				if(node.children == null) table.putInt(offset + 108, (int) (node.size >>> 32));
+				
+				table.putShort(offset + 120, (short) (node.userId >>> 16));
+				table.putShort(offset + 122, (short) (node.groupId >>> 16));
+			}
+			
+			return table.array();
+		}
+		
+		/*
+		* Contents of an indirect block of a level which maps the blocks from base on.
+		*/
+		
+		private byte[] indirectBlock(Node node, int level, long base){
+			
+			ByteBuffer block = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+			long span = level == 1 ? 1 : level == 2 ? maxPointers : maxPointers * maxPointers;
+			
+			for(int i = 0; i < maxPointers; i++){
+				
+				long first = base + i * span;
+				
+				if(first >= (node.size + blockSize - 1) / blockSize) break;
+				
+				//A range of holes has no indirect block
+				Long child = level == 1 ? null : node.indirect.get(first << 2 | (level - 1));
+				long pointer = level == 1 ? physicalOf(node, first) : child == null ? 0 : child;
+				
+				block.putInt(4 * i, (int) pointer);
+			}
+			
+			return block.array();
+		}
+	}
+}
@@ -0,0 +1,377 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+* A class which finds differences between two images of a filesystem, e.g. two daily snapshots.
+*
+* It works in two steps. First the inode tables of both volumes are compared block group by block group in parallel
+* (the access time is ignored, as reading a file changes it), which gives a set of inodes that differ.
+* Then both directory trees are walked at the same time, every directory being a separate task:
+*
+* - an inode which has not changed needs no further work, only a directory still has to be walked, as ext2 does not
+*   propagate modification times up the tree (and tools like debugfs add entries without touching the directory inode),
+* - a file whose modification time and size are the same and only its block pointers differ (e.g. it has been moved)
+*   has only the blocks which are stored in different places compared,
+* - any other difference in the inode marks the file as modified without reading its data.
+*
+* @author Michal Radecki
+*/
+
+public class ImageDiff{
+	
+	private static final int CHUNK_BLOCKS = 64;		//Number of inode table blocks compared at once
+	private static final int ATIME_OFFSET = 8;
+	
+	private Volume first;
+	private Volume second;
+	private BitSet changed;
+	private ConcurrentLinkedQueue<Change> changes;
+	
+	/**
+	* Kinds of differences between the two volumes.
+	*/
+	
+	public enum Type{ ADDED, REMOVED, MODIFIED }
+	
+	/**
+	* Create a diff of two volumes.
+	*
+	* @param first	the older volume
+	* @param second	the newer volume
+	*/
+	
+	public ImageDiff(Volume first, Volume second){
+		
+		this.first = first;
+		this.second = second;
+	}
+	
+	/**
+	* Compare the volumes and return all the differences ordered by path.
+	*
+	* @return changes	added, removed and modified paths
+	*/
+	
+	public List<Change> compare(){
+		
+		changes = new ConcurrentLinkedQueue<Change>();
+		
+		ForkJoinPool pool = new ForkJoinPool();
+		
+		try{
+			
+			compareInodeTables(pool);
+			
+			long root = first.getRootInode();
+			pool.invoke(new DirectoryTask("", root, root));
+			
+		}finally{
+			
+			pool.shutdown();
+		}
+		
+		List<Change> sorted = new ArrayList<Change>(changes);
+		
+		Collections.sort(sorted, new Comparator<Change>(){
+			
+			public int compare(Change a, Change b){
+				
+				return a.getPath().compareTo(b.getPath());
+			}
+		});
+		
+		return sorted;
+	}
+	
+	/**
+	* Print the differences in the format "A path", "D path" or "M path".
+	*/
+	
+	public void report(){
+		
+		for(Change change: compare()) System.out.println(change);
+	}
+	
+	/*
+	* Find all the inodes which differ, every block group is compared by a separate task.
+	*/
+	
+	private void compareInodeTables(ForkJoinPool pool){
+		
+		long inodes = Math.max(first.getInodesInSys(), second.getInodesInSys());
+		
+		changed = new BitSet((int) inodes + 1);
+		
+		// Everything beyond the smaller volume is different
+		changed.set((int) Math.min(first.getInodesInSys(), second.getInodesInSys()) + 1, (int) inodes + 1);
+		
+		if(first.getInodesInGrup() != second.getInodesInGrup() || first.getInodeSize() != second.getInodeSize()){
+			
+			changed.set(1, (int) inodes + 1);
+			return;
+		}
+		
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		
+		for(int i = 0; i < Math.min(first.getGroupCount(), second.getGroupCount()); i++){
+			
+			final int blockGroupNum = i;
+			
+			tasks.add(new RecursiveAction(){
+				
+				protected void compute(){
+					
+					compareGroup(blockGroupNum);
+				}
+			});
+		}
+		
+		pool.invoke(new RecursiveAction(){
+			
+			protected void compute(){
+				
+				invokeAll(tasks);
+			}
+		});
+	}
+	
+	/*
+	* Compare an inode table of a single block group. Whole chunks are compared first, so identical parts are skipped quickly.
+	*/
+	
+	private void compareGroup(int blockGroupNum){
+		
+		long inodesInGroup = first.getInodesInGrup();
+		long inodeSize = first.getInodeSize();
+		long perChunk = CHUNK_BLOCKS * first.getBlockSize() / inodeSize;
+		long firstInode = blockGroupNum * inodesInGroup + 1;
+		BitSet found = new BitSet();
+		
+		for(long done = 0; done < inodesInGroup; done += perChunk){
+			
+			long count = Math.min(perChunk, inodesInGroup - done);
+			long offset = done * inodeSize;
+			
+			byte[] a = first.getBytes(first.findInodePointer(blockGroupNum) * first.getBlockSize() + offset, count * inodeSize);
+			byte[] b = second.getBytes(second.findInodePointer(blockGroupNum) * second.getBlockSize() + offset, count * inodeSize);
+			
+			if(Arrays.equals(a, b)) continue;
+			
+			for(int i = 0; i < count; i++){
+				
+				int start = (int) (i * inodeSize);
+				
+				// Skip the access time
+				if(!Arrays.equals(a, start, start + ATIME_OFFSET, b, start, start + ATIME_OFFSET)
+					|| !Arrays.equals(a, start + ATIME_OFFSET + 4, start + (int) inodeSize, b, start + ATIME_OFFSET + 4, start + (int) inodeSize)){
+					
+					found.set((int) (firstInode + done + i));
+				}
+			}
+		}
+		
+		synchronized(this){
+			
+			changed.or(found);
+		}
+	}
+	
+	/*
+	* Decode an inode of one of the volumes.
+	*/
+	
+	private static Inode readInode(Volume volume, long inodeNum){
+		
+		ByteBuffer buffer = ByteBuffer.wrap(volume.getInodeBytes(inodeNum));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		return new Inode(inodeNum, buffer);
+	}
+	
+	/*
+	* Compare two regular files (or other non-directories) which have the same path in both volumes.
+	*
+	* @return true if the files differ
+	*/
+	
+	private boolean fileDiffers(long firstInode, long secondInode){
+		
+		if(firstInode == secondInode && !changed.get((int) firstInode)) return false;
+		
+		Inode a = readInode(first, firstInode);
+		Inode b = readInode(second, secondInode);
+		
+		if(a.getFileMode() != b.getFileMode() || a.getUserId() != b.getUserId() || a.getGroupId() != b.getGroupId()) return true;
+		if(a.getFileSize() != b.getFileSize() || a.getModifiedTime() != b.getModifiedTime()) return true;
+		
+		if(Arrays.equals(a.getBlockPointers(), b.getBlockPointers())) return false;
+		
+		// A fast symbolic link keeps its target in the block pointers, as do devices and other inodes without blocks
+		if(a.isSymbolicLink() && a.getFileSize() < 60 || a.getBlockCount() == 0 && b.getBlockCount() == 0) return true;
+		
+		// Same size and time but the data lives somewhere else - compare only the blocks stored in different places
+		return dataDiffers(first.getExtents(firstInode), second.getExtents(secondInode), a.getFileSize());
+	}
+	
+	/*
+	* Compare the data of two files of the same size block by block, skipping blocks which are stored at the same place.
+	*/
+	
+	private boolean dataDiffers(List<Extent> a, List<Extent> b, long size){
+		
+		long blockSize = first.getBlockSize();
+		long blocks = (size + blockSize - 1) / blockSize;
+		int i = 0;
+		int j = 0;
+		
+		for(long block = 0; block < blocks; block++){
+			
+			while(i < a.size() && a.get(i).getLogicalBlock() + a.get(i).getLength() <= block) i++;
+			while(j < b.size() && b.get(j).getLogicalBlock() + b.get(j).getLength() <= block) j++;
+			
+			long x = physical(a, i, block);
+			long y = physical(b, j, block);
+			
+			if(x == y) continue;
+			if(x == 0 || y == 0) return true;
+			
+			if(!Arrays.equals(first.getBytes(x * blockSize, blockSize), second.getBytes(y * blockSize, blockSize))) return true;
+		}
+		
+		return false;
+	}
+	
+	/*
+	* Returns the physical block of a logical block, 0 for a hole.
+	*/
+	
+	private static long physical(List<Extent> extents, int i, long block){
+		
+		if(i >= extents.size() || extents.get(i).getLogicalBlock() > block) return 0;
+		
+		return extents.get(i).getPhysicalBlock() + block - extents.get(i).getLogicalBlock();
+	}
+	
+	/*
+	* Record every path of a subtree which exists only in one of the volumes.
+	*/
+	
+	private void addSubtree(Volume volume, String path, long inodeNum, Type type){
+		
+		changes.add(new Change(type, path));
+		
+		if(!readInode(volume, inodeNum).isDirectory()) return;
+		
+		for(Map.Entry<String, Integer> entry: volume.listDirectory(inodeNum).entrySet()){
+			
+			if(entry.getKey().equals(".") || entry.getKey().equals("..")) continue;
+			
+			addSubtree(volume, path + "/" + entry.getKey(), entry.getValue(), type);
+		}
+	}
+	
+	/*
+	* A task which compares a directory present in both volumes and forks a task for every subdirectory.
+	*/
+	
+	private class DirectoryTask extends RecursiveAction{
+		
+		private static final long serialVersionUID = 1L;
+		
+		private String path;
+		private long firstInode;
+		private long secondInode;
+		
+		private DirectoryTask(String path, long firstInode, long secondInode){
+			
+			this.path = path;
+			this.firstInode = firstInode;
+			this.secondInode = secondInode;
+		}
+		
+		protected void compute(){
+			
+			TreeMap<String, Integer> a = first.listDirectory(firstInode);
+			TreeMap<String, Integer> b = second.listDirectory(secondInode);
+			
+			TreeSet<String> names = new TreeSet<String>(a.keySet());
+			names.addAll(b.keySet());
+			
+			List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+			
+			for(String name: names){
+				
+				if(name.equals(".") || name.equals("..")) continue;
+				
+				String childPath = path + "/" + name;
+				Integer x = a.get(name);
+				Integer y = b.get(name);
+				
+				if(y == null) addSubtree(first, childPath, x, Type.REMOVED);
+				else if(x == null) addSubtree(second, childPath, y, Type.ADDED);
+				else if(x.equals(y) && !changed.get(x)){
+					
+					if(readInode(first, x).isDirectory()) subdirectories.add(new DirectoryTask(childPath, x, y));
+				}
+				else{
+					
+					boolean isDirectoryA = readInode(first, x).isDirectory();
+					boolean isDirectoryB = readInode(second, y).isDirectory();
+					
+					if(isDirectoryA && isDirectoryB) subdirectories.add(new DirectoryTask(childPath, x, y));
+					else if(isDirectoryA != isDirectoryB){
+						
+						addSubtree(first, childPath, x, Type.REMOVED);
+						addSubtree(second, childPath, y, Type.ADDED);
+					}
+					else if(fileDiffers(x, y)) changes.add(new Change(Type.MODIFIED, childPath));
+				}
+			}
+			
+			invokeAll(subdirectories);
+		}
+	}
+	
+	/**
+	* A single difference between the volumes.
+	*/
+	
+	public static class Change{
+		
+		private Type type;
+		private String path;
+		
+		public Change(Type type, String path){
+			
+			this.type = type;
+			this.path = path;
+		}
+		
+		public Type getType(){
+			
+			return type;
+		}
+		
+		public String getPath(){
+			
+			return path;
+		}
+		
+		public String toString(){
+			
+			return (type == Type.ADDED ? "A " : type == Type.REMOVED ? "D " : "M ") + path;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+* Generates ext2 images of a configurable shape for scale tests and benchmarks, with ImageBuilder.
+*
+* Everything - names, sizes, owners, times, contents, the UUID - comes from a seeded Random, so a seed always gives the
+* same image, byte for byte, and a benchmark can be run again anywhere without keeping the image. The image holds:
+*
+*	/tree			the files (regular files, some symbolic and hard links) in a balanced tree of directories
+*	/wide			a single directory with a large number of empty files
+*	/deep			a chain of nested directories with a file at the bottom
+*	/large			a file mapped by double indirect blocks and a file reaching the triple indirect blocks
+*	/sparse			files of up to 4 GB with a few ranges of data and holes elsewhere
+*	/fragmented		files laid out in small pieces which take turns with each other
+*
+* The contents of a file are a hash of the seed, the number of the file and the offset, cheap to make and never the
+* same in two files.
+*
+*	new ImageGenerator(42).setFiles(2000000).setWide(100000).write(new File("scale.img"));
+*
+* @author Michal Radecki
+*/
+
+public class ImageGenerator{
+	
+	private static final long TIME = 1500000000L;		//Times of the nodes are spread over the year after it
+	private static final long[] OWNERS = { 0, 1000, 1001, 100000 };
+	private static final int RECENT = 1024;				//Files kept as targets of links
+	
+	private long seed;
+	private long files = 100000;
+	private int fanout = 256;
+	private long fileSize = 8192;
+	private int wide = 100000;
+	private int depth = 256;
+	private long largeSize = 72 << 20;
+	private int sparseFiles = 8;
+	private int fragmentedFiles = 32;
+	
+	private Random random;
+	private long fileCount;
+	private List<String> recentPaths = new ArrayList<String>();
+	private List<ImageBuilder.Node> recentFiles = new ArrayList<ImageBuilder.Node>();
+	
+	/**
+	* Create a generator.
+	*
+	* @param seed	the seed all the image comes from
+	*/
+	
+	public ImageGenerator(long seed){
+		
+		this.seed = seed;
+	}
+	
+	/**
+	* @param files	number of entries in /tree
+	* @return this	the generator
+	*/
+	
+	public ImageGenerator setFiles(long files){
+		
+		this.files = files;
+		return this;
+	}
+	
+	/**
+	* @param fanout	number of entries in a directory of /tree
+	* @return this	the generator
+	*/
+	
+	public ImageGenerator setFanout(int fanout){
+		
+		if(fanout < 2) throw new IllegalArgumentException("Bad fan-out " + fanout + "!");
+		
+		this.fanout = fanout;
+		return this;
+	}
+	
+	/**
+	* @param fileSize	largest size of a file in /tree, most are much smaller
+	* @return this		the generator
+	*/
+	
+	public ImageGenerator setFileSize(long fileSize){
+		
+		this.fileSize = fileSize;
+		return this;
+	}
+	
+	/**
+	* @param wide	number of entries in /wide
+	* @return this	the generator
+	*/
+	
+	public ImageGenerator setWide(int wide){
+		
+		this.wide = wide;
+		return this;
+	}
+	
+	/**
+	* @param depth	number of nested directories in /deep
+	* @return this	the generator
+	*/
+	
+	public ImageGenerator setDepth(int depth){
+		
+		this.depth = depth;
+		return this;
+	}
+	
+	/**
+	* @param largeSize	size of the file in /large reaching the triple indirect blocks (above 64 MB), 0 for none
+	* @return this		the generator
+	*/
+	
+	public ImageGenerator setLargeSize(long largeSize){
+		
+		this.largeSize = largeSize;
+		return this;
+	}
+	
+	/**
+	* @param sparseFiles	number of files in /sparse
+	* @return this			the generator
+	*/
+	
+	public ImageGenerator setSparseFiles(int sparseFiles){
+		
+		this.sparseFiles = sparseFiles;
+		return this;
+	}
+	
+	/**
+	* @param fragmentedFiles	number of files in /fragmented
+	* @return this				the generator
+	*/
+	
+	public ImageGenerator setFragmentedFiles(int fragmentedFiles){
+		
+		this.fragmentedFiles = fragmentedFiles;
+		return this;
+	}
+	
+	/**
+	* Describe the tree of the image.
+	*
+	* @return builder	a builder holding the tree, ready to be written
+	*/
+	
+	public ImageBuilder build(){
+		
+		random = new Random(seed);
+		fileCount = 0;
+		recentPaths.clear();
+		recentFiles.clear();
+		
+		ImageBuilder builder = new ImageBuilder();
+		ImageBuilder.Node root = builder.getRoot();
+		
+		builder.setUUID(UUID.nameUUIDFromBytes(("ImageGenerator " + seed).getBytes(StandardCharsets.UTF_8)));
+		builder.setTime(TIME);
+		root.setTime(TIME);
+		
+		addTree(builder, directory(builder, root, "tree"), "/tree", files);
+		
+		ImageBuilder.Node wideDirectory = directory(builder, root, "wide");
+		
+		for(int i = 0; i < wide; i++) describe(builder.addFile(wideDirectory, String.format("entry-%07d", i), 0, null));
+		
+		ImageBuilder.Node deep = directory(builder, root, "deep");
+		
+		for(int i = 0; i < depth; i++) deep = directory(builder, deep, "level-" + i);
+		
+		file(builder, deep, "bottom", 4096);
+		
+		ImageBuilder.Node large = directory(builder, root, "large");
+		
+		file(builder, large, "double", 1 << 20);
+		
+		if(largeSize > 0) file(builder, large, "triple", largeSize);
+		
+		addSparse(builder, directory(builder, root, "sparse"));
+		
+		ImageBuilder.Node fragmented = directory(builder, root, "fragmented");
+		
+		for(int i = 0; i < fragmentedFiles; i++){
+			
+			file(builder, fragmented, String.format("piece-%04d", i), 16384 + (long) random.nextInt(2 << 20)).setFragment(1 + random.nextInt(16));
+		}
+		
+		return builder;
+	}
+	
+	/**
+	* Generate the image and write it.
+	*
+	* @param image	the image file to be created or replaced
+	*/
+	
+	public void write(File image) throws IOException{
+		
+		build().write(image, 0, 0);
+	}
+	
+	/*
+	* Fill a directory of /tree with count entries, in subdirectories once they do not fit.
+	*/
+	
+	private void addTree(ImageBuilder builder, ImageBuilder.Node parent, String path, long count){
+		
+		if(count <= fanout){
+			
+			for(int i = 0; i < count; i++){
+				
+				String name = Integer.toHexString(i) + "-" + word();
+				double kind = random.nextDouble();
+				
+				if(kind < 0.04 && !recentPaths.isEmpty()){
+					
+					//Most links point to a file added before, a few nowhere
+					String target = random.nextInt(16) == 0 ? "missing-" + word() : recentPaths.get(random.nextInt(recentPaths.size()));
+					
+					describe(builder.addSymlink(parent, name, target));
+				}
+				
+				else if(kind < 0.06 && !recentFiles.isEmpty()){
+					
+					builder.addLink(parent, name, recentFiles.get(random.nextInt(recentFiles.size())));
+				}
+				
+				else{
+					
+					double fraction = random.nextDouble();
+					
+					remember(file(builder, parent, name, (long) (fraction * fraction * fraction * fraction * fileSize)), path + "/" + name);
+				}
+			}
+			
+			return;
+		}
+		
+		//Every subdirectory but the last one is full
+		long each = fanout;
+		
+		while(each * fanout < count) each *= fanout;
+		
+		for(int i = 0; count > 0; i++, count -= each){
+			
+			String name = String.format("d%04d", i);
+			
+			addTree(builder, directory(builder, parent, name), path + "/" + name, Math.min(each, count));
+		}
+	}
+	
+	/*
+	* Files of up to 4 GB with up to 6 ranges of data, the first one is a hole only and the second one ends with data.
+	*/
+	
+	private void addSparse(ImageBuilder builder, ImageBuilder.Node parent){
+		
+		for(int i = 0; i < sparseFiles; i++){
+			
+			long size = 1 + (long) (random.nextDouble() * (4L << 30));
+			int count = i == 0 ? 0 : 1 + random.nextInt(6);
+			long[] offsets = new long[count];
+			long[] ranges = new long[2 * count];
+			
+			for(int j = 0; j < count; j++) offsets[j] = (long) (random.nextDouble() * size);
+			
+			if(i == 1 && count > 0) offsets[0] = size - 1;
+			
+			Arrays.sort(offsets);
+			
+			for(int j = 0; j < count; j++){
+				
+				long end = j + 1 < count ? offsets[j + 1] : size;
+				
+				ranges[2 * j] = offsets[j];
+				ranges[2 * j + 1] = Math.min(end - offsets[j], 1 + random.nextInt(256 << 10));
+			}
+			
+			describe(builder.addSparseFile(parent, String.format("sparse-%02d", i), size, ranges, pattern()));
+		}
+	}
+	
+	private ImageBuilder.Node directory(ImageBuilder builder, ImageBuilder.Node parent, String name){
+		
+		return describe(builder.addDirectory(parent, name));
+	}
+	
+	private ImageBuilder.Node file(ImageBuilder builder, ImageBuilder.Node parent, String name, long size){
+		
+		return describe(builder.addFile(parent, name, size, size == 0 ? null : pattern()));
+	}
+	
+	/*
+	* Give a node a random owner, permissions and time.
+	*/
+	
+	private ImageBuilder.Node describe(ImageBuilder.Node node){
+		
+		long owner = OWNERS[random.nextInt(OWNERS.length)];
+		
+		node.setOwner(owner, owner);
+		node.setPermissions(random.nextInt(4) == 0 ? 0755 : random.nextInt(3) == 0 ? 0600 : 0644);
+		node.setTime(TIME + random.nextInt(365 * 24 * 3600));
+		
+		return node;
+	}
+	
+	/*
+	* Keep a file as a target of the next links, replacing a random one once there are enough.
+	*/
+	
+	private void remember(ImageBuilder.Node node, String path){
+		
+		if(recentPaths.size() < RECENT){
+			
+			recentPaths.add(path);
+			recentFiles.add(node);
+			return;
+		}
+		
+		int index = random.nextInt(RECENT);
+		
+		recentPaths.set(index, path);
+		recentFiles.set(index, node);
+	}
+	
+	/*
+	* A random name of 1 to 40 letters, digits, dots and dashes.
+	*/
+	
+	private String word(){
+		
+		String letters = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.-_";
+		char[] name = new char[1 + random.nextInt(40)];
+		
+		for(int i = 0; i < name.length; i++) name[i] = letters.charAt(random.nextInt(letters.length()));
+		
+		return new String(name);
+	}
+	
+	/*
+	* Contents of the next file.
+	*/
+	
+	private ImageBuilder.Content pattern(){
+		
+		final long key = seed * 0x9E3779B97F4A7C15L + ++fileCount;
+		
+		return new ImageBuilder.Content(){
+			
+			public void read(long offset, byte[] bytes, int length){
+				
+				long value = 0;
+				
+				for(int i = 0; i < length; i++){
+					
+					long position = offset + i;
+					
+					if(i == 0 || (position & 7) == 0) value = mix(key + (position >>> 3) * 0xBF58476D1CE4E5B9L);
+					
+					bytes[i] = (byte) (value >>> ((position & 7) << 3));
+				}
+			}
+		};
+	}
+	
+	/*
+	* The finalizer of SplitMix64.
+	*/
+	
+	private static long mix(long value){
+		
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		
+		return value ^ (value >>> 31);
+	}
+}
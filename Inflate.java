@@ -0,0 +1,533 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+* A DEFLATE decoder for gzip files used by GzipDevice.
+*
+* Unlike java.util.zip.Inflater it can start at any block boundary of the stream - given the bit offset of the block
+* and the last 32 KB of the data before it - which is what makes random access into a gzip file possible.
+* The file is inflated a block at a time, members of a multi-member file follow each other as a single stream.
+*
+* @author Michal Radecki
+*/
+
+class Inflate{
+	
+	static final int WINDOW = 32768;		//Farthest distance a block may refer back to
+	
+	private static final int FAST_BITS = 9;		//Codes up to this long are decoded with a single look-up
+	
+	private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+	private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+	private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+	private static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+	private static final int[] ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+	
+	private static final Huffman FIXED_LENGTHS;
+	private static final Huffman FIXED_DISTANCES;
+	
+	static{
+		
+		int[] lengths = new int[288];
+		
+		for(int i = 0; i < 288; i++) lengths[i] = i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8;
+		
+		FIXED_LENGTHS = new Huffman(lengths, 0, 288);
+		
+		for(int i = 0; i < 30; i++) lengths[i] = 5;
+		
+		FIXED_DISTANCES = new Huffman(lengths, 0, 30);
+	}
+	
+	private FileChannel channel;
+	private byte[] input = new byte[65536];
+	private long inputStart;
+	private int inputPosition;
+	private int inputLength;
+	private long bits;
+	private int bitCount;
+	private boolean finished;
+	private CRC32 crc;
+	private long memberLength;
+	private byte[] output;
+	private int outputLength;
+	private int checked;
+	
+	/**
+	* Start inflating a file.
+	*
+	* @param channel	the compressed file
+	* @param bitOffset	offset of a gzip header (a multiple of 8) or of a DEFLATE block in bits
+	* @param window		data inflated before the block, at most WINDOW bytes
+	*/
+	
+	Inflate(FileChannel channel, long bitOffset, byte[] window){
+		
+		this.channel = channel;
+		this.inputStart = bitOffset / 8;
+		this.output = new byte[Math.max(4 * WINDOW, 2 * window.length)];
+		
+		System.arraycopy(window, 0, output, 0, window.length);
+		
+		outputLength = window.length;
+		checked = outputLength;
+		bitCount = -(int) (bitOffset % 8);		//Bits of the first byte which are dropped
+	}
+	
+	/**
+	* Read the header of a gzip member.
+	*
+	* @return found	false if the file ends (or only padding follows)
+	*/
+	
+	boolean header() throws IOException{
+		
+		align();
+		
+		int id1 = readByte();
+		int id2 = id1 < 0 ? -1 : readByte();
+		
+		if(id1 != 0x1f || id2 != 0x8b) return false;
+		
+		if(required() != 8) throw new IOException("Unknown compression method!");
+		
+		int flags = required();
+		
+		for(int i = 0; i < 6; i++) required();		//Time, extra flags, operating system
+		
+		if((flags & 4) != 0){
+			
+			int length = required() | required() << 8;
+			
+			for(int i = 0; i < length; i++) required();
+		}
+		
+		if((flags & 8) != 0) while(required() != 0);		//File name
+		if((flags & 16) != 0) while(required() != 0);		//Comment
+		
+		if((flags & 2) != 0){
+			
+			required();
+			required();
+		}
+		
+		crc = new CRC32();
+		memberLength = 0;
+		
+		return true;
+	}
+	
+	/**
+	* Inflate the next block, going on to the next member after the last block of a member.
+	* The checksums of the members inflated from their beginning are verified.
+	*
+	* @return inflated	false if the file has ended
+	*/
+	
+	boolean next() throws IOException{
+		
+		if(finished) return false;
+		
+		boolean last = block();
+		
+		if(crc != null) crc.update(output, checked, outputLength - checked);
+		
+		memberLength += outputLength - checked;
+		checked = outputLength;
+		
+		if(last){
+			
+			align();
+			
+			long sum = readInt();
+			long length = readInt();
+			
+			if(crc != null && (sum != crc.getValue() || length != (memberLength & 0xffffffffL))) throw new IOException("The compressed image is damaged!");
+			
+			finished = !header();
+		}
+		
+		return true;
+	}
+	
+	/**
+	* @return offset	offset of the next block in bits
+	*/
+	
+	long getBitOffset(){
+		
+		return (inputStart + inputPosition) * 8 - bitCount;
+	}
+	
+	/**
+	* @return output	the window followed by everything inflated so far (see compact())
+	*/
+	
+	byte[] getOutput(){
+		
+		return output;
+	}
+	
+	/**
+	* @return length	number of bytes of getOutput() used
+	*/
+	
+	int getLength(){
+		
+		return outputLength;
+	}
+	
+	/**
+	* @return window	the last WINDOW bytes inflated, what a block starting at getBitOffset() may refer to
+	*/
+	
+	byte[] getWindow(){
+		
+		int length = Math.min(WINDOW, outputLength);
+		byte[] window = new byte[length];
+		
+		System.arraycopy(output, outputLength - length, window, 0, length);
+		
+		return window;
+	}
+	
+	/**
+	* Drop the output except for the last WINDOW bytes.
+	*/
+	
+	void compact(){
+		
+		if(outputLength <= WINDOW) return;
+		
+		System.arraycopy(output, outputLength - WINDOW, output, 0, WINDOW);
+		
+		outputLength = WINDOW;
+		checked = WINDOW;
+	}
+	
+	/*
+	* Inflate a single block, returns true if it was the last one of its member.
+	*/
+	
+	private boolean block() throws IOException{
+		
+		boolean last = bits(1) == 1;
+		int type = bits(2);
+		
+		if(type == 0) stored();
+		
+		else if(type == 1) codes(FIXED_LENGTHS, FIXED_DISTANCES);
+		
+		else if(type == 2) dynamic();
+		
+		else throw new IOException("The compressed image is damaged!");
+		
+		return last;
+	}
+	
+	private void stored() throws IOException{
+		
+		align();
+		
+		int length = required() | required() << 8;
+		int complement = required() | required() << 8;
+		
+		if(length != (~complement & 0xffff)) throw new IOException("The compressed image is damaged!");
+		
+		reserve(length);
+		
+		for(int i = 0; i < length; i++) output[outputLength++] = (byte) required();
+	}
+	
+	private void dynamic() throws IOException{
+		
+		int lengthCount = bits(5) + 257;
+		int distanceCount = bits(5) + 1;
+		int codeCount = bits(4) + 4;
+		int[] lengths = new int[320];
+		
+		for(int i = 0; i < codeCount; i++) lengths[ORDER[i]] = bits(3);
+		
+		Huffman codeLengths = new Huffman(lengths, 0, 19);
+		
+		for(int i = 0; i < 19; i++) lengths[i] = 0;
+		
+		for(int i = 0; i < lengthCount + distanceCount; ){
+			
+			int symbol = decode(codeLengths);
+			
+			if(symbol < 16){
+				
+				lengths[i++] = symbol;
+				continue;
+			}
+			
+			int value = 0;
+			int repeat;
+			
+			if(symbol == 16){
+				
+				if(i == 0) throw new IOException("The compressed image is damaged!");
+				
+				value = lengths[i - 1];
+				repeat = 3 + bits(2);
+			}
+			
+			else if(symbol == 17) repeat = 3 + bits(3);
+			
+			else repeat = 11 + bits(7);
+			
+			if(i + repeat > lengthCount + distanceCount) throw new IOException("The compressed image is damaged!");
+			
+			while(repeat-- > 0) lengths[i++] = value;
+		}
+		
+		codes(new Huffman(lengths, 0, lengthCount), new Huffman(lengths, lengthCount, distanceCount));
+	}
+	
+	private void codes(Huffman lengthCodes, Huffman distanceCodes) throws IOException{
+		
+		while(true){
+			
+			int symbol = decode(lengthCodes);
+			
+			if(symbol < 256){
+				
+				if(outputLength == output.length) reserve(1);
+				
+				output[outputLength++] = (byte) symbol;
+				continue;
+			}
+			
+			if(symbol == 256) return;
+			
+			symbol -= 257;
+			
+			if(symbol >= 29) throw new IOException("The compressed image is damaged!");
+			
+			int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+			
+			symbol = decode(distanceCodes);
+			
+			if(symbol >= 30) throw new IOException("The compressed image is damaged!");
+			
+			int distance = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+			
+			if(distance > outputLength) throw new IOException("The compressed image refers before its window!");
+			
+			if(outputLength + length > output.length) reserve(length);
+			
+			int from = outputLength - distance;
+			
+			if(distance >= length){
+				
+				System.arraycopy(output, from, output, outputLength, length);
+				outputLength += length;
+			}
+			
+			else while(length-- > 0) output[outputLength++] = output[from++];
+		}
+	}
+	
+	/*
+	* Decode a symbol - with a look-up of the next FAST_BITS bits, or a bit at a time for the longer codes.
+	*/
+	
+	private int decode(Huffman huffman) throws IOException{
+		
+		fill();
+		
+		int entry = huffman.fast[(int) (bits & ((1 << FAST_BITS) - 1))];
+		int length = entry & 15;
+		
+		if(length != 0 && length <= bitCount){
+			
+			bits >>>= length;
+			bitCount -= length;
+			
+			return entry >>> 4;
+		}
+		
+		int code = 0;
+		int first = 0;
+		int index = 0;
+		
+		for(length = 1; length < 16; length++){
+			
+			code |= bits(1);
+			
+			int count = huffman.count[length];
+			
+			if(code - count < first) return huffman.symbol[index + (code - first)];
+			
+			index += count;
+			first += count;
+			first <<= 1;
+			code <<= 1;
+		}
+		
+		throw new IOException("The compressed image is damaged!");
+	}
+	
+	private int bits(int count) throws IOException{
+		
+		while(bitCount < count){
+			
+			int next = nextByte();
+			
+			if(next < 0) throw new EOFException("The compressed image is truncated!");
+			
+			push(next);
+		}
+		
+		int value = (int) (bits & ((1L << count) - 1));
+		
+		bits >>>= count;
+		bitCount -= count;
+		
+		return value;
+	}
+	
+	/*
+	* Read bytes into the bit buffer while there is space for them, stopping quietly at the end of the file.
+	*/
+	
+	private void fill() throws IOException{
+		
+		while(bitCount <= 56){
+			
+			int next = nextByte();
+			
+			if(next < 0) return;
+			
+			push(next);
+		}
+	}
+	
+	private void push(int next){
+		
+		if(bitCount < 0){
+			
+			next >>>= -bitCount;		//The first byte after a start in the middle of it
+			bits |= (long) next;
+			bitCount += 8;
+			return;
+		}
+		
+		bits |= (long) next << bitCount;
+		bitCount += 8;
+	}
+	
+	private void align(){
+		
+		bits >>>= bitCount & 7;
+		bitCount -= bitCount & 7;
+	}
+	
+	private int readByte() throws IOException{
+		
+		if(bitCount >= 8){
+			
+			int value = (int) (bits & 0xff);
+			
+			bits >>>= 8;
+			bitCount -= 8;
+			
+			return value;
+		}
+		
+		return nextByte();
+	}
+	
+	private long readInt() throws IOException{
+		
+		long value = 0;
+		
+		for(int i = 0; i < 4; i++) value |= (long) required() << (8 * i);
+		
+		return value;
+	}
+	
+	private int required() throws IOException{
+		
+		int value = readByte();
+		
+		if(value < 0) throw new EOFException("The compressed image is truncated!");
+		
+		return value;
+	}
+	
+	private int nextByte() throws IOException{
+		
+		if(inputPosition == inputLength){
+			
+			inputStart += inputLength;
+			inputPosition = 0;
+			inputLength = Math.max(0, channel.read(ByteBuffer.wrap(input), inputStart));
+			
+			if(inputLength == 0) return -1;
+		}
+		
+		return input[inputPosition++] & 0xff;
+	}
+	
+	private void reserve(int length){
+		
+		if(outputLength + length <= output.length) return;
+		
+		byte[] bigger = new byte[Math.max(2 * output.length, outputLength + length)];
+		
+		System.arraycopy(output, 0, bigger, 0, outputLength);
+		output = bigger;
+	}
+	
+	/*
+	* A canonical Huffman code - the number of codes of every length, the symbols in the order of their codes
+	* and a table of the short codes indexed by their bits as they come from the stream.
+	*/
+	
+	private static class Huffman{
+		
+		private int[] count = new int[16];
+		private int[] symbol;
+		private int[] fast = new int[1 << FAST_BITS];
+		
+		private Huffman(int[] lengths, int start, int symbols){
+			
+			symbol = new int[symbols];
+			
+			for(int i = 0; i < symbols; i++) count[lengths[start + i]]++;
+			
+			count[0] = 0;
+			
+			int[] offsets = new int[16];
+			
+			for(int length = 1; length < 16; length++) offsets[length] = offsets[length - 1] + count[length - 1];
+			
+			int[] next = offsets.clone();
+			
+			for(int i = 0; i < symbols; i++){
+				
+				if(lengths[start + i] != 0) symbol[next[lengths[start + i]]++] = i;
+			}
+			
+			//Canonical codes of the short lengths, reversed because the stream holds them starting with the highest bit
+			int code = 0;
+			
+			for(int length = 1; length <= FAST_BITS; length++){
+				
+				for(int i = 0; i < count[length]; i++){
+					
+					int reversed = Integer.reverse(code + i) >>> (32 - length);
+					
+					for(int fill = reversed; fill < fast.length; fill += 1 << length) fast[fill] = symbol[offsets[length] + i] << 4 | length;
+				}
+				
+				code = (code + count[length]) << 1;
+			}
+		}
+	}
+}
@@ -19,19 +19,47 @@ public class Inode{
 	private int doubleIndirect;
 	private int tripleIndirect;
 	private short numOfLinks;
+	private long blockCount;
+	private int flags;
+	private long inodeNum;
 	
 	private static final int DIR_POINT_COUNT = 12;
 	
+	private static final int IFMT = 0xF000;		// Format of the file
+	private static final int IFREG = 0x8000;	// Regular file
+	private static final int IFDIR = 0x4000;	// Directory
+	private static final int IFLNK = 0xA000;	// Symbolic link
+	
 	private Volume vol;
 	
 	public Inode(Volume vol, long inodePointer, long inodeNum){
 		
 		this.vol = vol;
+		this.inodeNum = inodeNum;
 		
 		ByteBuffer buffer = ByteBuffer.wrap(vol.getBytes(vol.getBlockSize() * inodePointer + vol.getInodeSize() * (inodeNum - 1), vol.getInodeSize()));
 		buffer.order(ByteOrder.LITTLE_ENDIAN);
 		
-		fileMode = buffer.getShort();
+		decode(buffer);
+	}
+	
+	/**
+	* Create an inode from its raw bytes, e.g. a slice of an inode table which has been read as a whole.
+	*
+	* @param inodeNum	number of the inode in the filesystem (counted from 1)
+	* @param buffer		little endian buffer positioned at the first byte of the inode
+	*/
+	
+	public Inode(long inodeNum, ByteBuffer buffer){
+		
+		this.inodeNum = inodeNum;
+		
+		decode(buffer);
+	}
+	
+	private void decode(ByteBuffer buffer){
+		
+		fileMode = buffer.getShort() & 0xFFFF;
 		userId = buffer.getShort();
 		fileSizeLow =  buffer.getInt();
 		accessTime = buffer.getInt(); 
@@ -40,12 +68,14 @@ public class Inode{
 		deletedTime = buffer.getInt();
 		groupId = buffer.getShort();
 		numOfLinks = buffer.getShort();
+		blockCount = buffer.getInt() & 0xffffffffL;
+		flags = buffer.getInt();
 		
-		buffer.position(buffer.position() + 12);
+		buffer.position(buffer.position() + 4);
 		
 		directPointers = new ArrayList<Integer>(DIR_POINT_COUNT);
 		
-		for(Integer dirPointer: directPointers) dirPointer = (Integer) buffer.getInt();
+		for(int i = 0; i < DIR_POINT_COUNT; i++) directPointers.add(buffer.getInt());
 		
 		indirect = buffer.getInt();
 		doubleIndirect = buffer.getInt();
@@ -56,6 +86,117 @@ public class Inode{
 		fileSizeUp = buffer.getInt();		
 		
 		fileSize = (((long) fileSizeUp) << 32) | (fileSizeLow & 0xffffffffL);
+		
+		// High halves of the owner and the group (Linux osd2)
+		buffer.position(buffer.position() + 8);
+		
+		userId = (buffer.getShort() & 0xFFFF) << 16 | (userId & 0xFFFF);
+		groupId = (buffer.getShort() & 0xFFFF) << 16 | (groupId & 0xFFFF);
+	}
+	
+	public long getInodeNum(){
+		
+		return inodeNum;
+	}
+	
+	public int getFileMode(){
+		
+		return fileMode;
+	}
+	
+	public boolean isRegularFile(){
+		
+		return (fileMode & IFMT) == IFREG;
+	}
+	
+	public boolean isDirectory(){
+		
+		return (fileMode & IFMT) == IFDIR;
+	}
+	
+	public boolean isSymbolicLink(){
+		
+		return (fileMode & IFMT) == IFLNK;
+	}
+	
+	public long getFileSize(){
+		
+		return fileSize;
+	}
+	
+	public int getUserId(){
+		
+		return userId;
+	}
+	
+	public int getGroupId(){
+		
+		return groupId;
+	}
+	
+	public int getLinks(){
+		
+		return numOfLinks & 0xFFFF;
+	}
+	
+	/**
+	* @return number of 512 byte sectors allocated to the inode (including indirect blocks)
+	*/
+	
+	public long getBlockCount(){
+		
+		return blockCount;
+	}
+	
+	public int getFlags(){
+		
+		return flags;
+	}
+	
+	public long getAccessTime(){
+		
+		return accessTime & 0xffffffffL;
+	}
+	
+	public long getCreationTime(){
+		
+		return creationTime & 0xffffffffL;
+	}
+	
+	public long getModifiedTime(){
+		
+		return modifiedTime & 0xffffffffL;
+	}
+	
+	public long getDeletedTime(){
+		
+		return deletedTime & 0xffffffffL;
+	}
+	
+	/**
+	* @return true if the inode is used by a file which has not been deleted
+	*/
+	
+	public boolean isInUse(){
+		
+		return fileMode != 0 && numOfLinks > 0 && deletedTime == 0;
+	}
+	
+	/**
+	* @return pointers	all the 15 block pointers held in the inode (12 direct, indirect, double and triple indirect)
+	*/
+	
+	public long[] getBlockPointers(){
+		
+		long[] pointers = new long[DIR_POINT_COUNT + 3];
+		
+		for(int i = 0; i < DIR_POINT_COUNT; i++) pointers[i] = directPointers.get(i) & 0xffffffffL;
+		
+		pointers[DIR_POINT_COUNT] = indirect & 0xffffffffL;
+		pointers[DIR_POINT_COUNT + 1] = doubleIndirect & 0xffffffffL;
+		pointers[DIR_POINT_COUNT + 2] = tripleIndirect & 0xffffffffL;
+		
+		return pointers;
 	}
 	
 	public void readInode(){
@@ -0,0 +1,692 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+* The inodes of a volume decoded into columns of primitive values kept outside the Java heap, for reports over all the files.
+*
+* Every attribute (mode, links, owner, group, size, allocated sectors, times and the first block) is a column of its own,
+* a direct buffer indexed by the inode number, so a query reads just the columns it needs in a tight loop with no objects
+* made per inode. The inode tables are decoded by several threads and queries are split among threads as well.
+* About 52 bytes are kept for every inode of the volume, whether it is used or not.
+*
+*	InodeColumns columns = InodeColumns.load(volume, 8);
+*	InodeColumns.Query big = columns.query().regularFiles().sizeAtLeast(1L << 30).modifiedBefore(time);
+*	System.out.println(big.count() + " files, " + big.sumSize() + " bytes");
+*	Map<Integer, long[]> perUser = big.groupByUid();
+*
+* @author Michal Radecki
+*/
+
+public class InodeColumns{
+	
+	private static final int CHUNK_BLOCKS = 64;		//Number of inode table blocks read at once
+	private static final int IFMT = 0xF000;
+	private static final int IFREG = 0x8000;
+	private static final int IFDIR = 0x4000;
+	private static final int IFLNK = 0xA000;
+	
+	private Volume volume;
+	private int count;
+	private int threads;
+	private ByteBuffer modes;
+	private ByteBuffer links;
+	private ByteBuffer uids;
+	private ByteBuffer gids;
+	private ByteBuffer sizes;
+	private ByteBuffer sectors;
+	private ByteBuffer accessTimes;
+	private ByteBuffer changeTimes;
+	private ByteBuffer modifiedTimes;
+	private ByteBuffer firstBlocks;
+	private ByteBuffer used;
+	
+	/**
+	* A condition on a single inode, for the filters which the Query methods do not cover.
+	*/
+	
+	public interface Predicate{
+		
+		/**
+		* @param columns	the columns of the volume
+		* @param inodeNum	number of the inode
+		* @return match		true if the inode passes
+		*/
+		
+		boolean test(InodeColumns columns, long inodeNum);
+	}
+	
+	private InodeColumns(Volume volume, int threads){
+		
+		if(volume.getInodesInSys() * 8 > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many inodes for a column: " + volume.getInodesInSys());
+		
+		this.volume = volume;
+		this.threads = Math.max(1, threads);
+		this.count = (int) volume.getInodesInSys();
+		
+		modes = column(2);
+		links = column(2);
+		uids = column(4);
+		gids = column(4);
+		sizes = column(8);
+		sectors = column(8);
+		accessTimes = column(4);
+		changeTimes = column(4);
+		modifiedTimes = column(4);
+		firstBlocks = column(8);
+		used = column(1);
+	}
+	
+	/**
+	* Decode the inode tables of a volume, a block group at a time.
+	*
+	* @param volume		filesystem to be read
+	* @param threads	number of groups decoded at once, queries use the same number of threads
+	* @return columns	the inodes of the volume
+	*/
+	
+	public static InodeColumns load(Volume volume, int threads){
+		
+		final InodeColumns columns = new InodeColumns(volume, threads);
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		
+		for(int i = 0; i < volume.getGroupCount(); i++){
+			
+			final int blockGroupNum = i;
+			
+			tasks.add(new Runnable(){
+				
+				public void run(){
+					
+					columns.loadGroup(blockGroupNum);
+				}
+			});
+		}
+		
+		columns.run(tasks);
+		
+		return columns;
+	}
+	
+	/**
+	* @return count	number of inodes in the volume (used or not)
+	*/
+	
+	public long getInodeCount(){
+		
+		return count;
+	}
+	
+	/**
+	* @return query	a query which matches every inode in use, narrowed by its methods
+	*/
+	
+	public Query query(){
+		
+		return new Query();
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return used	true if the inode is used by a file which has not been deleted, reserved inodes but the root are not
+	*/
+	
+	public boolean isInUse(long inodeNum){
+		
+		return used.get(slot(inodeNum)) != 0;
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return mode	type and permissions of the file
+	*/
+	
+	public int getFileMode(long inodeNum){
+		
+		return modes.getShort(2 * slot(inodeNum)) & 0xFFFF;
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return links	number of hard links to the file
+	*/
+	
+	public int getLinks(long inodeNum){
+		
+		return links.getShort(2 * slot(inodeNum)) & 0xFFFF;
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return uid	owner of the file
+	*/
+	
+	public int getUserId(long inodeNum){
+		
+		return uids.getInt(4 * slot(inodeNum));
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return gid	group of the file
+	*/
+	
+	public int getGroupId(long inodeNum){
+		
+		return gids.getInt(4 * slot(inodeNum));
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return size	size of the file in bytes
+	*/
+	
+	public long getFileSize(long inodeNum){
+		
+		return sizes.getLong(8 * slot(inodeNum));
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return sectors	number of 512 bytes sectors allocated to the file
+	*/
+	
+	public long getSectors(long inodeNum){
+		
+		return sectors.getLong(8 * slot(inodeNum));
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return time	last access in seconds since the epoch
+	*/
+	
+	public long getAccessTime(long inodeNum){
+		
+		return accessTimes.getInt(4 * slot(inodeNum)) & 0xffffffffL;
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return time	last change of the inode in seconds since the epoch
+	*/
+	
+	public long getChangeTime(long inodeNum){
+		
+		return changeTimes.getInt(4 * slot(inodeNum)) & 0xffffffffL;
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return time	last modification in seconds since the epoch
+	*/
+	
+	public long getModifiedTime(long inodeNum){
+		
+		return modifiedTimes.getInt(4 * slot(inodeNum)) & 0xffffffffL;
+	}
+	
+	/**
+	* @param inodeNum	number of the inode
+	* @return block		first block the file is mapped to - its first data block, or the first block of its extent tree
+	*					when the tree does not fit into the inode; 0 for files without blocks
+	*/
+	
+	public long getFirstBlock(long inodeNum){
+		
+		return firstBlocks.getLong(8 * slot(inodeNum));
+	}
+	
+	/*
+	* Decode the inodes of a block group, reading the table in large chunks.
+	*/
+	
+	private void loadGroup(int blockGroupNum){
+		
+		long inodesInGroup = volume.getInodesInGrup();
+		int inodeSize = (int) volume.getInodeSize();
+		long perChunk = CHUNK_BLOCKS * volume.getBlockSize() / inodeSize;
+		long tableStart = volume.findInodePointer(blockGroupNum) * volume.getBlockSize();
+		long first = blockGroupNum * inodesInGroup;
+		long firstInode = volume.getFirstInode();
+		long root = volume.getRootInode();
+		
+		for(long done = 0; done < inodesInGroup; done += perChunk){
+			
+			int chunk = (int) Math.min(perChunk, inodesInGroup - done);
+			ByteBuffer buffer = ByteBuffer.wrap(volume.getBytes(tableStart + done * inodeSize, (long) chunk * inodeSize));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(int i = 0; i < chunk && first + done + i < count; i++){
+				
+				int base = i * inodeSize;
+				int slot = (int) (first + done + i);
+				int mode = buffer.getShort(base) & 0xFFFF;
+				int linkCount = buffer.getShort(base + 26) & 0xFFFF;
+				
+				modes.putShort(2 * slot, (short) mode);
+				links.putShort(2 * slot, (short) linkCount);
+				uids.putInt(4 * slot, buffer.getShort(base + 2) & 0xFFFF | (buffer.getShort(base + 120) & 0xFFFF) << 16);
+				gids.putInt(4 * slot, buffer.getShort(base + 24) & 0xFFFF | (buffer.getShort(base + 122) & 0xFFFF) << 16);
+				sizes.putLong(8 * slot, (long) buffer.getInt(base + 108) << 32 | buffer.getInt(base + 4) & 0xffffffffL);
+				sectors.putLong(8 * slot, (buffer.getShort(base + 116) & 0xffffL) << 32 | buffer.getInt(base + 28) & 0xffffffffL);
+				accessTimes.putInt(4 * slot, buffer.getInt(base + 8));
+				changeTimes.putInt(4 * slot, buffer.getInt(base + 12));
+				modifiedTimes.putInt(4 * slot, buffer.getInt(base + 16));
+				firstBlocks.putLong(8 * slot, firstBlock(buffer, base));
+				boolean reserved = slot + 1 < firstInode && slot + 1 != root;	//e.g. the resize inode, no file of the user
+				
+				used.put(slot, (byte) (!reserved && mode != 0 && linkCount > 0 && buffer.getInt(base + 20) == 0 ? 1 : 0));
+			}
+		}
+	}
+	
+	/*
+	* The first block pointer, or the start of the first run of a small extent tree (its root is a leaf)
+	* or the first block below the root of a bigger tree.
+	*/
+	
+	private static long firstBlock(ByteBuffer buffer, int base){
+		
+		if(buffer.getInt(base + 28) == 0) return 0;
+		
+		if((buffer.getInt(base + 32) & 0x80000) == 0) return buffer.getInt(base + 40) & 0xffffffffL;
+		
+		if((buffer.getShort(base + 40) & 0xFFFF) != 0xF30A || buffer.getShort(base + 42) == 0) return 0;
+		
+		if(buffer.getShort(base + 46) == 0) return (buffer.getShort(base + 58) & 0xffffL) << 32 | buffer.getInt(base + 60) & 0xffffffffL;
+		
+		return (buffer.getShort(base + 60) & 0xffffL) << 32 | buffer.getInt(base + 56) & 0xffffffffL;
+	}
+	
+	private ByteBuffer column(int width){
+		
+		return ByteBuffer.allocateDirect(width * count).order(ByteOrder.nativeOrder());
+	}
+	
+	private static int slot(long inodeNum){
+		
+		return (int) (inodeNum - 1);
+	}
+	
+	/*
+	* Run the tasks on the threads of the columns and wait for all of them.
+	*/
+	
+	private void run(List<? extends Runnable> tasks){
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		
+		for(Runnable task: tasks) futures.add(pool.submit(task));
+		
+		try{
+			
+			for(Future<?> future: futures) future.get();
+		
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+		
+		}catch(ExecutionException e){
+			
+			throw new RuntimeException(e.getCause());
+		
+		}finally{
+			
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	* A filter over the inodes in use. Every method narrows the query and returns it, the aggregations run over
+	* the matching inodes split among the threads of the columns.
+	*/
+	
+	public class Query{
+		
+		private int type = -1;
+		private long minSize = Long.MIN_VALUE;
+		private long maxSize = Long.MAX_VALUE;
+		private long minTime = Long.MIN_VALUE;
+		private long maxTime = Long.MAX_VALUE;
+		private int uid = -1;
+		private int gid = -1;
+		private int modeMask;
+		private int modeBits;
+		private List<Predicate> predicates = new ArrayList<Predicate>();
+		
+		private Query(){
+		}
+		
+		/**
+		* @return query	the query narrowed to regular files
+		*/
+		
+		public Query regularFiles(){
+			
+			type = IFREG;
+			return this;
+		}
+		
+		/**
+		* @return query	the query narrowed to directories
+		*/
+		
+		public Query directories(){
+			
+			type = IFDIR;
+			return this;
+		}
+		
+		/**
+		* @return query	the query narrowed to symbolic links
+		*/
+		
+		public Query symbolicLinks(){
+			
+			type = IFLNK;
+			return this;
+		}
+		
+		/**
+		* @param size	size in bytes
+		* @return query	the query narrowed to the files of the size or bigger
+		*/
+		
+		public Query sizeAtLeast(long size){
+			
+			minSize = Math.max(minSize, size);
+			return this;
+		}
+		
+		/**
+		* @param size	size in bytes
+		* @return query	the query narrowed to the files smaller than the size
+		*/
+		
+		public Query sizeBelow(long size){
+			
+			maxSize = Math.min(maxSize, size - 1);
+			return this;
+		}
+		
+		/**
+		* @param time	seconds since the epoch
+		* @return query	the query narrowed to the files modified at the time or later
+		*/
+		
+		public Query modifiedSince(long time){
+			
+			minTime = Math.max(minTime, time);
+			return this;
+		}
+		
+		/**
+		* @param time	seconds since the epoch
+		* @return query	the query narrowed to the files modified before the time
+		*/
+		
+		public Query modifiedBefore(long time){
+			
+			maxTime = Math.min(maxTime, time - 1);
+			return this;
+		}
+		
+		/**
+		* @param uid		id of a user
+		* @return query	the query narrowed to the files of the user
+		*/
+		
+		public Query uid(int uid){
+			
+			this.uid = uid;
+			return this;
+		}
+		
+		/**
+		* @param gid		id of a group
+		* @return query	the query narrowed to the files of the group
+		*/
+		
+		public Query gid(int gid){
+			
+			this.gid = gid;
+			return this;
+		}
+		
+		/**
+		* @param mask	bits of the mode to be checked (e.g. 0002 for writable by others)
+		* @param bits	the value these bits must have
+		* @return query	the narrowed query
+		*/
+		
+		public Query mode(int mask, int bits){
+			
+			modeMask |= mask;
+			modeBits = modeBits & ~mask | bits & mask;
+			return this;
+		}
+		
+		/**
+		* @param predicate	any other condition, it is checked after the built-in ones
+		* @return query		the narrowed query
+		*/
+		
+		public Query where(Predicate predicate){
+			
+			predicates.add(predicate);
+			return this;
+		}
+		
+		/**
+		* @return count	number of matching inodes
+		*/
+		
+		public long count(){
+			
+			return aggregate()[0];
+		}
+		
+		/**
+		* @return bytes	sum of the sizes of the matching files
+		*/
+		
+		public long sumSize(){
+			
+			return aggregate()[1];
+		}
+		
+		/**
+		* @return bytes	sum of the space allocated to the matching files
+		*/
+		
+		public long sumAllocated(){
+			
+			return aggregate()[2] * 512;
+		}
+		
+		/**
+		* @return groups	number of matching files and the sum of their sizes for every owner
+		*/
+		
+		public TreeMap<Integer, long[]> groupByUid(){
+			
+			return group(uids);
+		}
+		
+		/**
+		* @return groups	number of matching files and the sum of their sizes for every group
+		*/
+		
+		public TreeMap<Integer, long[]> groupByGid(){
+			
+			return group(gids);
+		}
+		
+		/**
+		* @param limit		maximum number of inodes returned
+		* @return inodes	numbers of the first matching inodes in their order
+		*/
+		
+		public long[] select(int limit){
+			
+			long[] found = new long[Math.min(limit, 1024)];
+			int length = 0;
+			
+			for(int slot = 0; slot < count && length < limit; slot++){
+				
+				if(!matches(slot)) continue;
+				
+				if(length == found.length) found = Arrays.copyOf(found, Math.min(limit, 2 * length));
+				
+				found[length++] = slot + 1;
+			}
+			
+			return Arrays.copyOf(found, length);
+		}
+		
+		/*
+		* Count, sizes and sectors of the matching inodes, each thread sums a range of the columns.
+		*/
+		
+		private long[] aggregate(){
+			
+			final long[][] parts = new long[threads][3];
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			
+			for(int i = 0; i < threads; i++){
+				
+				final int part = i;
+				
+				tasks.add(new Runnable(){
+					
+					public void run(){
+						
+						long found = 0;
+						long bytes = 0;
+						long allocated = 0;
+						
+						for(int slot = start(part); slot < start(part + 1); slot++){
+							
+							if(!matches(slot)) continue;
+							
+							found++;
+							bytes += sizes.getLong(8 * slot);
+							allocated += sectors.getLong(8 * slot);
+						}
+						
+						parts[part][0] = found;
+						parts[part][1] = bytes;
+						parts[part][2] = allocated;
+					}
+				});
+			}
+			
+			run(tasks);
+			
+			long[] total = new long[3];
+			
+			for(long[] part: parts) for(int i = 0; i < 3; i++) total[i] += part[i];
+			
+			return total;
+		}
+		
+		private TreeMap<Integer, long[]> group(final ByteBuffer keys){
+			
+			final List<Map<Integer, long[]>> parts = new ArrayList<Map<Integer, long[]>>();
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			
+			for(int i = 0; i < threads; i++){
+				
+				final int part = i;
+				final Map<Integer, long[]> groups = new HashMap<Integer, long[]>();
+				
+				parts.add(groups);
+				tasks.add(new Runnable(){
+					
+					public void run(){
+						
+						for(int slot = start(part); slot < start(part + 1); slot++){
+							
+							if(!matches(slot)) continue;
+							
+							int key = keys.getInt(4 * slot);
+							long[] group = groups.get(key);
+							
+							if(group == null) groups.put(key, group = new long[2]);
+							
+							group[0]++;
+							group[1] += sizes.getLong(8 * slot);
+						}
+					}
+				});
+			}
+			
+			run(tasks);
+			
+			TreeMap<Integer, long[]> total = new TreeMap<Integer, long[]>();
+			
+			for(Map<Integer, long[]> part: parts){
+				
+				for(Map.Entry<Integer, long[]> entry: part.entrySet()){
+					
+					long[] group = total.get(entry.getKey());
+					
+					if(group == null) total.put(entry.getKey(), group = new long[2]);
+					
+					group[0] += entry.getValue()[0];
+					group[1] += entry.getValue()[1];
+				}
+			}
+			
+			return total;
+		}
+		
+		private int start(int part){
+			
+			return (int) ((long) count * part / threads);
+		}
+		
+		/*
+		* The cheapest columns are checked first, most inodes fail on them.
+		*/
+		
+		private boolean matches(int slot){
+			
+			if(used.get(slot) == 0) return false;
+			
+			int mode = modes.getShort(2 * slot) & 0xFFFF;
+			
+			if(type >= 0 && (mode & IFMT) != type) return false;
+			if((mode & modeMask) != modeBits) return false;
+			
+			long size = sizes.getLong(8 * slot);
+			
+			if(size < minSize || size > maxSize) return false;
+			
+			long time = modifiedTimes.getInt(4 * slot) & 0xffffffffL;
+			
+			if(time < minTime || time > maxTime) return false;
+			
+			if(uid >= 0 && uids.getInt(4 * slot) != uid) return false;
+			if(gid >= 0 && gids.getInt(4 * slot) != gid) return false;
+			
+			for(Predicate predicate: predicates){
+				
+				if(!predicate.test(InodeColumns.this, slot + 1)) return false;
+			}
+			
+			return true;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+* A class which scans the inode tables of a whole volume in parallel.
+* Each block group is handed to a separate task, its inode table is read sequentially in large chunks
+* and every inode which is in use is passed to a visitor.
+*
+* @author Michal Radecki
+*/
+
+public class InodeScanner{
+	
+	private static final int CHUNK_BLOCKS = 64;		//Number of inode table blocks read at once
+	
+	private Volume volume;
+	private int threads;
+	private boolean deleted;
+	
+	/**
+	* A callback which receives the inodes found by the scanner.
+	* It is called from several threads at once, so it has to be thread safe.
+	*/
+	
+	public interface Visitor{
+		
+		void visit(Inode inode);
+	}
+	
+	/**
+	* Create a scanner which uses one thread per available processor.
+	*
+	* @param volume	filesystem to be scanned
+	*/
+	
+	public InodeScanner(Volume volume){
+		
+		this(volume, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	* Create a scanner with the given number of threads.
+	*
+	* @param volume		filesystem to be scanned
+	* @param threads	number of block groups scanned at the same time
+	*/
+	
+	public InodeScanner(Volume volume, int threads){
+		
+		this.volume = volume;
+		this.threads = Math.max(1, threads);
+	}
+	
+	/**
+	* Choose whether deleted inodes (with the deletion time set and the mode left) are visited as well,
+	* e.g. to recover the files they held.
+	*
+	* @param deleted	true to visit deleted inodes too
+	*/
+	
+	public void setDeleted(boolean deleted){
+		
+		this.deleted = deleted;
+	}
+	
+	/**
+	* Visit every inode in use in the volume. Returns when all the block groups have been scanned.
+	*
+	* @param visitor	callback which receives the inodes
+	*/
+	
+	public void scan(final Visitor visitor){
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		
+		for(int i = 0; i < volume.getGroupCount(); i++){
+			
+			final int blockGroupNum = i;
+			
+			tasks.add(pool.submit(new Runnable(){
+				
+				public void run(){
+					
+					scanGroup(blockGroupNum, visitor);
+				}
+			}));
+		}
+		
+		try{
+			
+			for(Future<?> task: tasks) task.get();
+			
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+			
+		}catch(ExecutionException e){
+			
+			throw new RuntimeException(e.getCause());
+			
+		}finally{
+			
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	* Visit every inode in use in a single block group.
+	*
+	* @param blockGroupNum	number of the block group
+	* @param visitor		callback which receives the inodes
+	*/
+	
+	public void scanGroup(int blockGroupNum, Visitor visitor){
+		
+		long inodesInGroup = volume.getInodesInGrup();
+		long inodeSize = volume.getInodeSize();
+		long perChunk = CHUNK_BLOCKS * volume.getBlockSize() / inodeSize;
+		long tableStart = volume.findInodePointer(blockGroupNum) * volume.getBlockSize();
+		long firstInode = blockGroupNum * inodesInGroup + 1;
+		
+		for(long done = 0; done < inodesInGroup; done += perChunk){
+			
+			long count = Math.min(perChunk, inodesInGroup - done);
+			
+			ByteBuffer buffer = ByteBuffer.wrap(volume.getBytes(tableStart + done * inodeSize, count * inodeSize));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(int i = 0; i < count; i++){
+				
+				buffer.position((int) (i * inodeSize));
+				Inode inode = new Inode(firstInode + done + i, buffer);
+				
+				if(inode.isInUse() || deleted && inode.getDeletedTime() != 0 && inode.getFileMode() != 0) visitor.visit(inode);
+			}
+		}
+	}
+}
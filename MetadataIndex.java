@@ -0,0 +1,578 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+* A sidecar file which holds the metadata of a read-only image, so it does not have to be decoded again every time the image is opened.
+*
+* The file is built once with build() and then memory mapped by open(). It is columnar - every field is stored as a separate
+* little endian array, so only the pages which are used are ever read:
+*
+* - a summary of every inode in use (number, mode, owner, links, size, modification time) ordered by the inode number,
+* - extents of every regular file and directory,
+* - all the paths of the image ordered by their UTF-8 bytes, with the inode each of them points to.
+*
+* The header holds the UUID and the mount and write times of the volume, so an index of another image or of an image
+* which has been changed is rejected, and CRC32 checksums of the header and of the body. The body checksum is checked
+* only by verify(), as checking it on every open would read the whole file.
+*
+* @author Michal Radecki
+*/
+
+public class MetadataIndex{
+	
+	private static final int MAGIC = 0x58493245;		//"E2IX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 128;
+	private static final int HEADER_CRC_OFFSET = 80;
+	
+	private FileChannel channel;
+	private long inodes;
+	private long extents;
+	private long paths;
+	private long arenaSize;
+	private long bodyCrc;
+	
+	private ByteBuffer sizes;
+	private ByteBuffer extentStarts;
+	private ByteBuffer logicalBlocks;
+	private ByteBuffer physicalBlocks;
+	private ByteBuffer lengths;
+	private ByteBuffer pathOffsets;
+	private ByteBuffer inodeNums;
+	private ByteBuffer modes;
+	private ByteBuffer userIds;
+	private ByteBuffer groupIds;
+	private ByteBuffer links;
+	private ByteBuffer modifiedTimes;
+	private ByteBuffer pathInodes;
+	private ByteBuffer arena;
+	
+	private MetadataIndex(){
+	}
+	
+	/**
+	* Returns the usual name of the sidecar of an image - the name of the image followed by ".e2idx".
+	*
+	* @param fileName	path to the image
+	* @return file		the sidecar file
+	*/
+	
+	public static File sidecarOf(String fileName){
+		
+		return new File(fileName + ".e2idx");
+	}
+	
+	/**
+	* Scan the whole volume and write its index. The file is written under a temporary name and renamed at the end,
+	* so a reader never sees a half written index.
+	*
+	* @param volume	filesystem to be indexed
+	* @param file	sidecar file to be written
+	*/
+	
+	public static void build(final Volume volume, File file) throws IOException{
+		
+		final List<Inode> found = Collections.synchronizedList(new ArrayList<Inode>());
+		final Map<Long, ArrayList<Extent>> layouts = new ConcurrentHashMap<Long, ArrayList<Extent>>();
+		final Set<Long> directories = ConcurrentHashMap.newKeySet();
+		
+		new InodeScanner(volume).scan(new InodeScanner.Visitor(){
+			
+			public void visit(Inode inode){
+				
+				found.add(inode);
+				
+				if(inode.isDirectory()) directories.add(inode.getInodeNum());
+				if(inode.isDirectory() || inode.isRegularFile()) layouts.put(inode.getInodeNum(), volume.getExtents(inode.getInodeNum()));
+			}
+		});
+		
+		List<Inode> table = new ArrayList<Inode>(found);
+		
+		Collections.sort(table, new Comparator<Inode>(){
+			
+			public int compare(Inode a, Inode b){
+				
+				return Long.compare(a.getInodeNum(), b.getInodeNum());
+			}
+		});
+		
+		// Collect the namespace
+		final List<byte[]> names = new ArrayList<byte[]>();
+		final List<Integer> targets = new ArrayList<Integer>();
+		
+		names.add("/".getBytes(StandardCharsets.UTF_8));
+		targets.add((int) volume.getRootInode());
+		
+		new Directory(volume).walk(volume.getRootInode(), "", new Directory.Walker(){
+			
+			public boolean visit(String path, int inodeNum){
+				
+				names.add(path.getBytes(StandardCharsets.UTF_8));
+				targets.add(inodeNum);
+				
+				return directories.contains((long) inodeNum);
+			}
+		});
+		
+		Integer[] order = new Integer[names.size()];
+		
+		for(int i = 0; i < order.length; i++) order[i] = i;
+		
+		Arrays.sort(order, new Comparator<Integer>(){
+			
+			public int compare(Integer a, Integer b){
+				
+				return compareBytes(names.get(a), names.get(b));
+			}
+		});
+		
+		long extentCount = 0;
+		long arenaBytes = 0;
+		
+		for(ArrayList<Extent> layout: layouts.values()) extentCount += layout.size();
+		for(byte[] name: names) arenaBytes += name.length;
+		
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+		
+		try{
+			
+			out.setLength(0);
+			
+			ColumnWriter writer = new ColumnWriter(out.getChannel(), HEADER_SIZE);
+			long m = table.size();
+			
+			for(Inode inode: table) writer.putLong(inode.getFileSize());
+			
+			long start = 0;
+			
+			for(Inode inode: table){
+				
+				writer.putLong(start);
+				start += layoutOf(layouts, inode).size();
+			}
+			
+			writer.putLong(start);
+			
+			for(Inode inode: table) for(Extent extent: layoutOf(layouts, inode)) writer.putLong(extent.getLogicalBlock());
+			for(Inode inode: table) for(Extent extent: layoutOf(layouts, inode)) writer.putLong(extent.getPhysicalBlock());
+			for(Inode inode: table) for(Extent extent: layoutOf(layouts, inode)) writer.putLong(extent.getLength());
+			
+			long offset = 0;
+			
+			for(Integer i: order){
+				
+				writer.putLong(offset);
+				offset += names.get(i).length;
+			}
+			
+			writer.putLong(offset);
+			
+			for(Inode inode: table) writer.putInt((int) inode.getInodeNum());
+			for(Inode inode: table) writer.putInt(inode.getFileMode());
+			for(Inode inode: table) writer.putInt(inode.getUserId());
+			for(Inode inode: table) writer.putInt(inode.getGroupId());
+			for(Inode inode: table) writer.putInt(inode.getLinks());
+			for(Inode inode: table) writer.putInt((int) inode.getModifiedTime());
+			for(Integer i: order) writer.putInt(targets.get(i));
+			for(Integer i: order) writer.putBytes(names.get(i));
+			
+			writer.flush();
+			
+			// The header is written last, together with the checksums
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.put(volume.getUUID());
+			header.putLong(volume.getMountTime());
+			header.putLong(volume.getWriteTime());
+			header.putLong(m);
+			header.putLong(extentCount);
+			header.putLong(names.size());
+			header.putLong(arenaBytes);
+			header.putLong(writer.getCrc());
+			
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, HEADER_CRC_OFFSET);
+			header.putLong(HEADER_CRC_OFFSET, crc.getValue());
+			header.position(0);
+			
+			out.getChannel().write(header, 0);
+			out.getChannel().force(true);
+			
+		}finally{
+			
+			out.close();
+		}
+		
+		if(!temporary.renameTo(file)){
+			
+			file.delete();
+			
+			if(!temporary.renameTo(file)) throw new IOException("Cannot rename " + temporary + " to " + file);
+		}
+	}
+	
+	private static List<Extent> layoutOf(Map<Long, ArrayList<Extent>> layouts, Inode inode){
+		
+		List<Extent> layout = layouts.get(inode.getInodeNum());
+		
+		return layout == null ? Collections.<Extent>emptyList() : layout;
+	}
+	
+	/**
+	* Open the index of a volume. The index is rejected if it is damaged or was built for another image or another state of the image.
+	*
+	* @param volume	filesystem the index should describe
+	* @param file	sidecar file
+	* @return index	the index, null if it cannot be used
+	*/
+	
+	public static MetadataIndex open(Volume volume, File file){
+		
+		if(!file.exists()) return null;
+		
+		MetadataIndex index = new MetadataIndex();
+		
+		try{
+			
+			index.channel = new RandomAccessFile(file, "r").getChannel();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			
+			while(header.hasRemaining() && index.channel.read(header, header.position()) > 0);
+			
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, HEADER_CRC_OFFSET);
+			
+			byte[] uuid = new byte[16];
+			header.position(8);
+			header.get(uuid);
+			
+			if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(HEADER_CRC_OFFSET) != crc.getValue()){
+				
+				System.out.println("Index " + file + " is damaged!");
+				index.close();
+				return null;
+			}
+			
+			if(!Arrays.equals(uuid, volume.getUUID()) || header.getLong(24) != volume.getMountTime() || header.getLong(32) != volume.getWriteTime()){
+				
+				System.out.println("Index " + file + " does not match the volume!");
+				index.close();
+				return null;
+			}
+			
+			index.inodes = header.getLong(40);
+			index.extents = header.getLong(48);
+			index.paths = header.getLong(56);
+			index.arenaSize = header.getLong(64);
+			index.bodyCrc = header.getLong(72);
+			index.mapColumns();
+			
+		}catch(IOException e){
+			
+			System.out.println("Index " + file + " cannot be read!");
+			
+			if(index.channel != null) index.close();
+			return null;
+		}
+		
+		return index;
+	}
+	
+	/*
+	* Map every column of the body.
+	*/
+	
+	private void mapColumns() throws IOException{
+		
+		long position = HEADER_SIZE;
+		
+		sizes = map(position, 8 * inodes);					position += 8 * inodes;
+		extentStarts = map(position, 8 * (inodes + 1));		position += 8 * (inodes + 1);
+		logicalBlocks = map(position, 8 * extents);			position += 8 * extents;
+		physicalBlocks = map(position, 8 * extents);		position += 8 * extents;
+		lengths = map(position, 8 * extents);				position += 8 * extents;
+		pathOffsets = map(position, 8 * (paths + 1));		position += 8 * (paths + 1);
+		inodeNums = map(position, 4 * inodes);				position += 4 * inodes;
+		modes = map(position, 4 * inodes);					position += 4 * inodes;
+		userIds = map(position, 4 * inodes);				position += 4 * inodes;
+		groupIds = map(position, 4 * inodes);				position += 4 * inodes;
+		links = map(position, 4 * inodes);					position += 4 * inodes;
+		modifiedTimes = map(position, 4 * inodes);			position += 4 * inodes;
+		pathInodes = map(position, 4 * paths);				position += 4 * paths;
+		arena = map(position, arenaSize);
+	}
+	
+	private ByteBuffer map(long position, long length) throws IOException{
+		
+		if(length > Integer.MAX_VALUE) throw new IOException("Column too large to be mapped");
+		
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		return buffer;
+	}
+	
+	/**
+	* Check the checksum of the whole body of the index.
+	*
+	* @return true if the body is intact
+	*/
+	
+	public boolean verify(){
+		
+		try{
+			
+			CRC32 crc = new CRC32();
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+			
+			for(long position = HEADER_SIZE; ; ){
+				
+				buffer.clear();
+				
+				int count = channel.read(buffer, position);
+				
+				if(count <= 0) break;
+				
+				crc.update(buffer.array(), 0, count);
+				position += count;
+			}
+			
+			return crc.getValue() == bodyCrc;
+			
+		}catch(IOException e){
+			
+			return false;
+		}
+	}
+	
+	/**
+	* Release the mapped file.
+	*/
+	
+	public void close(){
+		
+		try{
+			
+			channel.close();
+			
+		}catch(IOException e){
+			
+			System.out.println("Index cannot be closed!");
+		}
+	}
+	
+	/**
+	* Find the inode a path points to. The path has to be absolute, a trailing "/" is ignored.
+	*
+	* @param path		path in the filesystem
+	* @return inodeNum	number of the inode, -1 if there is no such path
+	*/
+	
+	public int lookup(String path){
+		
+		if(path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+		
+		byte[] key = path.getBytes(StandardCharsets.UTF_8);
+		long low = 0;
+		long high = paths - 1;
+		
+		while(low <= high){
+			
+			long middle = (low + high) >>> 1;
+			int start = (int) pathOffsets.getLong((int) (8 * middle));
+			int end = (int) pathOffsets.getLong((int) (8 * middle + 8));
+			int result = compareArena(start, end, key);
+			
+			if(result < 0) low = middle + 1;
+			else if(result > 0) high = middle - 1;
+			else return pathInodes.getInt((int) (4 * middle));
+		}
+		
+		return -1;
+	}
+	
+	/**
+	* @return number of paths in the index
+	*/
+	
+	public long getPathCount(){
+		
+		return paths;
+	}
+	
+	/**
+	* Returns a path of the given rank in the sorted order.
+	*
+	* @param i		rank of the path
+	* @return path	the path
+	*/
+	
+	public String getPath(long i){
+		
+		int start = (int) pathOffsets.getLong((int) (8 * i));
+		int end = (int) pathOffsets.getLong((int) (8 * i + 8));
+		byte[] bytes = new byte[end - start];
+		
+		for(int j = 0; j < bytes.length; j++) bytes[j] = arena.get(start + j);
+		
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	* Returns the inode the path of the given rank points to.
+	*
+	* @param i			rank of the path
+	* @return inodeNum	number of the inode
+	*/
+	
+	public int getPathInode(long i){
+		
+		return pathInodes.getInt((int) (4 * i));
+	}
+	
+	/**
+	* @return number of inodes in use described by the index
+	*/
+	
+	public long getInodeCount(){
+		
+		return inodes;
+	}
+	
+	public long getFileSize(long inodeNum){
+		
+		int row = row(inodeNum);
+		
+		return row < 0 ? -1 : sizes.getLong(8 * row);
+	}
+	
+	public int getFileMode(long inodeNum){
+		
+		int row = row(inodeNum);
+		
+		return row < 0 ? -1 : modes.getInt(4 * row);
+	}
+	
+	public int getUserId(long inodeNum){
+		
+		int row = row(inodeNum);
+		
+		return row < 0 ? -1 : userIds.getInt(4 * row);
+	}
+	
+	public int getGroupId(long inodeNum){
+		
+		int row = row(inodeNum);
+		
+		return row < 0 ? -1 : groupIds.getInt(4 * row);
+	}
+	
+	public int getLinks(long inodeNum){
+		
+		int row = row(inodeNum);
+		
+		return row < 0 ? -1 : links.getInt(4 * row);
+	}
+	
+	public long getModifiedTime(long inodeNum){
+		
+		int row = row(inodeNum);
+		
+		return row < 0 ? -1 : modifiedTimes.getInt(4 * row) & 0xffffffffL;
+	}
+	
+	/**
+	* Returns the extents of a file as stored in the index.
+	*
+	* @param inodeNum	number of the inode
+	* @return extents	extents ordered by logical block, empty if the inode is not in the index
+	*/
+	
+	public ArrayList<Extent> getExtents(long inodeNum){
+		
+		ArrayList<Extent> list = new ArrayList<Extent>();
+		int row = row(inodeNum);
+		
+		if(row < 0) return list;
+		
+		long end = extentStarts.getLong(8 * row + 8);
+		
+		for(long i = extentStarts.getLong(8 * row); i < end; i++){
+			
+			list.add(new Extent(logicalBlocks.getLong((int) (8 * i)), physicalBlocks.getLong((int) (8 * i)), lengths.getLong((int) (8 * i))));
+		}
+		
+		return list;
+	}
+	
+	/*
+	* Binary search for the row of an inode in the inode columns.
+	*/
+	
+	private int row(long inodeNum){
+		
+		int low = 0;
+		int high = (int) inodes - 1;
+		
+		while(low <= high){
+			
+			int middle = (low + high) >>> 1;
+			long value = inodeNums.getInt(4 * middle) & 0xffffffffL;
+			
+			if(value < inodeNum) low = middle + 1;
+			else if(value > inodeNum) high = middle - 1;
+			else return middle;
+		}
+		
+		return -1;
+	}
+	
+	private int compareArena(int start, int end, byte[] key){
+		
+		int length = Math.min(end - start, key.length);
+		
+		for(int i = 0; i < length; i++){
+			
+			int result = (arena.get(start + i) & 0xFF) - (key[i] & 0xFF);
+			
+			if(result != 0) return result;
+		}
+		
+		return (end - start) - key.length;
+	}
+	
+	private static int compareBytes(byte[] a, byte[] b){
+		
+		int length = Math.min(a.length, b.length);
+		
+		for(int i = 0; i < length; i++){
+			
+			int result = (a[i] & 0xFF) - (b[i] & 0xFF);
+			
+			if(result != 0) return result;
+		}
+		
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,555 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/**
+* The whole namespace of a volume - every path and its inode - in a few primitive arrays, for images with millions of files.
+*
+* The tree is read by walking all the directories once. Its nodes are numbered breadth first and the entries of every
+* directory get consecutive numbers, sorted by the bytes of their names, so a directory only keeps the number of its
+* first entry and the number of entries follows from the next node. The names are kept once, as the bytes found in
+* the directory entries (UTF-8), one after another in a single array in the order of the nodes. A node takes 13 bytes
+* and its name - about 35 bytes for a typical file, against several hundred for a String in a TreeMap - so the
+* namespace of 10 million files fits in well under 1 GB.
+*
+*	NamespaceTree tree = NamespaceTree.build(volume);
+*	long inodeNum = tree.lookup("/usr/lib/libc.so.6");
+*	for(int node: tree.list("/usr/lib", "libc")) System.out.println(tree.getPath(node));
+*
+* A lookup is a binary search in every directory of the path, "." and ".." are understood and symbolic links are not
+* followed. Node 0 is the root directory.
+*
+* @author Michal Radecki
+*/
+
+public class NamespaceTree{
+	
+	/**
+	* Type of an entry as kept in directory entries.
+	*/
+	
+	public static final int FILE = 1;
+	public static final int DIRECTORY = 2;
+	public static final int SYMLINK = 7;
+	
+	private static final int FILETYPE_FEATURE = 0x2;	//Directory entries hold the type of the file
+	private static final int[] TYPES = { 0, 5, 3, 0, 2, 0, 4, 0, 1, 0, 7, 0, 6, 0, 0, 0 };	//Entry types by the top bits of the mode
+	
+	private int count;
+	private int[] inodes;
+	private int[] names;			//Offset of the name of a node, the next one ends it
+	private int[] children;			//First entry of a directory, the first entry of the next node ends its entries
+	private byte[] types;
+	private byte[] arena;
+	
+	private NamespaceTree(){
+		
+		inodes = new int[1024];
+		names = new int[1025];
+		children = new int[1025];
+		types = new byte[1024];
+		arena = new byte[16384];
+	}
+	
+	/**
+	* Read the namespace of a volume, from the root directory down.
+	*
+	* @param volume	the volume
+	* @return tree	the namespace
+	*/
+	
+	public static NamespaceTree build(Volume volume){
+		
+		NamespaceTree tree = new NamespaceTree();
+		boolean typed = (volume.getFeatureIncompat() & FILETYPE_FEATURE) != 0;
+		BitSet expanded = new BitSet((int) Math.min(Integer.MAX_VALUE, volume.getInodesInSys() + 1));
+		Entries entries = new Entries();
+		
+		tree.add(new byte[0], 0, 0, volume.getRootInode(), DIRECTORY);
+		
+		// The nodes are expanded in their order, which is the order of a breadth first walk
+		for(int node = 0; node < tree.count; node++){
+			
+			tree.children[node] = tree.count;
+			
+			long inodeNum = tree.getInodeNum(node);
+			
+			// A directory reached twice (a corrupted volume) is left empty the second time
+			if(tree.types[node] != DIRECTORY || inodeNum > Integer.MAX_VALUE || expanded.get((int) inodeNum)) continue;
+			
+			expanded.set((int) inodeNum);
+			entries.read(volume, inodeNum);
+			
+			for(int i = 0; i < entries.count; i++){
+				
+				int entry = entries.order[i];
+				int type = typed ? entries.types[entry] : TYPES[(int) (entries.mode(volume, entry) >>> 12) & 0xF];
+				
+				tree.add(entries.arena, entries.names[entry], entries.lengths[entry], entries.inodes[entry] & 0xFFFFFFFFL, type);
+			}
+		}
+		
+		tree.children[tree.count] = tree.count;
+		tree.trim();
+		
+		return tree;
+	}
+	
+	/**
+	* @return count	number of nodes, the root directory included
+	*/
+	
+	public int size(){
+		
+		return count;
+	}
+	
+	/**
+	* @return bytes	memory taken by the arrays of the tree
+	*/
+	
+	public long getMemory(){
+		
+		return 4L * (inodes.length + names.length + children.length) + types.length + arena.length;
+	}
+	
+	/**
+	* Find the inode of a path.
+	*
+	* @param path		an absolute path (a relative one starts at the root too)
+	* @return inodeNum	number of the inode, 0 if there is no such path
+	*/
+	
+	public long lookup(String path){
+		
+		int node = find(path);
+		
+		return node < 0 ? 0 : getInodeNum(node);
+	}
+	
+	/**
+	* Find the node of a path.
+	*
+	* @param path	an absolute path (a relative one starts at the root too)
+	* @return node	number of the node, -1 if there is no such path
+	*/
+	
+	public int find(String path){
+		
+		byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+		int node = 0;
+		
+		for(int start = 0, end; start < bytes.length; start = end + 1){
+			
+			for(end = start; end < bytes.length && bytes[end] != '/'; end++);
+			
+			int length = end - start;
+			
+			if(length == 0 || length == 1 && bytes[start] == '.') continue;
+			
+			if(length == 2 && bytes[start] == '.' && bytes[start + 1] == '.') node = getParent(node);
+			else node = child(node, bytes, start, length, false);
+			
+			if(node < 0) return -1;
+		}
+		
+		return node;
+	}
+	
+	/**
+	* Returns the entries of a directory whose names start with a prefix, in the order of their names.
+	*
+	* @param path		path of the directory
+	* @param prefix		the start of the names, "" for all the entries
+	* @return nodes		numbers of the nodes of the entries, empty if there is no such directory
+	*/
+	
+	public int[] list(String path, String prefix){
+		
+		int node = find(path);
+		
+		if(node < 0) return new int[0];
+		
+		byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+		int first = child(node, bytes, 0, bytes.length, true);
+		int end = first;
+		
+		while(end < children[node + 1] && startsWith(end, bytes)) end++;
+		
+		int[] nodes = new int[end - first];
+		
+		for(int i = 0; i < nodes.length; i++) nodes[i] = first + i;
+		
+		return nodes;
+	}
+	
+	/**
+	* Visit a node and everything below it depth first, the entries of every directory in the order of their names.
+	*
+	* @param node		number of the node the walk starts at
+	* @param visitor	called for every node, it may stop the walk
+	*/
+	
+	public void walk(int node, Visitor visitor){
+		
+		int[] stack = new int[64];
+		int[] next = new int[64];
+		StringBuilder path = new StringBuilder(node == 0 ? "" : getPath(node));
+		int[] lengths = new int[64];
+		int depth = 0;
+		
+		if(!visitor.visit(node, node == 0 ? "/" : path.toString())) return;
+		
+		stack[0] = node;
+		next[0] = children[node];
+		lengths[0] = path.length();
+		
+		while(depth >= 0){
+			
+			int current = next[depth]++;
+			
+			if(current >= children[stack[depth] + 1]){
+				
+				depth--;
+				continue;
+			}
+			
+			path.setLength(lengths[depth]);
+			path.append('/').append(getName(current));
+			
+			if(!visitor.visit(current, path.toString())) return;
+			
+			if(children[current] == children[current + 1]) continue;
+			
+			if(++depth == stack.length){
+				
+				stack = Arrays.copyOf(stack, depth * 2);
+				next = Arrays.copyOf(next, depth * 2);
+				lengths = Arrays.copyOf(lengths, depth * 2);
+			}
+			
+			stack[depth] = current;
+			next[depth] = children[current];
+			lengths[depth] = path.length();
+		}
+	}
+	
+	/**
+	* Called for every node of a walk.
+	*/
+	
+	public interface Visitor{
+		
+		/**
+		* @param node		number of the node
+		* @param path		its path
+		* @return more		false to stop the walk
+		*/
+		
+		boolean visit(int node, String path);
+	}
+	
+	/**
+	* @param node		number of a node
+	* @return name		its name, "" for the root
+	*/
+	
+	public String getName(int node){
+		
+		return new String(arena, names[node], names[node + 1] - names[node], StandardCharsets.UTF_8);
+	}
+	
+	/**
+	* @param node		number of a node
+	* @return inodeNum	number of its inode
+	*/
+	
+	public long getInodeNum(int node){
+		
+		return inodes[node] & 0xFFFFFFFFL;
+	}
+	
+	/**
+	* @param node	number of a node
+	* @return type	the type of its entry, e.g. FILE, DIRECTORY or SYMLINK
+	*/
+	
+	public int getType(int node){
+		
+		return types[node];
+	}
+	
+	/**
+	* @param node	number of a node
+	* @return count	number of its entries, 0 for anything but a directory
+	*/
+	
+	public int getChildCount(int node){
+		
+		return children[node + 1] - children[node];
+	}
+	
+	/**
+	* Returns the directory holding a node, found by a binary search among the first entries of the directories.
+	*
+	* @param node		number of a node
+	* @return parent	number of its directory, 0 for the root
+	*/
+	
+	public int getParent(int node){
+		
+		if(node == 0) return 0;
+		
+		// The last node whose entries start at or before this one
+		int low = 0;
+		int high = node - 1;
+		
+		while(low < high){
+			
+			int middle = (low + high + 1) >>> 1;
+			
+			if(children[middle] <= node) low = middle;
+			else high = middle - 1;
+		}
+		
+		return low;
+	}
+	
+	/**
+	* @param node	number of a node
+	* @return path	its absolute path
+	*/
+	
+	public String getPath(int node){
+		
+		if(node == 0) return "/";
+		
+		StringBuilder path = new StringBuilder();
+		
+		for(; node != 0; node = getParent(node)) path.insert(0, getName(node)).insert(0, '/');
+		
+		return path.toString();
+	}
+	
+	/*
+	* The entry of a directory with a name, -1 if there is none. With lowest set, the first entry which is not smaller
+	* than the name is returned instead.
+	*/
+	
+	private int child(int node, byte[] name, int start, int length, boolean lowest){
+		
+		int low = children[node];
+		int high = children[node + 1] - 1;
+		
+		while(low <= high){
+			
+			int middle = (low + high) >>> 1;
+			int order = compare(middle, name, start, length);
+			
+			if(order < 0) low = middle + 1;
+			else if(order > 0 || lowest) high = middle - 1;
+			else return middle;
+		}
+		
+		return lowest ? low : -1;
+	}
+	
+	/*
+	* Order of the name of a node and a name, by their unsigned bytes.
+	*/
+	
+	private int compare(int node, byte[] name, int start, int length){
+		
+		int offset = names[node];
+		int nodeLength = names[node + 1] - offset;
+		
+		for(int i = 0; i < nodeLength && i < length; i++){
+			
+			int order = (arena[offset + i] & 0xFF) - (name[start + i] & 0xFF);
+			
+			if(order != 0) return order;
+		}
+		
+		return nodeLength - length;
+	}
+	
+	private boolean startsWith(int node, byte[] prefix){
+		
+		int offset = names[node];
+		
+		if(names[node + 1] - offset < prefix.length) return false;
+		
+		for(int i = 0; i < prefix.length; i++) if(arena[offset + i] != prefix[i]) return false;
+		
+		return true;
+	}
+	
+	/*
+	* Append a node, growing the arrays by half when they are full.
+	*/
+	
+	private void add(byte[] bytes, int offset, int length, long inodeNum, int type){
+		
+		int used = names[count];
+		
+		if(count + 1 == inodes.length){
+			
+			int size = (int) Math.min(Integer.MAX_VALUE - 8, inodes.length + (long) inodes.length / 2);
+			
+			if(size <= count + 1) throw new IllegalStateException("Too many entries for a namespace tree!");
+			
+			inodes = Arrays.copyOf(inodes, size);
+			names = Arrays.copyOf(names, size + 1);
+			children = Arrays.copyOf(children, size + 1);
+			types = Arrays.copyOf(types, size);
+		}
+		
+		if((long) used + length > arena.length){
+			
+			long size = Math.max((long) used + length, arena.length + (long) arena.length / 2);
+			
+			if(size > Integer.MAX_VALUE - 8) throw new IllegalStateException("The names take more than 2 GB!");
+			
+			arena = Arrays.copyOf(arena, (int) size);
+		}
+		
+		System.arraycopy(bytes, offset, arena, used, length);
+		inodes[count] = (int) inodeNum;
+		types[count] = (byte) type;
+		names[++count] = used + length;
+	}
+	
+	/*
+	* Drop the room left at the ends of the arrays.
+	*/
+	
+	private void trim(){
+		
+		inodes = Arrays.copyOf(inodes, count);
+		names = Arrays.copyOf(names, count + 1);
+		children = Arrays.copyOf(children, count + 1);
+		types = Arrays.copyOf(types, count);
+		arena = Arrays.copyOf(arena, names[count]);
+	}
+	
+	/*
+	* The entries of one directory, read from its blocks and sorted by their names. The arrays are reused for every directory.
+	*/
+	
+	private static class Entries{
+		
+		private int count;
+		private byte[] arena = new byte[65536];
+		private int[] names = new int[1024];
+		private int[] lengths = new int[1024];
+		private int[] inodes = new int[1024];
+		private byte[] types = new byte[1024];
+		private int[] order = new int[1024];
+		
+		private void read(Volume volume, long inodeNum){
+			
+			int blockSize = (int) volume.getBlockSize();
+			int used = 0;
+			
+			count = 0;
+			
+			for(Extent extent: volume.getExtents(inodeNum)){
+				
+				byte[] bytes = volume.getBytes(extent.getPhysicalBlock() * blockSize, extent.getLength() * blockSize);
+				ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+				
+				for(int block = 0; block < bytes.length; block += blockSize){
+					
+					for(int position = block; position + 8 <= block + blockSize; ){
+						
+						int inode = buffer.getInt(position);
+						int length = buffer.getShort(position + 4) & 0xFFFF;
+						int nameLength = bytes[position + 6] & 0xFF;
+						
+						// A corrupted entry would never let us leave the block
+						if(length < 8 || position + length > block + blockSize || nameLength > length - 8) break;
+						
+						boolean dot = nameLength == 1 && bytes[position + 8] == '.' || nameLength == 2 && bytes[position + 8] == '.' && bytes[position + 9] == '.';
+						
+						// Entries with inode 0 are unused space
+						if(inode != 0 && nameLength > 0 && !dot){
+							
+							if(count == inodes.length) grow();
+							
+							if(used + nameLength > arena.length) arena = Arrays.copyOf(arena, arena.length * 2);
+							
+							System.arraycopy(bytes, position + 8, arena, used, nameLength);
+							names[count] = used;
+							lengths[count] = nameLength;
+							inodes[count] = inode;
+							types[count] = bytes[position + 7];
+							order[count] = count;
+							used += nameLength;
+							count++;
+						}
+						
+						position += length;
+					}
+				}
+			}
+			
+			sort();
+		}
+		
+		/*
+		* Sort the order of the entries by the unsigned bytes of their names.
+		*/
+		
+		private void sort(){
+			
+			Integer[] sorted = new Integer[count];
+			
+			for(int i = 0; i < count; i++) sorted[i] = i;
+			
+			Arrays.sort(sorted, new Comparator<Integer>(){
+				
+				public int compare(Integer a, Integer b){
+					
+					int first = names[a];
+					int second = names[b];
+					
+					for(int i = 0; i < lengths[a] && i < lengths[b]; i++){
+						
+						int order = (arena[first + i] & 0xFF) - (arena[second + i] & 0xFF);
+						
+						if(order != 0) return order;
+					}
+					
+					return lengths[a] - lengths[b];
+				}
+			});
+			
+			for(int i = 0; i < count; i++) order[i] = sorted[i];
+		}
+		
+		/*
+		* The mode of the inode of an entry, for volumes whose entries do not hold the type.
+		*/
+		
+		private long mode(Volume volume, int entry){
+			
+			byte[] inode = volume.getInodeBytes(inodes[entry] & 0xFFFFFFFFL);
+			
+			return (inode[0] & 0xFF) | (inode[1] & 0xFF) << 8;
+		}
+		
+		private void grow(){
+			
+			int size = inodes.length * 2;
+			
+			names = Arrays.copyOf(names, size);
+			lengths = Arrays.copyOf(lengths, size);
+			inodes = Arrays.copyOf(inodes, size);
+			types = Arrays.copyOf(types, size);
+			order = Arrays.copyOf(order, size);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+* A part of another device, e.g. a partition of a disk image, seen as a device of its own.
+* Closing it leaves the underlying device open, it is shared by all its parts.
+*
+* @author Michal Radecki
+*/
+
+public class OffsetDevice implements BlockDevice{
+	
+	private BlockDevice device;
+	private long start;
+	private long length;
+	
+	/**
+	* @param device	the whole device
+	* @param start	offset of the part in bytes
+	* @param length	size of the part in bytes
+	*/
+	
+	public OffsetDevice(BlockDevice device, long start, long length){
+		
+		this.device = device;
+		this.start = start;
+		this.length = length;
+	}
+	
+	public int read(long position, ByteBuffer buffer) throws IOException{
+		
+		if(position >= length) return -1;
+		
+		//Do not let the read run into the next part
+		int limit = buffer.limit();
+		
+		if(buffer.remaining() > length - position) buffer.limit(buffer.position() + (int) (length - position));
+		
+		try{
+			
+			return device.read(start + position, buffer);
+		
+		}finally{
+			
+			buffer.limit(limit);
+		}
+	}
+	
+	public int write(long position, ByteBuffer buffer) throws IOException{
+		
+		if(position + buffer.remaining() > length) throw new IOException("Bytes cannot be written past the end of the partition!");
+		
+		return device.write(start + position, buffer);
+	}
+	
+	public long size(){
+		
+		return length;
+	}
+	
+	public void force() throws IOException{
+		
+		device.force();
+	}
+	
+	public void close(){
+	}
+}
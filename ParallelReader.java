@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Reads a single large file with several threads at once.
+*
+* The extents of the file are cut into chunks of at most the given size and every thread takes the next chunk,
+* reads it from the volume with a single positional read and passes it on at its offset in the file. With enough threads
+* a fast disk gets as many reads as it can serve at once, instead of one at a time as Ext2File.read() does.
+*
+*	ParallelReader reader = new ParallelReader(volume, 16, 4 << 20);
+*	reader.copy(new Ext2File(volume, "/big.bin"), FileChannel.open(target, CREATE, WRITE));
+*
+* @author Michal Radecki
+*/
+
+public class ParallelReader{
+	
+	private Volume volume;
+	private int threads;
+	private int chunkSize;
+	
+	/**
+	* The receiver of the data of a file. It is called by several threads at once and the chunks come in any order.
+	*/
+	
+	public interface Sink{
+		
+		/**
+		* Take a chunk of the file.
+		*
+		* @param offset	offset of the chunk in the file
+		* @param bytes	contents of the chunk, the buffer is reused once the call returns
+		*/
+		
+		void write(long offset, ByteBuffer bytes) throws IOException;
+	}
+	
+	/**
+	* Create a reader.
+	*
+	* @param volume		the volume the files belong to
+	* @param threads	number of chunks read at once
+	* @param chunkSize	maximum number of bytes read at once, a multiple of the block size
+	*/
+	
+	public ParallelReader(Volume volume, int threads, int chunkSize){
+		
+		if(threads < 1 || chunkSize < volume.getBlockSize()) throw new IllegalArgumentException("Bad number of threads or chunk size!");
+		
+		this.volume = volume;
+		this.threads = threads;
+		this.chunkSize = (int) (chunkSize / volume.getBlockSize() * volume.getBlockSize());
+	}
+	
+	/**
+	* Copy a file into a channel, every chunk is written at its offset in the file. The channel is cut to the size
+	* of the file first, so the holes of the file are left as holes (zeros) in the target.
+	*
+	* @param file		the file to be copied
+	* @param target		a channel open for writing
+	* @return bytes		number of bytes of data read (holes are not counted)
+	*/
+	
+	public long copy(Ext2File file, final FileChannel target) throws IOException{
+		
+		target.truncate(0);
+		
+		long count = read(file, new Sink(){
+			
+			public void write(long offset, ByteBuffer bytes) throws IOException{
+				
+				while(bytes.hasRemaining()) target.write(bytes, offset + bytes.position());
+			}
+		});
+		
+		//A hole at the end of the file still counts to its size
+		if(target.size() < file.size()) target.write(ByteBuffer.allocate(1), file.size() - 1);
+		
+		return count;
+	}
+	
+	/**
+	* Read a file into a sink. Only the data is passed, the holes of the file are left out.
+	*
+	* @param file		the file to be read
+	* @param sink		the receiver of the chunks
+	* @return bytes		number of bytes passed to the sink
+	*/
+	
+	public long read(final Ext2File file, final Sink sink) throws IOException{
+		
+		final ArrayList<long[]> chunks = split(file);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicLong total = new AtomicLong();
+		final IOException[] failure = new IOException[1];
+		Thread[] workers = new Thread[Math.min(threads, chunks.size())];
+		
+		for(int i = 0; i < workers.length; i++){
+			
+			workers[i] = new Thread(new Runnable(){
+				
+				public void run(){
+					
+					byte[] buffer = new byte[chunkSize];
+					
+					for(int i = next.getAndIncrement(); i < chunks.size(); i = next.getAndIncrement()){
+						
+						long[] chunk = chunks.get(i);
+						int length = (int) chunk[2];
+						
+						if(volume.getRecorder() != null) volume.getRecorder().read(file.getInodeNum(), chunk[0], length);
+						
+						volume.read(chunk[1], buffer, 0, length);
+						
+						try{
+							
+							sink.write(chunk[0], ByteBuffer.wrap(buffer, 0, length));
+							total.addAndGet(length);
+						
+						}catch(IOException e){
+							
+							synchronized(failure){
+								
+								if(failure[0] == null) failure[0] = e;
+							}
+							
+							//Let the other threads stop after their current chunk
+							next.set(chunks.size());
+							return;
+						}
+					}
+				}
+			}, "ParallelReader-" + i);
+			
+			workers[i].start();
+		}
+		
+		for(Thread worker: workers){
+			
+			try{
+				
+				worker.join();
+			
+			}catch(InterruptedException e){
+				
+				next.set(chunks.size());
+				Thread.currentThread().interrupt();
+				throw new java.io.InterruptedIOException("Interrupted while reading " + file.getInodeNum() + "!");
+			}
+		}
+		
+		if(failure[0] != null) throw failure[0];
+		
+		return total.get();
+	}
+	
+	/*
+	* Cut the extents of a file into chunks - offset in the file, offset in the volume and length in bytes.
+	* The last chunk ends with the file, not with its last block.
+	*/
+	
+	private ArrayList<long[]> split(Ext2File file){
+		
+		ArrayList<long[]> chunks = new ArrayList<long[]>();
+		long blockSize = volume.getBlockSize();
+		long size = file.size();
+		
+		for(Extent extent: file.getExtents()){
+			
+			long start = extent.getLogicalBlock() * blockSize;
+			long end = Math.min(size, (extent.getLogicalBlock() + extent.getLength()) * blockSize);
+			
+			for(long offset = start; offset < end; offset += chunkSize){
+				
+				chunks.add(new long[] {offset, extent.getPhysicalBlock() * blockSize + (offset - start), Math.min(chunkSize, end - offset)});
+			}
+		}
+		
+		return chunks;
+	}
+}
@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+* The partitions of a whole disk image - an MBR table with its logical partitions or a GPT.
+*
+* Every partition can be opened as a Volume. The volumes read the disk through a view of it starting at the partition,
+* so nothing is copied out of the image, and all of them share the single device of the disk, which is closed by close().
+*
+* @author Michal Radecki
+*/
+
+public class PartitionTable{
+	
+	private static final int SECTOR = 512;
+	private static final int MAX_LOGICAL = 128;		//Logical partitions followed in an extended partition
+	private static final String GPT_SIGNATURE = "EFI PART";
+	private static final int[] GUID_ORDER = {3, 2, 1, 0, -1, 5, 4, -1, 7, 6, -1, 8, 9, -1, 10, 11, 12, 13, 14, 15};
+	
+	private BlockDevice device;
+	private String scheme = "none";
+	private List<Partition> partitions = new ArrayList<Partition>();
+	
+	/**
+	* Read the partition table of a disk image.
+	*
+	* @param fileName	path to the image, it may be compressed with gzip or seekable zstd
+	*/
+	
+	public PartitionTable(String fileName) throws IOException{
+		
+		this(fileName.endsWith(".gz") ? new GzipDevice(fileName) : fileName.endsWith(".zst") ? new ZstdDevice(fileName) : new FileDevice(fileName, false));
+	}
+	
+	/**
+	* Read the partition table of a disk.
+	*
+	* @param device	the disk, closed by close()
+	*/
+	
+	public PartitionTable(BlockDevice device) throws IOException{
+		
+		this.device = device;
+		
+		ByteBuffer mbr = read(0, SECTOR);
+		
+		if(mbr == null || (mbr.getShort(510) & 0xffff) != 0xaa55) return;
+		
+		//A protective MBR stands for a GPT, the backup table at the end of the disk is used if the first one is damaged
+		for(int i = 0; i < 4; i++){
+			
+			if((mbr.get(446 + 16 * i + 4) & 0xff) == 0xee){
+				
+				if(readGpt(1) || readGpt(device.size() / SECTOR - 1)) scheme = "GPT";
+				
+				return;
+			}
+		}
+		
+		scheme = "MBR";
+		
+		for(int i = 0; i < 4; i++){
+			
+			int type = mbr.get(446 + 16 * i + 4) & 0xff;
+			long start = mbr.getInt(446 + 16 * i + 8) & 0xffffffffL;
+			long sectors = mbr.getInt(446 + 16 * i + 12) & 0xffffffffL;
+			
+			if(type == 0 || sectors == 0) continue;
+			
+			if(type == 0x05 || type == 0x0f || type == 0x85) readLogical(start);
+			
+			else add(i + 1, start, sectors, String.format("0x%02x", type), "");
+		}
+		
+		Collections.sort(partitions, new Comparator<Partition>(){
+			
+			public int compare(Partition a, Partition b){
+				
+				return Integer.compare(a.number, b.number);
+			}
+		});
+	}
+	
+	/**
+	* @return scheme	"MBR", "GPT" or "none" when the image has no partition table
+	*/
+	
+	public String getScheme(){
+		
+		return scheme;
+	}
+	
+	/**
+	* @return partitions	the partitions in the order of their numbers
+	*/
+	
+	public List<Partition> getPartitions(){
+		
+		return partitions;
+	}
+	
+	/**
+	* Returns a partition by its number (1 - 4 for primary MBR partitions, 5 and on for logical ones, 1 and on in a GPT).
+	*
+	* @param number		number of the partition
+	* @return partition	the partition or null if there is no such one
+	*/
+	
+	public Partition getPartition(int number){
+		
+		for(Partition partition: partitions){
+			
+			if(partition.number == number) return partition;
+		}
+		
+		return null;
+	}
+	
+	/**
+	* Open the file system of a partition.
+	*
+	* @param partition	a partition of this table
+	* @return volume	read-only volume of the partition
+	*/
+	
+	public Volume open(Partition partition){
+		
+		return new Volume(new OffsetDevice(device, partition.start, partition.length), false);
+	}
+	
+	/**
+	* Close the disk, the volumes of its partitions must not be used afterwards.
+	*/
+	
+	public void close() throws IOException{
+		
+		device.close();
+	}
+	
+	/*
+	* Read the logical partitions of an extended partition - a chain of boot records, each holding a partition
+	* (relative to the record) and a link to the next record (relative to the extended partition).
+	*/
+	
+	private void readLogical(long extended) throws IOException{
+		
+		HashSet<Long> seen = new HashSet<Long>();
+		long record = extended;
+		int number = 5;
+		
+		while(number < 5 + MAX_LOGICAL && seen.add(record)){
+			
+			ByteBuffer ebr = read(record * SECTOR, SECTOR);
+			
+			if(ebr == null || (ebr.getShort(510) & 0xffff) != 0xaa55) return;
+			
+			int type = ebr.get(446 + 4) & 0xff;
+			long sectors = ebr.getInt(446 + 12) & 0xffffffffL;
+			
+			if(type != 0 && sectors != 0) add(number++, record + (ebr.getInt(446 + 8) & 0xffffffffL), sectors, String.format("0x%02x", type), "");
+			
+			long next = ebr.getInt(446 + 16 + 8) & 0xffffffffL;
+			
+			if((ebr.get(446 + 16 + 4) & 0xff) == 0 || next == 0) return;
+			
+			record = extended + next;
+		}
+	}
+	
+	/*
+	* Read a GPT whose header is at the given sector, false if the header is missing or damaged.
+	*/
+	
+	private boolean readGpt(long sector) throws IOException{
+		
+		ByteBuffer header = read(sector * SECTOR, SECTOR);
+		
+		if(header == null) return false;
+		
+		byte[] signature = new byte[8];
+		
+		header.get(0, signature);
+		
+		int headerSize = header.getInt(12);
+		
+		if(!new String(signature, StandardCharsets.US_ASCII).equals(GPT_SIGNATURE) || headerSize < 92 || headerSize > SECTOR) return false;
+		
+		int sum = header.getInt(16);
+		CRC32 crc = new CRC32();
+		
+		header.putInt(16, 0);
+		crc.update(header.array(), 0, headerSize);
+		
+		if((int) crc.getValue() != sum) return false;
+		
+		long entriesStart = header.getLong(72);
+		int entries = header.getInt(80);
+		int entrySize = header.getInt(84);
+		
+		if(entries < 0 || entries > 4096 || entrySize < 128 || entrySize > 4096) return false;
+		
+		ByteBuffer table = read(entriesStart * SECTOR, entries * entrySize);
+		
+		if(table == null) return false;
+		
+		crc.reset();
+		crc.update(table.array(), 0, entries * entrySize);
+		
+		if((int) crc.getValue() != header.getInt(88)) return false;
+		
+		for(int i = 0; i < entries; i++){
+			
+			int entry = i * entrySize;
+			String type = guid(table, entry);
+			
+			if(type.equals("00000000-0000-0000-0000-000000000000")) continue;
+			
+			long first = table.getLong(entry + 32);
+			long last = table.getLong(entry + 40);
+			byte[] name = new byte[72];
+			
+			table.get(entry + 56, name);
+			
+			String text = new String(name, StandardCharsets.UTF_16LE);
+			
+			if(text.indexOf(0) >= 0) text = text.substring(0, text.indexOf(0));
+			
+			add(i + 1, first, last - first + 1, type, text);
+		}
+		
+		return true;
+	}
+	
+	/*
+	* Add a partition, it is checked for an ext2 superblock. Partitions reaching past the end of the disk are cut.
+	*/
+	
+	private void add(int number, long startSector, long sectors, String type, String name) throws IOException{
+		
+		long start = startSector * SECTOR;
+		long length = Math.min(sectors * SECTOR, Math.max(0, device.size() - start));
+		ByteBuffer magic = length > 1024 + 58 ? read(start + 1024 + 56, 2) : null;
+		
+		partitions.add(new Partition(number, start, length, type, name, magic != null && (magic.getShort(0) & 0xffff) == 0xef53));
+	}
+	
+	/*
+	* Read bytes of the disk, null if it ends before them.
+	*/
+	
+	private ByteBuffer read(long position, int length) throws IOException{
+		
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		
+		while(buffer.hasRemaining()){
+			
+			if(device.read(position + buffer.position(), buffer) < 0) return null;
+		}
+		
+		return buffer;
+	}
+	
+	/*
+	* A GUID as text - its first three parts are little-endian.
+	*/
+	
+	private static String guid(ByteBuffer table, int offset){
+		
+		StringBuilder text = new StringBuilder();
+		
+		for(int i: GUID_ORDER){
+			
+			if(i < 0) text.append('-');
+			
+			else text.append(String.format("%02X", table.get(offset + i)));
+		}
+		
+		return text.toString();
+	}
+	
+	/**
+	* A partition of a disk.
+	*/
+	
+	public static class Partition{
+		
+		private int number;
+		private long start;
+		private long length;
+		private String type;
+		private String name;
+		private boolean ext2;
+		
+		private Partition(int number, long start, long length, String type, String name, boolean ext2){
+			
+			this.number = number;
+			this.start = start;
+			this.length = length;
+			this.type = type;
+			this.name = name;
+			this.ext2 = ext2;
+		}
+		
+		/**
+		* @return number	number of the partition
+		*/
+		
+		public int getNumber(){
+			
+			return number;
+		}
+		
+		/**
+		* @return start	offset of the partition in the disk in bytes
+		*/
+		
+		public long getStart(){
+			
+			return start;
+		}
+		
+		/**
+		* @return length	size of the partition in bytes
+		*/
+		
+		public long getLength(){
+			
+			return length;
+		}
+		
+		/**
+		* @return type	the MBR type (e.g. 0x83) or the GPT type GUID
+		*/
+		
+		public String getType(){
+			
+			return type;
+		}
+		
+		/**
+		* @return name	name of a GPT partition, empty in an MBR
+		*/
+		
+		public String getName(){
+			
+			return name;
+		}
+		
+		/**
+		* @return ext2	true if the partition holds an ext2 superblock
+		*/
+		
+		public boolean isExt2(){
+			
+			return ext2;
+		}
+	}
+}
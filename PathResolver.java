@@ -0,0 +1,264 @@
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Finds the inodes of paths in a volume the way the kernel does.
+*
+* A path is walked a component at a time: "." is skipped, ".." is the entry every directory has (the parent of the root
+* is the root), symbolic links are followed - short ones keep the target in the inode, longer ones in a data block -
+* and a missing component, a component which is not a directory or more than 40 links in one path is an error.
+* Relative paths start at the root directory.
+*
+* Recently used directories are kept as hash maps of their entries together with the modes of the inodes looked up,
+* and every resolved path is remembered, so resolving a path seen before is a single lookup. The volume must not be
+* changed while a resolver is used, or invalidate() has to be called after every change - the resolver of a volume
+* returned by Volume.getResolver() is invalidated by the volume itself.
+*
+*	long inodeNum = volume.getResolver().resolve("/home/user/../link/notes.txt");
+*
+* @author Michal Radecki
+*/
+
+public class PathResolver{
+	
+	private static final int MAX_LINKS = 40;			//Symbolic links followed in one path
+	private static final int DIRECTORIES = 1024;		//Directories whose entries are kept
+	private static final int MODES = 65536;			//Modes of inodes kept
+	private static final int PATHS = 100000;			//Resolved paths kept
+	
+	private static final int IFMT = 0xF000;
+	private static final int IFLNK = 0xA000;
+	private static final int IFDIR = 0x4000;
+	
+	private Volume volume;
+	private long root;
+	private Map<String, Long> paths = new ConcurrentHashMap<String, Long>();
+	private Map<String, Long> linkPaths = new ConcurrentHashMap<String, Long>();	//Resolved without following the last link
+	private Map<Long, Map<String, Integer>> directories;
+	private Map<Long, Integer> modes;
+	
+	/**
+	* Create a resolver for a volume.
+	*
+	* @param volume	the volume the paths belong to
+	*/
+	
+	public PathResolver(Volume volume){
+		
+		this.volume = volume;
+		root = volume.getRootInode();
+		
+		directories = new LinkedHashMap<Long, Map<String, Integer>>(16, 0.75f, true){
+			
+			protected boolean removeEldestEntry(Map.Entry<Long, Map<String, Integer>> eldest){
+				
+				return size() > DIRECTORIES;
+			}
+		};
+		
+		modes = new LinkedHashMap<Long, Integer>(16, 0.75f, true){
+			
+			protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest){
+				
+				return size() > MODES;
+			}
+		};
+	}
+	
+	/**
+	* Find the inode of a path, following all the symbolic links.
+	*
+	* @param path		an absolute path (a relative one starts at the root too)
+	* @return inodeNum	number of the inode
+	* @throws FileNotFoundException	if a component does not exist or is not a directory, or there are too many links
+	*/
+	
+	public long resolve(String path) throws FileNotFoundException{
+		
+		return resolve(path, true);
+	}
+	
+	/**
+	* Find the inode of a path.
+	*
+	* @param path		an absolute path (a relative one starts at the root too)
+	* @param followLast	false to return a symbolic link at the end of the path instead of its target (as lstat() does)
+	* @return inodeNum	number of the inode
+	* @throws FileNotFoundException	if a component does not exist or is not a directory, or there are too many links
+	*/
+	
+	public long resolve(String path, boolean followLast) throws FileNotFoundException{
+		
+		Map<String, Long> resolved = followLast ? paths : linkPaths;
+		Long cached = resolved.get(path);
+		
+		if(cached != null) return cached;
+		
+		long inodeNum = walk(path, followLast);
+		
+		if(resolved.size() >= PATHS) resolved.clear();
+		
+		resolved.put(path, inodeNum);
+		
+		return inodeNum;
+	}
+	
+	/**
+	* Returns the target of a symbolic link.
+	*
+	* @param inodeNum	number of the inode of the link
+	* @return target	the path the link points to
+	*/
+	
+	public String readLink(long inodeNum){
+		
+		return new String(readLinkBytes(inodeNum), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	* Returns the target of a symbolic link as it is kept, without decoding it.
+	*
+	* @param inodeNum	number of the inode of the link
+	* @return target	the bytes of the path the link points to
+	*/
+	
+	public byte[] readLinkBytes(long inodeNum){
+		
+		ByteBuffer inode = ByteBuffer.wrap(volume.getInodeBytes(inodeNum)).order(ByteOrder.LITTLE_ENDIAN);
+		int size = inode.getInt(4);
+		byte[] target = new byte[size];
+		
+		// A fast link keeps the target in the block pointers and owns no blocks
+		if(size < 60 && inode.getInt(28) == 0) inode.position(40).get(target);
+		else new Ext2File(volume, inodeNum).readInto(0, target, 0, size);
+		
+		return target;
+	}
+	
+	/**
+	* Forget everything which has been read, e.g. after the volume has been written.
+	*/
+	
+	public void invalidate(){
+		
+		paths.clear();
+		linkPaths.clear();
+		
+		synchronized(this){
+			
+			directories.clear();
+			modes.clear();
+		}
+	}
+	
+	/*
+	* Walk a path from the root. The components are found by the slashes in place, a link replaces the part of the path
+	* walked so far by its target.
+	*/
+	
+	private long walk(String path, boolean followLast) throws FileNotFoundException{
+		
+		String original = path;
+		long current = root;
+		int links = 0;
+		int start = 0;
+		
+		while(true){
+			
+			while(start < path.length() && path.charAt(start) == '/') start++;
+			
+			if(start == path.length()){
+				
+				// A trailing slash asks for a directory
+				if(path.endsWith("/") && (mode(current) & IFMT) != IFDIR) throw new FileNotFoundException("Not a directory: " + original);
+				
+				return current;
+			}
+			
+			int end = path.indexOf('/', start);
+			
+			if(end < 0) end = path.length();
+			
+			if((mode(current) & IFMT) != IFDIR) throw new FileNotFoundException("Not a directory: " + original);
+			
+			if(end - start == 1 && path.charAt(start) == '.'){
+				
+				start = end;
+				continue;
+			}
+			
+			Integer child = entries(current).get(path.substring(start, end));
+			
+			if(child == null) throw new FileNotFoundException("No such file or directory: " + original);
+			
+			// A trailing slash makes the link be followed like any directory in the middle of the path
+			if((mode(child) & IFMT) == IFLNK && (followLast || end < path.length())){
+				
+				if(++links > MAX_LINKS) throw new FileNotFoundException("Too many levels of symbolic links: " + original);
+				
+				String target = readLink(child);
+				
+				if(target.startsWith("/")) current = root;
+				
+				path = target + path.substring(end);
+				start = 0;
+				continue;
+			}
+			
+			current = child;
+			start = end;
+		}
+	}
+	
+	/*
+	* The entries of a directory, read at the first lookup.
+	*/
+	
+	private Map<String, Integer> entries(long inodeNum){
+		
+		synchronized(this){
+			
+			Map<String, Integer> entries = directories.get(inodeNum);
+			
+			if(entries != null) return entries;
+		}
+		
+		Map<String, Integer> entries = new HashMap<String, Integer>(volume.listDirectory(inodeNum));
+		
+		synchronized(this){
+			
+			directories.put(inodeNum, entries);
+		}
+		
+		return entries;
+	}
+	
+	/*
+	* The mode of an inode - its type and permissions.
+	*/
+	
+	private int mode(long inodeNum){
+		
+		synchronized(this){
+			
+			Integer mode = modes.get(inodeNum);
+			
+			if(mode != null) return mode;
+		}
+		
+		int mode = ByteBuffer.wrap(volume.getInodeBytes(inodeNum)).order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xFFFF;
+		
+		synchronized(this){
+			
+			modes.put(inodeNum, mode);
+		}
+		
+		return mode;
+	}
+}
@@ -0,0 +1,553 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+* A class which finds files that can still be recovered from a volume.
+*
+* Ext2 marks a deleted inode with its deletion time and frees its blocks in the bitmap, but many tools (and old kernels)
+* leave the block pointers and the size in place. The scanner reads the inode tables in parallel, sequentially group by group,
+* and keeps every deleted regular file whose pointers still lead somewhere. Each of them gets a confidence score:
+*
+*	- the part of its blocks which have not been taken by a live file or the metadata since,
+*	- times the part of the blocks counted in i_blocks which can still be mapped (a reused indirect block maps nothing or garbage).
+*
+* The names are searched for in the slack of the directory entries - a removed entry is joined with the previous one,
+* so its bytes stay in the block until they are overwritten.
+*
+* Blocks which are marked as used in the bitmaps but belong to no inode (e.g. lost by an interrupted write) are reported
+* as orphaned runs with a lower confidence, higher if the run starts with a known file signature.
+*
+* Indirect and directory blocks are read through the block cache of the volume.
+*
+* @author Michal Radecki
+*/
+
+public class RecoveryScanner{
+	
+	private static final long CACHE_SIZE = 64L << 20;		//Block cache set when the volume has none
+	private static final int COPY_BLOCKS = 1024;			//Blocks copied at once
+	
+	//Start of well-known file formats and their extensions
+	private static final byte[][] SIGNATURES = {{(byte) 0x89, 'P', 'N', 'G'}, {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, {'%', 'P', 'D', 'F'},
+		{'P', 'K', 3, 4}, {0x1F, (byte) 0x8B}, {0x7F, 'E', 'L', 'F'}, {'G', 'I', 'F', '8'}};
+	private static final String[] EXTENSIONS = {".png", ".jpg", ".pdf", ".zip", ".gz", ".elf", ".gif"};
+	
+	private Volume volume;
+	private int threads;
+	private long blockSize;
+	
+	private AtomicLongArray claimed;
+	private ConcurrentLinkedQueue<Inode> deleted = new ConcurrentLinkedQueue<Inode>();
+	private ConcurrentLinkedQueue<Long> directories = new ConcurrentLinkedQueue<Long>();
+	private Map<Long, String> names = new ConcurrentHashMap<Long, String>();
+	private List<Recovered> results;
+	
+	/**
+	* A file which may be recovered - a deleted inode or an orphaned run of blocks.
+	*/
+	
+	public static class Recovered{
+		
+		private long inodeNum;
+		private String name;
+		private long size;
+		private long deletedTime;
+		private long firstBlock;
+		private double confidence;
+		
+		private Recovered(long inodeNum, String name, long size, long deletedTime, long firstBlock, double confidence){
+			
+			this.inodeNum = inodeNum;
+			this.name = name;
+			this.size = size;
+			this.deletedTime = deletedTime;
+			this.firstBlock = firstBlock;
+			this.confidence = confidence;
+		}
+		
+		/**
+		* @return inodeNum	number of the deleted inode, 0 for an orphaned run of blocks
+		*/
+		
+		public long getInodeNum(){
+			
+			return inodeNum;
+		}
+		
+		/**
+		* @return name	name found in a directory, or a made up one
+		*/
+		
+		public String getName(){
+			
+			return name;
+		}
+		
+		public long getSize(){
+			
+			return size;
+		}
+		
+		public long getDeletedTime(){
+			
+			return deletedTime;
+		}
+		
+		/**
+		* @return firstBlock	first block of the file or the run
+		*/
+		
+		public long getFirstBlock(){
+			
+			return firstBlock;
+		}
+		
+		/**
+		* @return confidence	from 0 (nothing left) to 1 (no block has been reused)
+		*/
+		
+		public double getConfidence(){
+			
+			return confidence;
+		}
+	}
+	
+	/**
+	* Create a scanner which uses one thread per available processor.
+	*
+	* @param volume	filesystem to be scanned
+	*/
+	
+	public RecoveryScanner(Volume volume){
+		
+		this(volume, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	* Create a scanner with the given number of threads.
+	*
+	* @param volume		filesystem to be scanned
+	* @param threads	number of block groups scanned at the same time
+	*/
+	
+	public RecoveryScanner(Volume volume, int threads){
+		
+		this.volume = volume;
+		this.threads = Math.max(1, threads);
+		blockSize = volume.getBlockSize();
+	}
+	
+	/**
+	* Find the files which may be recovered.
+	*
+	* @return results	the files, the most promising first
+	*/
+	
+	public List<Recovered> scan(){
+		
+		if(volume.getCache() == null) volume.setCache(new BlockCache(CACHE_SIZE));
+		
+		claimed = new AtomicLongArray((int) (volume.getBlocksInSys() / 64 + 1));
+		
+		for(int group = 0; group < volume.getGroupCount(); group++) claimMetadata(group);
+		
+		InodeScanner scanner = new InodeScanner(volume, threads);
+		scanner.setDeleted(true);
+		scanner.scan(new InodeScanner.Visitor(){
+			
+			public void visit(Inode inode){
+				
+				if(!inode.isInUse()){
+					
+					if(inode.isRegularFile() && inode.getBlockCount() != 0) deleted.add(inode);
+					
+					return;
+				}
+				
+				if(inode.isDirectory()) directories.add(inode.getInodeNum());
+				
+				ArrayList<Long> indirect = new ArrayList<Long>();
+				
+				for(Extent extent: volume.getExtents(inode.getInodeNum(), indirect)){
+					
+					for(long i = 0; i < extent.getLength(); i++) claim(extent.getPhysicalBlock() + i);
+				}
+				
+				for(long block: indirect) claim(block);
+			}
+		});
+		
+		final Map<Long, Inode> candidates = new ConcurrentHashMap<Long, Inode>();
+		
+		for(Inode inode: deleted) candidates.put(inode.getInodeNum(), inode);
+		
+		final ConcurrentLinkedQueue<Recovered> found = new ConcurrentLinkedQueue<Recovered>();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		
+		for(final long dirNum: directories){
+			
+			tasks.add(new Runnable(){
+				
+				public void run(){
+					
+					findNames(dirNum, candidates);
+				}
+			});
+		}
+		
+		run(tasks);
+		tasks.clear();
+		
+		for(final Inode inode: deleted){
+			
+			tasks.add(new Runnable(){
+				
+				public void run(){
+					
+					Recovered recovered = score(inode);
+					
+					if(recovered != null) found.add(recovered);
+				}
+			});
+		}
+		
+		for(int i = 0; i < volume.getGroupCount(); i++){
+			
+			final int group = i;
+			
+			tasks.add(new Runnable(){
+				
+				public void run(){
+					
+					findOrphans(group, found);
+				}
+			});
+		}
+		
+		run(tasks);
+		
+		results = new ArrayList<Recovered>(found);
+		
+		Collections.sort(results, new Comparator<Recovered>(){
+			
+			public int compare(Recovered a, Recovered b){
+				
+				return a.confidence != b.confidence ? Double.compare(b.confidence, a.confidence) : Long.compare(a.firstBlock, b.firstBlock);
+			}
+		});
+		
+		return results;
+	}
+	
+	/**
+	* Write the files with at least the given confidence to a directory, together with a report (recovery.txt).
+	* Deleted inodes are saved as "inode-name", orphaned runs as "orphan-block-count".
+	*
+	* @param directory		the output directory, created if needed
+	* @param minConfidence	files with a lower confidence are only listed in the report
+	*/
+	
+	public void recover(final File directory, double minConfidence) throws IOException{
+		
+		if(results == null) scan();
+		
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Directory " + directory + " cannot be created!");
+		
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		final ConcurrentLinkedQueue<String> failed = new ConcurrentLinkedQueue<String>();
+		
+		for(final Recovered recovered: results){
+			
+			if(recovered.confidence < minConfidence) continue;
+			
+			tasks.add(new Runnable(){
+				
+				public void run(){
+					
+					try{
+						
+						save(recovered, new File(directory, fileName(recovered)));
+					
+					}catch(IOException e){
+						
+						failed.add(fileName(recovered) + ": " + e.getMessage());
+					}
+				}
+			});
+		}
+		
+		run(tasks);
+		
+		if(!failed.isEmpty()) throw new IOException("Files cannot be written: " + failed);
+		
+		try(PrintStream out = new PrintStream(new File(directory, "recovery.txt"), "UTF-8")){
+			
+			report(out);
+		}
+	}
+	
+	/**
+	* Print the files found by the last scan with their confidence.
+	*
+	* @param out	stream the report is printed to
+	*/
+	
+	public void report(PrintStream out){
+		
+		if(results == null) scan();
+		
+		for(Recovered recovered: results){
+			
+			out.format("%.2f %8d %12d %12d %s\n", recovered.confidence, recovered.inodeNum, recovered.size, recovered.deletedTime, fileName(recovered));
+		}
+	}
+	
+	/*
+	* Blocks of the bitmaps, the inode table, the super block copy, the group descriptors and the reserved GDT blocks
+	* of a group are never free.
+	*/
+	
+	private void claimMetadata(int group){
+		
+		long start = volume.getFirstDataBlock() + group * volume.getBlocksInGroup();
+		long tableBlocks = (volume.getInodesInGrup() * volume.getInodeSize() + blockSize - 1) / blockSize;
+		
+		long header = volume.getDescriptorBlocks(group);
+		
+		if(volume.hasSuperBlockCopy(group)) header += 1 + volume.getReservedGdtBlocks();
+		
+		for(long block = start; block < start + header; block++) claim(block);
+		
+		claim(volume.findBlockBitmap(group));
+		claim(volume.findInodeBitmap(group));
+		
+		for(long block = volume.findInodePointer(group); block < volume.findInodePointer(group) + tableBlocks; block++) claim(block);
+	}
+	
+	/*
+	* Look for removed entries naming the candidates in the slack after the live entries of a directory.
+	*/
+	
+	private void findNames(long dirNum, Map<Long, Inode> candidates){
+		
+		for(Extent extent: volume.getExtents(dirNum)){
+			
+			for(long i = 0; i < extent.getLength(); i++){
+				
+				ByteBuffer data = ByteBuffer.wrap(volume.getBlock(extent.getPhysicalBlock() + i)).order(ByteOrder.LITTLE_ENDIAN);
+				
+				for(int position = 0; position + 8 <= blockSize; ){
+					
+					int length = data.getShort(position + 4) & 0xFFFF;
+					
+					if(length < 8 || position + length > blockSize) break;
+					
+					int used = (8 + (data.get(position + 6) & 0xFF) + 3) & ~3;
+					
+					for(int slack = position + used; slack + 8 <= position + length; slack += 4){
+						
+						long inodeNum = data.getInt(slack) & 0xFFFFFFFFL;
+						int nameLength = data.get(slack + 6) & 0xFF;
+						
+						if(nameLength > 0 && slack + 8 + nameLength <= position + length && candidates.containsKey(inodeNum)){
+							
+							names.put(inodeNum, new String(data.array(), slack + 8, nameLength, StandardCharsets.UTF_8));
+							slack += ((8 + nameLength + 3) & ~3) - 4;
+						}
+					}
+					
+					position += length;
+				}
+			}
+		}
+	}
+	
+	/*
+	* Map the blocks of a deleted inode and find how many of them are still untouched.
+	*/
+	
+	private Recovered score(Inode inode){
+		
+		ArrayList<Long> indirect = new ArrayList<Long>();
+		ArrayList<Extent> extents = volume.getExtents(inode.getInodeNum(), indirect);
+		long total = indirect.size();
+		long reused = 0;
+		
+		for(long block: indirect){
+			
+			if(block < volume.getFirstDataBlock() || block >= volume.getBlocksInSys()) return null;
+			
+			if(isClaimed(block)) reused++;
+		}
+		
+		for(Extent extent: extents){
+			
+			if(extent.getPhysicalBlock() < volume.getFirstDataBlock() || extent.getPhysicalBlock() + extent.getLength() > volume.getBlocksInSys()) return null;
+			
+			for(long i = 0; i < extent.getLength(); i++) if(isClaimed(extent.getPhysicalBlock() + i)) reused++;
+			
+			total += extent.getLength();
+		}
+		
+		if(total == 0 || extents.isEmpty()) return null;
+		
+		long expected = inode.getBlockCount() * 512 / blockSize;
+		double confidence = (double) (total - reused) / total * Math.min(1.0, (double) total / Math.max(1, expected));
+		String name = names.containsKey(inode.getInodeNum()) ? names.get(inode.getInodeNum()) : "unnamed";
+		
+		return new Recovered(inode.getInodeNum(), name, inode.getFileSize(), inode.getDeletedTime(), extents.get(0).getPhysicalBlock(), confidence);
+	}
+	
+	/*
+	* Find runs of blocks marked as used in the bitmap of a group which belong to nothing.
+	*/
+	
+	private void findOrphans(int group, ConcurrentLinkedQueue<Recovered> found){
+		
+		long start = volume.getFirstDataBlock() + group * volume.getBlocksInGroup();
+		long count = Math.min(volume.getBlocksInGroup(), volume.getBlocksInSys() - start);
+		byte[] bitmap = volume.getBytes(volume.findBlockBitmap(group) * blockSize, blockSize);
+		long runStart = -1;
+		
+		for(long i = 0; i <= count; i++){
+			
+			boolean orphan = i < count && (bitmap[(int) (i / 8)] & (1 << (i % 8))) != 0 && !isClaimed(start + i);
+			
+			if(orphan && runStart < 0) runStart = start + i;
+			
+			if(!orphan && runStart >= 0){
+				
+				long length = start + i - runStart;
+				int signature = signature(volume.getBlock(runStart));
+				String name = "orphan-" + runStart + "-" + length + (signature < 0 ? ".bin" : EXTENSIONS[signature]);
+				
+				found.add(new Recovered(0, name, length * blockSize, 0, runStart, signature < 0 ? 0.25 : 0.5));
+				runStart = -1;
+			}
+		}
+	}
+	
+	/*
+	* Index of the signature the bytes start with, or -1.
+	*/
+	
+	private static int signature(byte[] bytes){
+		
+		for(int i = 0; i < SIGNATURES.length; i++){
+			
+			boolean matches = true;
+			
+			for(int j = 0; j < SIGNATURES[i].length && matches; j++) matches = bytes[j] == SIGNATURES[i][j];
+			
+			if(matches) return i;
+		}
+		
+		return -1;
+	}
+	
+	/*
+	* Copy a recovered file to the host. Deleted inodes are read like live files, holes included.
+	*/
+	
+	private void save(Recovered recovered, File file) throws IOException{
+		
+		try(OutputStream out = new FileOutputStream(file)){
+			
+			byte[] bytes = new byte[(int) (COPY_BLOCKS * blockSize)];
+			
+			if(recovered.inodeNum == 0){
+				
+				for(long done = 0; done < recovered.size; done += bytes.length){
+					
+					int length = (int) Math.min(bytes.length, recovered.size - done);
+					
+					out.write(volume.getBytes(recovered.firstBlock * blockSize + done, length));
+				}
+				
+				return;
+			}
+			
+			Ext2File source = new Ext2File(volume, recovered.inodeNum);
+			
+			for(long done = 0; done < recovered.size; done += bytes.length){
+				
+				int count = (int) Math.min(bytes.length, recovered.size - done);
+				
+				source.readInto(done, bytes, 0, count);
+				out.write(bytes, 0, count);
+			}
+		}
+	}
+	
+	private static String fileName(Recovered recovered){
+		
+		return recovered.inodeNum == 0 ? recovered.name : recovered.inodeNum + "-" + recovered.name.replace('/', '_');
+	}
+	
+	private boolean isClaimed(long block){
+		
+		return (claimed.get((int) (block >>> 6)) & 1L << (block & 63)) != 0;
+	}
+	
+	private void claim(long block){
+		
+		if(block >= volume.getBlocksInSys()) return;
+		
+		int word = (int) (block >>> 6);
+		long mask = 1L << (block & 63);
+		
+		while(true){
+			
+			long value = claimed.get(word);
+			
+			if((value & mask) != 0 || claimed.compareAndSet(word, value, value | mask)) return;
+		}
+	}
+	
+	/*
+	* Run tasks on the pool of the scanner and wait for all of them.
+	*/
+	
+	private void run(List<Runnable> tasks){
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		
+		for(Runnable task: tasks) futures.add(pool.submit(task));
+		
+		try{
+			
+			for(Future<?> future: futures) future.get();
+		
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+		
+		}catch(ExecutionException e){
+			
+			throw new RuntimeException(e.getCause());
+		
+		}finally{
+			
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,709 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* An on-disk index of file names and contents of images, which is queried without opening the images.
+*
+* The index is a directory of segment files. Every build adds new segments, so images can be indexed one after another
+* and a big image is split into many segments which are built in parallel, each holding a bounded amount of content.
+* A segment holds:
+*
+* - the paths of its files (prefixed with the name of the image),
+* - the file names sorted by their bytes with the file each of them belongs to, searched by binary search for exact names or prefixes,
+* - trigram postings - for every sequence of three bytes a delta and varint encoded list of the files which contain it.
+*
+* A search for a text intersects the postings of all its trigrams, starting with the shortest one. The result is a list of candidates:
+* every file which contains the text is found, but a file which only contains all its trigrams (not next to each other) is returned as well.
+*
+* @author Michal Radecki
+*/
+
+public class SearchIndex{
+	
+	private static final int MAGIC = 0x53493245;			//"E2IS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final long SEGMENT_BYTES = 64L << 20;	//Content indexed in a single segment
+	private static final int SEGMENT_FILES = 50000;			//Files indexed in a single segment
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".e2s";
+	
+	private List<Segment> segments = new ArrayList<Segment>();
+	
+	/**
+	* Index all the regular files of an image and add the new segments to the index directory.
+	*
+	* @param volume			the image
+	* @param imageName		name the paths of the image are prefixed with in the results
+	* @param directory		directory of the index, created if it does not exist
+	* @param maxFileBytes	number of bytes indexed at the start of each file, the rest is ignored
+	* @return count			number of files indexed
+	*/
+	
+	public static int build(final Volume volume, final String imageName, final File directory, final long maxFileBytes) throws IOException{
+		
+		directory.mkdirs();
+		
+		final Set<Long> directories = ConcurrentHashMap.newKeySet();
+		final Map<Long, Long> files = new ConcurrentHashMap<Long, Long>();
+		
+		new InodeScanner(volume).scan(new InodeScanner.Visitor(){
+			
+			public void visit(Inode inode){
+				
+				if(inode.isDirectory()) directories.add(inode.getInodeNum());
+				if(inode.isRegularFile()) files.put(inode.getInodeNum(), inode.getFileSize());
+			}
+		});
+		
+		final List<String> paths = new ArrayList<String>();
+		final List<Integer> inodes = new ArrayList<Integer>();
+		
+		new Directory(volume).walk(volume.getRootInode(), "", new Directory.Walker(){
+			
+			public boolean visit(String path, int inodeNum){
+				
+				if(files.containsKey((long) inodeNum)){
+					
+					paths.add(path);
+					inodes.add(inodeNum);
+				}
+				
+				return directories.contains((long) inodeNum);
+			}
+		});
+		
+		// Split the files into segments of a bounded size
+		List<int[]> batches = new ArrayList<int[]>();
+		int start = 0;
+		long bytes = 0;
+		
+		for(int i = 0; i < paths.size(); i++){
+			
+			bytes += Math.min(maxFileBytes, files.get((long) inodes.get(i)));
+			
+			if(bytes >= SEGMENT_BYTES || i + 1 - start >= SEGMENT_FILES || i == paths.size() - 1){
+				
+				batches.add(new int[]{ start, i + 1 });
+				start = i + 1;
+				bytes = 0;
+			}
+		}
+		
+		final AtomicInteger next = new AtomicInteger(nextSegment(directory));
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		
+		for(final int[] batch: batches){
+			
+			tasks.add(pool.submit(new Callable<Void>(){
+				
+				public Void call() throws IOException{
+					
+					writeSegment(volume, imageName, paths.subList(batch[0], batch[1]), inodes.subList(batch[0], batch[1]), maxFileBytes,
+						new File(directory, PREFIX + next.getAndIncrement() + SUFFIX));
+					
+					return null;
+				}
+			}));
+		}
+		
+		try{
+			
+			for(Future<?> task: tasks) task.get();
+			
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+			
+		}catch(ExecutionException e){
+			
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+			
+		}finally{
+			
+			pool.shutdown();
+		}
+		
+		return paths.size();
+	}
+	
+	/*
+	* Find the first number of a segment which is not used yet.
+	*/
+	
+	private static int nextSegment(File directory){
+		
+		int next = 0;
+		String[] names = directory.list();
+		
+		for(String name: names == null ? new String[0] : names){
+			
+			if(!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+			
+			try{
+				
+				next = Math.max(next, Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())) + 1);
+				
+			}catch(NumberFormatException e){
+				
+				// Not a segment of the index
+			}
+		}
+		
+		return next;
+	}
+	
+	/*
+	* Index a batch of files and write it as a single segment.
+	*/
+	
+	private static void writeSegment(Volume volume, String imageName, List<String> paths, List<Integer> inodes, long maxFileBytes, File file) throws IOException{
+		
+		int docs = paths.size();
+		final byte[][] names = new byte[docs][];
+		byte[][] fullPaths = new byte[docs][];
+		Map<Integer, int[]> postings = new HashMap<Integer, int[]>();
+		BitSet seen = new BitSet(1 << 24);
+		int[] found = new int[1024];
+		byte[] chunk = new byte[CHUNK_SIZE + 2];
+		
+		// Count the names of every file, so the trigrams of a file with several links are kept for its other names
+		Map<Integer, Integer> links = new HashMap<Integer, Integer>();
+		Map<Integer, int[]> shared = new HashMap<Integer, int[]>();
+		
+		for(int inodeNum: inodes) links.put(inodeNum, links.containsKey(inodeNum) ? links.get(inodeNum) + 1 : 1);
+		
+		for(int doc = 0; doc < docs; doc++){
+			
+			String path = paths.get(doc);
+			
+			names[doc] = path.substring(path.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8);
+			fullPaths[doc] = ((imageName.isEmpty() ? "" : imageName + ":") + path).getBytes(StandardCharsets.UTF_8);
+			
+			// Collect the distinct trigrams of the file, a file with several links is read only once
+			int inodeNum = inodes.get(doc);
+			int remaining = links.get(inodeNum) - 1;
+			int[] reused = shared.get(inodeNum);
+			int count = 0;
+			
+			links.put(inodeNum, remaining);
+			
+			if(reused != null){
+				
+				count = reused.length;
+				
+				if(count > found.length) found = new int[count];
+				System.arraycopy(reused, 0, found, 0, count);
+				
+				if(remaining == 0) shared.remove(inodeNum);
+			}
+			
+			Ext2File ext2File = reused != null ? null : new Ext2File(volume, inodeNum);
+			long length = reused != null ? 0 : Math.min(maxFileBytes, ext2File.size());
+			int carry = 0;
+			
+			for(long position = 0; position < length; ){
+				
+				int read = (int) Math.min(CHUNK_SIZE, length - position);
+				
+				ext2File.readInto(position, chunk, carry, read);
+				
+				for(int i = 0; i + 2 < carry + read; i++){
+					
+					int trigram = (chunk[i] & 0xFF) << 16 | (chunk[i + 1] & 0xFF) << 8 | (chunk[i + 2] & 0xFF);
+					
+					if(seen.get(trigram)) continue;
+					
+					seen.set(trigram);
+					
+					if(count == found.length) found = Arrays.copyOf(found, 2 * count);
+					found[count++] = trigram;
+				}
+				
+				// Keep the last two bytes, so trigrams across the chunks are not lost
+				int total = carry + read;
+				
+				carry = Math.min(2, total);
+				System.arraycopy(chunk, total - carry, chunk, 0, carry);
+				position += read;
+			}
+			
+			if(reused == null && remaining > 0) shared.put(inodeNum, Arrays.copyOf(found, count));
+			
+			for(int i = 0; i < count; i++){
+				
+				seen.clear(found[i]);
+				
+				int[] list = postings.get(found[i]);
+				
+				if(list == null) postings.put(found[i], list = new int[]{ 0, 0, 0, 0 });
+				if(list[0] + 1 == list.length) postings.put(found[i], list = Arrays.copyOf(list, 2 * list.length));
+				
+				list[++list[0]] = doc;
+			}
+		}
+		
+		// Sort the names together with their files
+		Integer[] order = new Integer[docs];
+		
+		for(int i = 0; i < docs; i++) order[i] = i;
+		
+		Arrays.sort(order, new Comparator<Integer>(){
+			
+			public int compare(Integer a, Integer b){
+				
+				int result = compareBytes(names[a], 0, names[a].length, names[b]);
+				
+				return result != 0 ? result : a - b;
+			}
+		});
+		
+		int[] trigrams = new int[postings.size()];
+		int t = 0;
+		
+		for(Integer trigram: postings.keySet()) trigrams[t++] = trigram;
+		
+		Arrays.sort(trigrams);
+		
+		// Encode the postings
+		List<byte[]> encoded = new ArrayList<byte[]>(trigrams.length);
+		
+		for(int trigram: trigrams){
+			
+			int[] list = postings.get(trigram);
+			byte[] bytes = new byte[5 * list[0]];
+			int length = 0;
+			int previous = 0;
+			
+			for(int i = 1; i <= list[0]; i++){
+				
+				length = writeVarint(bytes, length, list[i] - previous);
+				previous = list[i];
+			}
+			
+			encoded.add(Arrays.copyOf(bytes, length));
+		}
+		
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+		
+		try{
+			
+			out.setLength(0);
+			
+			ColumnWriter writer = new ColumnWriter(out.getChannel(), 0);
+			long pathBytes = 0;
+			long nameBytes = 0;
+			long postingBytes = 0;
+			
+			for(byte[] path: fullPaths) pathBytes += path.length;
+			for(byte[] name: names) nameBytes += name.length;
+			for(byte[] posting: encoded) postingBytes += posting.length;
+			
+			writer.putInt(MAGIC);
+			writer.putInt(VERSION);
+			writer.putInt(docs);
+			writer.putInt(trigrams.length);
+			writer.putLong(pathBytes);
+			writer.putLong(nameBytes);
+			writer.putLong(postingBytes);
+			
+			while(writer.getPosition() < HEADER_SIZE) writer.putInt(0);
+			
+			long offset = 0;
+			
+			for(byte[] path: fullPaths){
+				
+				writer.putLong(offset);
+				offset += path.length;
+			}
+			
+			writer.putLong(offset);
+			offset = 0;
+			
+			for(Integer i: order){
+				
+				writer.putLong(offset);
+				offset += names[i].length;
+			}
+			
+			writer.putLong(offset);
+			offset = 0;
+			
+			for(byte[] posting: encoded){
+				
+				writer.putLong(offset);
+				offset += posting.length;
+			}
+			
+			writer.putLong(offset);
+			
+			for(int trigram: trigrams) writer.putInt(trigram);
+			for(Integer i: order) writer.putInt(i);
+			for(byte[] path: fullPaths) writer.putBytes(path);
+			for(Integer i: order) writer.putBytes(names[i]);
+			for(byte[] posting: encoded) writer.putBytes(posting);
+			
+			writer.flush();
+			
+		}finally{
+			
+			out.close();
+		}
+		
+		if(!temporary.renameTo(file)) throw new IOException("Cannot rename " + temporary + " to " + file);
+	}
+	
+	/**
+	* Open all the segments of an index.
+	*
+	* @param directory	directory of the index
+	* @return index		the index, null if the directory holds no readable segment
+	*/
+	
+	public static SearchIndex open(File directory){
+		
+		SearchIndex index = new SearchIndex();
+		String[] names = directory.list();
+		
+		if(names == null) return null;
+		
+		Arrays.sort(names);
+		
+		for(String name: names){
+			
+			if(!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+			
+			try{
+				
+				index.segments.add(new Segment(new File(directory, name)));
+				
+			}catch(IOException e){
+				
+				System.out.println("Segment " + name + " cannot be read!");
+			}
+		}
+		
+		return index.segments.isEmpty() ? null : index;
+	}
+	
+	/**
+	* Find the files with the given name.
+	*
+	* @param name	name of the file (the last part of the path)
+	* @return paths	paths of the files prefixed with the names of their images
+	*/
+	
+	public List<String> findByName(String name){
+		
+		return findNames(name.getBytes(StandardCharsets.UTF_8), false);
+	}
+	
+	/**
+	* Find the files whose names start with the given prefix.
+	*
+	* @param prefix	start of the name of the file
+	* @return paths	paths of the files prefixed with the names of their images
+	*/
+	
+	public List<String> findByNamePrefix(String prefix){
+		
+		return findNames(prefix.getBytes(StandardCharsets.UTF_8), true);
+	}
+	
+	private List<String> findNames(byte[] key, boolean prefix){
+		
+		TreeSet<String> result = new TreeSet<String>();
+		
+		for(Segment segment: segments) segment.findNames(key, prefix, result);
+		
+		return new ArrayList<String>(result);
+	}
+	
+	/**
+	* Find the files which may contain the given text (at least three bytes long).
+	*
+	* @param text	text to be found
+	* @return paths	paths of the candidate files prefixed with the names of their images
+	*/
+	
+	public List<String> findContaining(String text){
+		
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		
+		if(bytes.length < 3) throw new IllegalArgumentException("The text has to be at least three bytes long");
+		
+		TreeSet<Integer> trigrams = new TreeSet<Integer>();
+		
+		for(int i = 0; i + 2 < bytes.length; i++) trigrams.add((bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF));
+		
+		TreeSet<String> result = new TreeSet<String>();
+		
+		for(Segment segment: segments) segment.findContaining(trigrams, result);
+		
+		return new ArrayList<String>(result);
+	}
+	
+	/**
+	* Release the mapped segments.
+	*/
+	
+	public void close(){
+		
+		for(Segment segment: segments) segment.close();
+	}
+	
+	private static int writeVarint(byte[] bytes, int position, int value){
+		
+		while((value & ~0x7F) != 0){
+			
+			bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		bytes[position++] = (byte) value;
+		
+		return position;
+	}
+	
+	private static int compareBytes(byte[] a, int start, int end, byte[] key){
+		
+		int length = Math.min(end - start, key.length);
+		
+		for(int i = 0; i < length; i++){
+			
+			int result = (a[start + i] & 0xFF) - (key[i] & 0xFF);
+			
+			if(result != 0) return result;
+		}
+		
+		return (end - start) - key.length;
+	}
+	
+	/*
+	* A single memory mapped segment.
+	*/
+	
+	private static class Segment{
+		
+		private FileChannel channel;
+		private MappedByteBuffer buffer;
+		private int docs;
+		private int trigrams;
+		private int pathOffsets;
+		private int nameOffsets;
+		private int postingOffsets;
+		private int trigramKeys;
+		private int nameDocs;
+		private int pathArena;
+		private int nameArena;
+		private int postings;
+		
+		private Segment(File file) throws IOException{
+			
+			channel = new RandomAccessFile(file, "r").getChannel();
+			
+			if(channel.size() > Integer.MAX_VALUE) throw new IOException("Segment too large");
+			
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) throw new IOException("Not a segment");
+			
+			docs = buffer.getInt(8);
+			trigrams = buffer.getInt(12);
+			
+			pathOffsets = HEADER_SIZE;
+			nameOffsets = pathOffsets + 8 * (docs + 1);
+			postingOffsets = nameOffsets + 8 * (docs + 1);
+			trigramKeys = postingOffsets + 8 * (trigrams + 1);
+			nameDocs = trigramKeys + 4 * trigrams;
+			pathArena = nameDocs + 4 * docs;
+			nameArena = pathArena + (int) buffer.getLong(16);
+			postings = nameArena + (int) buffer.getLong(24);
+		}
+		
+		private void close(){
+			
+			try{
+				
+				channel.close();
+				
+			}catch(IOException e){
+				
+				System.out.println("Segment cannot be closed!");
+			}
+		}
+		
+		private String path(int doc){
+			
+			int start = pathArena + (int) buffer.getLong(pathOffsets + 8 * doc);
+			int end = pathArena + (int) buffer.getLong(pathOffsets + 8 * doc + 8);
+			byte[] bytes = new byte[end - start];
+			
+			for(int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(start + i);
+			
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		/*
+		* Compare a name of the given rank with the key, only the first key.length bytes of the name are compared for a prefix search.
+		*/
+		
+		private int compareName(int rank, byte[] key, boolean prefix){
+			
+			int start = nameArena + (int) buffer.getLong(nameOffsets + 8 * rank);
+			int end = nameArena + (int) buffer.getLong(nameOffsets + 8 * rank + 8);
+			
+			if(prefix) end = Math.min(end, start + key.length);
+			
+			int length = Math.min(end - start, key.length);
+			
+			for(int i = 0; i < length; i++){
+				
+				int result = (buffer.get(start + i) & 0xFF) - (key[i] & 0xFF);
+				
+				if(result != 0) return result;
+			}
+			
+			return (end - start) - key.length;
+		}
+		
+		private void findNames(byte[] key, boolean prefix, TreeSet<String> result){
+			
+			// Lower bound of the names equal to the key
+			int low = 0;
+			int high = docs;
+			
+			while(low < high){
+				
+				int middle = (low + high) >>> 1;
+				
+				if(compareName(middle, key, prefix) < 0) low = middle + 1;
+				else high = middle;
+			}
+			
+			for(int rank = low; rank < docs && compareName(rank, key, prefix) == 0; rank++){
+				
+				result.add(path(buffer.getInt(nameDocs + 4 * rank)));
+			}
+		}
+		
+		private int[] posting(int trigram){
+			
+			int low = 0;
+			int high = trigrams - 1;
+			
+			while(low <= high){
+				
+				int middle = (low + high) >>> 1;
+				int value = buffer.getInt(trigramKeys + 4 * middle);
+				
+				if(value < trigram) low = middle + 1;
+				else if(value > trigram) high = middle - 1;
+				else{
+					
+					int start = postings + (int) buffer.getLong(postingOffsets + 8 * middle);
+					int end = postings + (int) buffer.getLong(postingOffsets + 8 * middle + 8);
+					int[] list = new int[end - start];
+					int count = 0;
+					int doc = 0;
+					
+					for(int position = start; position < end; ){
+						
+						int delta = 0;
+						int shift = 0;
+						byte b;
+						
+						do{
+							
+							b = buffer.get(position++);
+							delta |= (b & 0x7F) << shift;
+							shift += 7;
+							
+						}while((b & 0x80) != 0);
+						
+						doc += delta;
+						list[count++] = doc;
+					}
+					
+					return Arrays.copyOf(list, count);
+				}
+			}
+			
+			return new int[0];
+		}
+		
+		private void findContaining(Set<Integer> keys, TreeSet<String> result){
+			
+			List<int[]> lists = new ArrayList<int[]>();
+			
+			for(Integer key: keys){
+				
+				int[] list = posting(key);
+				
+				if(list.length == 0) return;
+				
+				lists.add(list);
+			}
+			
+			Collections.sort(lists, new Comparator<int[]>(){
+				
+				public int compare(int[] a, int[] b){
+					
+					return a.length - b.length;
+				}
+			});
+			
+			int[] candidates = lists.get(0);
+			int count = candidates.length;
+			
+			for(int l = 1; l < lists.size() && count > 0; l++){
+				
+				int[] other = lists.get(l);
+				int kept = 0;
+				
+				for(int i = 0, j = 0; i < count && j < other.length; ){
+					
+					if(candidates[i] < other[j]) i++;
+					else if(candidates[i] > other[j]) j++;
+					else{
+						
+						candidates[kept++] = candidates[i];
+						i++;
+						j++;
+					}
+				}
+				
+				count = kept;
+			}
+			
+			for(int i = 0; i < count; i++) result.add(path(candidates[i]));
+		}
+	}
+}
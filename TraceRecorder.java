@@ -0,0 +1,283 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+* Records the operations done on a volume, to be run again by TraceReplayer.
+*
+* It is switched on by Volume.setRecorder() and then every file opened by Ext2File, every read and seek of a file and
+* every directory listed is written to the trace with the time it started and the thread which did it. An operation
+* done inside another one (the directories read while a path is resolved) is not recorded on its own, as replaying the
+* outer one repeats it.
+*
+* The trace is compact: every record is a type byte followed by variable length numbers - the thread, the microseconds
+* since the previous record and the arguments - and a path is written only the first time, later it is referred to by
+* its number. A read takes about 10 bytes.
+*
+*	0 PATH		length, UTF-8 bytes		(defines the next path number)
+*	1 OPEN_PATH	thread, time, path number, inode
+*	2 OPEN		thread, time, inode
+*	3 READ		thread, time, inode, offset, length
+*	4 SEEK		thread, time, inode, position
+*	5 LIST		thread, time, inode
+*
+* @author Michal Radecki
+*/
+
+public class TraceRecorder implements Closeable{
+	
+	static final int MAGIC = 0x45325452;		//"E2TR"
+	static final int VERSION = 1;
+	
+	static final int PATH = 0;
+	static final int OPEN_PATH = 1;
+	static final int OPEN = 2;
+	static final int READ = 3;
+	static final int SEEK = 4;
+	static final int LIST = 5;
+	
+	private OutputStream out;
+	private long last = System.nanoTime();
+	private long records;
+	private Map<String, Integer> paths = new HashMap<String, Integer>();
+	private Map<Long, Integer> threads = new HashMap<Long, Integer>();
+	private ThreadLocal<int[]> paused = new ThreadLocal<int[]>(){
+		
+		protected int[] initialValue(){
+			
+			return new int[1];
+		}
+	};
+	
+	/**
+	* Create a recorder writing a trace file.
+	*
+	* @param file	the trace, it is overwritten
+	*/
+	
+	public TraceRecorder(File file) throws IOException{
+		
+		out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		
+		writeInt(MAGIC);
+		writeInt(VERSION);
+	}
+	
+	/**
+	* Record the opening of a file.
+	*
+	* @param path		path the file has been opened by, null if it has been opened by its inode
+	* @param inodeNum	number of the inode of the file
+	*/
+	
+	public void open(String path, long inodeNum){
+		
+		if(isPaused()) return;
+		
+		synchronized(this){
+			
+			if(path == null){
+				
+				begin(OPEN);
+				writeNumber(inodeNum);
+				return;
+			}
+			
+			Integer id = paths.get(path);
+			
+			if(id == null){
+				
+				byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+				
+				id = paths.size();
+				paths.put(path, id);
+				write(PATH);
+				writeNumber(bytes.length);
+				write(bytes);
+			}
+			
+			begin(OPEN_PATH);
+			writeNumber(id);
+			writeNumber(inodeNum);
+		}
+	}
+	
+	/**
+	* Record a read of a file.
+	*
+	* @param inodeNum	number of the inode of the file
+	* @param offset		offset of the first byte read
+	* @param length		number of bytes read
+	*/
+	
+	public void read(long inodeNum, long offset, int length){
+		
+		if(isPaused()) return;
+		
+		synchronized(this){
+			
+			begin(READ);
+			writeNumber(inodeNum);
+			writeNumber(offset);
+			writeNumber(length);
+		}
+	}
+	
+	/**
+	* Record a seek in a file.
+	*
+	* @param inodeNum	number of the inode of the file
+	* @param position	the new position
+	*/
+	
+	public void seek(long inodeNum, long position){
+		
+		if(isPaused()) return;
+		
+		synchronized(this){
+			
+			begin(SEEK);
+			writeNumber(inodeNum);
+			writeNumber(position);
+		}
+	}
+	
+	/**
+	* Record a listing of a directory.
+	*
+	* @param inodeNum	number of the inode of the directory
+	*/
+	
+	public void list(long inodeNum){
+		
+		if(isPaused()) return;
+		
+		synchronized(this){
+			
+			begin(LIST);
+			writeNumber(inodeNum);
+		}
+	}
+	
+	/**
+	* Stop recording the operations of the calling thread until resume() is called, e.g. during an operation which has
+	* been recorded as a whole. The calls may be nested.
+	*/
+	
+	public void pause(){
+		
+		paused.get()[0]++;
+	}
+	
+	/**
+	* Undo one call of pause().
+	*/
+	
+	public void resume(){
+		
+		paused.get()[0]--;
+	}
+	
+	/**
+	* @return records	number of operations recorded
+	*/
+	
+	public synchronized long getRecords(){
+		
+		return records;
+	}
+	
+	/**
+	* Write the rest of the trace and close the file, nothing is recorded afterwards.
+	*/
+	
+	public synchronized void close() throws IOException{
+		
+		if(out == null) return;
+		
+		out.close();
+		out = null;
+	}
+	
+	private boolean isPaused(){
+		
+		return paused.get()[0] > 0;
+	}
+	
+	/*
+	* The type, the thread and the time of a record, called with the lock held.
+	*/
+	
+	private void begin(int type){
+		
+		long now = System.nanoTime();
+		Long id = Thread.currentThread().getId();
+		Integer thread = threads.get(id);
+		
+		if(thread == null){
+			
+			thread = threads.size();
+			threads.put(id, thread);
+		}
+		
+		write(type);
+		writeNumber(thread);
+		writeNumber(Math.max(0, (now - last) / 1000));
+		
+		// Only the whole microseconds are taken, so the rounding does not add up
+		last += (now - last) / 1000 * 1000;
+		records++;
+	}
+	
+	/*
+	* A number in 7-bit groups, the lowest first, the top bit set in all the bytes but the last.
+	*/
+	
+	private void writeNumber(long value){
+		
+		while((value & ~0x7FL) != 0){
+			
+			write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		write((int) value);
+	}
+	
+	private void writeInt(int value) throws IOException{
+		
+		for(int shift = 24; shift >= 0; shift -= 8) out.write(value >>> shift);
+	}
+	
+	private void write(int b){
+		
+		try{
+			
+			if(out != null) out.write(b);
+		
+		}catch(IOException e){
+			
+			System.out.println("Trace cannot be written: " + e.getMessage());
+			out = null;
+		}
+	}
+	
+	private void write(byte[] bytes){
+		
+		try{
+			
+			if(out != null) out.write(bytes);
+		
+		}catch(IOException e){
+			
+			System.out.println("Trace cannot be written: " + e.getMessage());
+			out = null;
+		}
+	}
+}
@@ -0,0 +1,409 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* Runs a trace written by TraceRecorder against a volume and measures how long every operation takes.
+*
+* The trace is read as a stream by one thread and its operations are handed to the workers - the operations of one
+* recorded thread always go to the same worker, in their order, so a file is read the way it has been. With a speed-up
+* every operation waits for its recorded time divided by it (2 replays the load twice as fast), with 0 the operations
+* are run as fast as the workers can go. Files opened by a worker are kept until the end, a read of a file which has
+* not been opened by the worker opens it by its inode.
+*
+*	TraceReplayer.Report report = new TraceReplayer(volume, new File("trace.bin")).replay(16, 0);
+*	System.out.print(report);
+*
+* @author Michal Radecki
+*/
+
+public class TraceReplayer{
+	
+	private static final int QUEUE = 1024;				//Operations waiting for a worker
+	private static final String[] NAMES = { "path", "open path", "open", "read", "seek", "list" };
+	
+	private Volume volume;
+	private File trace;
+	
+	/**
+	* Create a replayer.
+	*
+	* @param volume	the volume the trace is run against
+	* @param trace	a file written by TraceRecorder
+	*/
+	
+	public TraceReplayer(Volume volume, File trace){
+		
+		this.volume = volume;
+		this.trace = trace;
+	}
+	
+	/**
+	* Run the trace.
+	*
+	* @param threads	number of workers
+	* @param speedup	how many times faster than recorded the operations are started, 0 for no waiting
+	* @return report	the number, throughput and latencies of the operations
+	*/
+	
+	public Report replay(int threads, double speedup) throws IOException{
+		
+		if(threads < 1 || speedup < 0) throw new IllegalArgumentException("Bad number of threads or speed-up!");
+		
+		Worker[] workers = new Worker[threads];
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < threads; i++){
+			
+			workers[i] = new Worker(start, speedup);
+			workers[i].start();
+		}
+		
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(trace), 1 << 16))){
+			
+			if(in.readInt() != TraceRecorder.MAGIC || in.readInt() != TraceRecorder.VERSION) throw new IOException("Not a trace: " + trace);
+			
+			List<String> paths = new ArrayList<String>();
+			long time = 0;
+			int type;
+			
+			while((type = in.read()) >= 0){
+				
+				if(type == TraceRecorder.PATH){
+					
+					byte[] bytes = new byte[(int) readNumber(in)];
+					
+					in.readFully(bytes);
+					paths.add(new String(bytes, StandardCharsets.UTF_8));
+					continue;
+				}
+				
+				if(type > TraceRecorder.LIST) throw new IOException("Unknown operation " + type + " in " + trace);
+				
+				Operation operation = new Operation();
+				int thread = (int) readNumber(in);
+				
+				time += readNumber(in) * 1000;
+				operation.type = type;
+				operation.time = time;
+				
+				if(type == TraceRecorder.OPEN_PATH) operation.path = paths.get((int) readNumber(in));
+				
+				operation.inodeNum = readNumber(in);
+				
+				if(type == TraceRecorder.READ || type == TraceRecorder.SEEK) operation.offset = readNumber(in);
+				if(type == TraceRecorder.READ) operation.length = (int) readNumber(in);
+				
+				workers[thread % threads].put(operation);
+			}
+		
+		}finally{
+			
+			for(Worker worker: workers) worker.put(new Operation());
+		}
+		
+		Report report = new Report();
+		
+		for(Worker worker: workers){
+			
+			try{
+				
+				worker.join();
+			
+			}catch(InterruptedException e){
+				
+				Thread.currentThread().interrupt();
+			}
+			
+			report.add(worker);
+		}
+		
+		report.elapsed = System.nanoTime() - start;
+		
+		return report;
+	}
+	
+	/*
+	* A number written by TraceRecorder.writeNumber().
+	*/
+	
+	private static long readNumber(DataInputStream in) throws IOException{
+		
+		long value = 0;
+		
+		for(int shift = 0; ; shift += 7){
+			
+			int b = in.read();
+			
+			if(b < 0) throw new EOFException("The trace ends in the middle of a record!");
+			
+			value |= (long) (b & 0x7F) << shift;
+			
+			if(b < 0x80) return value;
+		}
+	}
+	
+	/*
+	* An operation of the trace, one with no type ends a worker.
+	*/
+	
+	private static class Operation{
+		
+		private int type = -1;
+		private long time;
+		private String path;
+		private long inodeNum;
+		private long offset;
+		private int length;
+	}
+	
+	/*
+	* A thread running the operations of some of the recorded threads.
+	*/
+	
+	private class Worker extends Thread{
+		
+		private BlockingQueue<Operation> queue = new ArrayBlockingQueue<Operation>(QUEUE);
+		private Map<Long, Ext2File> files = new HashMap<Long, Ext2File>();
+		private long[][] latencies = new long[NAMES.length][1024];
+		private int[] counts = new int[NAMES.length];
+		private long bytes;
+		private long errors;
+		private long start;
+		private double speedup;
+		private byte[] buffer = new byte[64 * 1024];
+		
+		private Worker(long start, double speedup){
+			
+			super("TraceReplayer");
+			setDaemon(true);
+			this.start = start;
+			this.speedup = speedup;
+		}
+		
+		private void put(Operation operation){
+			
+			try{
+				
+				queue.put(operation);
+			
+			}catch(InterruptedException e){
+				
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		public void run(){
+			
+			try{
+				
+				for(Operation operation = queue.take(); operation.type >= 0; operation = queue.take()){
+					
+					if(speedup > 0){
+						
+						long due = start + (long) (operation.time / speedup);
+						
+						for(long now = System.nanoTime(); now < due; now = System.nanoTime()) LockSupport.parkNanos(due - now);
+					}
+					
+					long begin = System.nanoTime();
+					
+					try{
+						
+						execute(operation);
+					
+					}catch(RuntimeException e){
+						
+						// A path which is missing in this image, a read beyond the end of a file
+						errors++;
+						continue;
+					}
+					
+					int type = operation.type;
+					
+					if(counts[type] == latencies[type].length) latencies[type] = Arrays.copyOf(latencies[type], counts[type] * 2);
+					
+					latencies[type][counts[type]++] = System.nanoTime() - begin;
+				}
+			
+			}catch(InterruptedException e){
+				
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private void execute(Operation operation){
+			
+			switch(operation.type){
+				
+				case TraceRecorder.OPEN_PATH:
+					files.put(operation.inodeNum, new Ext2File(volume, operation.path));
+					break;
+				
+				case TraceRecorder.OPEN:
+					files.put(operation.inodeNum, new Ext2File(volume, operation.inodeNum));
+					break;
+				
+				case TraceRecorder.READ:
+					if(buffer.length < operation.length) buffer = new byte[operation.length];
+					
+					file(operation.inodeNum).readInto(operation.offset, buffer, 0, operation.length);
+					bytes += operation.length;
+					break;
+				
+				case TraceRecorder.SEEK:
+					file(operation.inodeNum).seek(operation.offset);
+					break;
+				
+				case TraceRecorder.LIST:
+					volume.listDirectory(operation.inodeNum);
+					break;
+			}
+		}
+		
+		private Ext2File file(long inodeNum){
+			
+			Ext2File file = files.get(inodeNum);
+			
+			if(file == null){
+				
+				file = new Ext2File(volume, inodeNum);
+				files.put(inodeNum, file);
+			}
+			
+			return file;
+		}
+	}
+	
+	/**
+	* The outcome of a replay.
+	*/
+	
+	public static class Report{
+		
+		private long[][] latencies = new long[NAMES.length][0];
+		private long bytes;
+		private long errors;
+		private long elapsed;
+		
+		private void add(Worker worker){
+			
+			for(int i = 0; i < NAMES.length; i++){
+				
+				long[] merged = Arrays.copyOf(latencies[i], latencies[i].length + worker.counts[i]);
+				
+				System.arraycopy(worker.latencies[i], 0, merged, latencies[i].length, worker.counts[i]);
+				latencies[i] = merged;
+			}
+			
+			bytes += worker.bytes;
+			errors += worker.errors;
+		}
+		
+		/**
+		* @return operations	number of operations run
+		*/
+		
+		public long getOperations(){
+			
+			long operations = 0;
+			
+			for(long[] type: latencies) operations += type.length;
+			
+			return operations;
+		}
+		
+		/**
+		* @return bytes	number of bytes read
+		*/
+		
+		public long getBytes(){
+			
+			return bytes;
+		}
+		
+		/**
+		* @return errors	number of operations which have failed, e.g. paths missing in the image
+		*/
+		
+		public long getErrors(){
+			
+			return errors;
+		}
+		
+		/**
+		* @return elapsed	nanoseconds the replay has taken
+		*/
+		
+		public long getElapsed(){
+			
+			return elapsed;
+		}
+		
+		/**
+		* Returns a percentile of the latencies of all the operations.
+		*
+		* @param percent	e.g. 99 for the 99th percentile
+		* @return latency	nanoseconds, 0 if nothing has been run
+		*/
+		
+		public long getLatency(double percent){
+			
+			long[] all = new long[(int) getOperations()];
+			int filled = 0;
+			
+			for(long[] type: latencies){
+				
+				System.arraycopy(type, 0, all, filled, type.length);
+				filled += type.length;
+			}
+			
+			return percentile(all, percent);
+		}
+		
+		/**
+		* The throughput and a table of latencies in microseconds by the type of the operations.
+		*/
+		
+		public String toString(){
+			
+			StringBuilder report = new StringBuilder();
+			double seconds = elapsed / 1e9;
+			
+			report.append(String.format("%d operations in %.3f s: %.0f ops/s, %.1f MB/s, %d errors%n", getOperations(), seconds, getOperations() / seconds, bytes / seconds / (1 << 20), errors));
+			report.append(String.format("%-10s %10s %10s %10s %10s %10s %10s%n", "us", "count", "p50", "p90", "p99", "p99.9", "max"));
+			
+			for(int i = 0; i < NAMES.length; i++){
+				
+				if(latencies[i].length == 0) continue;
+				
+				report.append(String.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", NAMES[i], latencies[i].length, percentile(latencies[i], 50) / 1e3, percentile(latencies[i], 90) / 1e3, percentile(latencies[i], 99) / 1e3, percentile(latencies[i], 99.9) / 1e3, percentile(latencies[i], 100) / 1e3));
+			}
+			
+			return report.toString();
+		}
+		
+		private static long percentile(long[] values, double percent){
+			
+			if(values.length == 0) return 0;
+			
+			long[] sorted = values.clone();
+			
+			Arrays.sort(sorted);
+			
+			return sorted[(int) Math.max(0, Math.min(sorted.length - 1, Math.ceil(percent / 100 * sorted.length) - 1))];
+		}
+	}
+}
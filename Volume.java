@@ -1,7 +1,9 @@
-import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -17,25 +19,48 @@ import java.nio.ByteOrder;
 
 public class Volume{
 	
-	private RandomAccessFile file;
+	private BlockDevice device;
 
-	private final long BLOCK_SIZE = 1024;		//A size of each block in the file system
+	private final long BLOCK_SIZE;				//A size of each block in the file system, read from the super block
 	
 	private final long ROOT_INODE = 2;			//A number of the root inode
-	private final int MAX_POINTERS = 256;		//An iterate variable which is used to find indirect pointers			
+	private final int MAX_POINTERS;				//An iterate variable which is used to find indirect pointers (block numbers in a block)
+	private final int EXTENTS_FLAG = 0x80000;	//The inode maps its blocks with an extent tree (ext4)
+	private final int EXTENT_MAGIC = 0xF30A;	//Magic number of every node of an extent tree
+	private final int EXT4_FEATURES = 0xD0;		//Incompatible features which are only read: meta_bg, extents, 64bit
+	private final int META_BG = 0x10;			//The group descriptors are spread over the meta groups
+	private final int CACHED_READ = 64 * 1024;	//Reads up to this size go through the block cache
 	
 	private short magicNumber;
 	private int inodesInSys;
-	private int blocksInSys;
+	private long blocksInSys;
 	private int blocksInGroup;
 	private int inodesInGroup;
 	private int inodeSize;
+	private int firstDataBlock;
+	private int firstInode;
+	private int featureIncompat;
+	private int featureRoCompat;
+	private int groupCount;
+	private int logBlockSize;
+	private int descSize;
+	private int reservedGdtBlocks;
+	private long firstMetaBg;
+	private byte[] descriptorTable;
+	private long mountTime;
+	private long writeTime;
+	private byte[] uuid;
 	private String volLabel;
 	private SuperBlock superBlock;
 	private GroupDescriptor[] groupDesc;
-	private Inode[] inodes;
 	
 	private Helper help;
+	private boolean writable;
+	private BlockCache cache;
+	private int cacheOwner;
+	private TraceRecorder recorder;
+	private DirectoryPrefetcher prefetcher;
+	private PathResolver resolver;
 
 	/**
 	*	Opens the Volume represented by the host Windows/ Linux file filename.
@@ -44,15 +69,30 @@ public class Volume{
  
 	public Volume(String fileName){
 		
-		//Try to open a file - if the file doesn't exist, rise an exception		
-		try{							
-
-			file = new RandomAccessFile(fileName, "r");			
-					
-		}catch(IOException e){
-			
-			System.out.println("File doesn't exist!");
-		}
+		this(fileName, false);
+	}
+	
+	/**
+	*	Opens the Volume represented by the host Windows/ Linux file filename, for writing if requested (compressed images are read-only).
+	*	@param fileName path to a file to be opened
+	*	@param writable true if the volume will be changed (see Ext2Writer)
+	*/
+ 
+	public Volume(String fileName, boolean writable){
+		
+		this(open(fileName, writable), writable && !fileName.endsWith(".gz") && !fileName.endsWith(".zst"));
+	}
+	
+	/**
+	*	Opens the Volume held by a device, e.g. a pooled file or a compressed container.
+	*	@param device	the device holding the volume
+	*	@param writable true if the volume will be changed (see Ext2Writer)
+	*/
+ 
+	public Volume(BlockDevice device, boolean writable){
+		
+		this.device = device;
+		this.writable = writable;
 		
 		//Create Helper		
 		help = new Helper();
@@ -61,21 +101,106 @@ public class Volume{
 		//it's created only once as every single super block in the volume is exactly the same
 		superBlock = new SuperBlock();
 		
-		//Create a group descriptor for each group block
+		BLOCK_SIZE = 1024L << logBlockSize;
+		MAX_POINTERS = (int) (BLOCK_SIZE / 4);
+		
+		//Extent trees and 64-bit block numbers are read, but the writer knows only ext2
+		if(writable && (featureIncompat & EXT4_FEATURES) != 0){
+			
+			System.out.println("The volume uses ext4 features, it is opened only for reading!");
+			this.writable = false;
+		}
+		
+		//Create a group descriptor for each group block, the whole table is read at once
+		
+		groupDesc = new GroupDescriptor[groupCount];		
+		descriptorTable = readDescriptorTable();
 		
-		groupDesc = new GroupDescriptor[3];		
+		ByteBuffer table = ByteBuffer.wrap(descriptorTable);
+		table.order(ByteOrder.LITTLE_ENDIAN);
 		
-		for(int i = 0; i < 3; i++) groupDesc[i] = new GroupDescriptor(i);				
+		for(int i = 0; i < groupCount; i++) groupDesc[i] = new GroupDescriptor(i, table);				
+		
+		//Inodes are not decoded here - on a large volume it would take most of the time needed to open it,
+		//each of them is created when it is displayed
+	}
+	
+	/*
+	*	Read the group descriptors. They follow the super block, except with meta_bg: then the blocks from the first meta
+	*	group on are each kept in the first group of the meta group of the descriptors they hold.
+	*/
+	
+	private byte[] readDescriptorTable(){
+		
+		int length = descSize * groupCount;
+		
+		if((featureIncompat & META_BG) == 0) return getBytes(BLOCK_SIZE * (firstDataBlock + 1), length);
+		
+		byte[] table = new byte[length];
+		
+		for(int position = 0; position < length; position += BLOCK_SIZE){
+			
+			long index = position / BLOCK_SIZE;
+			long block = firstDataBlock + 1 + index;
+			
+			if(index >= firstMetaBg){
+				
+				int group = (int) (index * (BLOCK_SIZE / descSize));
+				
+				block = firstDataBlock + group * (long) blocksInGroup + (hasSuperBlockCopy(group) ? 1 : 0);
+			}
+			
+			int count = (int) Math.min(BLOCK_SIZE, length - position);
+			
+			System.arraycopy(getBytes(block * BLOCK_SIZE, count), 0, table, position, count);
+		}
+		
+		return table;
+	}
+	
+	/*
+	*	Try to open a file - if the file doesn't exist, rise an exception. Files ending with .gz or .zst are compressed images.
+	*/
+	
+	private static BlockDevice open(String fileName, boolean writable){
 		
-		//Create all of the inodes
+		try{
+			
+			if(fileName.endsWith(".gz")) return new GzipDevice(fileName);
+			
+			if(fileName.endsWith(".zst")) return new ZstdDevice(fileName);
+			
+			return new FileDevice(fileName, writable);
+			
+		}catch(IOException e){
+			
+			System.out.println("File doesn't exist!");
+			return null;
+		}
+	}
+	
+	/**
+	*	Releases the device and drops the blocks of the volume from the block cache, the volume must not be used afterwards.
+	*/
+	
+	public void close(){
 		
-		inodes = new Inode[inodesInSys];
+		setCache(null);
 		
-		for(int i = 0; i < inodesInSys; i++) inodes[i] = new Inode(i);		
+		try{
+			
+			device.close();
+			
+		}catch(IOException e){
+			
+			System.out.println("The volume cannot be closed!");
+		}
 	}
 	
 	/**
 	*	Looking for a bytes in a file - if a startByte is greater than file size it rises an exception.
+	*	Positional reads are used, so the method may be called from several threads at once.
+	*	Reads within a single block (inodes, directory blocks) are served by the block cache if one is set.
 	*	@param	startBytes	an offset in the file
 	*	@param	length		number of bytes to be returned
 	*	@return	bytes		an array of bytes	
@@ -85,17 +210,283 @@ public class Volume{
         
         byte[] bytes = new byte[(int) length];      
 		
-		try{			
+		if(cache != null && length > 0 && startByte / BLOCK_SIZE == (startByte + length - 1) / BLOCK_SIZE){
+			
+			System.arraycopy(getBlock(startByte / BLOCK_SIZE), (int) (startByte % BLOCK_SIZE), bytes, 0, bytes.length);
+		}
+		
+		else readDevice(startByte, bytes, 0, bytes.length);
+		
+        return bytes;		
+    }
+
+	/**
+	*	Returns the length of the file holding the volume
+	*	@return	length	number of bytes, 0 if it cannot be found
+	*/
+	
+	public long getLength(){
+		
+		try{
+			
+			return device.size();
+			
+		}catch(IOException e){
+			
+			return 0;
+		}
+	}
+
+	/**
+	*	Copies bytes of the file into an array. Short reads are served by the block cache if one is set,
+	*	long ones (e.g. streaming a whole file) are read directly, so they do not push the hot blocks out.
+	*	@param	startByte	an offset in the file
+	*	@param	bytes		an array the bytes are copied to
+	*	@param	offset		first index in the array to be written
+	*	@param	length		number of bytes to be copied
+	*/
+	
+	public void read(long startByte, byte[] bytes, int offset, int length){
+		
+		if(cache == null || length > CACHED_READ){
+			
+			readDevice(startByte, bytes, offset, length);
+			return;
+		}
+		
+		for(long position = startByte; position < startByte + length; ){
+			
+			long block = position / BLOCK_SIZE;
+			int inBlock = (int) (position % BLOCK_SIZE);
+			int count = (int) Math.min(BLOCK_SIZE - inBlock, startByte + length - position);
+			
+			System.arraycopy(getBlock(block), inBlock, bytes, offset + (int) (position - startByte), count);
+			position += count;
+		}
+	}
+	
+	/**
+	*	Returns a whole block, from the block cache if one is set.
+	*	@param	block	number of the block
+	*	@return	bytes	contents of the block, they must not be changed
+	*/
+	
+	public byte[] getBlock(long block){
+		
+		byte[] bytes = cache == null ? null : cache.get(cacheOwner, block);
+		
+		if(bytes == null){
+			
+			bytes = new byte[(int) BLOCK_SIZE];
+			readDevice(block * BLOCK_SIZE, bytes, 0, bytes.length);
+			
+			if(cache != null) cache.put(cacheOwner, block, bytes);
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	*	Reads blocks into the block cache with a single read from the first to the last, e.g. to warm the cache up
+	*	after a restart. It must not run while the blocks are being written.
+	*	@param	blocks	numbers of the blocks in ascending order
+	*	@param	from	index of the first block to be read
+	*	@param	to		index after the last block to be read
+	*/
+	
+	public void prefetch(long[] blocks, int from, int to){
+		
+		if(cache == null || from >= to) return;
+		
+		byte[] bytes = new byte[(int) ((blocks[to - 1] - blocks[from] + 1) * BLOCK_SIZE)];
+		
+		readDevice(blocks[from] * BLOCK_SIZE, bytes, 0, bytes.length);
+		
+		for(int i = from; i < to; i++){
+			
+			int start = (int) ((blocks[i] - blocks[from]) * BLOCK_SIZE);
+			
+			cache.put(cacheOwner, blocks[i], Arrays.copyOfRange(bytes, start, start + (int) BLOCK_SIZE));
+		}
+	}
+	
+	/**
+	*	Tells if a block is held by the block cache, without counting it as found.
+	*	@param	block	number of the block
+	*	@return	cached	true if it is cached, false if not or if there is no cache
+	*/
+	
+	public boolean isCached(long block){
+		
+		return cache != null && cache.contains(cacheOwner, block);
+	}
+	
+	/**
+	*	Returns the blocks of the volume held by the block cache.
+	*	@return	blocks	numbers of the blocks mapped to the number of times each has been found, empty without a cache
+	*/
+	
+	public TreeMap<Long, Integer> getCachedBlocks(){
+		
+		return cache == null ? new TreeMap<Long, Integer>() : cache.getBlocks(cacheOwner);
+	}
+	
+	/*
+	*	Reads bytes from the device, past its end they are left as zeros.
+	*/
+	
+	private void readDevice(long startByte, byte[] bytes, int offset, int length){
+		
+		try{
+			
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			
+			while(buffer.hasRemaining()){
+				
+				if(device.read(startByte + buffer.position() - offset, buffer) < 0) break;
+			}
 			
-			file.seek(startByte);        
-			file.read(bytes);
-			 
 		}catch(IOException e){
 			
 			System.out.println("StartByte is greater than file size!");
-		} 		
-        return bytes;		
-    }
+		}
+	}
+	
+	/**
+	*	Sets a cache of the blocks read by getBlock() (indirect blocks, directories), null to read every block from the file.
+	*	@param	cache	the cache, it may be shared by several threads and volumes
+	*/
+	
+	public void setCache(BlockCache cache){
+		
+		if(this.cache != null) this.cache.release(cacheOwner);
+		
+		this.cache = cache;
+		
+		if(cache != null) cacheOwner = cache.register();
+	}
+	
+	/**
+	*	@return	cache	the block cache of the volume or null
+	*/
+	
+	public BlockCache getCache(){
+		
+		return cache;
+	}
+	
+	/**
+	*	Sets a recorder of the files opened and read and the directories listed, null to stop recording.
+	*	@param	recorder	the recorder, it may be shared by several threads
+	*/
+	
+	public void setRecorder(TraceRecorder recorder){
+		
+		this.recorder = recorder;
+	}
+	
+	/**
+	*	@return	recorder	the recorder of the operations or null
+	*/
+	
+	public TraceRecorder getRecorder(){
+		
+		return recorder;
+	}
+	
+	/**
+	*	Sets a prefetcher which is given every directory listed, to read the inodes and first blocks of its entries
+	*	into the block cache in the background. Null to stop prefetching.
+	*	@param	prefetcher	the prefetcher, it needs a block cache
+	*/
+	
+	public void setPrefetcher(DirectoryPrefetcher prefetcher){
+		
+		this.prefetcher = prefetcher;
+	}
+	
+	/**
+	*	@return	prefetcher	the prefetcher of the directories listed or null
+	*/
+	
+	public DirectoryPrefetcher getPrefetcher(){
+		
+		return prefetcher;
+	}
+	
+	/**
+	*	Returns the resolver of the paths of the volume, made at the first call and shared by everyone opening files by
+	*	their paths, so the directories and paths it keeps are reused. It forgets them whenever the volume is written.
+	*	@return	resolver	the resolver of the volume
+	*/
+	
+	public synchronized PathResolver getResolver(){
+		
+		if(resolver == null) resolver = new PathResolver(this);
+		
+		return resolver;
+	}
+
+	/**
+	*	Writes bytes to the file at the given offset. The volume has to be opened as writable.
+	*	@param	startByte	an offset in the file
+	*	@param	bytes		bytes to be written
+	*	@param	offset		first index in the array to be written
+	*	@param	length		number of bytes to be written
+	*/
+	
+	public void putBytes(long startByte, byte[] bytes, int offset, int length){
+		
+		if(!writable){
+			
+			System.out.println("The volume is opened only for reading!");
+			return;
+		}
+		
+		try{
+			
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			
+			while(buffer.hasRemaining()) device.write(startByte + buffer.position() - offset, buffer);
+			
+			if(cache != null){
+				
+				for(long block = startByte / BLOCK_SIZE; block * BLOCK_SIZE < startByte + length; block++) cache.remove(cacheOwner, block);
+			}
+			
+			if(resolver != null) resolver.invalidate();
+			
+		}catch(IOException e){
+			
+			System.out.println("Bytes cannot be written at " + startByte + "!");
+		}
+	}
+	
+	/**
+	*	Makes sure everything written so far has reached the disk, used to order the writes.
+	*/
+	
+	public void force(){
+		
+		try{
+			
+			if(writable) device.force();
+			
+		}catch(IOException e){
+			
+			System.out.println("The volume cannot be synchronized!");
+		}
+	}
+	
+	/**
+	*	Returns true if the volume has been opened for writing
+	*	@return writable	true if putBytes may be used
+	*/
+	
+	public boolean isWritable(){
+		
+		return writable;
+	}
 
 	/**
 	* Find direct pointers in an inode given an inode pointer and inode number in the table pointed
@@ -109,6 +500,19 @@ public class Volume{
 		
 		ArrayList<Long> dataBlocks = new ArrayList<Long>();
 		
+		//An extent tree holds no pointers, all the blocks of the file are returned here
+		if(hasExtents(inodePointer, inodeNum)){
+			
+			byte[] inode = getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1), inodeSize);
+			
+			for(Extent extent: getExtents(inode, null)){
+				
+				for(long i = 0; i < extent.getLength(); i++) dataBlocks.add(extent.getPhysicalBlock() + i);
+			}
+			
+			return dataBlocks;
+		}
+		
 		for(int i = 0; i < 12; i++){			
 					
 			long x = help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 40 + 4 * i, 4));
@@ -130,6 +534,8 @@ public class Volume{
 		
 		ArrayList<Long> dataBlocks = new ArrayList<Long>();
 		
+		if(hasExtents(inodePointer, inodeNum)) return dataBlocks;
+		
 		
 		long pointer = help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 88, 4));		
 		
@@ -142,67 +548,285 @@ public class Volume{
 		return dataBlocks;
 	}
 	
-	/**
-	* Find triple indirect pointers in an inode given an inode pointer and inode number in the table pointed
-	*
-	* @param inodePointer	pointer to the inode table
-	* @param inodeNum		inode number in the table pointed
-	* @returns dataBlocks	numbers of data blocks which hold a data
+	/**
+	* Find triple indirect pointers in an inode given an inode pointer and inode number in the table pointed
+	*
+	* @param inodePointer	pointer to the inode table
+	* @param inodeNum		inode number in the table pointed
+	* @returns dataBlocks	numbers of data blocks which hold a data
+	*/
+	
+	public ArrayList<Long> findDoubleIndirect(long inodePointer, long inodeNum){
+		
+		ArrayList<Long> dataBlocks = new ArrayList<Long>();
+		
+		if(hasExtents(inodePointer, inodeNum)) return dataBlocks;
+
+		long pointer = help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 92, 4));		
+
+		int z = 0;
+		
+		for(int i = 0; i < MAX_POINTERS && pointer != 0; i++){		
+				
+			long pointerDouble = help.toLong(getBytes(pointer * BLOCK_SIZE + i * 4, 4));						
+				
+			for(int j = 0; j < MAX_POINTERS && pointerDouble != 0; j++){
+				
+				long x = help.toLong(getBytes(pointerDouble * BLOCK_SIZE + j * 4, 4));
+				if(x != 0 ) dataBlocks.add(x);
+			}
+		}
+				
+		return dataBlocks;
+	}
+	
+	/**
+	* Find triple indirect pointers in an inode given an inode pointer and inode number in the table pointed
+	*
+	* @param inodePointer	pointer to the inode table
+	* @param inodeNum		inode number in the table pointed
+	* @returns dataBlocks	numbers of data blocks which hold a data
+	*/
+	
+	public ArrayList<Long> findTripleIndirect(long inodePointer, long inodeNum){
+		
+		ArrayList<Long> dataBlocks = new ArrayList<Long>();
+		
+		if(hasExtents(inodePointer, inodeNum)) return dataBlocks;
+
+		long pointer = help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 96, 4));			
+		
+		for(int i = 0; i < MAX_POINTERS && pointer != 0; i++){		
+				
+			long pointerDouble = help.toLong(getBytes(pointer* BLOCK_SIZE + i * 4, 4));			
+
+			for(int j = 0; j < MAX_POINTERS && pointerDouble != 0; j++){					
+					
+				long pointerTriple = help.toLong(getBytes(pointerDouble * BLOCK_SIZE + j * 4, 4));	
+							
+				for(int y = 0; y < MAX_POINTERS && pointerTriple != 0; y++){							
+					
+					long x = help.toLong(getBytes(pointerTriple * BLOCK_SIZE + y * 4, 4));
+					if(x != 0) dataBlocks.add(x);			
+				}
+			}
+		}		
+		
+		return dataBlocks;
+	}
+	
+	/**
+	* Returns the physical layout of the file held by the given inode as a list of extents.
+	* Every run of blocks which is contiguous both in the file and on the disk is merged into one extent,
+	* holes (zero pointers) are left out. Indirect blocks are read once as a whole block.
+	*
+	* @param inodeNum	number of the inode in the filesystem (counted from 1)
+	* @return extents	extents ordered by logical block
+	*/
+	
+	public ArrayList<Extent> getExtents(long inodeNum){
+		
+		return getExtents(inodeNum, null);
+	}
+	
+	/**
+	* Returns the physical layout of the file held by the given inode and collects the indirect blocks used to map it.
+	* For an inode mapped by an extent tree (ext4) the index and leaf blocks of the tree are collected instead.
+	*
+	* @param inodeNum		number of the inode in the filesystem (counted from 1)
+	* @param indirectBlocks	list the numbers of indirect blocks are added to, may be null
+	* @return extents		extents ordered by logical block
+	*/
+	
+	public ArrayList<Extent> getExtents(long inodeNum, ArrayList<Long> indirectBlocks){
+		
+		return getExtents(getBytes(getInodeOffset(inodeNum), inodeSize), indirectBlocks);
+	}
+	
+	/*
+	* Maps the blocks of an inode given its raw bytes.
+	*/
+	
+	private ArrayList<Extent> getExtents(byte[] inode, ArrayList<Long> indirectBlocks){
+		
+		ArrayList<Extent> extents = new ArrayList<Extent>();
+		
+		ByteBuffer buffer = ByteBuffer.wrap(inode);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		long size = (((long) buffer.getInt(108)) << 32) | (buffer.getInt(4) & 0xffffffffL);
+		long sectors = buffer.getInt(28) & 0xffffffffL;
+		
+		// Inodes without any allocated block (e.g. fast symbolic links) keep other data in the pointers
+		if(sectors == 0) return extents;
+		
+		long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		
+		if((buffer.getInt(32) & EXTENTS_FLAG) != 0){
+			
+			mapExtents(extents, indirectBlocks, buffer, 40, -1, blocks);
+			return extents;
+		}
+		
+		for(int i = 0; i < 12 && i < blocks; i++) addBlock(extents, i, buffer.getInt(40 + 4 * i) & 0xffffffffL);
+		
+		long logical = 12;
+		long span = MAX_POINTERS;
+		
+		for(int level = 1; level <= 3 && logical < blocks; level++){
+			
+			mapIndirect(extents, indirectBlocks, buffer.getInt(84 + 4 * level) & 0xffffffffL, level, logical, blocks);
+			
+			logical += span;
+			span *= MAX_POINTERS;
+		}
+		
+		return extents;
+	}
+	
+	/*
+	* Walks an indirect block and adds all the data blocks it points to.
+	*
+	* @param extents	list the blocks are added to
+	* @param indirectBlocks	list the indirect block is added to, may be null
+	* @param pointer	number of the indirect block, 0 if the whole range is a hole
+	* @param level		1 for single, 2 for double and 3 for triple indirect blocks
+	* @param logical	logical block number of the first block covered by the pointer
+	* @param limit		number of logical blocks in the file
+	*/
+	
+	private void mapIndirect(ArrayList<Extent> extents, ArrayList<Long> indirectBlocks, long pointer, int level, long logical, long limit){
+		
+		if(pointer == 0) return;
+		if(indirectBlocks != null) indirectBlocks.add(pointer);
+		
+		ByteBuffer block = ByteBuffer.wrap(getBlock(pointer));
+		block.order(ByteOrder.LITTLE_ENDIAN);
+		
+		long span = 1;
+		
+		for(int i = 1; i < level; i++) span *= MAX_POINTERS;
+		
+		for(int i = 0; i < MAX_POINTERS && logical + i * span < limit; i++){
+			
+			long x = block.getInt(4 * i) & 0xffffffffL;
+			
+			if(level == 1) addBlock(extents, logical + i, x);
+			else mapIndirect(extents, indirectBlocks, x, level - 1, logical + i * span, limit);
+		}
+	}
+	
+	/*
+	* Walks a node of an extent tree - the root is kept in the block pointers of the inode, the other nodes fill whole blocks.
+	* Every node starts with a header (magic, number of entries, maximum, depth), the entries of the leaves (depth 0)
+	* are runs of blocks and the entries of the index nodes point to the nodes below.
+	*
+	* @param extents	list the runs are added to
+	* @param indirectBlocks	list the blocks of the tree are added to, may be null
+	* @param node		buffer holding the node
+	* @param start		offset of the node in the buffer
+	* @param depth		expected depth of the node, -1 for the root
+	* @param limit		number of logical blocks in the file
+	*/
+	
+	private void mapExtents(ArrayList<Extent> extents, ArrayList<Long> indirectBlocks, ByteBuffer node, int start, int depth, long limit){
+		
+		//A damaged node (or a loop in the tree) leaves the rest of the file as a hole
+		if((node.getShort(start) & 0xFFFF) != EXTENT_MAGIC) return;
+		if(depth >= 0 && (node.getShort(start + 6) & 0xFFFF) != depth) return;
+		
+		int entries = node.getShort(start + 2) & 0xFFFF;
+		
+		depth = node.getShort(start + 6) & 0xFFFF;
+		
+		if(depth > 5) return;
+		
+		for(int i = 0; i < entries && start + 12 * (i + 2) <= node.limit(); i++){
+			
+			int entry = start + 12 * (i + 1);
+			long logical = node.getInt(entry) & 0xffffffffL;
+			
+			if(depth > 0){
+				
+				long child = (node.getShort(entry + 8) & 0xffffL) << 32 | (node.getInt(entry + 4) & 0xffffffffL);
+				
+				if(child == 0 || child >= blocksInSys) continue;
+				
+				if(indirectBlocks != null) indirectBlocks.add(child);
+				
+				ByteBuffer block = ByteBuffer.wrap(getBlock(child));
+				block.order(ByteOrder.LITTLE_ENDIAN);
+				
+				mapExtents(extents, indirectBlocks, block, 0, depth - 1, limit);
+				continue;
+			}
+			
+			int length = node.getShort(entry + 4) & 0xFFFF;
+			long physical = (node.getShort(entry + 6) & 0xffffL) << 32 | (node.getInt(entry + 8) & 0xffffffffL);
+			
+			//Unwritten (preallocated) runs read as zeros just like holes
+			if(length > 32768 || logical >= limit) continue;
+			
+			addRun(extents, logical, physical, Math.min(length, limit - logical));
+		}
+	}
+	
+	/*
+	* Adds a run of blocks to the list, merging it with the last extent if they are contiguous.
+	*/
+	
+	private void addRun(ArrayList<Extent> extents, long logical, long physical, long length){
+		
+		if(physical == 0 || length == 0) return;
+		
+		if(!extents.isEmpty()){
+			
+			Extent last = extents.get(extents.size() - 1);
+			
+			if(last.getLogicalBlock() + last.getLength() == logical && last.getPhysicalBlock() + last.getLength() == physical){
+				
+				extents.set(extents.size() - 1, new Extent(last.getLogicalBlock(), last.getPhysicalBlock(), last.getLength() + length));
+				return;
+			}
+		}
+		
+		extents.add(new Extent(logical, physical, length));
+	}
+	
+	/*
+	* Adds a single block to the list, merging it with the last extent if they are contiguous.
 	*/
 	
-	public ArrayList<Long> findDoubleIndirect(long inodePointer, long inodeNum){
+	private void addBlock(ArrayList<Extent> extents, long logical, long physical){
 		
-		ArrayList<Long> dataBlocks = new ArrayList<Long>();
-
-		long pointer = help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 92, 4));		
-
-		int z = 0;
+		if(physical == 0) return;
 		
-		for(int i = 0; i < MAX_POINTERS && pointer != 0; i++){		
-				
-			long pointerDouble = help.toLong(getBytes(pointer * BLOCK_SIZE + i * 4, 4));						
-				
-			for(int j = 0; j < MAX_POINTERS && pointerDouble != 0; j++){
+		if(!extents.isEmpty()){
+			
+			Extent last = extents.get(extents.size() - 1);
+			
+			if(last.getLogicalBlock() + last.getLength() == logical && last.getPhysicalBlock() + last.getLength() == physical){
 				
-				long x = help.toLong(getBytes(pointerDouble * BLOCK_SIZE + j * 4, 4));
-				if(x != 0 ) dataBlocks.add(x);
+				last.grow();
+				return;
 			}
 		}
-				
-		return dataBlocks;
+		
+		extents.add(new Extent(logical, physical, 1));
 	}
 	
 	/**
-	* Find triple indirect pointers in an inode given an inode pointer and inode number in the table pointed
+	* Returns the absolute offset of an inode in the volume, given its number in the filesystem.
 	*
-	* @param inodePointer	pointer to the inode table
-	* @param inodeNum		inode number in the table pointed
-	* @returns dataBlocks	numbers of data blocks which hold a data
+	* @param inodeNum	number of the inode in the filesystem (counted from 1)
+	* @return offset	byte offset of the inode
 	*/
 	
-	public ArrayList<Long> findTripleIndirect(long inodePointer, long inodeNum){
-		
-		ArrayList<Long> dataBlocks = new ArrayList<Long>();
-
-		long pointer = help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 96, 4));			
+	public long getInodeOffset(long inodeNum){
 		
-		for(int i = 0; i < MAX_POINTERS && pointer != 0; i++){		
-				
-			long pointerDouble = help.toLong(getBytes(pointer* BLOCK_SIZE + i * 4, 4));			
-
-			for(int j = 0; j < MAX_POINTERS && pointerDouble != 0; j++){					
-					
-				long pointerTriple = help.toLong(getBytes(pointerDouble * BLOCK_SIZE + j * 4, 4));	
-							
-				for(int y = 0; y < MAX_POINTERS && pointerTriple != 0; y++){							
-					
-					long x = help.toLong(getBytes(pointerTriple * BLOCK_SIZE + y * 4, 4));
-					if(x != 0) dataBlocks.add(x);			
-				}
-			}
-		}		
+		int blockGroupNum = (int) ((inodeNum - 1) / inodesInGroup);
 		
-		return dataBlocks;
+		return BLOCK_SIZE * groupDesc[blockGroupNum].getTablePointer() + inodeSize * ((inodeNum - 1) % inodesInGroup);
 	}
 	
 	/** 
@@ -217,6 +841,30 @@ public class Volume{
 		return 	groupDesc[blockGroupNum].getTablePointer();
 	}
 
+	/** 
+	* Returns a pointer to the block bitmap given block group number
+	*
+	* @param 	blockGroupNum block group number
+	* @returns	number of the block which holds the block bitmap of the group
+	*/
+	
+	public long findBlockBitmap(int blockGroupNum){	
+		
+		return 	groupDesc[blockGroupNum].getBlockBitmap();
+	}
+	
+	/** 
+	* Returns a pointer to the inode bitmap given block group number
+	*
+	* @param 	blockGroupNum block group number
+	* @returns	number of the block which holds the inode bitmap of the group
+	*/
+	
+	public long findInodeBitmap(int blockGroupNum){	
+		
+		return 	groupDesc[blockGroupNum].getInodeBitmap();
+	}
+
 	/** 
 	* Returns first direct pointer which may be used to traverse a file system.
 	*
@@ -227,9 +875,25 @@ public class Volume{
 	
 	public long findDirectory(long inodePointer, long inodeNum){
 		
+		if(hasExtents(inodePointer, inodeNum)){
+			
+			ArrayList<Extent> extents = getExtents(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1), inodeSize), null);
+			
+			return extents.isEmpty() ? 0 : extents.get(0).getPhysicalBlock();
+		}
+		
 		return 	help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 40, 4));
 	}
 	
+	/*
+	* True if the inode maps its blocks with an extent tree.
+	*/
+	
+	private boolean hasExtents(long inodePointer, long inodeNum){
+		
+		return (help.toLong(getBytes(inodePointer * BLOCK_SIZE + inodeSize * (inodeNum - 1) + 32, 4)) & EXTENTS_FLAG) != 0;
+	}
+	
 	/** 
 	* Returns a TreeMap which holds two values - name of the file and inode number
 	*
@@ -237,9 +901,76 @@ public class Volume{
 	* @returns	help.toDirectory(getBytes(dirPointer * BLOCK_SIZE, BLOCK_SIZE)) a TreeMap
 	*/
 	
-	public TreeMap readDirectory(long dirPointer){
+	public TreeMap<String, Integer> readDirectory(long dirPointer){
+		
+		return new TreeMap<String, Integer>(Helper.toDirectory(getBytes(dirPointer * BLOCK_SIZE, BLOCK_SIZE)));		
+	}
+	
+	/**
+	* Returns names and inode numbers of all the entries in a directory, reading every block of it.
+	*
+	* @param inodeNum	number of the inode of the directory (counted from 1)
+	* @return map		TreeMap which holds a name and inode number of each entry
+	*/
+	
+	public TreeMap<String, Integer> listDirectory(long inodeNum){
+		
+		TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+		
+		if(recorder != null) recorder.list(inodeNum);
+		
+		for(Extent extent: getExtents(inodeNum)){
+			
+			if(cache != null){
+				
+				for(int i = 0; i < extent.getLength(); i++) map.putAll(Helper.toDirectory(getBlock(extent.getPhysicalBlock() + i)));
+				
+				continue;
+			}
+			
+			byte[] bytes = getBytes(extent.getPhysicalBlock() * BLOCK_SIZE, extent.getLength() * BLOCK_SIZE);
+			
+			for(int i = 0; i < extent.getLength(); i++){
+				
+				map.putAll(Helper.toDirectory(Arrays.copyOfRange(bytes, (int) (i * BLOCK_SIZE), (int) ((i + 1) * BLOCK_SIZE))));
+			}
+		}
+		
+		if(prefetcher != null) prefetcher.listed(inodeNum, Collections.unmodifiableMap(new TreeMap<String, Integer>(map)));
+		
+		return map;
+	}
+	
+	/**
+	* Returns the raw bytes of an inode
+	*
+	* @param inodeNum	number of the inode in the filesystem (counted from 1)
+	* @return bytes		inodeSize bytes of the inode
+	*/
+	
+	public byte[] getInodeBytes(long inodeNum){
+		
+		return getBytes(getInodeOffset(inodeNum), inodeSize);
+	}
+	
+	/**
+	* Returns the raw bytes of an inode without counting its block as found or missed by the block cache, e.g. for
+	* a prefetch which must not make the block look hot. A block which is not cached is not added.
+	*
+	* @param inodeNum	number of the inode in the filesystem (counted from 1)
+	* @return bytes		inodeSize bytes of the inode
+	*/
+	
+	public byte[] peekInodeBytes(long inodeNum){
+		
+		long offset = getInodeOffset(inodeNum);
+		byte[] block = cache == null ? null : cache.peek(cacheOwner, offset / BLOCK_SIZE);
+		byte[] bytes = new byte[inodeSize];
+		
+		if(block != null) System.arraycopy(block, (int) (offset % BLOCK_SIZE), bytes, 0, inodeSize);
+		else readDevice(offset, bytes, 0, inodeSize);
 		
-		return help.toDirectory(getBytes(dirPointer * BLOCK_SIZE, BLOCK_SIZE));		
+		return bytes;
 	}
 	
 	/**
@@ -320,7 +1051,22 @@ public class Volume{
 		long lower = help.toLong(getBytes(BLOCK_SIZE * inodePointer + inodeSize * (inodeNum - 1) + 4, 4));	
 		long upper = help.toLong(getBytes(BLOCK_SIZE * inodePointer + inodeSize * (inodeNum - 1) + 108, 4));
 		
-		return (((long) upper) << 32) | (lower & 0xffffffffL);
+		return (upper << 32) | (lower & 0xffffffffL);
+	}
+
+	/**
+	* Returns a file size given only the number of the inode in the filesystem
+	*
+	* @param inodeNum		number of the inode in the filesystem (counted from 1)
+	* @return fileSize 		size of the file
+	*/
+	
+	public long getFileSize(long inodeNum){
+		
+		ByteBuffer buffer = ByteBuffer.wrap(getBytes(getInodeOffset(inodeNum), inodeSize));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		return (((long) buffer.getInt(108)) << 32) | (buffer.getInt(4) & 0xffffffffL);
 	}
 
 	/**
@@ -363,6 +1109,192 @@ public class Volume{
 		return inodesInGroup;
 	}
 	
+	/**
+	*	Returns the number of inodes in the filesystem defined in a super block
+	*	@return	inodesInSys	number of inodes in the filesystem
+	*/
+	
+	public long getInodesInSys(){
+		
+		return inodesInSys;
+	}
+	
+	/**
+	*	Returns the number of blocks in the filesystem defined in a super block
+	*	@return	blocksInSys	number of blocks in the filesystem
+	*/
+	
+	public long getBlocksInSys(){
+		
+		return blocksInSys;
+	}
+	
+	/**
+	*	Returns the number of blocks in a group defined in a super block
+	*	@return	blocksInGroup	number of blocks in a group
+	*/
+	
+	public long getBlocksInGroup(){
+		
+		return blocksInGroup;
+	}
+	
+	/**
+	*	Returns the number of the first block which belongs to block group 0 (1 for 1024 byte blocks, otherwise 0)
+	*	@return	firstDataBlock	number of the first block of the first group
+	*/
+	
+	public long getFirstDataBlock(){
+		
+		return firstDataBlock;
+	}
+	
+	/**
+	*	Returns the first inode which is not reserved for the filesystem itself
+	*	@return	firstInode	number of the first non-reserved inode
+	*/
+	
+	public long getFirstInode(){
+		
+		return firstInode;
+	}
+	
+	/**
+	*	Returns the incompatible feature flags defined in a super block (e.g. 0x2 - directory entries hold a file type)
+	*	@return	featureIncompat	the flags
+	*/
+	
+	public int getFeatureIncompat(){
+		
+		return featureIncompat;
+	}
+	
+	/**
+	*	Returns the read-only compatible feature flags defined in a super block (e.g. 0x1 - sparse super block copies)
+	*	@return	featureRoCompat	the flags
+	*/
+	
+	public int getFeatureRoCompat(){
+		
+		return featureRoCompat;
+	}
+	
+	/**
+	*	Returns true if a block group starts with a copy of the super block and the group descriptors.
+	*	With the sparse_super feature only groups 0, 1 and powers of 3, 5 and 7 keep a copy.
+	*	@param	blockGroupNum	number of the block group
+	*	@return	true if the group holds a copy
+	*/
+	
+	public boolean hasSuperBlockCopy(int blockGroupNum){
+		
+		if((featureRoCompat & 0x1) == 0 || blockGroupNum <= 1) return true;
+		
+		for(int base = 3; base <= 7; base += 2){
+			
+			long power = base;
+			
+			while(power < blockGroupNum) power *= base;
+			
+			if(power == blockGroupNum) return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	*	Returns the UUID of the filesystem defined in a super block
+	*	@return	uuid	16 bytes of the UUID
+	*/
+	
+	public byte[] getUUID(){
+		
+		return uuid.clone();
+	}
+	
+	/**
+	*	Returns the time the filesystem was last mounted
+	*	@return	mountTime	seconds since the epoch
+	*/
+	
+	public long getMountTime(){
+		
+		return mountTime;
+	}
+	
+	/**
+	*	Returns the time the filesystem was last written to
+	*	@return	writeTime	seconds since the epoch
+	*/
+	
+	public long getWriteTime(){
+		
+		return writeTime;
+	}
+	
+	/**
+	*	Returns the number of block groups in the filesystem
+	*	@return	groupCount	number of block groups
+	*/
+	
+	public int getGroupCount(){
+		
+		return groupCount;
+	}
+	
+	/**
+	*	Returns the size of a group descriptor (32 bytes, or more with the 64bit feature)
+	*	@return	descSize	size of each group descriptor in bytes
+	*/
+	
+	public int getDescriptorSize(){
+		
+		return descSize;
+	}
+	
+	/**
+	*	Returns the number of blocks reserved after the group descriptors of every copy, for the table to grow
+	*	@return	reservedGdtBlocks	number of blocks
+	*/
+	
+	public int getReservedGdtBlocks(){
+		
+		return reservedGdtBlocks;
+	}
+	
+	/**
+	*	Returns the raw group descriptors of all the groups, one after another, wherever they are kept
+	*	@return	table	getDescriptorSize() bytes for every group
+	*/
+	
+	public byte[] getDescriptorTable(){
+		
+		return descriptorTable.clone();
+	}
+	
+	/**
+	*	Returns the number of blocks holding group descriptors at the start of a group, after its super block copy if it
+	*	has one. The reserved GDT blocks which may follow them are not counted.
+	*	@param	blockGroupNum	number of the block group
+	*	@return	count			number of blocks
+	*/
+	
+	public int getDescriptorBlocks(int blockGroupNum){
+		
+		long perBlock = BLOCK_SIZE / descSize;
+		long tableBlocks = (groupCount + perBlock - 1) / perBlock;
+		
+		if((featureIncompat & META_BG) == 0) return hasSuperBlockCopy(blockGroupNum) ? (int) tableBlocks : 0;
+		
+		//The block of a meta group is kept in its first group, with copies in the second and the last one
+		int count = hasSuperBlockCopy(blockGroupNum) ? (int) Math.min(tableBlocks, firstMetaBg) : 0;
+		long index = blockGroupNum % perBlock;
+		
+		if(blockGroupNum / perBlock >= firstMetaBg && (index == 0 || index == 1 || index == perBlock - 1)) count++;
+		
+		return count;
+	}
+	
 	/**
 	*	Reads useful data defined in a super block
 	*/
@@ -385,7 +1317,7 @@ public class Volume{
 
 	public void readInode(int inodeNum){
 		
-		inodes[inodeNum].readInode();
+		new Inode(inodeNum).readInode();
 		
 	}
 	
@@ -406,7 +1338,7 @@ public class Volume{
 	
 	public void readBlockGroup(int blockGroupNum){	
 		
-		for(int i = 1 * blockGroupNum; i < inodesInGroup * (blockGroupNum + 1); i++) inodes[i].readInode();
+		for(int i = 1 * blockGroupNum; i < inodesInGroup * (blockGroupNum + 1); i++) new Inode(i).readInode();
 		groupDesc[blockGroupNum].readDesc();
 		readSuperBlock();
 	}
@@ -417,10 +1349,26 @@ public class Volume{
 
 	private class SuperBlock{	
 		
+		private static final int OFFSET = 1024;
+		private static final int SIZE = 1024;
 		private static final int MGC_NR_OFFSET = 56;
+		private static final int LOG_BLOCK_OFFSET = 24;
+		private static final int BLOCKS_HI_OFFSET = 0x150;
+		private static final int DESC_SIZE_OFFSET = 0xFE;
+		private static final int RESERVED_GDT_OFFSET = 0xCE;
+		private static final int FIRST_META_BG_OFFSET = 0x104;
+		private static final int FIRST_DATA_OFFSET = 20;
+		private static final int REV_LEVEL_OFFSET = 76;
+		private static final int FIRST_INO_OFFSET = 84;
+		private static final int INCOMPAT_OFFSET = 96;
+		private static final int RO_COMPAT_OFFSET = 100;
 		private static final int BLKS_GRP_OFFSET = 32;
 		private static final int INDS_GRP_OFFSET = 40;
 		private static final int IND_SIZE_OFFSET = 88;
+		private static final int MOUNT_TIME_OFFSET = 44;
+		private static final int WRITE_TIME_OFFSET = 48;
+		private static final int UUID_OFFSET = 104;
+		private static final int UUID_LNGTH = 16;
 		private static final int VOL_NAME_OFFSET = 120;
 		private static final int VOL_NAME_LNGTH = 16;	
 		
@@ -432,15 +1380,39 @@ public class Volume{
 		
 		private SuperBlock(){			
 		
-			ByteBuffer buffer = ByteBuffer.wrap(getBytes(BLOCK_SIZE, BLOCK_SIZE));
+			ByteBuffer buffer = ByteBuffer.wrap(getBytes(OFFSET, SIZE));
 			buffer.order(ByteOrder.LITTLE_ENDIAN);
 			
 			magicNumber = buffer.getShort(MGC_NR_OFFSET);
 			inodesInSys = buffer.getInt();
-			blocksInSys = buffer.getInt();
+			blocksInSys = buffer.getInt() & 0xffffffffL;
 			blocksInGroup = buffer.getInt(BLKS_GRP_OFFSET);
 			inodesInGroup = buffer.getInt(INDS_GRP_OFFSET);
-			inodeSize = buffer.getInt(IND_SIZE_OFFSET);		
+			inodeSize = buffer.getInt(IND_SIZE_OFFSET) & 0xFFFF;
+			firstDataBlock = buffer.getInt(FIRST_DATA_OFFSET);
+			firstInode = buffer.getInt(REV_LEVEL_OFFSET) == 0 ? 11 : buffer.getInt(FIRST_INO_OFFSET);
+			featureIncompat = buffer.getInt(REV_LEVEL_OFFSET) == 0 ? 0 : buffer.getInt(INCOMPAT_OFFSET);
+			featureRoCompat = buffer.getInt(REV_LEVEL_OFFSET) == 0 ? 0 : buffer.getInt(RO_COMPAT_OFFSET);
+			logBlockSize = Math.max(0, Math.min(6, buffer.getInt(LOG_BLOCK_OFFSET)));
+			reservedGdtBlocks = buffer.getInt(REV_LEVEL_OFFSET) == 0 ? 0 : buffer.getShort(RESERVED_GDT_OFFSET) & 0xFFFF;
+			firstMetaBg = buffer.getInt(FIRST_META_BG_OFFSET) & 0xffffffffL;
+			
+			//With the 64bit feature the block count and the group descriptors are bigger
+			if((featureIncompat & 0x80) != 0){
+				
+				blocksInSys |= (buffer.getInt(BLOCKS_HI_OFFSET) & 0xffffffffL) << 32;
+				descSize = Math.max(GroupDescriptor.DESC_SIZE, buffer.getShort(DESC_SIZE_OFFSET) & 0xFFFF);
+			}
+			
+			else descSize = GroupDescriptor.DESC_SIZE;
+			
+			groupCount = blocksInGroup <= 0 ? 0 : (int) ((blocksInSys - firstDataBlock + blocksInGroup - 1) / blocksInGroup);
+			mountTime = buffer.getInt(MOUNT_TIME_OFFSET) & 0xffffffffL;
+			writeTime = buffer.getInt(WRITE_TIME_OFFSET) & 0xffffffffL;
+			uuid = new byte[UUID_LNGTH];
+			
+			for(int i = 0; i < UUID_LNGTH; i++) uuid[i] = buffer.get(UUID_OFFSET + i);
+			
 			volLabel = new String();
 			
 			for(int i = 0; i < VOL_NAME_LNGTH; i++){
@@ -457,23 +1429,37 @@ public class Volume{
 
 	private class GroupDescriptor{		
 		
-		private final int DESC_SIZE = 32;
+		private static final int DESC_SIZE = 32;
+		private final int BLOCK_BITMAP_OFFSET = 0;
+		private final int INODE_BITMAP_OFFSET = 4;
 		private final int POINTER_OFFSET = 8;
+		private final int HI_OFFSET = 0x20;		//Upper halves of the three pointers in 64 bytes descriptors
 		private final int blockGroupNum;
-		private int tablePointer;
+		private long tablePointer;
+		private long blockBitmap;
+		private long inodeBitmap;
 		
 		/*
 		*	Create a group descriptor given the number of a block group.
 		*	@param blockGroupNum a number of the block group.
+		*	@param table the whole group descriptor table.
 		*/
 		
-		public GroupDescriptor(int blockGroupNum){
+		public GroupDescriptor(int blockGroupNum, ByteBuffer table){
 		
 			this.blockGroupNum = blockGroupNum;
-			ByteBuffer buffer = ByteBuffer.wrap(getBytes(BLOCK_SIZE * 2, BLOCK_SIZE));
-			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			int start = descSize * blockGroupNum;
+			
+			tablePointer =  table.getInt(start + POINTER_OFFSET) & 0xffffffffL;				
+			blockBitmap = table.getInt(start + BLOCK_BITMAP_OFFSET) & 0xffffffffL;
+			inodeBitmap = table.getInt(start + INODE_BITMAP_OFFSET) & 0xffffffffL;
 			
-			tablePointer =  buffer.getInt(DESC_SIZE * blockGroupNum  + POINTER_OFFSET);				
+			if(descSize >= HI_OFFSET + 12){
+				
+				tablePointer |= (table.getInt(start + HI_OFFSET + POINTER_OFFSET) & 0xffffffffL) << 32;
+				blockBitmap |= (table.getInt(start + HI_OFFSET + BLOCK_BITMAP_OFFSET) & 0xffffffffL) << 32;
+				inodeBitmap |= (table.getInt(start + HI_OFFSET + INODE_BITMAP_OFFSET) & 0xffffffffL) << 32;
+			}
 		}
 		
 		/*
@@ -481,11 +1467,31 @@ public class Volume{
 		*	@return tablePointer	a pointer to a table of inodes.
 		*/
 
-		private int getTablePointer(){
+		private long getTablePointer(){
 			
 			return tablePointer;
 		}
 		
+		/*
+		*	Get a pointer to the block bitmap of the group.
+		*	@return blockBitmap	a pointer to the block bitmap.
+		*/
+
+		private long getBlockBitmap(){
+			
+			return blockBitmap;
+		}
+		
+		/*
+		*	Get a pointer to the inode bitmap of the group.
+		*	@return inodeBitmap	a pointer to the inode bitmap.
+		*/
+
+		private long getInodeBitmap(){
+			
+			return inodeBitmap;
+		}
+		
 		/*
 		*	Display useful data in a group descriptor (inode table pointer)
 		*/
@@ -530,25 +1536,9 @@ public class Volume{
 		
 		public Inode(long inodeNum){
 			
-			//Decide to which inodeTable the inode belongs
-			
-			long pointer = pointer = groupDesc[0].getTablePointer();;
-			
-			if(inodeNum > inodesInGroup && inodeNum < inodesInGroup * 2){
-							
-				pointer = groupDesc[1].getTablePointer();
-				inodeNum -= (int)(long) inodesInGroup;				
-			}
-				
-			else if(inodeNum > 2 * inodesInGroup){		
-						
-				pointer = groupDesc[2].getTablePointer();
-				inodeNum -= (int)(long) inodesInGroup * 2;				
-			}	
-			
-			//Read the information
+			//Read the information, the inode table it belongs to is found from its number
 			
-			ByteBuffer buffer = ByteBuffer.wrap(getBytes(BLOCK_SIZE * pointer + inodeSize * (inodeNum - 1), inodeSize));
+			ByteBuffer buffer = ByteBuffer.wrap(getBytes(getInodeOffset(inodeNum), inodeSize));
 			buffer.order(ByteOrder.LITTLE_ENDIAN);
 			
 			fileMode = buffer.getShort();
@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Keeps any number of read-only images at hand without keeping them all open.
+*
+* An image is registered by a name and opened on its first acquire(). All the volumes share one block cache, which
+* divides its memory fairly between the images being used. The images read their bytes through a pool of file handles
+* capped at a given number - the least recently used handle which is not being read is closed when another one is needed,
+* and it is opened again on the next read of its image. Volumes not acquired for a while are closed, so neither memory
+* nor descriptors grow with the number of registered images.
+*
+*	VolumeManager manager = new VolumeManager(256L << 20, 64, 60000);
+*	manager.register("home", "/images/home.img");
+*	Volume volume = manager.acquire("home");
+*	...
+*	manager.release("home");
+*
+* @author Michal Radecki
+*/
+
+public class VolumeManager{
+	
+	private BlockCache cache;
+	private int maxHandles;
+	private long idleMillis;
+	private int openHandles;
+	private Map<String, Image> images = new HashMap<String, Image>();
+	private LinkedHashMap<PooledDevice, Boolean> handles = new LinkedHashMap<PooledDevice, Boolean>(16, 0.75f, true);
+	private ScheduledExecutorService sweeper;
+	
+	/**
+	* Create a manager.
+	*
+	* @param cacheBytes		memory of the block cache shared by all the images
+	* @param maxHandles		maximum number of image files open at once
+	* @param idleMillis		volumes not acquired for this long are closed, 0 to close them only by closeIdle()
+	*/
+	
+	public VolumeManager(long cacheBytes, int maxHandles, long idleMillis){
+		
+		if(maxHandles < 1) throw new IllegalArgumentException("At least one file handle is needed!");
+		
+		this.cache = new BlockCache(cacheBytes);
+		this.maxHandles = maxHandles;
+		this.idleMillis = idleMillis;
+		
+		if(idleMillis > 0){
+			
+			sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				
+				public Thread newThread(Runnable task){
+					
+					Thread thread = new Thread(task, "VolumeManager");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			
+			sweeper.scheduleWithFixedDelay(new Runnable(){
+				
+				public void run(){
+					
+					closeIdle();
+				}
+			}, idleMillis, Math.max(1, idleMillis / 2), TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	* Register an image, it is not opened until it is acquired.
+	*
+	* @param name		name the image is acquired by
+	* @param fileName	path to the image file
+	*/
+	
+	public synchronized void register(String name, String fileName){
+		
+		if(images.containsKey(name)) throw new IllegalArgumentException("Image " + name + " is already registered!");
+		
+		images.put(name, new Image(fileName));
+	}
+	
+	/**
+	* Forget an image, closing it if it is open.
+	*
+	* @param name	name of the image
+	*/
+	
+	public void unregister(String name){
+		
+		Image image;
+		
+		synchronized(this){
+			
+			image = images.remove(name);
+		}
+		
+		if(image != null) image.close();
+	}
+	
+	/**
+	* Returns the volume of an image, opening it if needed. The volume is not closed until it is released.
+	*
+	* @param name		name of the image
+	* @return volume	the volume, shared by everyone who acquired it
+	*/
+	
+	public Volume acquire(String name){
+		
+		Image image;
+		
+		synchronized(this){
+			
+			image = images.get(name);
+		}
+		
+		if(image == null) throw new IllegalArgumentException("No image " + name + "!");
+		
+		return image.acquire();
+	}
+	
+	/**
+	* Let the volume of an image be closed once it is idle.
+	*
+	* @param name	name of the image
+	*/
+	
+	public void release(String name){
+		
+		Image image;
+		
+		synchronized(this){
+			
+			image = images.get(name);
+		}
+		
+		if(image != null) image.release();
+	}
+	
+	/**
+	* Close the volumes which are not acquired and have not been used for the idle time given to the constructor.
+	*
+	* @return count	number of volumes closed
+	*/
+	
+	public int closeIdle(){
+		
+		long deadline = System.currentTimeMillis() - idleMillis;
+		int count = 0;
+		
+		for(Image image: snapshot()){
+			
+			if(image.closeIfIdle(deadline)) count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	* Close all the volumes and stop closing idle ones.
+	*/
+	
+	public void close(){
+		
+		if(sweeper != null) sweeper.shutdownNow();
+		
+		for(Image image: snapshot()) image.close();
+	}
+	
+	/**
+	* @return count	number of registered images
+	*/
+	
+	public synchronized int getImageCount(){
+		
+		return images.size();
+	}
+	
+	/**
+	* @return count	number of open volumes
+	*/
+	
+	public int getOpenVolumes(){
+		
+		int count = 0;
+		
+		for(Image image: snapshot()){
+			
+			if(image.isOpen()) count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	* @return count	number of image files open at the moment
+	*/
+	
+	public int getOpenHandles(){
+		
+		synchronized(handles){
+			
+			return openHandles;
+		}
+	}
+	
+	/**
+	* @return cache	the block cache shared by the volumes
+	*/
+	
+	public BlockCache getCache(){
+		
+		return cache;
+	}
+	
+	private synchronized ArrayList<Image> snapshot(){
+		
+		return new ArrayList<Image>(images.values());
+	}
+	
+	/*
+	* A registered image and its volume when it is open.
+	*/
+	
+	private class Image{
+		
+		private String fileName;
+		private Volume volume;
+		private int users;
+		private long lastUsed;
+		
+		private Image(String fileName){
+			
+			this.fileName = fileName;
+		}
+		
+		private synchronized Volume acquire(){
+			
+			if(volume == null){
+				
+				volume = new Volume(new PooledDevice(fileName), false);
+				volume.setCache(cache);
+			}
+			
+			users++;
+			lastUsed = System.currentTimeMillis();
+			
+			return volume;
+		}
+		
+		private synchronized void release(){
+			
+			if(users > 0) users--;
+			
+			lastUsed = System.currentTimeMillis();
+		}
+		
+		private synchronized boolean closeIfIdle(long deadline){
+			
+			if(volume == null || users > 0 || lastUsed > deadline) return false;
+			
+			close();
+			
+			return true;
+		}
+		
+		private synchronized void close(){
+			
+			if(volume == null) return;
+			
+			volume.close();
+			volume = null;
+			users = 0;
+		}
+		
+		private synchronized boolean isOpen(){
+			
+			return volume != null;
+		}
+	}
+	
+	/*
+	* An image file read through the pool of handles. The handle is taken for every read and may be closed
+	* between the reads when other images need it.
+	*/
+	
+	private class PooledDevice implements BlockDevice{
+		
+		private String fileName;
+		private FileChannel channel;
+		private int readers;
+		
+		private PooledDevice(String fileName){
+			
+			this.fileName = fileName;
+		}
+		
+		public int read(long position, ByteBuffer buffer) throws IOException{
+			
+			FileChannel channel = take();
+			
+			try{
+				
+				return channel.read(buffer, position);
+			
+			}finally{
+				
+				give();
+			}
+		}
+		
+		public int write(long position, ByteBuffer buffer) throws IOException{
+			
+			throw new IOException("The images of a VolumeManager are read-only!");
+		}
+		
+		public long size() throws IOException{
+			
+			FileChannel channel = take();
+			
+			try{
+				
+				return channel.size();
+			
+			}finally{
+				
+				give();
+			}
+		}
+		
+		public void force(){
+		}
+		
+		public void close() throws IOException{
+			
+			synchronized(handles){
+				
+				while(readers > 0) waitForHandle();
+				
+				if(channel != null) closeHandle(this);
+			}
+		}
+		
+		/*
+		* Open the file if needed (closing the least recently used idle handle when all are taken) and mark it as being read.
+		*/
+		
+		private FileChannel take() throws IOException{
+			
+			synchronized(handles){
+				
+				//Another reader of the file may have opened it while this one was waiting
+				while(channel == null && openHandles >= maxHandles && !closeIdleHandle()) waitForHandle();
+				
+				if(channel == null){
+					
+					channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+					openHandles++;
+				}
+				
+				readers++;
+				handles.put(this, Boolean.TRUE);
+				
+				return channel;
+			}
+		}
+		
+		private void give(){
+			
+			synchronized(handles){
+				
+				readers--;
+				handles.notifyAll();
+			}
+		}
+	}
+	
+	/*
+	* Close the least recently used handle which is not being read. Called with the lock of the handles held.
+	*/
+	
+	private boolean closeIdleHandle() throws IOException{
+		
+		Iterator<PooledDevice> devices = handles.keySet().iterator();
+		
+		while(devices.hasNext()){
+			
+			PooledDevice device = devices.next();
+			
+			if(device.readers == 0){
+				
+				devices.remove();
+				closeHandle(device);
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private void closeHandle(PooledDevice device) throws IOException{
+		
+		handles.remove(device);
+		openHandles--;
+		
+		FileChannel channel = device.channel;
+		
+		device.channel = null;
+		channel.close();
+	}
+	
+	private void waitForHandle() throws IOException{
+		
+		try{
+			
+			handles.wait();
+		
+		}catch(InterruptedException e){
+			
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException("Interrupted while waiting for a file handle!");
+		}
+	}
+}
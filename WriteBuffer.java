@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+* A write-back buffer of blocks used by Ext2Writer.
+*
+* Every block read through the buffer is kept in memory together with its kind, and changed blocks are marked dirty.
+* Nothing is written until a kind of blocks is flushed - then all its dirty blocks are sorted by their number,
+* neighbouring blocks are joined and written with a single call, so a batch of changes turns into a few large ordered writes.
+*
+* @author Michal Radecki
+*/
+
+class WriteBuffer{
+	
+	static final int DATA = 0;			//Contents of files
+	static final int BITMAP = 1;		//Block and inode bitmaps
+	static final int METADATA = 2;		//Inode tables and indirect blocks
+	static final int DIRECTORY = 3;		//Contents of directories
+	static final int SUMMARY = 4;		//Group descriptor table
+	
+	private static final int MAX_RUN = 256;		//Maximum number of blocks written at once
+	
+	private Volume volume;
+	private long blockSize;
+	private Map<Long, Entry> blocks = new HashMap<Long, Entry>();
+	private long dirtyBytes;
+	
+	/**
+	* Create a buffer over a writable volume.
+	*
+	* @param volume	the volume the blocks belong to
+	*/
+	
+	WriteBuffer(Volume volume){
+		
+		this.volume = volume;
+		this.blockSize = volume.getBlockSize();
+	}
+	
+	/**
+	* Returns a block, reading it from the volume if it is not buffered yet.
+	*
+	* @param block	number of the block
+	* @param kind	kind of the block, used to order the writes
+	* @return bytes	contents of the block, changes have to be followed by dirty()
+	*/
+	
+	byte[] get(long block, int kind){
+		
+		Entry entry = blocks.get(block);
+		
+		if(entry == null){
+			
+			entry = new Entry(volume.getBytes(block * blockSize, blockSize), kind);
+			blocks.put(block, entry);
+		}
+		
+		return entry.data;
+	}
+	
+	/**
+	* Returns a new block filled with zeros, without reading it from the volume. The block is dirty.
+	*
+	* @param block	number of the block
+	* @param kind	kind of the block, used to order the writes
+	* @return bytes	contents of the block
+	*/
+	
+	byte[] fresh(long block, int kind){
+		
+		Entry entry = new Entry(new byte[(int) blockSize], kind);
+		Entry old = blocks.put(block, entry);
+		
+		if(old != null && old.dirty) dirtyBytes -= blockSize;
+		
+		dirty(block);
+		
+		return entry.data;
+	}
+	
+	/**
+	* Mark a buffered block as changed.
+	*
+	* @param block	number of the block
+	*/
+	
+	void dirty(long block){
+		
+		Entry entry = blocks.get(block);
+		
+		if(!entry.dirty){
+			
+			entry.dirty = true;
+			dirtyBytes += blockSize;
+		}
+	}
+	
+	/**
+	* Forget a block which is no longer used (e.g. a freed data block), so it is not written.
+	*
+	* @param block	number of the block
+	*/
+	
+	void discard(long block){
+		
+		Entry entry = blocks.remove(block);
+		
+		if(entry != null && entry.dirty) dirtyBytes -= blockSize;
+	}
+	
+	/**
+	* @return dirtyBytes	number of bytes waiting to be written
+	*/
+	
+	long getDirtyBytes(){
+		
+		return dirtyBytes;
+	}
+	
+	/**
+	* Write all the dirty blocks of a kind in the order of their numbers, joining neighbouring blocks.
+	*
+	* @param kind	kind of the blocks to be written
+	*/
+	
+	void flush(int kind){
+		
+		List<Long> dirty = new ArrayList<Long>();
+		
+		for(Map.Entry<Long, Entry> entry: blocks.entrySet()){
+			
+			if(entry.getValue().dirty && entry.getValue().kind == kind) dirty.add(entry.getKey());
+		}
+		
+		Collections.sort(dirty);
+		
+		for(int i = 0; i < dirty.size(); ){
+			
+			int run = 1;
+			
+			while(run < MAX_RUN && i + run < dirty.size() && dirty.get(i + run) == dirty.get(i) + run) run++;
+			
+			byte[] bytes = new byte[(int) (run * blockSize)];
+			
+			for(int j = 0; j < run; j++){
+				
+				Entry entry = blocks.get(dirty.get(i + j));
+				
+				System.arraycopy(entry.data, 0, bytes, (int) (j * blockSize), (int) blockSize);
+				entry.dirty = false;
+				dirtyBytes -= blockSize;
+			}
+			
+			volume.putBytes(dirty.get(i) * blockSize, bytes, 0, bytes.length);
+			i += run;
+		}
+	}
+	
+	/**
+	* Drop all the clean blocks from memory.
+	*/
+	
+	void trim(){
+		
+		Iterator<Entry> iterator = blocks.values().iterator();
+		
+		while(iterator.hasNext()){
+			
+			if(!iterator.next().dirty) iterator.remove();
+		}
+	}
+	
+	/*
+	* A buffered block.
+	*/
+	
+	private static class Entry{
+		
+		private byte[] data;
+		private int kind;
+		private boolean dirty;
+		
+		private Entry(byte[] data, int kind){
+			
+			this.data = data;
+			this.kind = kind;
+		}
+	}
+}
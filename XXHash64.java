@@ -0,0 +1,172 @@
+import java.security.MessageDigest;
+
+/**
+* A streaming implementation of the 64 bit xxHash function (seed 0) in the form of a MessageDigest,
+* so it may be used wherever a digest of the JDK is used. It is much faster than cryptographic digests,
+* which makes it suitable for dedup and integrity checks which do not have to resist attacks.
+* The digest is returned in the canonical (big endian) form, the same as printed by xxhsum.
+*
+* @author Michal Radecki
+*/
+
+public class XXHash64 extends MessageDigest{
+	
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+	
+	private long v1;
+	private long v2;
+	private long v3;
+	private long v4;
+	private long totalLength;
+	private byte[] memory = new byte[32];
+	private int memorySize;
+	
+	/**
+	* Create a digest with the name "XXH64".
+	*/
+	
+	public XXHash64(){
+		
+		super("XXH64");
+		engineReset();
+	}
+	
+	protected void engineReset(){
+		
+		v1 = PRIME1 + PRIME2;
+		v2 = PRIME2;
+		v3 = 0;
+		v4 = -PRIME1;
+		totalLength = 0;
+		memorySize = 0;
+	}
+	
+	protected void engineUpdate(byte input){
+		
+		engineUpdate(new byte[]{ input }, 0, 1);
+	}
+	
+	protected void engineUpdate(byte[] input, int offset, int length){
+		
+		totalLength += length;
+		
+		// Fill the stripe left over from the previous update first
+		if(memorySize > 0){
+			
+			int count = Math.min(32 - memorySize, length);
+			
+			System.arraycopy(input, offset, memory, memorySize, count);
+			memorySize += count;
+			offset += count;
+			length -= count;
+			
+			if(memorySize < 32) return;
+			
+			consume(memory, 0);
+			memorySize = 0;
+		}
+		
+		for(; length >= 32; offset += 32, length -= 32) consume(input, offset);
+		
+		System.arraycopy(input, offset, memory, 0, length);
+		memorySize = length;
+	}
+	
+	protected byte[] engineDigest(){
+		
+		long hash;
+		
+		if(totalLength >= 32){
+			
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = merge(hash, v1);
+			hash = merge(hash, v2);
+			hash = merge(hash, v3);
+			hash = merge(hash, v4);
+		}
+		else hash = PRIME5;
+		
+		hash += totalLength;
+		
+		int i = 0;
+		
+		for(; i + 8 <= memorySize; i += 8){
+			
+			hash ^= round(0, readLong(memory, i));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		
+		if(i + 4 <= memorySize){
+			
+			hash ^= (readInt(memory, i) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		
+		for(; i < memorySize; i++){
+			
+			hash ^= (memory[i] & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+		
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		
+		engineReset();
+		
+		byte[] digest = new byte[8];
+		
+		for(int j = 0; j < 8; j++) digest[j] = (byte) (hash >>> (56 - 8 * j));
+		
+		return digest;
+	}
+	
+	protected int engineGetDigestLength(){
+		
+		return 8;
+	}
+	
+	/*
+	* Process a single 32 byte stripe.
+	*/
+	
+	private void consume(byte[] input, int offset){
+		
+		v1 = round(v1, readLong(input, offset));
+		v2 = round(v2, readLong(input, offset + 8));
+		v3 = round(v3, readLong(input, offset + 16));
+		v4 = round(v4, readLong(input, offset + 24));
+	}
+	
+	private static long round(long accumulator, long input){
+		
+		accumulator += input * PRIME2;
+		accumulator = Long.rotateLeft(accumulator, 31);
+		
+		return accumulator * PRIME1;
+	}
+	
+	private static long merge(long hash, long value){
+		
+		hash ^= round(0, value);
+		
+		return hash * PRIME1 + PRIME4;
+	}
+	
+	private static long readLong(byte[] bytes, int offset){
+		
+		return (readInt(bytes, offset) & 0xFFFFFFFFL) | ((long) readInt(bytes, offset + 4) << 32);
+	}
+	
+	private static int readInt(byte[] bytes, int offset){
+		
+		return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+	}
+}
@@ -0,0 +1,829 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+* A decoder of zstd frames (RFC 8878) used by ZstdDevice.
+*
+* A frame is decoded from memory as a whole - the device reads a single compressed frame of a seekable file and gets
+* its contents back. Everything a frame may hold is decoded except dictionaries: raw, RLE and compressed blocks,
+* literals coded with Huffman tables which may be repeated from the block before, and sequences coded with the
+* predefined, RLE, FSE or repeated tables. The checksum of the contents is verified when the frame has one.
+*
+* @author Michal Radecki
+*/
+
+class Zstd{
+	
+	static final int MAGIC = 0xFD2FB528;
+	
+	private static final int MAX_BLOCK = 1 << 17;		//Largest block of a frame
+	private static final int MAX_HUFFMAN_BITS = 12;
+	
+	private static final int[] LITERAL_BASE = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 18, 20, 22, 24, 28, 32, 40, 48, 64, 128, 256, 512,
+		1024, 2048, 4096, 8192, 16384, 32768, 65536};
+	private static final int[] LITERAL_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 3, 3, 4, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+	private static final int[] MATCH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34,
+		35, 37, 39, 41, 43, 47, 51, 59, 67, 83, 99, 131, 259, 515, 1027, 2051, 4099, 8195, 16387, 32771, 65539};
+	private static final int[] MATCH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		1, 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+	
+	//The predefined distributions of the codes, -1 is a probability below 1
+	private static final Fse LITERAL_TABLE = new Fse(new int[] {4, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 2, 1, 1, 1, 1, 1,
+		-1, -1, -1, -1}, 36, 6);
+	private static final Fse MATCH_TABLE = new Fse(new int[] {1, 4, 3, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, -1, -1, -1, -1, -1, -1, -1}, 53, 6);
+	private static final Fse OFFSET_TABLE = new Fse(new int[] {1, 1, 1, 1, 1, 1, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, -1, -1, -1, -1, -1}, 29, 5);
+	
+	private byte[] input;
+	private int position;
+	private byte[] output;
+	private int outputLength;
+	private long[] offsets = {1, 4, 8};
+	private Huffman huffman;
+	private Fse literalLengths;
+	private Fse offsetCodes;
+	private Fse matchLengths;
+	
+	/**
+	* @param input	a compressed frame
+	*/
+	
+	Zstd(byte[] input){
+		
+		this.input = input;
+	}
+	
+	/**
+	* Decode the frame.
+	*
+	* @param expected	size of the contents, -1 if it is not known
+	* @return bytes		contents of the frame
+	*/
+	
+	byte[] frame(int expected) throws IOException{
+		
+		require(6, input.length);
+		
+		if(little(position, 4) != (MAGIC & 0xffffffffL)) throw new IOException("Not a zstd frame!");
+		
+		int descriptor = input[position + 4] & 0xff;
+		int sizeFlag = descriptor >>> 6;
+		boolean single = (descriptor & 0x20) != 0;
+		int dictionaryBytes = (descriptor & 3) == 3 ? 4 : descriptor & 3;
+		int sizeBytes = sizeFlag == 0 ? (single ? 1 : 0) : 1 << sizeFlag;
+		
+		if((descriptor & 8) != 0) throw new IOException("The compressed image is damaged!");
+		
+		position += single ? 5 : 6;		//Magic number, descriptor and the window descriptor
+		
+		require(dictionaryBytes + sizeBytes, input.length);
+		
+		if(little(position, dictionaryBytes) != 0) throw new IOException("Zstd dictionaries are not supported!");
+		
+		position += dictionaryBytes;
+		
+		long size = sizeBytes == 0 ? -1 : little(position, sizeBytes) + (sizeBytes == 2 ? 256 : 0);
+		
+		position += sizeBytes;
+		
+		if(size >= 0 && expected >= 0 && size != expected) throw new IOException("The compressed image is damaged!");
+		
+		if(size > Integer.MAX_VALUE - 8) throw new IOException("The frame of the compressed image is too large!");
+		
+		output = new byte[(int) (expected >= 0 ? expected : size >= 0 ? size : MAX_BLOCK)];
+		outputLength = 0;
+		
+		boolean last;
+		
+		do{
+			
+			require(3, input.length);
+			
+			int header = (int) little(position, 3);
+			int type = header >>> 1 & 3;
+			int blockSize = header >>> 3;
+			
+			last = (header & 1) != 0;
+			position += 3;
+			
+			if(blockSize > MAX_BLOCK) throw new IOException("The compressed image is damaged!");
+			
+			if(type == 0){
+				
+				require(blockSize, input.length);
+				reserve(blockSize);
+				System.arraycopy(input, position, output, outputLength, blockSize);
+				
+				outputLength += blockSize;
+				position += blockSize;
+			}
+			
+			else if(type == 1){
+				
+				require(1, input.length);
+				reserve(blockSize);
+				Arrays.fill(output, outputLength, outputLength + blockSize, input[position++]);
+				
+				outputLength += blockSize;
+			}
+			
+			else if(type == 2){
+				
+				require(blockSize, input.length);
+				
+				int end = position + blockSize;
+				
+				sequences(literals(end), end);
+				position = end;
+			}
+			
+			else throw new IOException("The compressed image is damaged!");
+		
+		}while(!last);
+		
+		if((descriptor & 4) != 0){
+			
+			require(4, input.length);
+			
+			if((int) little(position, 4) != (int) checksum(output, outputLength)) throw new IOException("The compressed image is damaged!");
+			
+			position += 4;
+		}
+		
+		if(expected >= 0 && outputLength != expected || size >= 0 && outputLength != size) throw new IOException("The compressed image is damaged!");
+		
+		return outputLength == output.length ? output : Arrays.copyOf(output, outputLength);
+	}
+	
+	/**
+	* The 64 bit xxHash of the bytes, which zstd keeps the lower 32 bits of.
+	*
+	* @param bytes	data
+	* @param length	number of bytes hashed from the start
+	* @return hash	the hash
+	*/
+	
+	static long checksum(byte[] bytes, int length){
+		
+		XXHash64 hash = new XXHash64();
+		
+		hash.update(bytes, 0, length);
+		
+		return ByteBuffer.wrap(hash.digest()).getLong();
+	}
+	
+	/*
+	* Decode the literals section of a compressed block.
+	*/
+	
+	private byte[] literals(int end) throws IOException{
+		
+		require(1, end);
+		
+		int first = input[position] & 0xff;
+		int type = first & 3;
+		int format = first >>> 2 & 3;
+		
+		if(type < 2){
+			
+			//Raw or RLE literals, the size takes 5, 12 or 20 bits
+			int headerBytes = (format & 1) == 0 ? 1 : format == 1 ? 2 : 3;
+			
+			require(headerBytes, end);
+			
+			int size = headerBytes == 1 ? first >>> 3 : (int) (little(position, headerBytes) >>> 4);
+			byte[] literals = new byte[size];
+			
+			position += headerBytes;
+			
+			if(size > MAX_BLOCK) throw new IOException("The compressed image is damaged!");
+			
+			if(type == 0){
+				
+				require(size, end);
+				System.arraycopy(input, position, literals, 0, size);
+				position += size;
+			}
+			
+			else{
+				
+				require(1, end);
+				Arrays.fill(literals, input[position++]);
+			}
+			
+			return literals;
+		}
+		
+		//Huffman coded literals in one or four streams, both sizes take 10, 14 or 18 bits
+		int headerBytes = format < 2 ? 3 : format + 2;
+		int sizeBits = format < 2 ? 10 : 4 * format + 6;
+		
+		require(headerBytes, end);
+		
+		long header = little(position, headerBytes);
+		int size = (int) (header >>> 4 & ((1 << sizeBits) - 1));
+		int compressed = (int) (header >>> (4 + sizeBits) & ((1 << sizeBits) - 1));
+		
+		position += headerBytes;
+		
+		require(compressed, end);
+		
+		if(size > MAX_BLOCK) throw new IOException("The compressed image is damaged!");
+		
+		int streamsEnd = position + compressed;
+		
+		if(type == 2) huffman = readHuffman(streamsEnd);
+		
+		else if(huffman == null) throw new IOException("The compressed image is damaged!");
+		
+		byte[] literals = new byte[size];
+		
+		if(format == 0) decode(position, streamsEnd, literals, 0, size);
+		
+		else{
+			
+			//A jump table with the sizes of the first three streams, every stream but the last one holds a quarter
+			require(6, streamsEnd);
+			
+			int start = position + 6;
+			int part = (size + 3) / 4;
+			
+			if(size < 3 * part) throw new IOException("The compressed image is damaged!");
+			
+			for(int i = 0; i < 3; i++){
+				
+				int length = (int) little(position + 2 * i, 2);
+				
+				if(start + length > streamsEnd) throw new IOException("The compressed image is damaged!");
+				
+				decode(start, start + length, literals, i * part, part);
+				start += length;
+			}
+			
+			decode(start, streamsEnd, literals, 3 * part, size - 3 * part);
+		}
+		
+		position = streamsEnd;
+		
+		return literals;
+	}
+	
+	/*
+	* Read the description of a Huffman table - the weights of the symbols, either 4 bits each or coded with FSE.
+	* The weight of the last symbol is not stored, it completes the sum of the weights to a power of 2.
+	*/
+	
+	private Huffman readHuffman(int end) throws IOException{
+		
+		require(1, end);
+		
+		int header = input[position++] & 0xff;
+		int[] weights = new int[256];
+		int count = 0;
+		
+		if(header < 128){
+			
+			require(header, end);
+			
+			int weightsEnd = position + header;
+			Fse fse = readFse(MAX_HUFFMAN_BITS, 6, weightsEnd);
+			Backward stream = new Backward(input, position, weightsEnd);
+			int state1 = stream.read(fse.log);
+			int state2 = stream.read(fse.log);
+			
+			//Two states take turns until the stream is used up, the other state gives the last weight
+			while(true){
+				
+				if(count > 253) throw new IOException("The compressed image is damaged!");
+				
+				weights[count++] = fse.symbol[state1];
+				state1 = fse.base[state1] + stream.read(fse.bits[state1]);
+				
+				if(stream.overflow()){
+					
+					weights[count++] = fse.symbol[state2];
+					break;
+				}
+				
+				weights[count++] = fse.symbol[state2];
+				state2 = fse.base[state2] + stream.read(fse.bits[state2]);
+				
+				if(stream.overflow()){
+					
+					weights[count++] = fse.symbol[state1];
+					break;
+				}
+			}
+			
+			position = weightsEnd;
+		}
+		
+		else{
+			
+			count = header - 127;
+			
+			require((count + 1) / 2, end);
+			
+			for(int i = 0; i < count; i++){
+				
+				int both = input[position + i / 2] & 0xff;
+				
+				weights[i] = i % 2 == 0 ? both >>> 4 : both & 15;
+			}
+			
+			position += (count + 1) / 2;
+		}
+		
+		int sum = 0;
+		
+		for(int i = 0; i < count; i++){
+			
+			if(weights[i] > MAX_HUFFMAN_BITS) throw new IOException("The compressed image is damaged!");
+			
+			if(weights[i] > 0) sum += 1 << (weights[i] - 1);
+		}
+		
+		int maxBits = 32 - Integer.numberOfLeadingZeros(sum);
+		int rest = (1 << maxBits) - sum;
+		
+		if(sum == 0 || maxBits > MAX_HUFFMAN_BITS || Integer.bitCount(rest) != 1) throw new IOException("The compressed image is damaged!");
+		
+		weights[count++] = 32 - Integer.numberOfLeadingZeros(rest);
+		
+		return new Huffman(weights, count, maxBits);
+	}
+	
+	/*
+	* Decode a stream of Huffman coded literals.
+	*/
+	
+	private void decode(int start, int end, byte[] literals, int offset, int count) throws IOException{
+		
+		Backward stream = new Backward(input, start, end);
+		
+		for(int i = 0; i < count; i++){
+			
+			int index = stream.peek(huffman.maxBits);
+			
+			literals[offset + i] = huffman.symbol[index];
+			stream.skip(huffman.length[index]);
+		}
+		
+		if(!stream.finished()) throw new IOException("The compressed image is damaged!");
+	}
+	
+	/*
+	* Decode the sequences section of a compressed block and execute the sequences - copy the literals
+	* and the matches to the output.
+	*/
+	
+	private void sequences(byte[] literals, int end) throws IOException{
+		
+		require(1, end);
+		
+		int count = input[position++] & 0xff;
+		
+		if(count >= 255){
+			
+			require(2, end);
+			count = (int) little(position, 2) + 0x7F00;
+			position += 2;
+		}
+		
+		else if(count >= 128){
+			
+			require(1, end);
+			count = (count - 128 << 8) + (input[position++] & 0xff);
+		}
+		
+		if(count == 0){
+			
+			append(literals, 0, literals.length);
+			return;
+		}
+		
+		require(1, end);
+		
+		int modes = input[position++] & 0xff;
+		
+		if((modes & 3) != 0) throw new IOException("The compressed image is damaged!");
+		
+		literalLengths = table(modes >>> 6, literalLengths, LITERAL_TABLE, 35, 9, end);
+		offsetCodes = table(modes >>> 4 & 3, offsetCodes, OFFSET_TABLE, 31, 8, end);
+		matchLengths = table(modes >>> 2 & 3, matchLengths, MATCH_TABLE, 52, 9, end);
+		
+		Backward stream = new Backward(input, position, end);
+		int literalState = stream.read(literalLengths.log);
+		int offsetState = stream.read(offsetCodes.log);
+		int matchState = stream.read(matchLengths.log);
+		int used = 0;
+		
+		for(int i = 0; i < count; i++){
+			
+			int offsetCode = offsetCodes.symbol[offsetState];
+			int matchCode = matchLengths.symbol[matchState];
+			int literalCode = literalLengths.symbol[literalState];
+			
+			//The extra bits come in the order offset, match length, literal length
+			long offsetValue = (1L << offsetCode) + stream.read(offsetCode);
+			int matchLength = MATCH_BASE[matchCode] + stream.read(MATCH_EXTRA[matchCode]);
+			int literalLength = LITERAL_BASE[literalCode] + stream.read(LITERAL_EXTRA[literalCode]);
+			
+			if(i + 1 < count){
+				
+				literalState = literalLengths.base[literalState] + stream.read(literalLengths.bits[literalState]);
+				matchState = matchLengths.base[matchState] + stream.read(matchLengths.bits[matchState]);
+				offsetState = offsetCodes.base[offsetState] + stream.read(offsetCodes.bits[offsetState]);
+			}
+			
+			long offset = repeat(offsetValue, literalLength == 0);
+			
+			if(literalLength > literals.length - used) throw new IOException("The compressed image is damaged!");
+			
+			append(literals, used, literalLength);
+			used += literalLength;
+			
+			if(offset < 1 || offset > outputLength) throw new IOException("The compressed image refers before its frame!");
+			
+			reserve(matchLength);
+			
+			int from = outputLength - (int) offset;
+			
+			if(offset >= matchLength){
+				
+				System.arraycopy(output, from, output, outputLength, matchLength);
+				outputLength += matchLength;
+			}
+			
+			else while(matchLength-- > 0) output[outputLength++] = output[from++];
+		}
+		
+		if(!stream.finished()) throw new IOException("The compressed image is damaged!");
+		
+		append(literals, used, literals.length - used);
+	}
+	
+	/*
+	* The offset of a match. Values 1 to 3 pick one of the last three offsets (shifted by one after no literals),
+	* larger values are new offsets. The offset used goes to the front of the last offsets.
+	*/
+	
+	private long repeat(long offsetValue, boolean noLiterals){
+		
+		if(offsetValue > 3){
+			
+			offsets[2] = offsets[1];
+			offsets[1] = offsets[0];
+			offsets[0] = offsetValue - 3;
+			
+			return offsets[0];
+		}
+		
+		int index = (int) offsetValue - (noLiterals ? 0 : 1);
+		
+		if(index == 0) return offsets[0];
+		
+		long offset = index == 3 ? offsets[0] - 1 : offsets[index];
+		
+		if(index != 1) offsets[2] = offsets[1];
+		
+		offsets[1] = offsets[0];
+		offsets[0] = offset;
+		
+		return offset;
+	}
+	
+	/*
+	* The table of a code of the sequences according to its mode: predefined, a single symbol, described or repeated.
+	*/
+	
+	private Fse table(int mode, Fse previous, Fse predefined, int maxSymbol, int maxLog, int end) throws IOException{
+		
+		if(mode == 0) return predefined;
+		
+		if(mode == 1){
+			
+			require(1, end);
+			
+			int symbol = input[position++] & 0xff;
+			
+			if(symbol > maxSymbol) throw new IOException("The compressed image is damaged!");
+			
+			return new Fse(symbol);
+		}
+		
+		if(mode == 2) return readFse(maxSymbol, maxLog, end);
+		
+		if(previous == null) throw new IOException("The compressed image is damaged!");
+		
+		return previous;
+	}
+	
+	/*
+	* Read the description of an FSE table - the accuracy and the normalized counts of the symbols, where a run
+	* of symbols after one with no count is given by 2 bit repeat flags.
+	*/
+	
+	private Fse readFse(int maxSymbol, int maxLog, int end) throws IOException{
+		
+		long bit = 8L * position;
+		int log = (int) bits(input, end, bit, 4) + 5;
+		int[] counts = new int[maxSymbol + 1];
+		int remaining = (1 << log) + 1;
+		int threshold = 1 << log;
+		int width = log + 1;
+		int symbol = 0;
+		boolean zero = false;
+		
+		if(log > maxLog) throw new IOException("The compressed image is damaged!");
+		
+		bit += 4;
+		
+		while(remaining > 1 && symbol <= maxSymbol){
+			
+			if(zero){
+				
+				int repeat;
+				
+				while((repeat = (int) bits(input, end, bit, 2)) == 3){
+					
+					symbol += 3;
+					bit += 2;
+				}
+				
+				symbol += repeat;
+				bit += 2;
+				
+				if(symbol > maxSymbol) break;
+			}
+			
+			//Small values take a bit less than the rest
+			int max = 2 * threshold - 1 - remaining;
+			int value = (int) bits(input, end, bit, width);
+			int count;
+			
+			if((value & (threshold - 1)) < max){
+				
+				count = value & (threshold - 1);
+				bit += width - 1;
+			}
+			
+			else{
+				
+				count = value & (2 * threshold - 1);
+				
+				if(count >= threshold) count -= max;
+				
+				bit += width;
+			}
+			
+			count--;
+			remaining -= Math.abs(count);
+			counts[symbol++] = count;
+			zero = count == 0;
+			
+			if(remaining < 1) break;
+			
+			while(remaining < threshold){
+				
+				width--;
+				threshold >>= 1;
+			}
+		}
+		
+		position = (int) ((bit + 7) / 8);
+		
+		if(remaining != 1 || position > end) throw new IOException("The compressed image is damaged!");
+		
+		return new Fse(counts, symbol, log);
+	}
+	
+	private void append(byte[] bytes, int offset, int length){
+		
+		reserve(length);
+		System.arraycopy(bytes, offset, output, outputLength, length);
+		outputLength += length;
+	}
+	
+	private void reserve(int length){
+		
+		if(outputLength + length <= output.length) return;
+		
+		output = Arrays.copyOf(output, Math.max(2 * output.length, outputLength + length));
+	}
+	
+	private void require(int count, int end) throws IOException{
+		
+		if(count > end - position) throw new EOFException("The compressed image is truncated!");
+	}
+	
+	private long little(int offset, int count){
+		
+		long value = 0;
+		
+		for(int i = 0; i < count; i++) value |= (input[offset + i] & 0xffL) << (8 * i);
+		
+		return value;
+	}
+	
+	/*
+	* Bits [bit, bit + count) of the little endian number held by bytes [0, end), zeros outside of it.
+	*/
+	
+	private static long bits(byte[] bytes, int end, long bit, int count){
+		
+		long first = bit >> 3;
+		int shift = (int) (bit & 7);
+		long value = 0;
+		
+		for(int i = 0; 8 * i < shift + count; i++){
+			
+			long index = first + i;
+			
+			if(index >= 0 && index < end) value |= (bytes[(int) index] & 0xffL) << (8 * i);
+		}
+		
+		return value >>> shift & ((1L << count) - 1);
+	}
+	
+	/*
+	* A stream read backwards from its end, the highest set bit of its last byte marks where it starts.
+	* The bits before the beginning of the stream are zeros.
+	*/
+	
+	private static class Backward{
+		
+		private byte[] bytes;
+		private int start;
+		private int end;
+		private long bit;
+		
+		private Backward(byte[] bytes, int start, int end) throws IOException{
+			
+			if(end <= start || bytes[end - 1] == 0) throw new IOException("The compressed image is damaged!");
+			
+			this.bytes = bytes;
+			this.start = start;
+			this.end = end;
+			bit = 8L * (end - 1) + 31 - Integer.numberOfLeadingZeros(bytes[end - 1] & 0xff);
+		}
+		
+		private int read(int count){
+			
+			bit -= count;
+			
+			return peekAt(bit, count);
+		}
+		
+		private int peek(int count){
+			
+			return peekAt(bit - count, count);
+		}
+		
+		private void skip(int count){
+			
+			bit -= count;
+		}
+		
+		private boolean overflow(){
+			
+			return bit < 8L * start;
+		}
+		
+		private boolean finished(){
+			
+			return bit == 8L * start;
+		}
+		
+		private int peekAt(long from, int count){
+			
+			if(from >= 8L * start) return (int) bits(bytes, end, from, count);
+			
+			//Only the part inside of the stream, the bits before it are zeros
+			long skipped = 8L * start - from;
+			
+			return skipped >= count ? 0 : (int) (bits(bytes, end, 8L * start, (int) (count - skipped)) << skipped);
+		}
+	}
+	
+	/*
+	* A Huffman table indexed by the next maxBits bits of the stream, the symbols in the order of their weights.
+	*/
+	
+	private static class Huffman{
+		
+		private int maxBits;
+		private byte[] symbol;
+		private byte[] length;
+		
+		private Huffman(int[] weights, int count, int maxBits) throws IOException{
+			
+			this.maxBits = maxBits;
+			symbol = new byte[1 << maxBits];
+			length = new byte[1 << maxBits];
+			
+			int[] next = new int[maxBits + 1];
+			int start = 0;
+			
+			for(int i = 0; i < count; i++){
+				
+				if(weights[i] > maxBits) throw new IOException("The compressed image is damaged!");
+				
+				next[weights[i]]++;
+			}
+			
+			for(int weight = 1; weight <= maxBits; weight++){
+				
+				int codes = next[weight] << (weight - 1);
+				
+				next[weight] = start;
+				start += codes;
+			}
+			
+			for(int i = 0; i < count; i++){
+				
+				if(weights[i] == 0) continue;
+				
+				int entries = 1 << (weights[i] - 1);
+				
+				Arrays.fill(symbol, next[weights[i]], next[weights[i]] + entries, (byte) i);
+				Arrays.fill(length, next[weights[i]], next[weights[i]] + entries, (byte) (maxBits + 1 - weights[i]));
+				next[weights[i]] += entries;
+			}
+		}
+	}
+	
+	/*
+	* An FSE decoding table - the symbol of every state, the number of bits read for the next state
+	* and the base the bits are added to.
+	*/
+	
+	private static class Fse{
+		
+		private int log;
+		private int[] symbol;
+		private int[] bits;
+		private int[] base;
+		
+		/*
+		* A table of a single symbol, no bits are read for it.
+		*/
+		
+		private Fse(int single){
+			
+			symbol = new int[] {single};
+			bits = new int[1];
+			base = new int[1];
+		}
+		
+		/*
+		* Spread the symbols over the states by their counts, the ones with a count below 1 at the end.
+		*/
+		
+		private Fse(int[] counts, int symbols, int log){
+			
+			int size = 1 << log;
+			int high = size - 1;
+			int[] next = new int[symbols];
+			
+			this.log = log;
+			symbol = new int[size];
+			bits = new int[size];
+			base = new int[size];
+			
+			for(int i = 0; i < symbols; i++){
+				
+				if(counts[i] == -1){
+					
+					symbol[high--] = i;
+					next[i] = 1;
+				}
+				
+				else next[i] = counts[i];
+			}
+			
+			int step = (size >> 1) + (size >> 3) + 3;
+			int state = 0;
+			
+			for(int i = 0; i < symbols; i++){
+				
+				for(int j = 0; j < counts[i]; j++){
+					
+					symbol[state] = i;
+					
+					do state = (state + step) & (size - 1); while(state > high);
+				}
+			}
+			
+			for(int i = 0; i < size; i++){
+				
+				int count = next[symbol[i]]++;
+				
+				bits[i] = log - (31 - Integer.numberOfLeadingZeros(count));
+				base[i] = (count << bits[i]) - size;
+			}
+		}
+	}
+}
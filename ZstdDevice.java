@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+* An image compressed in the seekable format of zstd, read without decompressing the whole file.
+*
+* A seekable file is a series of independent zstd frames followed by a seek table in a skippable frame, which gives the
+* compressed and the decompressed size of every frame (and possibly a checksum of its contents), so unlike a gzip file
+* it needs no index. A read decompresses just the frames it touches. Zstd files without a seek table are refused,
+* a single frame would have to be decompressed as a whole for every read.
+*
+* @author Michal Radecki
+*/
+
+public class ZstdDevice extends FrameDevice{
+	
+	private static final long CACHE_SIZE = 64L << 20;		//Memory for the frames by default
+	private static final int SKIPPABLE_MAGIC = 0x184D2A5E;
+	private static final int SEEKABLE_MAGIC = 0x8F92EAB1;
+	private static final int FOOTER = 9;					//Number of frames, descriptor, magic number
+	private static final int CHECKSUM_FLAG = 0x80;
+	
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long[] offsets;
+	private int[] checksums;
+	
+	/**
+	* Open a compressed image.
+	*
+	* @param fileName	path to the seekable zstd file
+	*/
+	
+	public ZstdDevice(String fileName) throws IOException{
+		
+		this(fileName, CACHE_SIZE);
+	}
+	
+	/**
+	* Open a compressed image.
+	*
+	* @param fileName	path to the seekable zstd file
+	* @param cacheBytes	memory for the decompressed frames
+	*/
+	
+	public ZstdDevice(String fileName, long cacheBytes) throws IOException{
+		
+		super(cacheBytes);
+		
+		file = new RandomAccessFile(fileName, "r");
+		channel = file.getChannel();
+		
+		try{
+			
+			readSeekTable();
+		
+		}catch(IOException e){
+			
+			file.close();
+			throw e;
+		}
+	}
+	
+	protected byte[] decompress(int frame, int length) throws IOException{
+		
+		byte[] bytes = new Zstd(read(offsets[frame], (int) (offsets[frame + 1] - offsets[frame])).array()).frame(length);
+		
+		if(checksums != null && (int) Zstd.checksum(bytes, bytes.length) != checksums[frame]) throw new IOException("The compressed image is damaged!");
+		
+		return bytes;
+	}
+	
+	public void close() throws IOException{
+		
+		file.close();
+	}
+	
+	/*
+	* Read the seek table at the end of the file:
+	*
+	*	skippable frame header: magic number, size of the table
+	*	every frame: compressed size, decompressed size, checksum if the descriptor has the flag (4 bytes each)
+	*	footer: number of frames (4 bytes), descriptor (1 byte), magic number (4 bytes)
+	*
+	* Frames with no contents (e.g. skippable frames) are left out.
+	*/
+	
+	private void readSeekTable() throws IOException{
+		
+		long length = channel.size();
+		
+		if(length < FOOTER + 8) throw new IOException("Not a seekable zstd file!");
+		
+		ByteBuffer footer = read(length - FOOTER, FOOTER);
+		int count = footer.getInt(0);
+		int descriptor = footer.get(4) & 0xff;
+		int entrySize = (descriptor & CHECKSUM_FLAG) != 0 ? 12 : 8;
+		long tableSize = (long) entrySize * (count & 0xffffffffL) + FOOTER;
+		long tableStart = length - tableSize - 8;
+		
+		if(footer.getInt(5) != SEEKABLE_MAGIC || (descriptor & ~CHECKSUM_FLAG) != 0 || tableStart < 0 || tableSize > Integer.MAX_VALUE){
+			
+			throw new IOException("Not a seekable zstd file!");
+		}
+		
+		ByteBuffer table = read(tableStart, (int) tableSize + 8 - FOOTER);
+		
+		if(table.getInt(0) != SKIPPABLE_MAGIC || (table.getInt(4) & 0xffffffffL) != tableSize) throw new IOException("Not a seekable zstd file!");
+		
+		ArrayList<long[]> frames = new ArrayList<long[]>();
+		long compressed = 0;
+		long decompressed = 0;
+		
+		for(int i = 0; i < count; i++){
+			
+			long size = table.getInt(8 + i * entrySize) & 0xffffffffL;
+			long contents = table.getInt(12 + i * entrySize) & 0xffffffffL;
+			
+			if(size > Integer.MAX_VALUE || contents > Integer.MAX_VALUE - 8) throw new IOException("The frames of the compressed image are too large!");
+			
+			if(contents > 0) frames.add(new long[] {compressed, decompressed, entrySize == 12 ? table.getInt(16 + i * entrySize) : 0});
+			
+			compressed += size;
+			decompressed += contents;
+		}
+		
+		if(compressed != tableStart) throw new IOException("The seek table does not match the zstd file!");
+		
+		frames.add(new long[] {compressed, decompressed, 0});
+		
+		long[] starts = new long[frames.size()];
+		
+		offsets = new long[frames.size()];
+		checksums = entrySize == 12 ? new int[frames.size()] : null;
+		
+		for(int i = 0; i < frames.size(); i++){
+			
+			offsets[i] = frames.get(i)[0];
+			starts[i] = frames.get(i)[1];
+			
+			if(checksums != null) checksums[i] = (int) frames.get(i)[2];
+		}
+		
+		setFrames(starts);
+	}
+	
+	private ByteBuffer read(long position, int length) throws IOException{
+		
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		
+		while(buffer.hasRemaining()){
+			
+			if(channel.read(buffer, position + buffer.position()) < 0) throw new IOException("The compressed image is truncated!");
+		}
+		
+		return buffer;
+	}
+}